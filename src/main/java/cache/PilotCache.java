@@ -1,172 +1,1227 @@
 package cache;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.Arrays;
-import java.util.Objects;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 
+/**
+ * Cache of file ranges, bounded by bytes. Ranges are stored as aligned blocks of
+ * {@link #blockSize} bytes keyed by (file, block index), so any read inside cached blocks hits,
+ * whatever range was put. The tail block of a put may be partial.
+ *
+ * Blocks live in shards; each shard is a segmented LRU (probation and protected segments)
+ * with TinyLFU admission: when the shard is full, a new block only gets in if it was asked
+ * for more often than the block it would evict, so one-off scans do not flush the hot set.
+ *
+ * Nothing per block lives on the Java heap: block data is kept in direct ByteBuffer slabs of
+ * {@link #slabSize} bytes, each carved into slots of one power-of-two size class between
+ * {@link #minSlotSize} and {@link #blockSize}, and the shard's hash table and LRU links are
+ * fixed-size records in direct buffers too. Hits are therefore copied out of the slab, see
+ * {@link #read}.
+ *
+ * Freshness is tracked by a generation per file, bumped by {@link #invalidate} whenever the
+ * file changes: the shadow file system calls it from its write, move, delete and create
+ * paths for the files under {@link #managedPaths}. Every other file, e.g. an original the
+ * application itself rewrites, is covered by a WatchService on its parent directory
+ * ({@link #watchExternalChanges}); where the directory cannot be watched, reads of that file
+ * compare its modification time instead. A block remembers the generation it was read at, so
+ * a hit on a watched or managed file is a pure in-memory lookup. Generations come from one global counter, so a file whose state
+ * was dropped to stay under {@link #maxFiles} never sees an old generation again.
+ *
+ * Reads are tracked per file: after {@link #sequentialThreshold} reads that each start in or
+ * right after the block where the previous one ended, the next {@link #readAheadBlocks}
+ * blocks are read from the file in the background. {@link #load} is the read-through variant
+ * that fills missing blocks from the file itself.
+ */
 public final class PilotCache {
+    public static long maxBytes = 256L << 20;
+    // 必须是2的幂
+    public static int blockSize = 64 * 1024;
+    public static int shardCount = 16;
+    // 每个shard中protected段占的比例
+    public static double protectedRatio = 0.8;
+    // 堆外slab的大小和最小的slot，都是2的幂
+    public static int slabSize = 1 << 20;
+    public static int minSlotSize = 4096;
+    // 顺序读预读的块数，0表示不预读
+    public static int readAheadBlocks = 4;
+    public static int sequentialThreshold = 2;
 
-    private static final class CacheKey {
-        private final String filePath;
-        private final long position;
-        private final int length;
+    private static volatile Shard[] shards = newShards();
+    private static volatile int shardBlockSize = blockSize;
 
-        public CacheKey(String filePath, long position, int length) {
-            this.filePath = Objects.requireNonNull(filePath, "filePath must not be null");
-            this.position = position;
-            this.length = length;
-        }
+    // 跟踪的文件数上限；超过后随机丢掉八分之一，它们的块不会再命中，随LRU淘汰
+    public static int maxFiles = 1 << 16;
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            CacheKey cacheKey = (CacheKey) o;
-            return position == cacheKey.position &&
-                    length == cacheKey.length &&
-                    filePath.equals(cacheKey.filePath);
+    private static final ConcurrentHashMap<String, FileState> files = new ConcurrentHashMap<>();
+    private static final AtomicInteger fileIds = new AtomicInteger();
+    private static final AtomicBoolean trimming = new AtomicBoolean();
+    // generation全局递增，文件状态被丢掉再建出来时不会和旧的generation重合
+    private static final AtomicLong generations = new AtomicLong();
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+    private static final LongAdder rejections = new LongAdder();
+    private static final LongAdder invalidations = new LongAdder();
+    private static final LongAdder prefetches = new LongAdder();
+
+    private static final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "pilot-cache-readahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // 用WatchService监视缓存文件所在的目录，发现外部修改；managedPaths之内的文件不监视
+    public static boolean watchExternalChanges = true;
+    // 修改时一定会调用invalidate的路径（影子文件系统的根目录），由ShadowFileSystem设置
+    public static volatile Predicate<String> managedPaths = path -> false;
+    private static volatile WatchService watcher;
+    private static final Set<Path> watchedDirs = ConcurrentHashMap.newKeySet();
+
+    private PilotCache() {
+    }
+
+    private static final class FileState {
+        final int id;
+        final AtomicLong generation = new AtomicLong(generations.incrementAndGet());
+        // put时带来的最后修改时间，变了说明文件被改过
+        long lastModified = -1;
+        // 目录监视不上时，每次读都比较一次最后修改时间
+        volatile boolean revalidate;
+        // 顺序读检测：上次读到的块、连续顺序读的次数、已经安排预读到的块（不含）
+        long lastBlock = -1;
+        int sequentialReads;
+        long prefetchedUntil;
+
+        FileState(int id) {
+            this.id = id;
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(filePath, position, length);
+        synchronized long observe(long fileLastModified) {
+            if (fileLastModified != lastModified) {
+                if (lastModified != -1) {
+                    advance();
+                }
+                lastModified = fileLastModified;
+            }
+            return generation.get();
         }
 
-        @Override
-        public String toString() {
-            return "CacheKey{" +
-                    "filePath='" + filePath + '\'' +
-                    ", position=" + position +
-                    ", length=" + length +
-                    '}';
+        void advance() {
+            generation.set(generations.incrementAndGet());
         }
     }
 
-    private static final class CacheValue {
-        private final byte[] data;
-        private final long fileLastModifiedTimestamp;
+    /**
+     * Snapshot of the cache counters
+     */
+    public static final class Stats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long rejections;
+        public final long invalidations;
+        public final long prefetches;
+        public final long blocks;
+        public final long bytes;
+        // slab占用的堆外内存
+        public final long reservedBytes;
 
-        public CacheValue(byte[] data, long fileLastModifiedTimestamp) {
-            this.data = Arrays.copyOf(data, data.length);
-            this.fileLastModifiedTimestamp = fileLastModifiedTimestamp;
+        Stats(long hits, long misses, long evictions, long rejections, long invalidations, long prefetches,
+              long blocks, long bytes, long reservedBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.rejections = rejections;
+            this.invalidations = invalidations;
+            this.prefetches = prefetches;
+            this.blocks = blocks;
+            this.bytes = bytes;
+            this.reservedBytes = reservedBytes;
         }
 
-        public byte[] getData() {
-            return Arrays.copyOf(this.data, this.data.length);
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
         }
 
-        public long getFileLastModifiedTimestamp() {
-            return fileLastModifiedTimestamp;
+        @Override
+        public String toString() {
+            return "PilotCache.Stats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                    + ", rejections=" + rejections + ", invalidations=" + invalidations + ", prefetches=" + prefetches
+                    + ", blocks=" + blocks + ", bytes=" + bytes + ", reservedBytes=" + reservedBytes + "}";
         }
+    }
 
-        public int getDataLength() {
-            return this.data.length;
+    private static Shard[] newShards() {
+        int count = Math.max(1, shardCount);
+        Shard[] created = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            created[i] = new Shard(Math.max(blockSize, maxBytes / count), blockSize, Math.min(minSlotSize, blockSize),
+                    slabSize);
         }
+        return created;
     }
 
-    private static final ConcurrentHashMap<CacheKey, CacheValue> cache = new ConcurrentHashMap<>();
+    private static Shard shard(long key) {
+        Shard[] current = shards;
+        int h = Long.hashCode(key * 0x9E3779B97F4A7C15L);
+        return current[(h & Integer.MAX_VALUE) % current.length];
+    }
 
-    private static int MAX_ENTRIES = 1000;
-    private static int DEFAULT_MAX_ENTRIES = 1000; // 默认最大条目数
+    // 文件id占高32位，block序号占低32位；更靠后的块不缓存
+    private static final long MAX_BLOCK = 0xFFFFFFFFL;
 
-    // 递增ID计数器
-    private static final AtomicLong putIdCounter = new AtomicLong(0);
-    private static final AtomicLong getIdCounter = new AtomicLong(0);
+    private static long key(FileState file, long block) {
+        return ((long) file.id << 32) | block;
+    }
 
-    // 日志文件路径
-    private static final String PUT_LOG_FILE = "/opt/cache_put.txt";
-    private static final String GET_LOG_FILE = "/opt/cache_get.txt";
+    private static FileState file(String filePath) {
+        FileState file = files.get(filePath);
+        if (file != null) {
+            return file;
+        }
+        file = files.computeIfAbsent(filePath, path -> new FileState(fileIds.incrementAndGet()));
+        if (files.size() > maxFiles) {
+            trimFiles();
+        }
+        if (!managedPaths.test(filePath) && !(watchExternalChanges && watch(filePath))) {
+            revalidate(filePath, file);
+            file.revalidate = true;
+        }
+        return file;
+    }
+
+    // 同一时间只有一个线程在丢
+    private static void trimFiles() {
+        if (!trimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int target = maxFiles - maxFiles / 8;
+            Iterator<FileState> it = files.values().iterator();
+            while (files.size() > target && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } finally {
+            trimming.set(false);
+        }
+    }
 
     /**
-     * 工具方法：将操作信息写入指定文件
-     * @param filePath 目标日志文件路径
-     * @param cacheKey 缓存键
-     * @param operationId 操作ID
+     * Current generation of filePath; read it before reading the file and cache the result
+     * with {@link #putIfCurrent}.
      */
-    private static void writeOperationLog(String filePath, CacheKey cacheKey, long operationId) {
-        try {
-            String logEntry = String.format("ID: %d, %s%n", operationId, cacheKey.toString());
-            Path logPath = Paths.get(filePath);
+    public static long generation(String filePath) {
+        return file(filePath).generation.get();
+    }
 
-            // 确保父目录存在
-            Path parentDir = logPath.getParent();
-            if (parentDir != null && !Files.exists(parentDir)) {
-                Files.createDirectories(parentDir);
+    /**
+     * Copy of [position, position + length) of filePath, or null unless all of it is cached
+     */
+    public static byte[] get(String filePath, long position, int length) {
+        if (length <= 0) {
+            return null;
+        }
+        byte[] result = new byte[length];
+        return read(filePath, position, ByteBuffer.wrap(result)) ? result : null;
+    }
+
+    /**
+     * Read-only copy of [position, position + length) of filePath, or null unless all of it is
+     * cached
+     */
+    public static ByteBuffer getBuffer(String filePath, long position, int length) {
+        if (length <= 0) {
+            return null;
+        }
+        ByteBuffer result = ByteBuffer.allocate(length);
+        if (!read(filePath, position, result)) {
+            return null;
+        }
+        result.flip();
+        return result.asReadOnlyBuffer();
+    }
+
+    /**
+     * Copy dst.remaining() bytes of filePath from position into dst, which may be direct.
+     * @return false, with dst untouched, unless all of the range is cached
+     */
+    public static boolean read(String filePath, long position, ByteBuffer dst) {
+        int length = dst.remaining();
+        if (length <= 0 || position < 0) {
+            return false;
+        }
+        // miss不建文件状态，顺序读检测从第一次put或load开始
+        FileState file = files.get(filePath);
+        if (file == null) {
+            misses.increment();
+            return false;
+        }
+        long generation = file.revalidate ? revalidate(filePath, file) : file.generation.get();
+
+        int size = shardBlockSize;
+        int start = dst.position();
+        long end = position + length;
+        trackAccess(filePath, file, position / size, (end - 1) / size);
+        for (long block = position / size; block * size < end; block++) {
+            long blockStart = block * size;
+            int from = (int) Math.max(0, position - blockStart);
+            int to = (int) Math.min(size, end - blockStart);
+            if (!copyBlock(file, block, generation, from, to, dst)) {
+                dst.position(start);
+                misses.increment();
+                return false;
             }
+        }
+        hits.increment();
+        return true;
+    }
 
-            // 追加写入日志文件
-            Files.write(logPath, logEntry.getBytes(),
-                    StandardOpenOption.CREATE,
-                    StandardOpenOption.APPEND);
+    // 没有监视的文件：最后修改时间变了就换generation，文件没了也换
+    private static long revalidate(String filePath, FileState file) {
+        try {
+            return file.observe(Files.getLastModifiedTime(Paths.get(filePath)).toMillis());
         } catch (IOException e) {
-            System.err.println("写入操作日志失败 '" + filePath + "': " + e.getMessage());
+            file.advance();
+            return file.generation.get();
         }
     }
 
-    private static long getCurrentFileLastModified(String filePath) throws IOException {
-        Path path = Paths.get(filePath);
-        if (!Files.exists(path)) {
-            throw new IOException("文件不存在: " + filePath);
+    /**
+     * Read-through variant of {@link #read}: blocks of the range that are not cached are read
+     * from filePath as whole blocks and cached.
+     * @return bytes copied into dst, fewer at the end of the file, or -1 at or past the end
+     */
+    public static int load(String filePath, long position, ByteBuffer dst) throws IOException {
+        int length = dst.remaining();
+        if (length == 0) {
+            return 0;
         }
-        return Files.getLastModifiedTime(path).toMillis();
+        if (read(filePath, position, dst)) {
+            return length;
+        }
+        FileState file = file(filePath);
+        long generation = file.generation.get();
+        int size = shardBlockSize;
+        long end = position + length;
+        int copied = 0;
+        byte[] buffer = null;
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            for (long block = position / size; block * size < end; block++) {
+                long blockStart = block * size;
+                int from = (int) Math.max(0, position - blockStart);
+                int to = (int) Math.min(size, end - blockStart);
+                if (copyBlock(file, block, generation, from, to, dst)) {
+                    copied += to - from;
+                    continue;
+                }
+                if (buffer == null) {
+                    buffer = new byte[size];
+                }
+                int n = readBlock(channel, blockStart, buffer);
+                if (n > 0) {
+                    storeBlock(file, block, generation, buffer, 0, 0, n);
+                }
+                if (n <= from) {
+                    break;
+                }
+                int available = Math.min(to, n) - from;
+                dst.put(buffer, from, available);
+                copied += available;
+                if (n < to) {
+                    break;
+                }
+            }
+        }
+        return copied == 0 ? -1 : copied;
     }
 
-    public static byte[] get(String filePath, long position, int length) {
-        if (length <= 0) return null;
-
-        CacheKey key = new CacheKey(filePath, position, length);
-        CacheValue value = cache.get(key);
+    // 从blockStart开始读满一块，返回读到的字节数
+    private static int readBlock(FileChannel channel, long blockStart, byte[] buffer) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer);
+        while (target.hasRemaining()) {
+            if (channel.read(target, blockStart + target.position()) < 0) {
+                break;
+            }
+        }
+        return target.position();
+    }
 
-        if (value != null) {
-            try {
-                long currentTimestamp = getCurrentFileLastModified(filePath);
-                if (value.getFileLastModifiedTimestamp() == currentTimestamp && value.getDataLength() == length) {
-                    byte[] result = value.getData();
+    private static boolean copyBlock(FileState file, long block, long generation, int from, int to,
+                                     ByteBuffer dst) {
+        if (block > MAX_BLOCK) {
+            return false;
+        }
+        long key = key(file, block);
+        Shard shard = shard(key);
+        synchronized (shard) {
+            return shard.read(key, generation, from, to, dst);
+        }
+    }
 
-                    // 记录成功的get操作
-                    long getId = getIdCounter.incrementAndGet();
-                    //writeOperationLog(GET_LOG_FILE, key, getId);
+    // 读从上次结束的块或它的下一块开始就算顺序读，连续够了就预读后面的块
+    private static void trackAccess(String filePath, FileState file, long first, long last) {
+        int ahead = readAheadBlocks;
+        if (ahead <= 0) {
+            return;
+        }
+        long from;
+        long to;
+        synchronized (file) {
+            if (file.lastBlock >= 0 && (first == file.lastBlock || first == file.lastBlock + 1)) {
+                file.sequentialReads++;
+            } else {
+                file.sequentialReads = 0;
+                file.prefetchedUntil = 0;
+            }
+            file.lastBlock = last;
+            if (file.sequentialReads < sequentialThreshold) {
+                return;
+            }
+            from = Math.max(last + 1, file.prefetchedUntil);
+            to = last + 1 + ahead;
+            if (from >= to) {
+                return;
+            }
+            file.prefetchedUntil = to;
+        }
+        long generation = file.generation.get();
+        prefetchExecutor.execute(() -> prefetch(filePath, file, from, to, generation));
+    }
 
-                    return result;
-                } else {
-                    cache.remove(key);
-                    return null;
+    private static void prefetch(String filePath, FileState file, long from, long to, long generation) {
+        int size = shardBlockSize;
+        byte[] buffer = new byte[size];
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            for (long block = from; block < to; block++) {
+                if (file.generation.get() != generation) {
+                    return;
+                }
+                if (cached(file, block, generation)) {
+                    continue;
+                }
+                int n = readBlock(channel, block * size, buffer);
+                if (n <= 0) {
+                    return;
+                }
+                storeBlock(file, block, generation, buffer, 0, 0, n);
+                prefetches.increment();
+                if (n < size) {
+                    return;
                 }
-            } catch (IOException e) {
-                System.err.println("警告: 检查文件时间戳时出错 '" + filePath + "': " + e.getMessage() + "。缓存条目已失效。");
-                cache.remove(key);
-                return null;
             }
+        } catch (IOException e) {
+            // 预读失败不影响正常的读，下次miss时再读
         }
-        return null;
     }
 
+    private static boolean cached(FileState file, long block, long generation) {
+        if (block > MAX_BLOCK) {
+            return false;
+        }
+        long key = key(file, block);
+        Shard shard = shard(key);
+        synchronized (shard) {
+            return shard.contains(key, generation);
+        }
+    }
+
+    /**
+     * Cache data as the content of filePath at position, read when the file had the given
+     * last modified time; a time different from the one of earlier puts starts a new
+     * generation. Blocks it covers from their start are stored; a leading partial block is
+     * only merged into a cached block that already reaches position.
+     */
     public static void put(String filePath, long position, byte[] data, long fileLastModifiedTimestamp) {
-        if (data == null || data.length == 0) {
+        if (data == null || data.length == 0 || position < 0) {
             return;
         }
+        FileState file = file(filePath);
+        store(file, position, data, file.observe(fileLastModifiedTimestamp));
+    }
 
-        CacheKey key = new CacheKey(filePath, position, data.length);
-        CacheValue value = new CacheValue(data, fileLastModifiedTimestamp);
-        cache.put(key, value);
+    /**
+     * Cache data as the content of filePath at position in the current generation
+     */
+    public static void put(String filePath, long position, byte[] data) {
+        if (data == null || data.length == 0 || position < 0) {
+            return;
+        }
+        FileState file = file(filePath);
+        store(file, position, data, file.generation.get());
+    }
+
+    /**
+     * Cache data only if filePath was not invalidated since {@link #generation} returned
+     * generation, so a read racing with a write is never cached as current.
+     * @return false if the data was dropped
+     */
+    public static boolean putIfCurrent(String filePath, long position, byte[] data, long generation) {
+        if (data == null || data.length == 0 || position < 0) {
+            return false;
+        }
+        FileState file = file(filePath);
+        if (file.generation.get() != generation) {
+            return false;
+        }
+        store(file, position, data, generation);
+        return true;
+    }
 
-        // 记录put操作
-        long putId = putIdCounter.incrementAndGet();
-        //writeOperationLog(PUT_LOG_FILE, key, putId);
+    private static void store(FileState file, long position, byte[] data, long generation) {
+        int size = shardBlockSize;
+        long end = position + data.length;
+        for (long block = position / size; block * size < end; block++) {
+            long blockStart = block * size;
+            int blockOffset = (int) Math.max(0, position - blockStart);
+            int dataOffset = (int) Math.max(0, blockStart - position);
+            int length = (int) Math.min(size - blockOffset, end - blockStart - blockOffset);
+            storeBlock(file, block, generation, data, dataOffset, blockOffset, length);
+        }
+    }
+
+    private static void storeBlock(FileState file, long block, long generation, byte[] src, int srcOffset,
+                                   int blockOffset, int length) {
+        if (block > MAX_BLOCK) {
+            return;
+        }
+        long key = key(file, block);
+        Shard shard = shard(key);
+        synchronized (shard) {
+            shard.store(file, key, generation, src, srcOffset, blockOffset, length);
+        }
+    }
+
+    /**
+     * Start a new generation of filePath: its cached blocks are misses from now on and are
+     * dropped as they are found or evicted.
+     */
+    public static void invalidate(String filePath) {
+        FileState file = files.get(filePath);
+        if (file != null) {
+            file.advance();
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * Invalidate every cached file at or under dirPath
+     */
+    public static void invalidateUnder(String dirPath) {
+        String prefix = dirPath.endsWith(File.separator) ? dirPath : dirPath + File.separator;
+        for (Map.Entry<String, FileState> entry : files.entrySet()) {
+            if (entry.getKey().equals(dirPath) || entry.getKey().startsWith(prefix)) {
+                entry.getValue().advance();
+                invalidations.increment();
+            }
+        }
+    }
+
+    // 返回false表示父目录监视不上（不存在、inotify配额用完等）
+    private static boolean watch(String filePath) {
+        Path dir = Paths.get(filePath).toAbsolutePath().getParent();
+        if (dir == null) {
+            return false;
+        }
+        if (watchedDirs.contains(dir)) {
+            return true;
+        }
+        try {
+            WatchService service = watcher();
+            dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirs.add(dir);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("警告: 无法监视目录 '" + dir + "': " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static WatchService watcher() throws IOException {
+        WatchService service = watcher;
+        if (service == null) {
+            synchronized (PilotCache.class) {
+                service = watcher;
+                if (service == null) {
+                    service = FileSystems.getDefault().newWatchService();
+                    WatchService polled = service;
+                    Thread thread = new Thread(() -> pollChanges(polled), "pilot-cache-watcher");
+                    thread.setDaemon(true);
+                    thread.start();
+                    watcher = service;
+                }
+            }
+        }
+        return service;
+    }
+
+    private static void pollChanges(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // 丢了事件，不知道哪个文件变了
+                    invalidateUnder(dir.toString());
+                } else {
+                    invalidate(dir.resolve((Path) event.context()).toString());
+                }
+            }
+            if (!key.reset()) {
+                watchedDirs.remove(dir);
+            }
+        }
     }
 
     public static void clear() {
-        cache.clear();
+        shards = newShards();
+        shardBlockSize = blockSize;
+        files.clear();
     }
 
+    /**
+     * Number of cached blocks
+     */
     public static long size() {
-        return cache.size();
+        long blocks = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                blocks += shard.blockCount();
+            }
+        }
+        return blocks;
+    }
+
+    public static long bytes() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                bytes += shard.bytes();
+            }
+        }
+        return bytes;
+    }
+
+    public static Stats stats() {
+        long blocks = 0;
+        long bytes = 0;
+        long reserved = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                blocks += shard.blockCount();
+                bytes += shard.bytes();
+                reserved += shard.slabs.reservedBytes();
+            }
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), rejections.sum(), invalidations.sum(),
+                prefetches.sum(), blocks, bytes, reserved);
+    }
+
+    /**
+     * One segmented LRU; callers hold its lock. Entries are fixed-size records in a direct
+     * buffer, chained from a hash table of record indexes and doubly linked into their segment,
+     * and each owns one slab slot.
+     */
+    private static final class Shard {
+        private static final int NIL = -1;
+        private static final int UNLINKED = 0;
+        private static final int PROBATION = 1;
+        private static final int PROTECTED = 2;
+        // 条目记录的布局
+        private static final int KEY = 0;
+        private static final int GENERATION = 8;
+        private static final int SLOT = 16;
+        private static final int LENGTH = 20;
+        private static final int PREV = 24;
+        private static final int NEXT = 28;
+        private static final int CHAIN = 32;
+        private static final int SEGMENT = 36;
+        private static final int RECORD = 40;
+        // 换slot时最多往后找这么多个同样大小的条目来淘汰
+        private static final int SAME_CLASS_SCAN = 64;
+
+        private final long capacity;
+        private final long protectedCapacity;
+        final SlabAllocator slabs;
+        private final ByteBuffer entries;
+        private final ByteBuffer buckets;
+        private final int bucketMask;
+        private int freeEntry;
+        private int count;
+        // 按段下标，头是最久未用的
+        private final int[] heads = {NIL, NIL, NIL};
+        private final int[] tails = {NIL, NIL, NIL};
+        private final long[] segmentBytes = new long[3];
+        final FrequencySketch sketch;
+
+        Shard(long capacity, int blockSize, int minSlot, int slabSize) {
+            this.capacity = capacity;
+            this.protectedCapacity = (long) (capacity * protectedRatio);
+            this.slabs = new SlabAllocator(capacity, blockSize, minSlot, slabSize);
+            this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(16, capacity / blockSize)));
+
+            // 每个条目至少占一个最小的slot，再留两个给换slot的过程
+            int maxEntries = (int) Math.min(Integer.MAX_VALUE / RECORD, capacity / minSlot + 2);
+            entries = ByteBuffer.allocateDirect(maxEntries * RECORD).order(ByteOrder.nativeOrder());
+            for (int e = 0; e < maxEntries; e++) {
+                entries.putInt(e * RECORD + NEXT, e + 1 < maxEntries ? e + 1 : NIL);
+            }
+            int bucketCount = Integer.highestOneBit(Math.max(2, maxEntries - 1) << 1);
+            buckets = ByteBuffer.allocateDirect(bucketCount * 4).order(ByteOrder.nativeOrder());
+            for (int b = 0; b < bucketCount; b++) {
+                buckets.putInt(b * 4, NIL);
+            }
+            bucketMask = bucketCount - 1;
+        }
+
+        private int bucket(long key) {
+            long h = key * 0xC2B2AE3D27D4EB4FL;
+            return (int) (h ^ (h >>> 29)) & bucketMask;
+        }
+
+        private long keyOf(int e) {
+            return entries.getLong(e * RECORD + KEY);
+        }
+
+        private long generationOf(int e) {
+            return entries.getLong(e * RECORD + GENERATION);
+        }
+
+        private int slotOf(int e) {
+            return entries.getInt(e * RECORD + SLOT);
+        }
+
+        private int lengthOf(int e) {
+            return entries.getInt(e * RECORD + LENGTH);
+        }
+
+        private int segmentOf(int e) {
+            return entries.getInt(e * RECORD + SEGMENT);
+        }
+
+        private int find(long key) {
+            for (int e = buckets.getInt(bucket(key) * 4); e != NIL; e = entries.getInt(e * RECORD + CHAIN)) {
+                if (keyOf(e) == key) {
+                    return e;
+                }
+            }
+            return NIL;
+        }
+
+        // 新条目挂进哈希表，但还不在任何段里
+        private int newEntry(long key, long generation, int slot) {
+            int e = freeEntry;
+            if (e == NIL) {
+                return NIL;
+            }
+            int base = e * RECORD;
+            freeEntry = entries.getInt(base + NEXT);
+            int b = bucket(key) * 4;
+            entries.putLong(base + KEY, key);
+            entries.putLong(base + GENERATION, generation);
+            entries.putInt(base + SLOT, slot);
+            entries.putInt(base + LENGTH, 0);
+            entries.putInt(base + SEGMENT, UNLINKED);
+            entries.putInt(base + CHAIN, buckets.getInt(b));
+            buckets.putInt(b, e);
+            count++;
+            return e;
+        }
+
+        // 释放一个已经从段里摘下的条目和它的slot
+        private void discard(int e) {
+            int b = bucket(keyOf(e)) * 4;
+            int next = entries.getInt(e * RECORD + CHAIN);
+            int cursor = buckets.getInt(b);
+            if (cursor == e) {
+                buckets.putInt(b, next);
+            } else {
+                while (entries.getInt(cursor * RECORD + CHAIN) != e) {
+                    cursor = entries.getInt(cursor * RECORD + CHAIN);
+                }
+                entries.putInt(cursor * RECORD + CHAIN, next);
+            }
+            slabs.free(slotOf(e));
+            entries.putInt(e * RECORD + NEXT, freeEntry);
+            freeEntry = e;
+            count--;
+        }
+
+        private void link(int e, int segment) {
+            int base = e * RECORD;
+            int tail = tails[segment];
+            entries.putInt(base + PREV, tail);
+            entries.putInt(base + NEXT, NIL);
+            entries.putInt(base + SEGMENT, segment);
+            if (tail == NIL) {
+                heads[segment] = e;
+            } else {
+                entries.putInt(tail * RECORD + NEXT, e);
+            }
+            tails[segment] = e;
+            segmentBytes[segment] += slabs.slotSize(slotOf(e));
+        }
+
+        private void unlink(int e) {
+            int base = e * RECORD;
+            int segment = entries.getInt(base + SEGMENT);
+            int prev = entries.getInt(base + PREV);
+            int next = entries.getInt(base + NEXT);
+            if (prev == NIL) {
+                heads[segment] = next;
+            } else {
+                entries.putInt(prev * RECORD + NEXT, next);
+            }
+            if (next == NIL) {
+                tails[segment] = prev;
+            } else {
+                entries.putInt(next * RECORD + PREV, prev);
+            }
+            entries.putInt(base + SEGMENT, UNLINKED);
+            segmentBytes[segment] -= slabs.slotSize(slotOf(e));
+        }
+
+        private void remove(int e) {
+            unlink(e);
+            discard(e);
+        }
+
+        // 只查是否在缓存中，不影响访问频率和LRU顺序
+        boolean contains(long key, long generation) {
+            int e = find(key);
+            return e != NIL && generationOf(e) == generation;
+        }
+
+        /**
+         * Copy [from, to) of a block into dst if it is cached in generation with at least to
+         * valid bytes; a hit in probation moves the block to the protected segment
+         */
+        boolean read(long key, long generation, int from, int to, ByteBuffer dst) {
+            sketch.increment(key);
+            int e = find(key);
+            if (e == NIL) {
+                return false;
+            }
+            if (generationOf(e) != generation) {
+                remove(e);
+                return false;
+            }
+            if (lengthOf(e) < to) {
+                return false;
+            }
+            boolean promoted = segmentOf(e) == PROBATION;
+            unlink(e);
+            link(e, PROTECTED);
+            if (promoted) {
+                demoteOverflow();
+            }
+            slabs.copyTo(slotOf(e), from, to - from, dst);
+            return true;
+        }
+
+        /**
+         * Write src into the block at blockOffset, merging with what is cached; a leading gap
+         * is not stored
+         */
+        void store(FileState file, long key, long generation, byte[] src, int srcOffset, int blockOffset,
+                   int length) {
+            int e = find(key);
+            if (e != NIL && generationOf(e) != generation) {
+                remove(e);
+                e = NIL;
+            }
+            int cachedLength = e == NIL ? 0 : lengthOf(e);
+            if (blockOffset > cachedLength) {
+                // 块开头缺一段，不能存
+                return;
+            }
+            if (file.generation.get() != generation) {
+                // 存的过程中文件被改了
+                return;
+            }
+            int newLength = Math.max(cachedLength, blockOffset + length);
+            if (e != NIL && slabs.slotSize(slotOf(e)) >= newLength) {
+                // slot放得下，原地写
+                slabs.copyFrom(src, srcOffset, slotOf(e), blockOffset, length);
+                entries.putInt(e * RECORD + LENGTH, newLength);
+                int segment = segmentOf(e);
+                unlink(e);
+                link(e, segment);
+                return;
+            }
+
+            int slotBytes = slabs.slotSizeFor(newLength);
+            int segment = PROBATION;
+            if (e == NIL) {
+                long needed = bytes() + slotBytes - capacity;
+                if (needed > 0 && !admit(key, needed)) {
+                    rejections.increment();
+                    return;
+                }
+            } else {
+                // 先摘下来，腾地方时不会淘汰到自己
+                segment = segmentOf(e);
+                unlink(e);
+            }
+            int slot = allocate(slotBytes);
+            if (slot == NIL) {
+                if (e != NIL) {
+                    discard(e);
+                }
+                return;
+            }
+            if (e == NIL) {
+                e = newEntry(key, generation, slot);
+                if (e == NIL) {
+                    slabs.free(slot);
+                    return;
+                }
+            } else {
+                // 块变长，换一个更大的slot
+                slabs.copy(slotOf(e), slot, cachedLength);
+                slabs.free(slotOf(e));
+                entries.putInt(e * RECORD + SLOT, slot);
+            }
+            slabs.copyFrom(src, srcOffset, slot, blockOffset, length);
+            entries.putInt(e * RECORD + LENGTH, newLength);
+            link(e, segment);
+            if (segment == PROTECTED) {
+                demoteOverflow();
+            }
+        }
+
+        // protected段超出比例时，最久未用的降回probation
+        private void demoteOverflow() {
+            while (segmentBytes[PROTECTED] > protectedCapacity && heads[PROTECTED] != NIL) {
+                int e = heads[PROTECTED];
+                unlink(e);
+                link(e, PROBATION);
+            }
+        }
+
+        // TinyLFU：新块比要被淘汰的块访问更频繁才放进来
+        private boolean admit(long key, long needed) {
+            int candidate = sketch.frequency(key);
+            long freed = 0;
+            for (int segment = PROBATION; segment <= PROTECTED; segment++) {
+                for (int e = heads[segment]; e != NIL; e = entries.getInt(e * RECORD + NEXT)) {
+                    if (sketch.frequency(keyOf(e)) >= candidate) {
+                        return false;
+                    }
+                    freed += slabs.slotSize(slotOf(e));
+                    if (freed >= needed) {
+                        return true;
+                    }
+                }
+            }
+            return true;
+        }
+
+        // 先按字节腾出空间，slab里没有这个大小的空slot时再淘汰同样大小的条目
+        private int allocate(int slotBytes) {
+            while (bytes() + slotBytes > capacity) {
+                if (!evict(0)) {
+                    break;
+                }
+            }
+            int slot;
+            while ((slot = slabs.allocate(slotBytes)) == NIL) {
+                if (!evict(slotBytes)) {
+                    return NIL;
+                }
+            }
+            return slot;
+        }
+
+        // 淘汰顺序：先probation，再protected，各自从最久未用开始；slotBytes不为0时优先淘汰同样大小的
+        private boolean evict(int slotBytes) {
+            int victim = NIL;
+            if (slotBytes != 0) {
+                int scanned = 0;
+                for (int segment = PROBATION; segment <= PROTECTED && victim == NIL; segment++) {
+                    for (int e = heads[segment]; e != NIL && scanned < SAME_CLASS_SCAN;
+                         e = entries.getInt(e * RECORD + NEXT), scanned++) {
+                        if (slabs.slotSize(slotOf(e)) == slotBytes) {
+                            victim = e;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (victim == NIL) {
+                victim = heads[PROBATION] != NIL ? heads[PROBATION] : heads[PROTECTED];
+            }
+            if (victim == NIL) {
+                return false;
+            }
+            remove(victim);
+            evictions.increment();
+            return true;
+        }
+
+        long blockCount() {
+            return count;
+        }
+
+        long bytes() {
+            return segmentBytes[PROBATION] + segmentBytes[PROTECTED];
+        }
+    }
+
+    /**
+     * Direct ByteBuffer slabs carved into slots of one size class each; callers hold the
+     * shard lock. A slot is named by (slab index << 16 | slot index) and free slots are chained
+     * through their first four bytes. Slabs are never released, but an empty slab is carved
+     * again for the class that runs out of slots once the byte limit is reached.
+     */
+    private static final class SlabAllocator {
+        private static final int NONE = -1;
+
+        private final long limit;
+        private final int slabBytes;
+        private final int minSlot;
+        private final int[] freeHeads;
+        private ByteBuffer[] slabs = new ByteBuffer[4];
+        private int[] slabClass = new int[4];
+        private int[] slabUsed = new int[4];
+        private int slabCount;
+
+        SlabAllocator(long limit, int blockSize, int minSlot, int slabSize) {
+            this.limit = limit;
+            this.minSlot = minSlot;
+            // 至少放得下一个最大的slot，slot序号不超过16位
+            int bytes = (int) Math.min(Math.min(slabSize, limit), (long) minSlot << 16);
+            this.slabBytes = Math.max(blockSize, bytes / blockSize * blockSize);
+            this.freeHeads = new int[classFor(blockSize) + 1];
+            Arrays.fill(freeHeads, NONE);
+        }
+
+        private int classFor(int length) {
+            int sizeClass = 0;
+            while ((minSlot << sizeClass) < length) {
+                sizeClass++;
+            }
+            return sizeClass;
+        }
+
+        int slotSizeFor(int length) {
+            return minSlot << classFor(length);
+        }
+
+        int slotSize(int slot) {
+            return minSlot << slabClass[slot >>> 16];
+        }
+
+        private int offset(int slot) {
+            return (slot & 0xFFFF) * slotSize(slot);
+        }
+
+        long reservedBytes() {
+            return (long) slabCount * slabBytes;
+        }
+
+        int allocate(int slotBytes) {
+            int sizeClass = classFor(slotBytes);
+            if (freeHeads[sizeClass] == NONE) {
+                int slab;
+                if (reservedBytes() + slabBytes <= limit) {
+                    slab = newSlab();
+                } else {
+                    slab = emptySlab();
+                    if (slab == NONE) {
+                        return NONE;
+                    }
+                    unchainSlab(slab);
+                }
+                carve(slab, sizeClass);
+            }
+            int slot = freeHeads[sizeClass];
+            ByteBuffer slab = slabs[slot >>> 16];
+            freeHeads[sizeClass] = slab.getInt(offset(slot));
+            slabUsed[slot >>> 16]++;
+            return slot;
+        }
+
+        void free(int slot) {
+            int slab = slot >>> 16;
+            int sizeClass = slabClass[slab];
+            slabs[slab].putInt(offset(slot), freeHeads[sizeClass]);
+            freeHeads[sizeClass] = slot;
+            slabUsed[slab]--;
+        }
+
+        private int newSlab() {
+            if (slabCount == slabs.length) {
+                slabs = Arrays.copyOf(slabs, slabCount * 2);
+                slabClass = Arrays.copyOf(slabClass, slabCount * 2);
+                slabUsed = Arrays.copyOf(slabUsed, slabCount * 2);
+            }
+            slabs[slabCount] = ByteBuffer.allocateDirect(slabBytes);
+            return slabCount++;
+        }
+
+        private int emptySlab() {
+            for (int slab = 0; slab < slabCount; slab++) {
+                if (slabUsed[slab] == 0) {
+                    return slab;
+                }
+            }
+            return NONE;
+        }
+
+        // 把一个空slab的slot从它原来那个大小的空闲链里摘掉
+        private void unchainSlab(int slab) {
+            int sizeClass = slabClass[slab];
+            int head = NONE;
+            int tail = NONE;
+            for (int slot = freeHeads[sizeClass]; slot != NONE; ) {
+                int next = slabs[slot >>> 16].getInt(offset(slot));
+                if (slot >>> 16 != slab) {
+                    if (tail == NONE) {
+                        head = slot;
+                    } else {
+                        slabs[tail >>> 16].putInt(offset(tail), slot);
+                    }
+                    tail = slot;
+                }
+                slot = next;
+            }
+            if (tail != NONE) {
+                slabs[tail >>> 16].putInt(offset(tail), NONE);
+            }
+            freeHeads[sizeClass] = head;
+        }
+
+        private void carve(int slab, int sizeClass) {
+            slabClass[slab] = sizeClass;
+            int slotBytes = minSlot << sizeClass;
+            ByteBuffer buffer = slabs[slab];
+            int next = freeHeads[sizeClass];
+            for (int i = slabBytes / slotBytes - 1; i >= 0; i--) {
+                buffer.putInt(i * slotBytes, next);
+                next = slab << 16 | i;
+            }
+            freeHeads[sizeClass] = next;
+        }
+
+        // slab的可复用视图，调用方持有shard锁
+        private ByteBuffer view(int slot, int from, int length) {
+            ByteBuffer view = slabs[slot >>> 16];
+            int start = offset(slot) + from;
+            view.limit(start + length);
+            view.position(start);
+            return view;
+        }
+
+        void copyTo(int slot, int from, int length, ByteBuffer dst) {
+            ByteBuffer view = view(slot, from, length);
+            dst.put(view);
+            view.clear();
+        }
+
+        void copyFrom(byte[] src, int srcOffset, int slot, int to, int length) {
+            ByteBuffer view = view(slot, to, length);
+            view.put(src, srcOffset, length);
+            view.clear();
+        }
+
+        void copy(int fromSlot, int toSlot, int length) {
+            if (length == 0) {
+                return;
+            }
+            // 两个slot可能在同一个slab里，先把源区间复制成独立的视图
+            ByteBuffer from = view(fromSlot, 0, length);
+            ByteBuffer source = from.duplicate();
+            from.clear();
+            ByteBuffer target = view(toSlot, 0, length);
+            target.put(source);
+            target.clear();
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit access counters, halved every 10 * width increments so old
+     * popularity fades; callers hold the shard lock
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL,
+                0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+            this.counters = new byte[width * DEPTH];
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        private int index(long key, int row) {
+            long h = (key + row) * SEEDS[row];
+            h ^= h >>> 32;
+            return row * (mask + 1) + ((int) h & mask);
+        }
+
+        int frequency(long key) {
+            int min = 15;
+            for (int row = 0; row < DEPTH; row++) {
+                min = Math.min(min, counters[index(key, row)]);
+            }
+            return min;
+        }
+
+        void increment(long key) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int i = index(key, row);
+                if (counters[i] < 15) {
+                    counters[i]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
     }
-}
\ No newline at end of file
+}
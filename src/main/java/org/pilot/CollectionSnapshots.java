@@ -0,0 +1,292 @@
+package org.pilot;
+
+import java.lang.reflect.Field;
+import java.util.AbstractQueue;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Copy-on-write snapshots that {@link State#clone} hands out instead of an eager copy when
+ * {@link State#lazyCollectionSnapshots} is on. A snapshot reads through to the original until
+ * the pilot writes to it or the original's modCount moves, and only then makes the copy that
+ * clone would have made.
+ * <p>
+ * This is not a point-in-time copy: the copy is taken from the original as it is at detach
+ * time, so a change to the original that moved modCount is already in it. Only classes whose
+ * modCount moves on every mutation are snapshotted; ArrayList is not, since set does not touch
+ * modCount and the pilot would keep reading the overwritten element.
+ */
+final class CollectionSnapshots {
+
+    private CollectionSnapshots() {
+    }
+
+    // 读到原集合modCount的字段路径；为null的类照旧立即复制
+    private static final ClassValue<Field[]> stampPaths = new ClassValue<Field[]>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            try {
+                // 只认这几个确切的类，子类可能改了行为
+                if (type == HashSet.class || type == LinkedHashSet.class) {
+                    return accessible(HashSet.class.getDeclaredField("map"), HashMap.class.getDeclaredField("modCount"));
+                } else if (type == PriorityQueue.class) {
+                    return accessible(PriorityQueue.class.getDeclaredField("modCount"));
+                }
+            } catch (NoSuchFieldException | RuntimeException e) {
+                // 新版本JDK没有open java.util时setAccessible会失败
+                State.LOG.debug("No modification stamp for {}, copying eagerly", type.getName(), e);
+            }
+            return null;
+        }
+    };
+
+    private static Field[] accessible(Field... path) {
+        for (Field field : path) {
+            field.setAccessible(true);
+        }
+        return path;
+    }
+
+    static boolean supports(Class<?> type) {
+        return stampPaths.get(type) != null;
+    }
+
+    static <E> Set<E> set(Set<E> original, UnaryOperator<Set<E>> copier) {
+        return new SnapshotSet<>(new Source<>(original, copier));
+    }
+
+    static <E> Queue<E> queue(Queue<E> original, UnaryOperator<Queue<E>> copier) {
+        return new SnapshotQueue<>(new Source<>(original, copier));
+    }
+
+    /**
+     * The original collection, its modCount when the snapshot was taken, and the copy once
+     * there is one.
+     */
+    private static final class Source<C> {
+        final C original;
+        private final Field[] stampPath;
+        private final int stamp;
+        private final UnaryOperator<C> copier;
+        private volatile C copy;
+
+        Source(C original, UnaryOperator<C> copier) {
+            this.original = original;
+            this.stampPath = stampPaths.get(original.getClass());
+            this.copier = copier;
+            this.stamp = stamp();
+        }
+
+        private int stamp() {
+            try {
+                Object target = original;
+                for (int i = 0; i < stampPath.length - 1; i++) {
+                    target = stampPath[i].get(target);
+                }
+                return stampPath[stampPath.length - 1].getInt(target);
+            } catch (IllegalAccessException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * The collection to read from: the original while neither side has written.
+         */
+        C read() {
+            C current = copy;
+            if (current != null) {
+                return current;
+            }
+            // 原集合变了就不再跟着它走
+            return stamp() == stamp ? original : detach();
+        }
+
+        /**
+         * The pilot's own copy, made on the first call.
+         */
+        C write() {
+            C current = copy;
+            return current != null ? current : detach();
+        }
+
+        // 复制的是此刻的原集合，原集合已经做过的修改也会带进来
+        private synchronized C detach() {
+            if (copy == null) {
+                copy = copier.apply(original);
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Iterates whichever collection was readable when it was created; a remove on the original
+     * goes to the copy instead.
+     */
+    private static final class SnapshotIterator<E, C extends Collection<E>> implements Iterator<E> {
+        private final Source<C> source;
+        private final C iterated;
+        private final Iterator<E> iterator;
+        private E last;
+        private boolean removable;
+
+        SnapshotIterator(Source<C> source) {
+            this.source = source;
+            this.iterated = source.read();
+            this.iterator = iterated.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public E next() {
+            last = iterator.next();
+            removable = true;
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (!removable) {
+                throw new IllegalStateException();
+            }
+            removable = false;
+            if (iterated != source.original) {
+                iterator.remove();
+            } else {
+                source.write().remove(last);
+            }
+        }
+    }
+
+    private static final class SnapshotSet<E> extends AbstractSet<E> {
+        private final Source<Set<E>> source;
+
+        SnapshotSet(Source<Set<E>> source) {
+            this.source = source;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return new SnapshotIterator<>(source);
+        }
+
+        @Override
+        public int size() {
+            return source.read().size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return source.read().isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return source.read().contains(o);
+        }
+
+        @Override
+        public boolean containsAll(Collection<?> c) {
+            return source.read().containsAll(c);
+        }
+
+        @Override
+        public Object[] toArray() {
+            return source.read().toArray();
+        }
+
+        @Override
+        public <T> T[] toArray(T[] a) {
+            return source.read().toArray(a);
+        }
+
+        @Override
+        public boolean add(E e) {
+            return source.write().add(e);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return source.write().remove(o);
+        }
+
+        @Override
+        public void clear() {
+            source.write().clear();
+        }
+    }
+
+    private static final class SnapshotQueue<E> extends AbstractQueue<E> {
+        private final Source<Queue<E>> source;
+
+        SnapshotQueue(Source<Queue<E>> source) {
+            this.source = source;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return new SnapshotIterator<>(source);
+        }
+
+        @Override
+        public int size() {
+            return source.read().size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return source.read().isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return source.read().contains(o);
+        }
+
+        @Override
+        public Object[] toArray() {
+            return source.read().toArray();
+        }
+
+        @Override
+        public <T> T[] toArray(T[] a) {
+            return source.read().toArray(a);
+        }
+
+        @Override
+        public E peek() {
+            return source.read().peek();
+        }
+
+        @Override
+        public boolean offer(E e) {
+            return source.write().offer(e);
+        }
+
+        @Override
+        public E poll() {
+            return source.write().poll();
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return source.write().remove(o);
+        }
+
+        @Override
+        public void clear() {
+            source.write().clear();
+        }
+    }
+}
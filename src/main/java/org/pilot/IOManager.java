@@ -1,19 +1,50 @@
 package org.pilot;
 
+import org.pilot.filesystem.BlockOverlay;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.*;
 import java.nio.file.*;
 import java.lang.reflect.Field;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Optional;
 
 public class IOManager {
     private static final String SHADOW_DIR = "shadow";
-    // Store file channels to manage them
-    private static final ConcurrentHashMap<String, FileChannel> shadowChannels = new ConcurrentHashMap<>();
+    // Pooled shadow file channels and output streams, keyed by kind and shadow path
+    private static final ShadowHandlePool shadowHandles = new ShadowHandlePool();
+
+    private static final String CHANNEL_KEY = "channel:";
+    private static final String STREAM_KEY = "stream:";
 
-    private static final ConcurrentHashMap<String, FileOutputStream> shadowOutputStreams = new ConcurrentHashMap<>();
+    // 每个类只反射查找一次"path"字段
+    private static final ClassValue<Optional<Field>> PATH_FIELDS = new ClassValue<Optional<Field>>() {
+        @Override
+        protected Optional<Field> computeValue(Class<?> type) {
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                try {
+                    Field field = c.getDeclaredField("path");
+                    if (field.getType() != String.class) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    return Optional.of(field);
+                } catch (NoSuchFieldException e) {
+                    // 继续查找父类
+                } catch (RuntimeException e) {
+                    // 模块系统不允许访问
+                    return Optional.empty();
+                }
+            }
+            return Optional.empty();
+        }
+    };
 
     public FileOutputStream handleFileOutputStream(FileOutputStream fileOutputStream){
+        if (fileOutputStream instanceof PooledFileOutputStream) {
+            return fileOutputStream;
+        }
         try{
             String originalPath = extractPath4FileOutputStream(fileOutputStream);
             if (originalPath == null) {
@@ -23,14 +54,8 @@ public class IOManager {
             Path originalFilePath = Paths.get(originalPath);
             Path shadowPath = createShadowPath(originalFilePath);
 
-            if(shadowOutputStreams.containsKey(shadowPath.toString())){
-                return shadowOutputStreams.get(shadowPath.toString());
-            }
-
-            Files.createDirectories(shadowPath.getParent());
-
-            if (!Files.exists(shadowPath)) {
-                Files.copy(originalFilePath, shadowPath);
+            if (shadowHandles.peek(STREAM_KEY + shadowPath) == null) {
+                createShadowCopy(originalFilePath, shadowPath);
             }
 
             return getShadowFileOutputStream(shadowPath);
@@ -40,6 +65,9 @@ public class IOManager {
     }
 
     public FileChannel handleFileChannel(FileChannel fileChannel) {
+        if (fileChannel instanceof PooledFileChannel) {
+            return fileChannel;
+        }
         try {
             // Get original file path using reflection
             String originalPath = extractPath4FileChannel(fileChannel);
@@ -51,12 +79,8 @@ public class IOManager {
             Path originalFilePath = Paths.get(originalPath);
             Path shadowPath = createShadowPath(originalFilePath);
 
-            // Create shadow directory if it doesn't exist
-            Files.createDirectories(shadowPath.getParent());
-
-            // Check if shadow file exists, if not, copy the original
-            if (!Files.exists(shadowPath)) {
-                Files.copy(originalFilePath, shadowPath);
+            if (shadowHandles.peek(CHANNEL_KEY + shadowPath) == null) {
+                createShadowCopy(originalFilePath, shadowPath);
             }
             return getShadowFileChannel(shadowPath);
 
@@ -66,68 +90,64 @@ public class IOManager {
         }
     }
 
-    private FileChannel getShadowFileChannel(Path path){
-        if(shadowChannels.containsKey(path.toString())){
-            return shadowChannels.get(path.toString());
+    // Create the shadow directory and, on first use, the shadow copy; a reflink clone where the filesystem supports it
+    private void createShadowCopy(Path originalFilePath, Path shadowPath) throws IOException {
+        Files.createDirectories(shadowPath.getParent());
+        if (Files.exists(shadowPath)) {
+            return;
         }
+        if (BlockOverlay.cloneStrategy.cloneFile(originalFilePath, shadowPath)) {
+            return;
+        }
+        try {
+            Files.copy(originalFilePath, shadowPath);
+        } catch (FileAlreadyExistsException e) {
+            // 另一个线程已经复制好了
+        }
+    }
 
-        FileChannel shadowChannel = null;
-
-        try{
-            shadowChannel =  FileChannel.open(path,
+    private FileChannel getShadowFileChannel(Path path){
+        String key = CHANNEL_KEY + path;
+        try {
+            FileChannel shadowChannel = shadowHandles.acquire(key, () -> FileChannel.open(path,
                     StandardOpenOption.READ,
-                    StandardOpenOption.WRITE);
-        }catch (Exception e){
+                    StandardOpenOption.WRITE));
+            return new PooledFileChannel(key, shadowChannel);
+        } catch (Exception e) {
             throw new RuntimeException("Failed to open shadow file", e);
         }
-
-        shadowChannels.put(path.toString(), shadowChannel);
-        return shadowChannel;
     }
 
     private FileOutputStream getShadowFileOutputStream(Path path) {
-        if(shadowOutputStreams.containsKey(path.toString())){
-            return shadowOutputStreams.get(path.toString());
-        }
-
-        FileOutputStream shadowOutputStream = null;
-
+        String key = STREAM_KEY + path;
         try {
-            shadowOutputStream = new FileOutputStream(path.toFile(), true);  // true表示追加模式
+            // true表示追加模式
+            FileOutputStream shadowOutputStream = shadowHandles.acquire(key, () -> new FileOutputStream(path.toFile(), true));
+            return new PooledFileOutputStream(key, shadowOutputStream);
         } catch (Exception e) {
             throw new RuntimeException("Failed to open shadow file", e);
         }
-
-        shadowOutputStreams.put(path.toString(), shadowOutputStream);
-        return shadowOutputStream;
     }
 
     private String extractPath4FileChannel(FileChannel fileChannel) {
-        try {
-            for (Field field : fileChannel.getClass().getDeclaredFields()) {
-                if (field.getName().equals("path")) {
-                    field.setAccessible(true);
-                    return (String) field.get(fileChannel);
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return null;
+        return extractPath(fileChannel);
     }
 
     private String extractPath4FileOutputStream(FileOutputStream outputStream) {
+        return extractPath(outputStream);
+    }
+
+    private static String extractPath(Object handle) {
+        Optional<Field> field = PATH_FIELDS.get(handle.getClass());
+        if (!field.isPresent()) {
+            return null;
+        }
         try {
-            for (Field field : outputStream.getClass().getDeclaredFields()) {
-                if (field.getName().equals("path")) {
-                    field.setAccessible(true);
-                    return (String) field.get(outputStream);
-                }
-            }
-        } catch (Exception e) {
+            return (String) field.get().get(handle);
+        } catch (IllegalAccessException e) {
             e.printStackTrace();
+            return null;
         }
-        return null;
     }
 
     private Path createShadowPath(Path originalPath) {
@@ -139,30 +159,148 @@ public class IOManager {
 
     // Method to close and remove a shadow channel
     public void closeShadowChannel(String path) {
-        FileChannel channel = shadowChannels.remove(path);
-        if (channel != null) {
-            try {
-                channel.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        shadowHandles.close(CHANNEL_KEY + path);
     }
 
-    // Method to close all shadow channels
+    // Method to close all shadow channels and output streams
     public void closeAllShadowChannels() {
-        shadowChannels.forEach((path, channel) -> {
-            try {
-                channel.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
-        shadowChannels.clear();
+        shadowHandles.closeAll();
     }
 
     // Get a shadow channel if it exists
     public FileChannel getShadowChannel(String path) {
-        return shadowChannels.get(path);
+        return shadowHandles.peek(CHANNEL_KEY + path);
+    }
+
+    public static ShadowHandlePool getShadowHandles() {
+        return shadowHandles;
+    }
+
+    /**
+     * One caller's reference to a pooled shadow channel; closing it releases the reference
+     * and leaves the pooled channel open for reuse.
+     */
+    private static class PooledFileChannel extends FileChannel {
+        private final String key;
+        private final FileChannel delegate;
+
+        PooledFileChannel(String key, FileChannel delegate) {
+            this.key = key;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return delegate.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() {
+            shadowHandles.release(key, delegate);
+        }
+    }
+
+    /**
+     * One caller's reference to a pooled shadow output stream, writing through the pooled
+     * stream's descriptor; closing it (or finalizing it) releases the reference only.
+     */
+    private static class PooledFileOutputStream extends FileOutputStream {
+        private final String key;
+        private final FileOutputStream delegate;
+        private boolean released;
+
+        PooledFileOutputStream(String key, FileOutputStream delegate) throws IOException {
+            super(delegate.getFD());
+            this.key = key;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            shadowHandles.release(key, delegate);
+        }
     }
 }
\ No newline at end of file
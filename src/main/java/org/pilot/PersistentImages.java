@@ -0,0 +1,110 @@
+package org.pilot;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.pilot.persistent.HashTrieMap;
+import org.pilot.persistent.SharedList;
+import org.pilot.persistent.SharedMap;
+import org.pilot.persistent.SharedSet;
+import org.pilot.persistent.TrieVector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent copies that {@link State#clone} hands out when {@link State#persistentCollections}
+ * is on. The immutable image of an original is built once and kept while the original is
+ * reachable; every pilot that clones the same unchanged original starts from that image, and its
+ * writes path-copy instead of touching the others.
+ */
+final class PersistentImages {
+    static final int MAX_IMAGES = 64;
+
+    // weakKeys按引用比较，原集合被回收后镜像跟着释放
+    private static final Cache<Object, Object> images = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumSize(MAX_IMAGES)
+            .build();
+
+    private PersistentImages() {
+    }
+
+    // 只认这几个确切的类；有序的集合放进trie会丢顺序
+    static boolean supports(Class<?> type) {
+        return type == ArrayList.class || type == HashSet.class || type == HashMap.class;
+    }
+
+    static <E> List<E> list(List<E> original) {
+        @SuppressWarnings("unchecked")
+        TrieVector<E> image = (TrieVector<E>) images.getIfPresent(original);
+        if (image == null || !sameElements(image, original)) {
+            image = TrieVector.of(original);
+            images.put(original, image);
+        }
+        return new SharedList<>(image);
+    }
+
+    static <E> Set<E> set(Set<E> original) {
+        @SuppressWarnings("unchecked")
+        HashTrieMap<E, Boolean> image = (HashTrieMap<E, Boolean>) images.getIfPresent(original);
+        if (image == null || !sameKeys(image, original)) {
+            image = HashTrieMap.ofKeys(original);
+            images.put(original, image);
+        }
+        return new SharedSet<>(image);
+    }
+
+    static <K, V> Map<K, V> map(Map<K, V> original) {
+        @SuppressWarnings("unchecked")
+        HashTrieMap<K, V> image = (HashTrieMap<K, V>) images.getIfPresent(original);
+        if (image == null || !sameEntries(image, original)) {
+            image = HashTrieMap.of(original);
+            images.put(original, image);
+        }
+        return new SharedMap<>(image);
+    }
+
+    // ArrayList.set和HashMap覆盖旧值都不改modCount，所以复用前逐个比引用；只读不分配
+    private static boolean sameElements(TrieVector<?> image, List<?> original) {
+        if (image.size() != original.size()) {
+            return false;
+        }
+        Iterator<?> it = original.iterator();
+        for (Object e : image) {
+            if (!it.hasNext() || it.next() != e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameKeys(HashTrieMap<?, Boolean> image, Set<?> original) {
+        if (image.size() != original.size()) {
+            return false;
+        }
+        for (Object e : original) {
+            if (!image.containsKey(e)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameEntries(HashTrieMap<?, ?> image, Map<?, ?> original) {
+        if (image.size() != original.size()) {
+            return false;
+        }
+        for (Map.Entry<?, ?> entry : original.entrySet()) {
+            Object value = image.get(entry.getKey());
+            if (value != entry.getValue() || (value == null && !image.containsKey(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,196 @@
+package org.pilot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reference counted pool of open shadow file handles, keyed by shadow path. Every
+ * {@link #acquire} must be paired with a {@link #release}. Handles nobody holds stay open for
+ * reuse until more than {@link #maxOpenHandles} are open, then the least recently used idle
+ * ones are closed. Handles in use are never closed by eviction, so the cap can be exceeded
+ * while all of them are busy.
+ */
+public class ShadowHandlePool {
+    public static int maxOpenHandles = 1024;
+
+    public interface Opener<H extends Closeable> {
+        H open() throws IOException;
+    }
+
+    private static final class Entry {
+        final Closeable handle;
+        int refCount;
+
+        Entry(Closeable handle) {
+            this.handle = handle;
+        }
+    }
+
+    // accessOrder = true：迭代顺序就是LRU顺序
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Take a reference to the handle of key, opening it with opener if it is not open. The open
+     * runs outside the pool lock; if another thread opened the same key meanwhile, its handle
+     * is used and the one opened here is closed.
+     */
+    @SuppressWarnings("unchecked")
+    public <H extends Closeable> H acquire(String key, Opener<H> opener) throws IOException {
+        H handle = take(key);
+        if (handle != null) {
+            return handle;
+        }
+        // 打开文件可能很慢，不能让其它key的acquire/release都等着
+        H opened = opener.open();
+        List<Closeable> evicted;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                misses++;
+                entry = new Entry(opened);
+                entries.put(key, entry);
+            } else {
+                hits++;
+            }
+            entry.refCount++;
+            handle = (H) entry.handle;
+            evicted = evictIdle();
+        }
+        if (handle != opened) {
+            // 别的线程先放进去了
+            closeQuietly(opened);
+        }
+        closeQuietly(evicted);
+        return handle;
+    }
+
+    // 已经打开就拿一个引用，否则返回null
+    @SuppressWarnings("unchecked")
+    private synchronized <H extends Closeable> H take(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        hits++;
+        entry.refCount++;
+        return (H) entry.handle;
+    }
+
+    /**
+     * Drop one reference taken by {@link #acquire}; the handle stays open while idle.
+     */
+    public void release(String key, Closeable handle) {
+        List<Closeable> evicted;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null || entry.handle != handle || entry.refCount == 0) {
+                return;
+            }
+            entry.refCount--;
+            evicted = evictIdle();
+        }
+        closeQuietly(evicted);
+    }
+
+    /**
+     * The open handle of key, without taking a reference
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <H extends Closeable> H peek(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : (H) entry.handle;
+    }
+
+    /**
+     * Close the handle of key even if references to it are still held
+     */
+    public void close(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(key);
+        }
+        if (entry != null) {
+            closeQuietly(entry.handle);
+        }
+    }
+
+    public void closeAll() {
+        List<Closeable> handles = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                handles.add(entry.handle);
+            }
+            entries.clear();
+        }
+        closeQuietly(handles);
+    }
+
+    // 超过上限时从最久未使用的一端关闭空闲的handle；调用方持有this的锁，实际close在锁外做
+    private List<Closeable> evictIdle() {
+        int excess = entries.size() - maxOpenHandles;
+        if (excess <= 0) {
+            return null;
+        }
+        List<Closeable> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (excess > 0 && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.refCount == 0) {
+                it.remove();
+                evicted.add(entry.handle);
+                excess--;
+                evictions++;
+            }
+        }
+        if (excess > 0) {
+            PilotUtil.dryRunLog("Shadow handle pool over its cap of " + maxOpenHandles + ", all handles in use");
+        }
+        return evicted;
+    }
+
+    private static void closeQuietly(List<Closeable> handles) {
+        if (handles == null) {
+            return;
+        }
+        for (Closeable handle : handles) {
+            closeQuietly(handle);
+        }
+    }
+
+    private static void closeQuietly(Closeable handle) {
+        try {
+            handle.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized int openCount() {
+        return entries.size();
+    }
+
+    public synchronized int idleCount() {
+        int idle = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.refCount == 0) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ShadowHandlePool{open=" + entries.size() + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "}";
+    }
+}
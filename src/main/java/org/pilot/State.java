@@ -2,6 +2,7 @@ package org.pilot;
 
 import java.io.FileOutputStream;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -12,8 +13,12 @@ import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 import com.rits.cloning.Cloner;
+import org.pilot.clone.CloneBudget;
+import org.pilot.clone.CloneStats;
+import org.pilot.clone.GeneratedCloner;
 import com.rits.cloning.ICloningStrategy;
 import com.google.common.collect.*;
 
@@ -163,7 +168,79 @@ public class State {
 
     public static final org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(State.class);
 
-    public static Cloner cloner = new Cloner();
+    public static Cloner cloner = new GeneratedCloner();
+
+    /**
+     * What {@link CustomStrategy} decided about one class: whether its instances are lambdas
+     * whose fields are kept as they are, whether a field value of this class is kept instead
+     * of cloned, and the plans of the fields read from its instances.
+     */
+    private static final class StrategyPlan {
+        final boolean lambda;
+        final boolean keepValue;
+        final ConcurrentHashMap<Field, FieldPlan> fields = new ConcurrentHashMap<>();
+
+        StrategyPlan(Class<?> type) {
+            String name = type.getName();
+            this.lambda = name.contains("$Lambda") || type.isSynthetic();
+            this.keepValue = keepsValue(type, name);
+        }
+
+        private static boolean keepsValue(Class<?> type, String name) {
+            // 文件系统相关
+            if (name.startsWith("sun.nio.fs.") ||
+                    name.startsWith("java.nio.file.") ||
+                    name.startsWith("org.apache.lucene.store.")) {
+                return true;
+            }
+            if (name.startsWith("org.apache.lucene.codecs")) {
+                return true;
+            }
+            if (name.contains("Lambda") || type.isSynthetic()) {
+                return true;
+            }
+            if (name.contains("org.apache.solr") && !name.contains("org.apache.solr.update.SolrIndexWriter")) {
+                return true;
+            }
+            // 匿名内部类也可能包含不可克隆的引用
+            if (type.isAnonymousClass()) {
+                return true;
+            }
+            // 线程相关
+            return Thread.class.isAssignableFrom(type) || ThreadGroup.class.isAssignableFrom(type) ||
+                    ExecutorService.class.isAssignableFrom(type);
+        }
+
+        FieldPlan field(Field field) {
+            FieldPlan plan = fields.get(field);
+            return plan != null ? plan : fields.computeIfAbsent(field, FieldPlan::new);
+        }
+    }
+
+    /**
+     * One field made accessible once; fixed is set when the strategy follows from the declared
+     * type, so the value does not have to be read
+     */
+    private static final class FieldPlan {
+        final Field accessible;
+        final ICloningStrategy.Strategy fixed;
+
+        FieldPlan(Field field) {
+            field.setAccessible(true);
+            this.accessible = field;
+            Class<?> type = field.getType();
+            // 基本类型的值是包装类，final类的值就是这个类本身
+            boolean exactType = type.isPrimitive() || (Modifier.isFinal(type.getModifiers()) && !type.isArray());
+            this.fixed = exactType && !strategyPlans.get(type).keepValue ? ICloningStrategy.Strategy.IGNORE : null;
+        }
+    }
+
+    private static final ClassValue<StrategyPlan> strategyPlans = new ClassValue<StrategyPlan>() {
+        @Override
+        protected StrategyPlan computeValue(Class<?> type) {
+            return new StrategyPlan(type);
+        }
+    };
 
     private static class CustomStrategy implements ICloningStrategy {
         @Override
@@ -172,59 +249,20 @@ public class State {
                 return Strategy.IGNORE;
             }
 
-            if (obj != null && (obj.getClass().getName().contains("$Lambda") ||
-                    obj.getClass().isSynthetic())) {
+            StrategyPlan plan = strategyPlans.get(obj != null ? obj.getClass() : field.getDeclaringClass());
+            if (obj != null && plan.lambda) {
                 return Strategy.SAME_INSTANCE_INSTEAD_OF_CLONE;
             }
+            FieldPlan fieldPlan = plan.field(field);
+            if (fieldPlan.fixed != null) {
+                return fieldPlan.fixed;
+            }
 
-            String fieldTypeName = field.getType().getName();
-            String fieldName = field.getName();
-
-
-            // 7. 检查字段值的实际类型
+            // 检查字段值的实际类型
             try {
-                field.setAccessible(true);
-                Object value = field.get(obj);
-                if (value != null) {
-                    String valueClassName = value.getClass().getName();
-
-
-
-                    // 文件系统相关
-                    if (valueClassName.startsWith("sun.nio.fs.") ||
-                            valueClassName.startsWith("java.nio.file.") ||
-                            valueClassName.startsWith("org.apache.lucene.store.")) {
-                        return Strategy.SAME_INSTANCE_INSTEAD_OF_CLONE;
-                    }
-
-                    if(valueClassName.startsWith("org.apache.lucene.codecs")){
-                        return Strategy.SAME_INSTANCE_INSTEAD_OF_CLONE;
-                    }
-
-                    if (valueClassName.contains("Lambda") ||
-                            valueClassName.contains("$Lambda") ||
-                            value.getClass().isSynthetic()) {
-                        //LOG.debug("Skipping lambda field: {} in class: {}", fieldName, obj.getClass().getName());
-                        return Strategy.SAME_INSTANCE_INSTEAD_OF_CLONE;
-                    }
-
-                    if(valueClassName.contains("org.apache.solr") && (!valueClassName.contains("org.apache.solr.update.SolrIndexWriter"))){
-                        return Strategy.SAME_INSTANCE_INSTEAD_OF_CLONE;
-                    }
-
-                    // 检查是否是匿名内部类（也可能包含不可克隆的引用）
-                    if (value.getClass().isAnonymousClass()) {
-                        //LOG.debug("Skipping anonymous class field: {} in class: {}", fieldName, obj.getClass().getName());
-                        return Strategy.SAME_INSTANCE_INSTEAD_OF_CLONE;
-                    }
-
-
-
-                    // 线程相关
-                    if (value instanceof Thread || value instanceof ThreadGroup ||
-                            value instanceof ExecutorService) {
-                        return Strategy.SAME_INSTANCE_INSTEAD_OF_CLONE;
-                    }
+                Object value = fieldPlan.accessible.get(obj);
+                if (value != null && strategyPlans.get(value.getClass()).keepValue) {
+                    return Strategy.SAME_INSTANCE_INSTEAD_OF_CLONE;
                 }
             } catch (IllegalAccessException e) {
                 // 忽略访问错误
@@ -259,6 +297,29 @@ public class State {
         cloner.registerCloningStrategy(new CustomStrategy());
     }
 
+    /**
+     * Hand out copy-on-write snapshots instead of copying HashSet, LinkedHashSet and
+     * PriorityQueue fields up front. A snapshot that detaches copies the original as it is then,
+     * not as it was at clone time. The snapshot is a plain Set or Queue, so only turn this
+     * on when the instrumented fields are declared by interface.
+     */
+    public static boolean lazyCollectionSnapshots = false;
+
+    /**
+     * Copy ArrayList, HashSet and HashMap into persistent tries instead of java.util copies;
+     * HashMap fields, which clone otherwise shares with the original, are copied too. Pilots
+     * cloning the same unchanged original share one trie and only path-copy what they write. Same caveat about interface-typed fields as lazyCollectionSnapshots.
+     */
+    public static boolean persistentCollections = false;
+
+    /**
+     * Limits of one deep copy in clone, 0 for unlimited. A copy over either limit is abandoned
+     * and replaced by a shallow copy, or by the original when shallowCopyOverBudget is off.
+     */
+    public static long deepCopyMaxObjects = 0;
+    public static long deepCopyMaxBytes = 0;
+    public static boolean shallowCopyOverBudget = true;
+
     public static IOManager IOManager = new IOManager();
     public static <T> T shallowCopy(T originalField, T dryRunField, boolean needsSet){
         LOG.info( "needsSet={}", needsSet);
@@ -278,100 +339,218 @@ public class State {
         return cloner.deepClone(obj);
     }
 
+    public static <T> T deepCopy(T obj, CloneBudget budget) {
+        if (cloner instanceof GeneratedCloner) {
+            return ((GeneratedCloner) cloner).deepClone(obj, budget);
+        }
+        return cloner.deepClone(obj);
+    }
+
     public static <T> boolean workaroundForSolr(T obj){
-        if(obj.getClass().getName().contains("org.apache.lucene.store")){
+        return clonePlans.get(obj.getClass()) == ClonePlan.DEEP_FOR_SOLR;
+    }
+
+    private static boolean isSolrWorkaroundClass(String className) {
+        if (className.contains("org.apache.lucene.store")) {
             return false;
         }
-//        if(obj.getClass().getName().contains("org.apache.solr.core.SimpleFSDirectoryFactory")){
-//            LOG.info("Workaround for Solr: Using deep copy for object of type: {}", obj.getClass().getName());
-//            return true;
-//        }
+        return className.contains("org.apache.solr.core.SimpleFSDirectoryFactory") || className.contains("org.apache.lucene")
+                || className.contains("org.apache.solr.update.SolrIndexWriter");
+    }
 
+    /**
+     * How {@link #clone} copies instances of one runtime class. The instanceof chain and the
+     * class name checks run once per class instead of on every call.
+     */
+    private enum ClonePlan {
+        ATOMIC_INTEGER, ATOMIC_LONG, ATOMIC_BOOLEAN, ATOMIC_REFERENCE,
+        DEEP_FOR_SOLR, DEEP, PROPERTIES, SET, MAP, HASH_MAP, QUEUE, LIST, THREAD, FILE_OUTPUT_STREAM, SAME_INSTANCE;
+
+        // 顺序和原来clone里的判断顺序一致
+        static ClonePlan of(Class<?> type) {
+            if (AtomicInteger.class.isAssignableFrom(type)) {
+                return ATOMIC_INTEGER;
+            } else if (AtomicLong.class.isAssignableFrom(type)) {
+                return ATOMIC_LONG;
+            } else if (AtomicBoolean.class.isAssignableFrom(type)) {
+                return ATOMIC_BOOLEAN;
+            } else if (AtomicReference.class.isAssignableFrom(type)) {
+                return ATOMIC_REFERENCE;
+            }
 
-        if(obj.getClass().getName().contains("org.apache.solr.core.SimpleFSDirectoryFactory") || obj.getClass().getName().contains("org.apache.lucene")){
-            LOG.info("Workaround for Solr: Using deep copy for object of type: {}", obj.getClass().getName());
-            return true;
-        }
+            String name = type.getName();
+            if (isSolrWorkaroundClass(name)) {
+                LOG.info("Workaround for Solr: Using deep copy for object of type: {}", name);
+                return DEEP_FOR_SOLR;
+            }
+            if (isCodahaleClass(name)) {
+                return DEEP;
+            }
 
-        if(obj.getClass().getName().contains("org.apache.solr.update.SolrIndexWriter") || obj.getClass().getName().contains("org.apache.lucene.index.FilterDirectoryReader")){
-            return true;
+            if (java.util.Properties.class.isAssignableFrom(type)) {
+                return PROPERTIES;
+            }
+            if (Set.class.isAssignableFrom(type)) {
+                return SET;
+            } else if (Map.class.isAssignableFrom(type)) {
+                // 只复制codahale的map；HashMap只在persistentCollections打开时复制
+                if (type == HashMap.class) {
+                    return HASH_MAP;
+                }
+                if (name.contains("org.cliffc.high_scale_lib.NonBlockingHashMap") || !isCodahaleClass(name)) {
+                    return SAME_INSTANCE;
+                }
+                return MAP;
+            } else if (Queue.class.isAssignableFrom(type)) {
+                return QUEUE;
+            } else if (List.class.isAssignableFrom(type)) {
+                return LIST;
+            } else if (Thread.class.isAssignableFrom(type)) {
+                return THREAD;
+            } else if (FileOutputStream.class.isAssignableFrom(type)) {
+                return FILE_OUTPUT_STREAM;
+            }
+            return SAME_INSTANCE;
         }
-        return false;
     }
 
+    private static final ClassValue<ClonePlan> clonePlans = new ClassValue<ClonePlan>() {
+        @Override
+        protected ClonePlan computeValue(Class<?> type) {
+            return ClonePlan.of(type);
+        }
+    };
+
 
     public static <T> T clone(T obj) {
         if (obj == null) {
             return null;
         }
 
+        ClonePlan plan = clonePlans.get(obj.getClass());
+        // 深拷贝在deepCopyOrSame里自己记账
+        if (!CloneStats.enabled || plan == ClonePlan.SAME_INSTANCE || plan == ClonePlan.DEEP
+                || plan == ClonePlan.DEEP_FOR_SOLR) {
+            return copy(obj, plan);
+        }
+        // 这些拷贝只复制一层，不为它们读线程分配量
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T copy = copy(obj, plan);
+            failed = false;
+            return copy;
+        } finally {
+            CloneStats.record(obj.getClass(), System.nanoTime() - start, 1, -1, false, failed);
+        }
+    }
 
-
-        //if obj instance of AtomicPrimitive, do deep copy
-        if (obj instanceof AtomicInteger) {
-            return (T) new AtomicInteger(((AtomicInteger) obj).get());
-        } else if (obj instanceof AtomicLong) {
-            return (T) new AtomicLong(((AtomicLong) obj).get());
-        } else if (obj instanceof AtomicBoolean) {
-            return (T) new AtomicBoolean(((AtomicBoolean) obj).get());
-        } else if (obj instanceof AtomicReference) {
-            return (T) new AtomicReference<>(((AtomicReference<?>) obj).get());
+    @SuppressWarnings("unchecked")
+    private static <T> T copy(T obj, ClonePlan plan) {
+        switch (plan) {
+            case ATOMIC_INTEGER:
+                return (T) new AtomicInteger(((AtomicInteger) obj).get());
+            case ATOMIC_LONG:
+                return (T) new AtomicLong(((AtomicLong) obj).get());
+            case ATOMIC_BOOLEAN:
+                return (T) new AtomicBoolean(((AtomicBoolean) obj).get());
+            case ATOMIC_REFERENCE:
+                return (T) new AtomicReference<>(((AtomicReference<?>) obj).get());
+            case DEEP_FOR_SOLR:
+                //print stack trace
+                for (StackTraceElement element : Thread.currentThread().getStackTrace()) {
+                    LOG.info("Workaround for Solr: Stack trace: {}", element);
+                }
+                return deepCopyOrSame(obj);
+            case DEEP:
+                return deepCopyOrSame(obj);
+            case PROPERTIES:
+                java.util.Properties originalProperties = (java.util.Properties) obj;
+                java.util.Properties clonedProperties = new java.util.Properties();
+                for (String key : originalProperties.stringPropertyNames()) {
+                    clonedProperties.setProperty(key, originalProperties.getProperty(key));
+                }
+                return (T) clonedProperties;
+            case SET:
+                return (T) snapshotSet((Set<?>) obj);
+            case MAP:
+                return (T) cloneMap((Map<?, ?>) obj);
+            case HASH_MAP:
+                return persistentCollections ? (T) PersistentImages.map((Map<?, ?>) obj) : obj;
+            case QUEUE:
+                return (T) snapshotQueue((Queue<?>) obj);
+            case LIST:
+                return (T) copyList((List<?>) obj);
+            case THREAD:
+                return (T) cloneThread((Thread) obj);
+            case FILE_OUTPUT_STREAM:
+                return (T) IOManager.handleFileOutputStream((FileOutputStream) obj);
+            default:
+                return obj;
         }
+    }
 
-        if(workaroundForSolr(obj)){
-            //print stack trace
-            for(StackTraceElement element : Thread.currentThread().getStackTrace()) {
-                LOG.info("Workaround for Solr: Stack trace: {}", element);
-            }
-            // catch the throwable from deepCopy, if throwable, just return obj
-            try {
-                return deepCopy(obj);
-            } catch (Throwable e) {
-                LOG.error("Failed to deep copy object of type: {}", obj.getClass().getName(), e);
-                return obj; // Return original object if deep copy fails
-            }
+    // 打开lazyCollectionSnapshots且能读到modCount时先共享原集合，写的时候再复制
+    private static <E> Set<E> snapshotSet(Set<E> original) {
+        UnaryOperator<Set<E>> copier = usePersistent(original) ? PersistentImages::set : State::cloneSet;
+        if (lazyCollectionSnapshots && CollectionSnapshots.supports(original.getClass())) {
+            return CollectionSnapshots.set(original, copier);
         }
+        return copier.apply(original);
+    }
 
-        if(workaroundForCA(obj)){
-            try {
-                return deepCopy(obj);
-            } catch (Throwable e) {
-                LOG.error("Failed to deep copy object of type: {}", obj.getClass().getName(), e);
-                return obj; // Return original object if deep copy fails
-            }
+    private static <E> Queue<E> snapshotQueue(Queue<E> original) {
+        if (lazyCollectionSnapshots && CollectionSnapshots.supports(original.getClass())) {
+            return CollectionSnapshots.queue(original, State::cloneQueue);
         }
+        return cloneQueue(original);
+    }
+
+    // 列表没有快照：ArrayList.set不改modCount
+    private static <E> List<E> copyList(List<E> original) {
+        return usePersistent(original) ? PersistentImages.list(original) : cloneList(original);
+    }
 
+    private static boolean usePersistent(Object original) {
+        return persistentCollections && PersistentImages.supports(original.getClass());
+    }
 
-        if (obj instanceof java.util.Properties){
-            java.util.Properties originalProperties = (java.util.Properties) obj;
-            java.util.Properties clonedProperties = new java.util.Properties();
-            for (String key : originalProperties.stringPropertyNames()) {
-                clonedProperties.setProperty(key, originalProperties.getProperty(key));
+    // deepCopy抛出任何异常时返回原对象，超出预算时用更便宜的拷贝
+    private static <T> T deepCopyOrSame(T obj) {
+        CloneBudget budget = new CloneBudget(deepCopyMaxObjects, deepCopyMaxBytes);
+        long start = System.nanoTime();
+        boolean aborted = false;
+        boolean failed = false;
+        try {
+            return deepCopy(obj, budget);
+        } catch (Throwable e) {
+            if (budget.exceeded()) {
+                aborted = true;
+                LOG.warn("Deep copy of {} abandoned after {} objects: {}", obj.getClass().getName(), budget.objects(),
+                        e.getMessage());
+                return overBudget(obj);
+            }
+            failed = true;
+            LOG.error("Failed to deep copy object of type: {}", obj.getClass().getName(), e);
+            return obj; // Return original object if deep copy fails
+        } finally {
+            if (CloneStats.enabled) {
+                CloneStats.record(obj.getClass(), System.nanoTime() - start, budget.objects(), budget.bytes(),
+                        aborted, failed);
             }
-            return (T) clonedProperties;
-        }
-
-        if (obj instanceof Set) {
-            return (T) cloneSet((Set<?>) obj);
-        } else if (obj instanceof Map) {
-            return (T) cloneMap((Map<?, ?>) obj);
-        } else if (obj instanceof Queue) {
-            return (T) cloneQueue((Queue<?>) obj);
-        } else if (obj instanceof List) {
-            return (T) cloneList((List<?>) obj);
-        } else if (obj instanceof Thread) {
-            return (T) cloneThread((Thread) obj);
-        }
-//        else if (obj instanceof FileChannel){
-//            return (T)IOManager.handleFileChannel((FileChannel) obj);
-//        }
-        else if (obj instanceof FileOutputStream){
-            return (T)IOManager.handleFileOutputStream((FileOutputStream) obj);
         }
-//        else if(obj needs workaround) {
-//            return deepclone(obj)
-//        }
-        return obj;
+    }
+
+    private static <T> T overBudget(T obj) {
+        if (!shallowCopyOverBudget) {
+            return obj;
+        }
+        try {
+            return cloner.shallowClone(obj);
+        } catch (Throwable e) {
+            LOG.error("Failed to shallow copy object of type: {}", obj.getClass().getName(), e);
+            return obj;
+        }
     }
 
 
@@ -483,10 +662,11 @@ public class State {
     }
 
     public static<T> boolean workaroundForCA(T obj) {
-        if(obj.getClass().getName().contains("com.codahale.metrics")){
-            return true;
-        }
-        return false;
+        return isCodahaleClass(obj.getClass().getName());
+    }
+
+    private static boolean isCodahaleClass(String className) {
+        return className.contains("com.codahale.metrics");
     }
 
     private static <K, V> Map<K, V> cloneMap(Map<K, V> original) {
@@ -494,14 +674,7 @@ public class State {
             return null;
         }
 
-        if(original.getClass().getName().contains("org.cliffc.high_scale_lib.NonBlockingHashMap")){
-            return original;
-        }
-
-        if(!workaroundForCA(original)){
-            return original;
-        }
-
+        // NonBlockingHashMap和非codahale的map在ClonePlan里就决定了不复制
         // Handle Guava immutable maps
         if (original instanceof ImmutableBiMap) {
             return ImmutableBiMap.copyOf(original);
@@ -0,0 +1,70 @@
+package org.pilot.clone;
+
+/**
+ * Limits of one deep copy and what it has used so far. {@link GeneratedCloner} charges every
+ * object it visits and throws {@link ExceededException} once a limit is passed; a limit of 0 is
+ * unlimited. A budget belongs to the thread doing the copy, bytes are that thread's allocations.
+ */
+public final class CloneBudget {
+    // 线程分配量读起来不便宜，每访问这么多个对象才查一次
+    private static final int BYTES_CHECK_INTERVAL = 256;
+
+    private final long maxObjects;
+    private final long maxBytes;
+    private final long startBytes;
+    private long objects;
+    private boolean exceeded;
+
+    public CloneBudget(long maxObjects, long maxBytes) {
+        this.maxObjects = maxObjects;
+        this.maxBytes = maxBytes;
+        // 既不限字节也不统计时不去读线程分配量
+        this.startBytes = maxBytes > 0 || CloneStats.enabled ? CloneStats.allocatedBytes() : -1;
+    }
+
+    void visit() {
+        objects++;
+        if (maxObjects > 0 && objects > maxObjects) {
+            exceed("visited more than " + maxObjects + " objects");
+        }
+        if (maxBytes > 0 && objects % BYTES_CHECK_INTERVAL == 0) {
+            long bytes = bytes();
+            if (bytes > maxBytes) {
+                exceed("allocated " + bytes + " bytes, budget is " + maxBytes);
+            }
+        }
+    }
+
+    private void exceed(String reason) {
+        exceeded = true;
+        throw new ExceededException(reason);
+    }
+
+    public long objects() {
+        return objects;
+    }
+
+    /**
+     * Bytes allocated by this thread since the budget was created, -1 when the JVM does not
+     * count them or the budget has no byte limit and {@link CloneStats} is off.
+     */
+    public long bytes() {
+        return CloneStats.allocatedSince(startBytes);
+    }
+
+    /**
+     * Set once a limit was passed, even if whatever caught the exception wrapped it.
+     */
+    public boolean exceeded() {
+        return exceeded;
+    }
+
+    public static final class ExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ExceededException(String message) {
+            // 只是用来跳出递归，不需要栈
+            super(message, null, false, false);
+        }
+    }
+}
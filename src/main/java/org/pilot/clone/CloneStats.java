@@ -0,0 +1,163 @@
+package org.pilot.clone;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.metrics.ObservableLongMeasurement;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Cost of State.clone per runtime class: calls, objects visited, bytes allocated by deep copies,
+ * wall time, and how many copies were cut short by a {@link CloneBudget} or failed. Off unless
+ * {@link #enabled} is set. Read it with
+ * {@link #snapshot()} or export it through OpenTelemetry with {@link #registerMetrics(Meter)}.
+ */
+public final class CloneStats {
+    // 默认关闭；打开后深拷贝记分配字节，其他拷贝只记次数和时间
+    public static boolean enabled = false;
+
+    private static final AttributeKey<String> CLASS = AttributeKey.stringKey("class");
+
+    // 类名做键，不拿住Class对象
+    private static final ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<>();
+
+    private static final com.sun.management.ThreadMXBean threads = allocationCounter();
+
+    private CloneStats() {
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+            if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) {
+                return counter;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, -1 when the JVM does not count them.
+     */
+    public static long allocatedBytes() {
+        return threads == null ? -1 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public static long allocatedSince(long start) {
+        if (start < 0) {
+            return -1;
+        }
+        long now = allocatedBytes();
+        return now < 0 ? -1 : now - start;
+    }
+
+    private static final class Counters {
+        final Attributes attributes;
+        final LongAdder calls = new LongAdder();
+        final LongAdder objects = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder aborted = new LongAdder();
+        final LongAdder failed = new LongAdder();
+
+        Counters(String className) {
+            this.attributes = Attributes.of(CLASS, className);
+        }
+    }
+
+    /**
+     * @param bytes -1 when unknown
+     */
+    public static void record(Class<?> type, long nanos, long objects, long bytes, boolean aborted, boolean failed) {
+        String name = type.getName();
+        Counters c = counters.get(name);
+        if (c == null) {
+            c = counters.computeIfAbsent(name, Counters::new);
+        }
+        c.calls.increment();
+        c.objects.add(objects);
+        if (bytes > 0) {
+            c.bytes.add(bytes);
+        }
+        c.nanos.add(nanos);
+        if (aborted) {
+            c.aborted.increment();
+        }
+        if (failed) {
+            c.failed.increment();
+        }
+    }
+
+    /**
+     * Totals per class name, sorted by name.
+     */
+    public static Map<String, Stats> snapshot() {
+        Map<String, Stats> result = new TreeMap<>();
+        for (Map.Entry<String, Counters> e : counters.entrySet()) {
+            Counters c = e.getValue();
+            result.put(e.getKey(), new Stats(c.calls.sum(), c.objects.sum(), c.bytes.sum(), c.nanos.sum(),
+                    c.aborted.sum(), c.failed.sum()));
+        }
+        return result;
+    }
+
+    public static void reset() {
+        counters.clear();
+    }
+
+    /**
+     * Registers observable counters on the meter, one series per class: pilot.clone.calls,
+     * .objects, .allocated, .time, .aborted and .failed. Call once per meter.
+     */
+    public static void registerMetrics(Meter meter) {
+        observe(meter, "pilot.clone.calls", "State.clone calls", "{call}", c -> c.calls.sum());
+        observe(meter, "pilot.clone.objects", "Objects visited by clones", "{object}", c -> c.objects.sum());
+        observe(meter, "pilot.clone.allocated", "Bytes allocated by clones", "By", c -> c.bytes.sum());
+        observe(meter, "pilot.clone.time", "Wall time spent in clones", "ns", c -> c.nanos.sum());
+        observe(meter, "pilot.clone.aborted", "Deep copies over budget", "{call}", c -> c.aborted.sum());
+        observe(meter, "pilot.clone.failed", "Clones that fell back to the original", "{call}", c -> c.failed.sum());
+    }
+
+    private static void observe(Meter meter, String name, String description, String unit,
+                                ToLongFunction<Counters> value) {
+        Consumer<ObservableLongMeasurement> callback = measurement -> {
+            for (Counters c : counters.values()) {
+                measurement.record(value.applyAsLong(c), c.attributes);
+            }
+        };
+        meter.counterBuilder(name).setDescription(description).setUnit(unit).buildWithCallback(callback);
+    }
+
+    public static final class Stats {
+        public final long calls;
+        public final long objects;
+        public final long bytes;
+        public final long nanos;
+        public final long aborted;
+        public final long failed;
+
+        Stats(long calls, long objects, long bytes, long nanos, long aborted, long failed) {
+            this.calls = calls;
+            this.objects = objects;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.aborted = aborted;
+            this.failed = failed;
+        }
+
+        @Override
+        public String toString() {
+            return "CloneStats.Stats{calls=" + calls + ", objects=" + objects + ", bytes=" + bytes
+                    + ", nanos=" + nanos + ", aborted=" + aborted + ", failed=" + failed + "}";
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package org.pilot.clone;
+
+import com.rits.cloning.Cloner;
+import com.rits.cloning.ICloningStrategy;
+import com.rits.cloning.IFastCloner;
+import org.objenesis.ObjenesisStd;
+import org.objenesis.instantiator.ObjectInstantiator;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * {@link Cloner} that copies application classes with a routine built once per class from
+ * method handles: one composed handle copies every primitive field, and each reference field
+ * gets a typed getter and setter. Classes from the JDK, classes whose fields cannot be opened and
+ * anything the plan does not understand go through the reflective {@link Cloner} path, sharing
+ * the same clones map so cycles and shared references survive the switch between the two.
+ * dontClone, dontCloneInstanceOf, fast cloners and cloning strategies apply to both paths;
+ * other Cloner settings only reach the reflective one.
+ */
+public class GeneratedCloner extends Cloner {
+    private static final MethodType COPY = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType GET = MethodType.methodType(Object.class, Object.class);
+
+    private final Set<Class<?>> ignored = ConcurrentHashMap.newKeySet();
+    private final Set<Class<?>> fastCloned = ConcurrentHashMap.newKeySet();
+    private final List<Class<?>> ignoredInstanceOf = new CopyOnWriteArrayList<>();
+    private final List<ICloningStrategy> strategies = new CopyOnWriteArrayList<>();
+    private final ObjenesisStd objenesis = new ObjenesisStd(true);
+
+    // 当前线程正在做的deepClone(o, budget)
+    private final ThreadLocal<CloneBudget> budgets = new ThreadLocal<>();
+
+    // 配置变了要重新算，所以放在实例里并且可以整体换掉
+    private volatile ClassValue<Plan> plans = newPlans();
+
+    @Override
+    public void dontClone(Class<?>... classes) {
+        super.dontClone(classes);
+        for (Class<?> c : classes) {
+            ignored.add(c);
+        }
+        plans = newPlans();
+    }
+
+    @Override
+    public void dontCloneInstanceOf(Class<?>... classes) {
+        super.dontCloneInstanceOf(classes);
+        for (Class<?> c : classes) {
+            ignoredInstanceOf.add(c);
+        }
+        plans = newPlans();
+    }
+
+    @Override
+    public void registerFastCloner(Class<?> c, IFastCloner fastCloner) {
+        super.registerFastCloner(c, fastCloner);
+        fastCloned.add(c);
+        plans = newPlans();
+    }
+
+    @Override
+    public void registerCloningStrategy(ICloningStrategy strategy) {
+        super.registerCloningStrategy(strategy);
+        strategies.add(strategy);
+    }
+
+    private ClassValue<Plan> newPlans() {
+        return new ClassValue<Plan>() {
+            @Override
+            protected Plan computeValue(Class<?> type) {
+                return plan(type);
+            }
+        };
+    }
+
+    /**
+     * deepClone that charges every visited object, on either path, to the budget.
+     *
+     * @throws CloneBudget.ExceededException once a limit is passed
+     */
+    public <T> T deepClone(T o, CloneBudget budget) {
+        CloneBudget outer = budgets.get();
+        budgets.set(budget);
+        try {
+            return deepClone(o);
+        } finally {
+            if (outer == null) {
+                budgets.remove();
+            } else {
+                budgets.set(outer);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected <T> T cloneInternal(T o, Map<Object, Object> clones) throws IllegalAccessException {
+        // clones为null是shallowClone
+        if (o == null || o == this || clones == null) {
+            return super.cloneInternal(o, clones);
+        }
+        CloneBudget budget = budgets.get();
+        if (budget != null) {
+            budget.visit();
+        }
+        Plan plan = plans.get(o.getClass());
+        switch (plan.kind) {
+            case SAME:
+                return o;
+            case REFLECTIVE:
+                return super.cloneInternal(o, clones);
+            default:
+                break;
+        }
+        Object previous = clones.get(o);
+        if (previous != null) {
+            return (T) previous;
+        }
+        try {
+            return (T) plan.copy(this, o, clones);
+        } catch (IllegalAccessException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Generated clone of " + o.getClass().getName() + " failed", t);
+        }
+    }
+
+    private Plan plan(Class<?> type) {
+        if (type.isEnum() || (type.getSuperclass() != null && type.getSuperclass().isEnum()) || ignored.contains(type)) {
+            return Plan.SAME;
+        }
+        for (Class<?> c : ignoredInstanceOf) {
+            if (c.isAssignableFrom(type)) {
+                return Plan.SAME;
+            }
+        }
+        if (type.isArray()) {
+            // 基本类型数组直接clone，引用数组逐个元素走cloneInternal
+            return type.getComponentType().isPrimitive() ? new PrimitiveArrayPlan() : new ObjectArrayPlan(type.getComponentType());
+        }
+        if (fastCloned.contains(type) || isPlatformClass(type.getName()) || type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+            // JDK的类在父类里有fast cloner，模块边界也打不开
+            return Plan.REFLECTIVE;
+        }
+        try {
+            return new ObjectPlan(type, objenesis.getInstantiatorOf(type));
+        } catch (RuntimeException | IllegalAccessException e) {
+            return Plan.REFLECTIVE;
+        }
+    }
+
+    private static boolean isPlatformClass(String name) {
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.")
+                || name.startsWith("com.sun.") || name.startsWith("jdk.");
+    }
+
+    private ICloningStrategy.Strategy strategyFor(Object o, Field field) {
+        for (ICloningStrategy strategy : strategies) {
+            ICloningStrategy.Strategy s = strategy.strategyFor(o, field);
+            if (s != ICloningStrategy.Strategy.IGNORE) {
+                return s;
+            }
+        }
+        return ICloningStrategy.Strategy.IGNORE;
+    }
+
+    private enum Kind {
+        /** Not cloned, the instance itself is used. */
+        SAME,
+        /** Copied by the reflective {@link Cloner} path. */
+        REFLECTIVE,
+        /** Copied by {@link Plan#copy}. */
+        GENERATED
+    }
+
+    /**
+     * How instances of one class are copied. Only GENERATED plans have a copy routine;
+     * cloneInternal handles the other kinds itself.
+     */
+    private static class Plan {
+        static final Plan SAME = new Plan(Kind.SAME);
+        static final Plan REFLECTIVE = new Plan(Kind.REFLECTIVE);
+
+        final Kind kind;
+
+        Plan(Kind kind) {
+            this.kind = kind;
+        }
+
+        Object copy(GeneratedCloner cloner, Object o, Map<Object, Object> clones) throws Throwable {
+            throw new IllegalStateException(kind + " plan has no copy routine");
+        }
+    }
+
+    private static final class PrimitiveArrayPlan extends Plan {
+        PrimitiveArrayPlan() {
+            super(Kind.GENERATED);
+        }
+
+        @Override
+        Object copy(GeneratedCloner cloner, Object o, Map<Object, Object> clones) {
+            int length = Array.getLength(o);
+            Object copy = Array.newInstance(o.getClass().getComponentType(), length);
+            System.arraycopy(o, 0, copy, 0, length);
+            clones.put(o, copy);
+            return copy;
+        }
+    }
+
+    private static final class ObjectArrayPlan extends Plan {
+        private final Class<?> componentType;
+
+        ObjectArrayPlan(Class<?> componentType) {
+            super(Kind.GENERATED);
+            this.componentType = componentType;
+        }
+
+        @Override
+        Object copy(GeneratedCloner cloner, Object o, Map<Object, Object> clones) throws IllegalAccessException {
+            Object[] original = (Object[]) o;
+            Object[] copy = (Object[]) Array.newInstance(componentType, original.length);
+            clones.put(o, copy);
+            for (int i = 0; i < original.length; i++) {
+                copy[i] = cloner.cloneInternal(original[i], clones);
+            }
+            return copy;
+        }
+    }
+
+    private static final class ReferenceField {
+        final Field field;
+        final MethodHandle getter;
+        final MethodHandle setter;
+
+        ReferenceField(Field field, MethodHandle getter, MethodHandle setter) {
+            this.field = field;
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+
+    /**
+     * Copy routine of one concrete class: the instantiator, one handle copying all primitive
+     * fields, and the reference fields that go through the strategies and cloneInternal.
+     */
+    private static final class ObjectPlan extends Plan {
+        private final ObjectInstantiator<?> instantiator;
+        // 没有基本类型字段时为null
+        private final MethodHandle primitives;
+        private final ReferenceField[] references;
+
+        ObjectPlan(Class<?> type, ObjectInstantiator<?> instantiator) throws IllegalAccessException {
+            super(Kind.GENERATED);
+            this.instantiator = instantiator;
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle primitives = null;
+            List<ReferenceField> references = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    // 打不开的字段会抛异常，整个类退回反射
+                    field.setAccessible(true);
+                    MethodHandle getter = lookup.unreflectGetter(field);
+                    MethodHandle setter = lookup.unreflectSetter(field);
+                    if (field.getType().isPrimitive()) {
+                        // setter(dst, getter(src))，再接到前面已有的拷贝后面
+                        MethodHandle copy = MethodHandles.filterArguments(setter, 1, getter);
+                        copy = MethodHandles.permuteArguments(copy.asType(COPY), COPY, 1, 0);
+                        primitives = primitives == null ? copy : MethodHandles.foldArguments(copy, primitives);
+                    } else {
+                        references.add(new ReferenceField(field, getter.asType(GET), setter.asType(COPY)));
+                    }
+                }
+            }
+            this.primitives = primitives;
+            this.references = references.toArray(new ReferenceField[0]);
+        }
+
+        @Override
+        Object copy(GeneratedCloner cloner, Object o, Map<Object, Object> clones) throws Throwable {
+            Object copy = instantiator.newInstance();
+            // 先登记再复制字段，环上的引用能找到这个副本
+            clones.put(o, copy);
+            if (primitives != null) {
+                primitives.invokeExact(o, copy);
+            }
+            for (ReferenceField reference : references) {
+                Object value = (Object) reference.getter.invokeExact(o);
+                Object cloned;
+                switch (cloner.strategyFor(o, reference.field)) {
+                    case NULL_INSTEAD_OF_CLONE:
+                        cloned = null;
+                        break;
+                    case SAME_INSTANCE_INSTEAD_OF_CLONE:
+                        cloned = value;
+                        break;
+                    default:
+                        cloned = cloner.cloneInternal(value, clones);
+                }
+                reference.setter.invokeExact(copy, cloned);
+            }
+            return copy;
+        }
+    }
+}
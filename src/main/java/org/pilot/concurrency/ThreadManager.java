@@ -1,9 +1,10 @@
 package org.pilot.concurrency;
 
 import org.apache.zookeeper.ZooKeeper;
+import org.pilot.filesystem.ShadowFileSystem;
+import org.pilot.filesystem.ShadowTree;
 import org.pilot.zookeeper.ZooKeeperClient;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -17,8 +18,6 @@ import java.util.concurrent.ScheduledFuture;
 import static org.pilot.Constants.*;
 import static org.pilot.PilotUtil.dryRunLog;
 import static org.pilot.PilotUtil.executionIdGenerator;
-import static org.pilot.filesystem.ShadowFileSystem.shadowAppendLogDir;
-import static org.pilot.filesystem.ShadowFileSystem.shadowBaseDir;
 
 public class ThreadManager {
 
@@ -62,14 +61,14 @@ public class ThreadManager {
                     System.out.println("Pilot node deleted: " + nodeName);
 
                     try {
-                        Integer.parseInt(nodeName);
+                        int pilotId = Integer.parseInt(nodeName);
 
                         cleanupPhantomThreads(nodeName);
                         cleanupPhantomFutures(nodeName);
                         //delete TRACE_FILE
                         deleteFile(TRACE_FILE);
-                        deleteDirectory(shadowBaseDir.toString());
-                        deleteDirectory(shadowAppendLogDir.toString());
+                        // 只删除这个pilot自己的shadow树，在后台并行删除，不阻塞ZooKeeper事件线程
+                        ShadowFileSystem.teardown(pilotId);
 
 
                     } catch (NumberFormatException e) {
@@ -86,25 +85,13 @@ public class ThreadManager {
     }
 
     public static boolean deleteDirectory(String dirPath) {
-        File directory = new File(dirPath);
+        Path directory = Paths.get(dirPath);
 
-        if (!directory.exists()) {
+        if (!Files.exists(directory)) {
             return false;
         }
 
-        return deleteRecursively(directory);
-    }
-
-    private static boolean deleteRecursively(File file) {
-        if (file.isDirectory()) {
-            File[] files = file.listFiles();
-            if (files != null) {
-                for (File child : files) {
-                    deleteRecursively(child);
-                }
-            }
-        }
-        return file.delete();
+        return ShadowTree.delete(directory).failures() == 0;
     }
 
     public static boolean deleteFile(String filePath) {
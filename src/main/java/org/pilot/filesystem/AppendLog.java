@@ -0,0 +1,959 @@
+package org.pilot.filesystem;
+
+import org.pilot.PilotUtil;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Binary, length-prefixed format of the shadow append logs.
+ *
+ * Each record is: op (1 byte) | offset (8) | length (4) | payload (length bytes) | crc32 (4),
+ * the checksum covering everything before it. The log has no file header, so an empty log
+ * still means "materialized, unmodified". A torn or corrupt tail ends the log.
+ */
+public class AppendLog {
+    public static final int HEADER_SIZE = 1 + 8 + 4;
+    public static final int CHECKSUM_SIZE = 4;
+
+    public static int recordSize(int payloadLength) {
+        return HEADER_SIZE + payloadLength + CHECKSUM_SIZE;
+    }
+
+    // 每条记录先拷进writer的缓冲区，满了、force、close或有人要读这个log时才真正写文件
+    public static int writeBufferSize = 64 * 1024;
+    // group commit窗口：窗口内的多次force只做一次fsync，0表示每次force都fsync
+    public static long groupCommitWindowMillis = 0;
+
+    // 异步写：写满的缓冲区交给I/O线程落盘，调用方换一块空缓冲区继续，不等磁盘；force是持久化屏障
+    public static boolean asyncWrites = false;
+    // 每个log最多有多少块缓冲区（包括正在写的那块），都在排队时append等待
+    public static int asyncBuffers = 4;
+    public static int asyncIoThreads = 2;
+
+    private static volatile ExecutorService ioExecutor;
+
+    // 后台压缩：log超过这么多字节或新追加了这么多条记录后，把重叠的写合并成互不重叠的extent
+    public static boolean backgroundCompaction = true;
+    public static long compactionMinBytes = 4L * 1024 * 1024;
+    public static int compactionMinRecords = 4096;
+    // 压缩后至少要小这个比例才替换旧log
+    public static double compactionMinSavings = 0.25;
+    // 压缩后每条写记录的最大payload
+    static final int COMPACTION_CHUNK = 1024 * 1024;
+
+    // 同一个log文件的所有channel / stream共享一个writer，读log之前可以先把它的缓冲区刷下去
+    private static final ConcurrentHashMap<Path, Writer> OPEN_WRITERS = new ConcurrentHashMap<>();
+
+    static ExecutorService ioExecutor() {
+        ExecutorService executor = ioExecutor;
+        if (executor == null) {
+            synchronized (AppendLog.class) {
+                executor = ioExecutor;
+                if (executor == null) {
+                    AtomicInteger threads = new AtomicInteger();
+                    executor = Executors.newFixedThreadPool(asyncIoThreads, r -> {
+                        Thread t = new Thread(r, "pilot-append-log-io-" + threads.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    ioExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Open the shared writer of a log, creating it on first use. Every call must be paired
+     * with {@link Writer#close()}.
+     */
+    public static Writer openWriter(Path logPath) {
+        Path key = logPath.toAbsolutePath();
+        return OPEN_WRITERS.compute(key, (path, writer) -> {
+            if (writer == null) {
+                writer = new Writer(path);
+            }
+            writer.refCount++;
+            return writer;
+        });
+    }
+
+    /**
+     * Write out whatever an open writer of this log still buffers, so the file can be read.
+     */
+    public static void flush(Path logPath) throws IOException {
+        Writer writer = OPEN_WRITERS.get(logPath.toAbsolutePath());
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Delete a log, dropping anything still buffered for it. Open writers stay usable and
+     * start a new log on their next append.
+     */
+    public static boolean deleteIfExists(Path logPath) throws IOException {
+        Writer writer = OPEN_WRITERS.get(logPath.toAbsolutePath());
+        if (writer != null) {
+            writer.discard();
+        }
+        return Files.deleteIfExists(logPath);
+    }
+
+    /**
+     * Drop the buffered state of every open writer under logRoot, used after it was torn down
+     */
+    static void discardUnder(Path logRoot) {
+        Path absRoot = logRoot.toAbsolutePath();
+        for (Writer writer : OPEN_WRITERS.values()) {
+            if (!writer.logPath.startsWith(absRoot)) {
+                continue;
+            }
+            try {
+                writer.discard();
+            } catch (IOException e) {
+                PilotUtil.dryRunLog("Failed to discard append log writer " + writer.logPath + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Bytes handed to the I/O executor but not yet written to the log file
+     */
+    private static final class Segment {
+        final ByteBuffer data;
+        final long start;
+        final FileChannel out;
+        // 属于缓冲区环，写完后回收
+        final boolean pooled;
+
+        Segment(ByteBuffer data, long start, FileChannel out, boolean pooled) {
+            this.data = data;
+            this.start = start;
+            this.out = out;
+            this.pooled = pooled;
+        }
+    }
+
+    /**
+     * Buffered appender of one log file, shared and reference counted, see {@link #openWriter(Path)}.
+     *
+     * With {@link #asyncWrites}, full buffers are queued to the I/O executor in order instead
+     * of being written by the appending thread; reads of queued bytes are served from memory.
+     */
+    public static class Writer implements Closeable {
+        private final Path logPath;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(writeBufferSize);
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private final ByteBuffer trailer = ByteBuffer.allocate(CHECKSUM_SIZE);
+        private final CRC32 crc = new CRC32();
+        private FileChannel channel;
+        private FileChannel readChannel;
+        // 已经写进文件或已交给I/O线程的字节数，-1表示还没看过文件
+        private long written = -1;
+        // 异步模式下排队中的缓冲区，按文件顺序
+        private final ArrayDeque<Segment> inFlight = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+        private int allocatedBuffers = 1;
+        private long queuedBytes;
+        private boolean draining;
+        private IOException asyncFailure;
+        private LogExtentIndex extentIndex;
+        // log被删除一次加一，持有旧视图的channel据此发现log已经被别人重建掉了
+        private int generation;
+        private int refCount;
+        private long lastSyncMillis;
+        // 已经fsync过的字节数，force等到它追上written才返回
+        private long synced;
+        private int recordsSinceCompaction;
+        private long nextCompactionBytes;
+        private boolean compactionPending;
+
+        private Writer(Path logPath) {
+            this.logPath = logPath;
+        }
+
+        public Path getLogPath() {
+            return logPath;
+        }
+
+        public long append(FileOperation operation) throws IOException {
+            byte[] data = operation.getData();
+            return append(operation.getOperationType(), operation.getOffset(),
+                    data != null ? ByteBuffer.wrap(data) : ByteBuffer.allocate(0));
+        }
+
+        /**
+         * Append one record; the payload is consumed.
+         * @return position of the payload in the log
+         */
+        public synchronized long append(byte op, long offset, ByteBuffer payload) throws IOException {
+            checkAsyncFailure();
+            int length = payload.remaining();
+            int size = recordSize(length);
+            if (buffer.remaining() < size) {
+                if (asyncWrites) {
+                    // 等缓冲区时别的线程可能又写进来，直到放得下或者缓冲区为空
+                    while (buffer.remaining() < size && buffer.position() > 0) {
+                        handOff();
+                    }
+                } else {
+                    flushBuffer();
+                }
+            }
+            long payloadPosition = written() + buffer.position() + HEADER_SIZE;
+            if (extentIndex != null) {
+                extentIndex.apply(op, offset, length, payloadPosition);
+            }
+            recordsSinceCompaction++;
+            if (buffer.remaining() < size) {
+                if (asyncWrites) {
+                    // 比缓冲区还大的记录单独排队
+                    ByteBuffer record = ByteBuffer.allocate(size);
+                    int checksum = prepareHeader(op, offset, payload);
+                    record.put(header).put(payload).putInt(checksum);
+                    record.flip();
+                    enqueue(record, false);
+                    return payloadPosition;
+                }
+                // 比缓冲区还大的记录直接写文件
+                FileChannel out = channel();
+                writeRecord(out, op, offset, payload);
+                written += size;
+                return payloadPosition;
+            }
+            int checksum = prepareHeader(op, offset, payload);
+            buffer.put(header).put(payload).putInt(checksum);
+            return payloadPosition;
+        }
+
+        // 填好header，返回整条记录的校验和
+        private int prepareHeader(byte op, long offset, ByteBuffer payload) {
+            header.clear();
+            header.put(op).putLong(offset).putInt(payload.remaining());
+            header.flip();
+
+            crc.reset();
+            crc.update(header.array(), 0, HEADER_SIZE);
+            crc.update(payload.duplicate());
+            return (int) crc.getValue();
+        }
+
+        private void writeRecord(FileChannel out, byte op, long offset, ByteBuffer payload) throws IOException {
+            long remaining = recordSize(payload.remaining());
+            int checksum = prepareHeader(op, offset, payload);
+            trailer.clear();
+            trailer.putInt(checksum);
+            trailer.flip();
+            ByteBuffer[] record = {header, payload, trailer};
+            while (remaining > 0) {
+                remaining -= out.write(record);
+            }
+        }
+
+        /**
+         * Whether the log passed a compaction threshold and no compaction is pending yet; a
+         * true result marks one as pending until {@link #compactionFinished()}.
+         */
+        synchronized boolean compactionDue() throws IOException {
+            if (!backgroundCompaction || compactionPending) {
+                return false;
+            }
+            long size = written() + buffer.position();
+            if (size >= Math.max(compactionMinBytes, nextCompactionBytes)
+                    || recordsSinceCompaction >= compactionMinRecords) {
+                compactionPending = true;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void compactionFinished() {
+            compactionPending = false;
+        }
+
+        /**
+         * Rewrite the log as one record per extent of its interval index (plus the shortest
+         * truncation), and swap it in with an atomic rename. Skipped if that would not save at
+         * least {@link #compactionMinSavings} of the log. Callers hold the file's stripe write
+         * lock, so no channel reads payload positions of the old log meanwhile.
+         *
+         * @param baseSize size of the file the log applies to
+         * @return bytes saved, or -1 if the log was left as it is
+         */
+        synchronized long compact(long baseSize) throws IOException {
+            flushBuffer();
+            long before = written();
+            LogExtentIndex current = extentIndex(baseSize);
+            List<LogExtentIndex.Extent> extents = current.overlapping(0, Long.MAX_VALUE);
+
+            long estimate = current.baseLimit() < baseSize ? recordSize(0) : 0;
+            for (LogExtentIndex.Extent extent : extents) {
+                long records = (extent.length + COMPACTION_CHUNK - 1) / COMPACTION_CHUNK;
+                estimate += extent.length + records * recordSize(0);
+            }
+            estimate += recordSize(1);
+            recordsSinceCompaction = 0;
+            if (before == 0 || estimate > before * (1 - compactionMinSavings)) {
+                // 压不下来，等log再翻一倍再试
+                nextCompactionBytes = before * 2;
+                return -1;
+            }
+
+            Path tmp = logPath.resolveSibling(logPath.getFileName() + ".compact");
+            LogExtentIndex compacted = new LogExtentIndex(baseSize);
+            long position = 0;
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long end = current.baseLimit();
+                if (current.baseLimit() < baseSize) {
+                    writeRecord(out, FileOperation.TRUNCATE, current.baseLimit(), ByteBuffer.allocate(0));
+                    compacted.truncate(current.baseLimit());
+                    position += recordSize(0);
+                }
+                ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(COMPACTION_CHUNK, Math.max(1, maxLength(extents))));
+                for (LogExtentIndex.Extent extent : extents) {
+                    for (long done = 0; done < extent.length; ) {
+                        int n = (int) Math.min(chunk.capacity(), extent.length - done);
+                        chunk.clear();
+                        read(chunk, extent.logPosition + done, n);
+                        chunk.flip();
+                        compacted.write(extent.start + done, n, position + HEADER_SIZE);
+                        writeRecord(out, FileOperation.WRITE, extent.start + done, chunk);
+                        position += recordSize(n);
+                        done += n;
+                    }
+                    end = Math.max(end, extent.end());
+                }
+                if (current.size() > end) {
+                    // 截断后又被拉长的部分全是0，一个0字节就能还原长度
+                    compacted.write(current.size() - 1, 1, position + HEADER_SIZE);
+                    writeRecord(out, FileOperation.WRITE, current.size() - 1, ByteBuffer.allocate(1));
+                    position += recordSize(1);
+                }
+                out.force(false);
+            } catch (IOException e) {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+
+            closeChannels();
+            Files.move(tmp, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written = position;
+            synced = position;
+            extentIndex = compacted;
+            nextCompactionBytes = position * 2;
+            return before - position;
+        }
+
+        private long maxLength(List<LogExtentIndex.Extent> extents) {
+            long max = 0;
+            for (LogExtentIndex.Extent extent : extents) {
+                max = Math.max(max, extent.length);
+            }
+            return max;
+        }
+
+        /**
+         * Length of the log including records still buffered or queued, without writing them
+         */
+        synchronized long length() throws IOException {
+            return written() + buffer.position();
+        }
+
+        // 写文件的channel开着，文件一定存在
+        synchronized boolean hasFile() {
+            return channel != null;
+        }
+
+        private long written() throws IOException {
+            if (written < 0) {
+                written = Files.exists(logPath) ? Files.size(logPath) : 0;
+            }
+            return written;
+        }
+
+        /**
+         * The interval index of this log, built by one scan of the log on first use and kept
+         * up to date by {@link #append}.
+         * @param baseSize size of the file the log applies to
+         */
+        public synchronized LogExtentIndex extentIndex(long baseSize) throws IOException {
+            if (extentIndex == null) {
+                LogExtentIndex index = new LogExtentIndex(baseSize);
+                flushBuffer();
+                if (written() > 0) {
+                    try (Reader reader = new Reader(logPath)) {
+                        while (reader.next()) {
+                            index.apply(reader.op(), reader.offset(), reader.length(),
+                                    reader.recordPosition() + HEADER_SIZE);
+                        }
+                    }
+                }
+                extentIndex = index;
+            }
+            return extentIndex;
+        }
+
+        /**
+         * Read exactly length bytes of logged payload starting at logPosition
+         */
+        public synchronized void read(ByteBuffer dst, long logPosition, int length) throws IOException {
+            if (logPosition + length > written() - queuedBytes) {
+                // 还没落盘的部分直接从排队的缓冲区和当前缓冲区里拷
+                readBuffered(dst, logPosition, length);
+                return;
+            }
+            readFile(dst, logPosition, length);
+        }
+
+        private void readBuffered(ByteBuffer dst, long logPosition, int length) throws IOException {
+            long end = logPosition + length;
+            long persisted = written - queuedBytes;
+            long position = logPosition;
+            if (position < persisted) {
+                int n = (int) (persisted - position);
+                readFile(dst, position, n);
+                position += n;
+            }
+            for (Segment segment : inFlight) {
+                position = copyFrom(segment.data, segment.start, dst, position, end);
+            }
+            ByteBuffer current = buffer.duplicate();
+            current.flip();
+            position = copyFrom(current, written, dst, position, end);
+            if (position < end) {
+                throw new EOFException("Append log " + logPath + " ends before " + position);
+            }
+        }
+
+        // 把src中对应文件区间[position, end)的部分拷进dst，返回拷到哪里
+        private static long copyFrom(ByteBuffer src, long srcStart, ByteBuffer dst, long position, long end) {
+            long srcEnd = srcStart + src.limit();
+            if (position >= end || position < srcStart || position >= srcEnd) {
+                return position;
+            }
+            int n = (int) (Math.min(end, srcEnd) - position);
+            ByteBuffer slice = src.duplicate();
+            slice.position((int) (position - srcStart));
+            slice.limit(slice.position() + n);
+            dst.put(slice);
+            return position + n;
+        }
+
+        private void readFile(ByteBuffer dst, long logPosition, int length) throws IOException {
+            FileChannel in = readChannel();
+            int limit = dst.limit();
+            dst.limit(dst.position() + length);
+            try {
+                long position = logPosition;
+                while (dst.hasRemaining()) {
+                    int n = in.read(dst, position);
+                    if (n < 0) {
+                        throw new EOFException("Append log " + logPath + " ends before " + position);
+                    }
+                    position += n;
+                }
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        /**
+         * Send logged payload bytes straight to target, without copying them through the heap.
+         * @return bytes transferred, less than length if target stopped accepting
+         */
+        public synchronized long transferTo(long logPosition, long length, WritableByteChannel target) throws IOException {
+            if (logPosition + length > written() - queuedBytes) {
+                flushBuffer();
+            }
+            FileChannel in = readChannel();
+            long done = 0;
+            while (done < length) {
+                long n = in.transferTo(logPosition + done, length - done, target);
+                if (n <= 0) {
+                    break;
+                }
+                done += n;
+            }
+            return done;
+        }
+
+        private FileChannel readChannel() throws IOException {
+            if (readChannel == null) {
+                readChannel = FileChannel.open(logPath, StandardOpenOption.READ);
+            }
+            return readChannel;
+        }
+
+        public synchronized int generation() {
+            return generation;
+        }
+
+        public synchronized void flush() throws IOException {
+            flushBuffer();
+        }
+
+        /**
+         * Queue the current buffer for the I/O executor and continue with a free one
+         */
+        private void handOff() throws IOException {
+            while (freeBuffers.isEmpty() && allocatedBuffers >= asyncBuffers && !inFlight.isEmpty()) {
+                // 缓冲区环用完了，等I/O线程腾出一块；等的时候buffer保持原样，别的线程看到的还是满的
+                awaitQuietly();
+                checkAsyncFailure();
+            }
+            if (buffer.position() == 0) {
+                return;
+            }
+            ByteBuffer next;
+            if (!freeBuffers.isEmpty()) {
+                next = freeBuffers.poll();
+            } else {
+                allocatedBuffers++;
+                next = ByteBuffer.allocateDirect(writeBufferSize);
+            }
+            buffer.flip();
+            enqueue(buffer, true);
+            buffer = next;
+        }
+
+        private void enqueue(ByteBuffer data, boolean pooled) throws IOException {
+            // 先打开channel，written在排队之前就是准确的
+            FileChannel out = channel();
+            inFlight.add(new Segment(data, written, out, pooled));
+            written += data.remaining();
+            queuedBytes += data.remaining();
+            if (!draining) {
+                draining = true;
+                ioExecutor().execute(this::drain);
+            }
+        }
+
+        // I/O线程：按顺序写出排队的缓冲区，写的时候不持有writer的锁
+        private void drain() {
+            while (true) {
+                Segment segment;
+                synchronized (this) {
+                    segment = inFlight.peek();
+                    if (segment == null) {
+                        draining = false;
+                        notifyAll();
+                        return;
+                    }
+                }
+                IOException failure = null;
+                try {
+                    ByteBuffer data = segment.data.duplicate();
+                    while (data.hasRemaining()) {
+                        segment.out.write(data);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+                synchronized (this) {
+                    if (failure != null) {
+                        // 后面排队的数据已经不可能按顺序落盘了，全部丢弃，下一次flush/force报错
+                        asyncFailure = failure;
+                        for (Segment dropped : inFlight) {
+                            recycle(dropped);
+                        }
+                        inFlight.clear();
+                        queuedBytes = 0;
+                        draining = false;
+                        notifyAll();
+                        return;
+                    }
+                    inFlight.poll();
+                    queuedBytes -= segment.data.limit();
+                    recycle(segment);
+                    notifyAll();
+                }
+            }
+        }
+
+        private void recycle(Segment segment) {
+            if (segment.pooled) {
+                segment.data.clear();
+                freeBuffers.add(segment.data);
+            }
+        }
+
+        // 等所有排队的缓冲区写完
+        private void awaitInFlight() throws IOException {
+            while (draining || !inFlight.isEmpty()) {
+                awaitQuietly();
+            }
+            checkAsyncFailure();
+        }
+
+        private void awaitQuietly() throws IOException {
+            awaitQuietly(0);
+        }
+
+        private void awaitQuietly(long millis) throws IOException {
+            try {
+                wait(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for append log " + logPath);
+            }
+        }
+
+        private void checkAsyncFailure() throws IOException {
+            IOException failure = asyncFailure;
+            if (failure != null) {
+                asyncFailure = null;
+                throw new IOException("Asynchronous write to append log " + logPath + " failed", failure);
+            }
+        }
+
+        /**
+         * Flush and fsync the log, after waiting for buffers queued by {@link #asyncWrites};
+         * this is the durability barrier of the async mode. Inside the group-commit window the
+         * caller waits for the window to end, and the one fsync made then covers every force
+         * that waited for it.
+         */
+        public synchronized void force() throws IOException {
+            flushBuffer();
+            long needed = written;
+            while (channel != null && synced < needed) {
+                long wait = lastSyncMillis + groupCommitWindowMillis - System.currentTimeMillis();
+                if (groupCommitWindowMillis > 0 && wait > 0) {
+                    // 窗口结束时第一个醒来的线程替所有等着的force做fsync
+                    awaitQuietly(wait);
+                    continue;
+                }
+                flushBuffer();
+                channel.force(false);
+                synced = written;
+                lastSyncMillis = System.currentTimeMillis();
+                notifyAll();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            awaitInFlight();
+            if (buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            FileChannel out = channel();
+            written += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private FileChannel channel() throws IOException {
+            if (channel == null) {
+                Path parent = logPath.getParent();
+                if (parent != null && !Files.exists(parent)) {
+                    Files.createDirectories(parent);
+                }
+                channel = FileChannel.open(logPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                written = channel.size();
+                synced = written;
+            }
+            return channel;
+        }
+
+        private synchronized void discard() throws IOException {
+            try {
+                awaitInFlight();
+            } catch (IOException e) {
+                // log反正要被删掉
+            }
+            buffer.clear();
+            extentIndex = null;
+            written = 0;
+            synced = 0;
+            generation++;
+            closeChannels();
+        }
+
+        private void closeChannels() throws IOException {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } finally {
+                channel = null;
+                if (readChannel != null) {
+                    readChannel.close();
+                    readChannel = null;
+                }
+            }
+        }
+
+        private synchronized void release() throws IOException {
+            try {
+                flushBuffer();
+            } finally {
+                closeChannels();
+            }
+        }
+
+        /**
+         * Drop this reference; the last one flushes and closes the log file. The flush runs
+         * outside the map lock; a writer reopened meanwhile stays registered and opens its
+         * channel again on the next append.
+         */
+        @Override
+        public void close() throws IOException {
+            boolean[] last = new boolean[1];
+            OPEN_WRITERS.computeIfPresent(logPath, (path, writer) -> {
+                if (writer == this && --refCount == 0) {
+                    last[0] = true;
+                }
+                return writer;
+            });
+            if (!last[0]) {
+                return;
+            }
+            try {
+                release();
+            } finally {
+                OPEN_WRITERS.computeIfPresent(logPath, (path, writer) -> writer == this && refCount == 0 ? null : writer);
+            }
+        }
+    }
+
+    /**
+     * Streams records one at a time; the payload buffer is reused between records.
+     */
+    public static class Reader implements Closeable {
+        private final Path logPath;
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private final ByteBuffer trailer = ByteBuffer.allocate(CHECKSUM_SIZE);
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer payload = ByteBuffer.allocate(8192);
+
+        private byte op;
+        private long offset;
+        private int length;
+        private long recordPosition = -1;
+
+        public Reader(Path logPath) throws IOException {
+            this.logPath = logPath;
+            flush(logPath);
+            this.channel = FileChannel.open(logPath, StandardOpenOption.READ);
+        }
+
+        /**
+         * Advance to the next record.
+         * @return false at the end of the log, or at a torn / corrupt record
+         */
+        public boolean next() throws IOException {
+            long position = channel.position();
+            header.clear();
+            if (!readFully(header)) {
+                return false;
+            }
+            header.flip();
+            byte nextOp = header.get();
+            long nextOffset = header.getLong();
+            int nextLength = header.getInt();
+            if (nextLength < 0 || (nextOp != FileOperation.WRITE && nextOp != FileOperation.TRUNCATE)) {
+                PilotUtil.dryRunLog("Corrupt append log record at " + position + " in " + logPath);
+                return false;
+            }
+
+            if (payload.capacity() < nextLength) {
+                payload = ByteBuffer.allocate(Math.max(nextLength, payload.capacity() * 2));
+            }
+            payload.clear();
+            payload.limit(nextLength);
+            trailer.clear();
+            if (!readFully(payload) || !readFully(trailer)) {
+                PilotUtil.dryRunLog("Torn append log record at " + position + " in " + logPath);
+                return false;
+            }
+            payload.flip();
+            trailer.flip();
+
+            crc.reset();
+            crc.update(header.array(), 0, HEADER_SIZE);
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != trailer.getInt()) {
+                PilotUtil.dryRunLog("Append log checksum mismatch at " + position + " in " + logPath);
+                return false;
+            }
+
+            op = nextOp;
+            offset = nextOffset;
+            length = nextLength;
+            recordPosition = position;
+            return true;
+        }
+
+        private boolean readFully(ByteBuffer dst) throws IOException {
+            while (dst.hasRemaining()) {
+                if (channel.read(dst) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public byte op() {
+            return op;
+        }
+
+        public long offset() {
+            return offset;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        /**
+         * Read-only view of the current payload, valid until the next call to {@link #next()}
+         */
+        public ByteBuffer payload() {
+            return payload.asReadOnlyBuffer();
+        }
+
+        /**
+         * Position in the log of the current record
+         */
+        public long recordPosition() {
+            return recordPosition;
+        }
+
+        public FileOperation operation() {
+            byte[] data = new byte[length];
+            payload.duplicate().get(data);
+            return new FileOperation(offset, op == FileOperation.TRUNCATE ? null : data, op);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Whether the log has records; an open writer answers from memory, without flushing.
+     */
+    public static boolean hasRecords(Path logPath) {
+        try {
+            Writer writer = OPEN_WRITERS.get(logPath.toAbsolutePath());
+            if (writer != null) {
+                return writer.length() > 0;
+            }
+            return Files.size(logPath) > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * An existing log without records: the file was materialized and never modified
+     */
+    public static boolean isEmpty(Path logPath) {
+        try {
+            Writer writer = OPEN_WRITERS.get(logPath.toAbsolutePath());
+            if (writer != null) {
+                if (writer.length() > 0) {
+                    return false;
+                }
+                if (writer.hasFile()) {
+                    return true;
+                }
+                // writer还没打开过文件，只能看文件在不在
+            }
+            return Files.size(logPath) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Size of the file after applying the log to a base of baseSize bytes, without rebuilding it
+     */
+    public static long logicalSize(Path logPath, long baseSize) throws IOException {
+        Writer writer = OPEN_WRITERS.get(logPath.toAbsolutePath());
+        if (writer != null) {
+            return writer.extentIndex(baseSize).size();
+        }
+        long size = baseSize;
+        try (Reader reader = new Reader(logPath)) {
+            while (reader.next()) {
+                if (reader.op() == FileOperation.TRUNCATE) {
+                    size = Math.min(size, reader.offset());
+                } else if (reader.length() > 0) {
+                    size = Math.max(size, reader.offset() + reader.length());
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return baseSize;
+        }
+        return size;
+    }
+
+    /**
+     * Copy a whole file channel into another at its position, with transferTo
+     */
+    public static long copy(FileChannel source, FileChannel target) throws IOException {
+        long size = source.size();
+        long copied = 0;
+        while (copied < size) {
+            long n = source.transferTo(copied, size - copied, target);
+            if (n <= 0) {
+                break;
+            }
+            copied += n;
+        }
+        return copied;
+    }
+
+    /**
+     * Apply every record of the log to the target channel, streaming.
+     * @return number of records applied
+     */
+    public static int replay(Path logPath, SeekableByteChannel target) throws IOException {
+        int applied = 0;
+        try (Reader reader = new Reader(logPath)) {
+            while (reader.next()) {
+                if (reader.op() == FileOperation.TRUNCATE) {
+                    target.truncate(reader.offset());
+                } else {
+                    ByteBuffer src = reader.payload();
+                    target.position(reader.offset());
+                    while (src.hasRemaining()) {
+                        target.write(src);
+                    }
+                }
+                applied++;
+            }
+        } catch (NoSuchFileException e) {
+            return applied;
+        }
+        PilotUtil.dryRunLog("Replayed " + applied + " operations from append log " + logPath);
+        return applied;
+    }
+}
@@ -0,0 +1,838 @@
+package org.pilot.filesystem;
+
+import org.pilot.PilotUtil;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
+
+/**
+ * Block-level copy-on-write view of a file, used by the lazy overlay instead of copying a
+ * whole original file into the shadow tree on its first write.
+ *
+ * The shadow file is sparse: it only holds the dirty blocks, at their own offsets. A bitmap
+ * of dirty blocks, the logical size and the base file are kept in a {@code .blocks} file next
+ * to the append log. Clean blocks are read from the base file, and bytes past the base's
+ * visible length (it shrinks on truncate) read as zero.
+ *
+ * Channels on an overlay, from ShadowFiles and from {@link ShadowFileChannel#open}, read and
+ * write through it; the overlay is only flattened into a full copy for a writable mapping or
+ * for code that uses the shadow file directly. Instances are shared per path and reference
+ * counted, like {@link AppendLog.Writer}.
+ */
+public class BlockOverlay {
+    public static int blockSize = 64 * 1024;
+    public static CloneStrategy cloneStrategy = new ReflinkCloneStrategy();
+
+    // 以shadow路径为key，不同pilot的同一个原始文件各有各的overlay
+    private static final ConcurrentHashMap<Path, BlockOverlay> OPEN_OVERLAYS = new ConcurrentHashMap<>();
+
+    private Path location;
+    private Path shadowPath;
+    private Path mapPath;
+    private final Path basePath;
+    private final int overlayBlockSize;
+    private final BitSet dirty;
+    private long size;
+    // base文件中仍然可见的长度
+    private long baseLimit;
+
+    private FileChannel shadow;
+    private FileChannel base;
+    private ByteBuffer copyBuffer;
+    private boolean mapChanged;
+    private int refCount;
+    private final ShadowIndex index;
+
+    private BlockOverlay(Path location, Path basePath, int overlayBlockSize, BitSet dirty, long size, long baseLimit)
+            throws IOException {
+        this.location = location;
+        this.shadowPath = ShadowFileSystem.resolveShadowFSPath(location);
+        this.mapPath = mapPath(location);
+        this.basePath = basePath;
+        this.overlayBlockSize = overlayBlockSize;
+        this.dirty = dirty;
+        this.size = size;
+        this.baseLimit = baseLimit;
+        this.index = ShadowFileSystem.index();
+    }
+
+    public static Path mapPath(Path absOriginal) {
+        Path logPath = ShadowFileSystem.resolveShadowFSAppendLogFilePath(absOriginal);
+        return logPath.resolveSibling(absOriginal.getFileName().toString() + ".blocks");
+    }
+
+    public static boolean exists(Path absOriginal) {
+        return OPEN_OVERLAYS.containsKey(ShadowFileSystem.getShadowFSPath(absOriginal))
+                || Files.exists(mapPath(absOriginal));
+    }
+
+    /**
+     * Give absOriginal a private, writable copy of base: a reflink clone when the
+     * {@link #cloneStrategy} can make one, otherwise an empty overlay over base.
+     * @return true if an overlay was created, false if the shadow file is a full clone
+     */
+    public static boolean copyOnWrite(Path base, Path absOriginal) throws IOException {
+        Path shadowPath = ShadowFileSystem.resolveShadowFSPath(absOriginal);
+        Path parent = shadowPath.getParent();
+        if (parent != null && !Files.exists(parent)) {
+            Files.createDirectories(parent);
+        }
+        delete(absOriginal);
+        if (cloneStrategy.cloneFile(base, shadowPath)) {
+            return false;
+        }
+
+        long baseSize = Files.size(base);
+        BlockOverlay overlay = new BlockOverlay(absOriginal, base.toAbsolutePath(), blockSize,
+                new BitSet(), baseSize, baseSize);
+        Files.newByteChannel(shadowPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING).close();
+        overlay.persist();
+        PilotUtil.dryRunLog("Created block overlay for " + absOriginal + " over " + base);
+        return true;
+    }
+
+    public static BlockOverlay acquire(Path absOriginal) throws IOException {
+        try {
+            return OPEN_OVERLAYS.compute(ShadowFileSystem.getShadowFSPath(absOriginal), (path, overlay) -> {
+                if (overlay == null) {
+                    try {
+                        overlay = load(absOriginal);
+                    } catch (IOException e) {
+                        throw new OverlayException(e);
+                    }
+                }
+                synchronized (overlay) {
+                    overlay.refCount++;
+                }
+                return overlay;
+            });
+        } catch (OverlayException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static BlockOverlay load(Path absOriginal) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(mapPath(absOriginal)))) {
+            Path base = Paths.get(in.readUTF());
+            int overlayBlockSize = in.readInt();
+            long size = in.readLong();
+            long baseLimit = in.readLong();
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return new BlockOverlay(absOriginal, base, overlayBlockSize, BitSet.valueOf(words), size, baseLimit);
+        }
+    }
+
+    private void persist() throws IOException {
+        Path parent = mapPath.getParent();
+        if (parent != null && !Files.exists(parent)) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = mapPath.resolveSibling(mapPath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+            out.writeUTF(basePath.toString());
+            out.writeInt(overlayBlockSize);
+            out.writeLong(size);
+            out.writeLong(baseLimit);
+            long[] words = dirty.toLongArray();
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+        Files.move(tmp, mapPath, StandardCopyOption.REPLACE_EXISTING);
+        mapChanged = false;
+    }
+
+    public static long size(Path absOriginal) throws IOException {
+        BlockOverlay overlay = acquire(absOriginal);
+        try {
+            synchronized (overlay) {
+                ShadowFileSystem.index().cacheSize(absOriginal, overlay.size);
+                return overlay.size;
+            }
+        } finally {
+            overlay.release();
+        }
+    }
+
+    /**
+     * Open a channel on the overlay of absOriginal
+     */
+    public static FileChannel newChannel(Path absOriginal, OpenOption... options) throws IOException {
+        BlockOverlay overlay = acquire(absOriginal);
+        try {
+            Channel channel = new Channel(overlay, options);
+            if (channel.writable && ShadowFiles.hasOption(options, StandardOpenOption.TRUNCATE_EXISTING)) {
+                overlay.truncate(0);
+            }
+            return channel;
+        } catch (RuntimeException | IOException e) {
+            overlay.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Turn the overlay of absOriginal into a full shadow copy, for code that uses the shadow
+     * file directly.
+     */
+    public static void flattenIfOverlay(Path absOriginal) throws IOException {
+        if (!ShadowIndex.isOverlay(ShadowFileSystem.index().lookup(absOriginal))) {
+            return;
+        }
+        Lock lock = ShadowLockManager.writeLock(ShadowFileSystem.resolveShadowFSPath(absOriginal));
+        lock.lock();
+        try {
+            if (!ShadowIndex.isOverlay(ShadowFileSystem.index().lookup(absOriginal))) {
+                return;
+            }
+            BlockOverlay overlay = acquire(absOriginal);
+            try {
+                overlay.flatten();
+            } finally {
+                overlay.release();
+            }
+            delete(absOriginal);
+            ShadowFileSystem.index().markModified(absOriginal);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private synchronized void flatten() throws IOException {
+        int blocks = blockCount(size);
+        if (dirty.nextClearBit(0) >= blocks) {
+            return;
+        }
+        for (int block = dirty.nextClearBit(0); block < blocks; block = dirty.nextClearBit(block + 1)) {
+            copyIn(block);
+            dirty.set(block);
+        }
+        FileChannel out = shadow();
+        if (out.size() < size) {
+            out.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        }
+        PilotUtil.dryRunLog("Flattened block overlay of " + location);
+    }
+
+    /**
+     * Drop the overlay of absOriginal; channels still open on it keep working on their own.
+     */
+    public static void delete(Path absOriginal) throws IOException {
+        OPEN_OVERLAYS.remove(ShadowFileSystem.getShadowFSPath(absOriginal));
+        Files.deleteIfExists(mapPath(absOriginal));
+    }
+
+    /**
+     * Forget the open overlays under a shadow root, used after it was torn down
+     */
+    static void forgetUnder(Path shadowRoot) {
+        OPEN_OVERLAYS.keySet().removeIf(path -> path.startsWith(shadowRoot));
+    }
+
+    public static void deleteSubtree(Path absDir) throws IOException {
+        Path shadowDir = ShadowFileSystem.getShadowFSPath(absDir);
+        OPEN_OVERLAYS.keySet().removeIf(path -> path.startsWith(shadowDir));
+        for (Path map : mapFilesUnder(absDir)) {
+            Files.deleteIfExists(map);
+        }
+    }
+
+    /**
+     * Follow a move of the shadow file from one original path to another
+     */
+    public static void moved(Path absSource, Path absTarget) throws IOException {
+        delete(absTarget);
+        Path targetMap = mapPath(absTarget);
+        Path parent = targetMap.getParent();
+        if (parent != null && !Files.exists(parent)) {
+            Files.createDirectories(parent);
+        }
+        BlockOverlay overlay = OPEN_OVERLAYS.remove(ShadowFileSystem.getShadowFSPath(absSource));
+        if (overlay != null) {
+            synchronized (overlay) {
+                overlay.relocate(absTarget);
+            }
+            OPEN_OVERLAYS.put(ShadowFileSystem.getShadowFSPath(absTarget), overlay);
+        }
+        Path sourceMap = mapPath(absSource);
+        if (Files.exists(sourceMap)) {
+            Files.move(sourceMap, targetMap, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public static void movedSubtree(Path absSourceDir, Path absTargetDir) throws IOException {
+        List<Path> moved = new ArrayList<>();
+        Path shadowSourceDir = ShadowFileSystem.getShadowFSPath(absSourceDir);
+        for (Path shadow : OPEN_OVERLAYS.keySet()) {
+            if (shadow.startsWith(shadowSourceDir)) {
+                moved.add(absSourceDir.resolve(shadowSourceDir.relativize(shadow).toString()));
+            }
+        }
+        Path sourceLogDir = ShadowFileSystem.appendLogRoot().resolve(absSourceDir.subpath(0, absSourceDir.getNameCount()));
+        for (Path map : mapFilesUnder(absSourceDir)) {
+            String name = map.getFileName().toString();
+            Path relative = sourceLogDir.relativize(map.resolveSibling(name.substring(0, name.length() - ".blocks".length())));
+            Path source = absSourceDir.resolve(relative.toString());
+            if (!moved.contains(source)) {
+                moved.add(source);
+            }
+        }
+        for (Path source : moved) {
+            moved(source, absTargetDir.resolve(absSourceDir.relativize(source).toString()));
+        }
+    }
+
+    private static List<Path> mapFilesUnder(Path absDir) throws IOException {
+        Path logDir = ShadowFileSystem.appendLogRoot().resolve(absDir.subpath(0, absDir.getNameCount()));
+        List<Path> maps = new ArrayList<>();
+        if (!Files.isDirectory(logDir)) {
+            return maps;
+        }
+        try (Stream<Path> walk = Files.walk(logDir)) {
+            walk.filter(path -> path.getFileName().toString().endsWith(".blocks")).forEach(maps::add);
+        }
+        return maps;
+    }
+
+    private void relocate(Path absTarget) throws IOException {
+        location = absTarget;
+        shadowPath = ShadowFileSystem.resolveShadowFSPath(absTarget);
+        mapPath = mapPath(absTarget);
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    private int blockCount(long length) {
+        return (int) ((length + overlayBlockSize - 1) / overlayBlockSize);
+    }
+
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (position >= size) {
+            return -1;
+        }
+        int n = (int) Math.min(dst.remaining(), size - position);
+        long end = position + n;
+        long cursor = position;
+        while (cursor < end) {
+            int block = (int) (cursor / overlayBlockSize);
+            long blockEnd = Math.min(end, (block + 1L) * overlayBlockSize);
+            int length = (int) (blockEnd - cursor);
+            if (dirty.get(block)) {
+                fill(shadow(), dst, cursor, length, Long.MAX_VALUE);
+            } else {
+                fill(base(), dst, cursor, length, baseLimit);
+            }
+            cursor = blockEnd;
+        }
+        return n;
+    }
+
+    // 范围内全是干净block并且都在base可见范围内时，直接映射base文件
+    synchronized MappedByteBuffer mapClean(long position, long length) throws IOException {
+        long end = position + length;
+        if (length <= 0 || end > size || end > baseLimit) {
+            return null;
+        }
+        int next = dirty.nextSetBit((int) (position / overlayBlockSize));
+        if (next >= 0 && (long) next * overlayBlockSize < end) {
+            return null;
+        }
+        return base().map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    synchronized MappedByteBuffer mapShadow(FileChannel.MapMode mode, long position, long length) throws IOException {
+        // overlay已经不在索引里（比如被别的channel展平过）时这里补齐，已经是脏block的不再复制
+        flatten();
+        MappedByteBuffer buffer = shadow().map(mode, position, length);
+        if (mode != FileChannel.MapMode.READ_ONLY) {
+            if (position + length > size) {
+                size = position + length;
+                mapChanged = true;
+                index.updateSize(location, size);
+            }
+            ShadowFileSystem.contentChanged(location);
+        }
+        return buffer;
+    }
+
+    public synchronized int write(ByteBuffer src, long position) throws IOException {
+        int n = src.remaining();
+        if (n == 0) {
+            return 0;
+        }
+        long end = position + n;
+        int last = (int) ((end - 1) / overlayBlockSize);
+        for (int block = (int) (position / overlayBlockSize); block <= last; block++) {
+            if (dirty.get(block)) {
+                continue;
+            }
+            long blockStart = (long) block * overlayBlockSize;
+            // 被整块覆盖的block不需要从base复制
+            if (position > blockStart || end < blockStart + overlayBlockSize) {
+                copyIn(block);
+            }
+            dirty.set(block);
+            mapChanged = true;
+        }
+        FileChannel out = shadow();
+        long pos = position;
+        while (src.hasRemaining()) {
+            pos += out.write(src, pos);
+        }
+        if (end > size) {
+            size = end;
+            mapChanged = true;
+            index.updateSize(location, size);
+        }
+        ShadowFileSystem.contentChanged(location);
+        return n;
+    }
+
+    public synchronized void truncate(long newSize) throws IOException {
+        if (newSize >= size) {
+            return;
+        }
+        size = newSize;
+        baseLimit = Math.min(baseLimit, newSize);
+        index.updateSize(location, size);
+        int blocks = blockCount(newSize);
+        if (dirty.length() > blocks) {
+            dirty.clear(blocks, dirty.length());
+        }
+        FileChannel out = shadow();
+        if (out.size() > newSize) {
+            out.truncate(newSize);
+        }
+        mapChanged = true;
+        ShadowFileSystem.contentChanged(location);
+    }
+
+    public synchronized void force() throws IOException {
+        if (shadow != null) {
+            shadow.force(false);
+        }
+        if (mapChanged) {
+            persist();
+        }
+    }
+
+    // 把block在base中可见的部分复制到shadow文件的相同位置
+    private void copyIn(int block) throws IOException {
+        long from = (long) block * overlayBlockSize;
+        long to = Math.min(from + overlayBlockSize, baseLimit);
+        if (to <= from) {
+            return;
+        }
+        if (copyBuffer == null) {
+            copyBuffer = ByteBuffer.allocateDirect(overlayBlockSize);
+        }
+        copyBuffer.clear();
+        fill(base(), copyBuffer, from, (int) (to - from), baseLimit);
+        copyBuffer.flip();
+        FileChannel out = shadow();
+        long pos = from;
+        while (copyBuffer.hasRemaining()) {
+            pos += out.write(copyBuffer, pos);
+        }
+    }
+
+    // 读length个字节，limit之后以及文件末尾之后补0
+    private static void fill(FileChannel in, ByteBuffer dst, long position, int length, long limit) throws IOException {
+        int available = (int) Math.max(0, Math.min(length, limit - position));
+        int end = dst.position() + length;
+        int oldLimit = dst.limit();
+        dst.limit(dst.position() + available);
+        try {
+            long pos = position;
+            while (dst.hasRemaining()) {
+                int read = in.read(dst, pos);
+                if (read < 0) {
+                    break;
+                }
+                pos += read;
+            }
+        } finally {
+            dst.limit(oldLimit);
+        }
+        while (dst.position() < end) {
+            dst.put((byte) 0);
+        }
+    }
+
+    private FileChannel shadow() throws IOException {
+        if (shadow == null) {
+            shadow = FileChannel.open(shadowPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return shadow;
+    }
+
+    private FileChannel base() throws IOException {
+        if (base == null) {
+            base = FileChannel.open(basePath, StandardOpenOption.READ);
+        }
+        return base;
+    }
+
+    /**
+     * Drop one reference; the last one persists the bitmap and closes the files.
+     */
+    public void release() throws IOException {
+        try {
+            OPEN_OVERLAYS.compute(shadowPath, (path, current) -> {
+                synchronized (this) {
+                    if (--refCount > 0) {
+                        return current;
+                    }
+                    try {
+                        closeFiles();
+                    } catch (IOException e) {
+                        throw new OverlayException(e);
+                    }
+                }
+                return current == this ? null : current;
+            });
+        } catch (OverlayException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        try {
+            if (mapChanged && Files.exists(mapPath)) {
+                persist();
+            }
+        } finally {
+            if (shadow != null) {
+                shadow.close();
+                shadow = null;
+            }
+            if (base != null) {
+                base.close();
+                base = null;
+            }
+        }
+    }
+
+    private static class OverlayException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        OverlayException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * FileChannel over a shared overlay, with its own position. A read-only mapping of clean
+     * blocks maps the base file; any other mapping flattens the overlay first. Locks are taken
+     * on the shadow file.
+     */
+    static class Channel extends FileChannel {
+        private final BlockOverlay overlay;
+        private final boolean readable;
+        private final boolean writable;
+        private final boolean append;
+        private long position;
+        private final List<OverlayLock> locks = new ArrayList<>();
+
+        Channel(BlockOverlay overlay, OpenOption... options) {
+            this.overlay = overlay;
+            this.append = ShadowFiles.hasOption(options, StandardOpenOption.APPEND);
+            this.writable = append || ShadowFiles.hasOption(options, StandardOpenOption.WRITE);
+            this.readable = !writable || ShadowFiles.hasOption(options, StandardOpenOption.READ);
+        }
+
+        private void ensureOpen() throws ClosedChannelException {
+            if (!isOpen()) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        private void ensureReadable() throws IOException {
+            ensureOpen();
+            if (!readable) {
+                throw new NonReadableChannelException();
+            }
+        }
+
+        private void ensureWritable() throws IOException {
+            ensureOpen();
+            if (!writable) {
+                throw new NonWritableChannelException();
+            }
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            ensureReadable();
+            int n = overlay.read(dst, position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            ensureReadable();
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                if (!dsts[i].hasRemaining()) {
+                    continue;
+                }
+                int n = overlay.read(dsts[i], position);
+                if (n < 0) {
+                    return total == 0 ? -1 : total;
+                }
+                position += n;
+                total += n;
+                if (dsts[i].hasRemaining()) {
+                    break;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer src) throws IOException {
+            ensureWritable();
+            if (append) {
+                position = overlay.size();
+            }
+            int n = overlay.write(src, position);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            ensureWritable();
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += write(srcs[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public synchronized long position() throws IOException {
+            ensureOpen();
+            return position;
+        }
+
+        @Override
+        public synchronized FileChannel position(long newPosition) throws IOException {
+            ensureOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("Negative position");
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            return overlay.size();
+        }
+
+        @Override
+        public synchronized FileChannel truncate(long size) throws IOException {
+            if (size < 0) {
+                throw new IllegalArgumentException("Negative size");
+            }
+            ensureWritable();
+            overlay.truncate(size);
+            if (position > size) {
+                position = size;
+            }
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            ensureOpen();
+            overlay.force();
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            if (position < 0 || count < 0) {
+                throw new IllegalArgumentException();
+            }
+            ensureReadable();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, overlay.overlayBlockSize));
+            long done = 0;
+            while (done < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - done));
+                int n = overlay.read(buffer, position + done);
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                int written = target.write(buffer);
+                done += written;
+                if (written < n) {
+                    break;
+                }
+            }
+            return done;
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            if (position < 0 || count < 0) {
+                throw new IllegalArgumentException();
+            }
+            ensureWritable();
+            if (position > overlay.size()) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, overlay.overlayBlockSize));
+            long done = 0;
+            while (done < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - done));
+                int n = src.read(buffer);
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                done += overlay.write(buffer, position + done);
+            }
+            return done;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (position < 0) {
+                throw new IllegalArgumentException("Negative position");
+            }
+            ensureReadable();
+            return overlay.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            if (position < 0) {
+                throw new IllegalArgumentException("Negative position");
+            }
+            ensureWritable();
+            return overlay.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            ensureOpen();
+            if (mode == MapMode.READ_ONLY) {
+                ensureReadable();
+                MappedByteBuffer clean = overlay.mapClean(position, size);
+                if (clean != null) {
+                    return clean;
+                }
+            } else {
+                ensureWritable();
+            }
+            // 可写的映射或者映射到脏block：映射需要完整的shadow文件
+            flattenIfOverlay(overlay.location);
+            return overlay.mapShadow(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return lock(position, size, shared, true);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return lock(position, size, shared, false);
+        }
+
+        private FileLock lock(long position, long size, boolean shared, boolean block) throws IOException {
+            if (shared) {
+                ensureReadable();
+            } else {
+                ensureWritable();
+            }
+            FileChannel shadow;
+            synchronized (overlay) {
+                shadow = overlay.shadow();
+            }
+            // 同一个shadow文件上的锁由JVM和操作系统判断冲突
+            FileLock held = block ? shadow.lock(position, size, shared) : shadow.tryLock(position, size, shared);
+            if (held == null) {
+                return null;
+            }
+            OverlayLock lock = new OverlayLock(this, held);
+            synchronized (locks) {
+                locks.add(lock);
+            }
+            return lock;
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            List<OverlayLock> held;
+            synchronized (locks) {
+                held = new ArrayList<>(locks);
+                locks.clear();
+            }
+            for (OverlayLock lock : held) {
+                lock.release();
+            }
+            overlay.release();
+        }
+    }
+
+    private static class OverlayLock extends FileLock {
+        private final FileLock held;
+
+        OverlayLock(FileChannel channel, FileLock held) {
+            super(channel, held.position(), held.size(), held.isShared());
+            this.held = held;
+        }
+
+        @Override
+        public boolean isValid() {
+            return held.isValid() && channel().isOpen();
+        }
+
+        @Override
+        public void release() throws IOException {
+            held.release();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.pilot.filesystem;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Whole-file clone used before falling back to a {@link BlockOverlay}, e.g. a reflink on
+ * filesystems that share extents between files.
+ */
+public interface CloneStrategy {
+
+    CloneStrategy NONE = (source, target) -> false;
+
+    /**
+     * @return true if target is now an independent copy of source, false if this strategy
+     *         cannot clone it and the caller should fall back
+     */
+    boolean cloneFile(Path source, Path target) throws IOException;
+}
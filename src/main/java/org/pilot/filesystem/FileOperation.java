@@ -1,36 +1,41 @@
 package org.pilot.filesystem;
 
-import java.io.Serializable;
+class FileOperation {
+    public static final byte WRITE = 1;
+    public static final byte TRUNCATE = 2;
 
-class FileOperation implements Serializable {
-    private final long timestamp;
     private final long offset;
     private final byte[] data;
     private final int length;
-    private final String operationType; // "WRITE" or "TRUNCATE"
+    private final byte operationType; // WRITE or TRUNCATE
 
-    public FileOperation(long offset, byte[] data, String operationType) {
-        this.timestamp = System.currentTimeMillis();
+    public FileOperation(long offset, byte[] data, byte operationType) {
         this.offset = offset;
         this.data = data;
         this.length = data != null ? data.length : 0;
         this.operationType = operationType;
     }
 
+    public static FileOperation write(long offset, byte[] data) {
+        return new FileOperation(offset, data, WRITE);
+    }
+
+    // truncate 的 offset 即截断后的文件大小
+    public static FileOperation truncate(long size) {
+        return new FileOperation(size, null, TRUNCATE);
+    }
+
     // Getters
-    public long getTimestamp() { return timestamp; }
     public long getOffset() { return offset; }
     public byte[] getData() { return data; }
     public int getLength() { return length; }
-    public String getOperationType() { return operationType; }
+    public byte getOperationType() { return operationType; }
 
     public String toString() {
         return "FileOperation{" +
-                "timestamp=" + timestamp +
-                ", offset=" + offset +
+                "offset=" + offset +
                 ", length=" + length +
-                ", operationType='" + operationType + '\'' +
+                ", operationType=" + (operationType == TRUNCATE ? "TRUNCATE" : "WRITE") +
                 '}';
     }
 }
-
@@ -5,7 +5,10 @@ import java.util.concurrent.locks.ReentrantLock;
 /**
  * Global lock manager for all Shadow FileSystem operations.
  * This ensures thread-safety across all file operations.
+ *
+ * @deprecated serializes every shadow file operation; use {@link ShadowLockManager}
  */
+@Deprecated
 public class GlobalLockManager {
     private static final ReentrantLock GLOBAL_LOCK = new ReentrantLock(true); // fair lock
 
@@ -0,0 +1,95 @@
+package org.pilot.filesystem;
+
+import org.pilot.PilotUtil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Background compaction of append logs. Once a log passes a size or record count threshold
+ * (see {@link AppendLog#compactionMinBytes}), it is rewritten as the minimal set of
+ * non-overlapping extents of its interval index, so replay time and disk use follow the
+ * distinct bytes changed instead of the write history.
+ */
+public class LogCompactor {
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "pilot-log-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final LongAdder compactions = new LongAdder();
+    private static final LongAdder bytesSaved = new LongAdder();
+
+    /**
+     * Queue a compaction of writer's log if it is due; called after an append, cheap otherwise.
+     */
+    static void maybeSchedule(AppendLog.Writer writer, Path absOriginal, Path shadowPath) throws IOException {
+        if (!writer.compactionDue()) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                compact(absOriginal, shadowPath, writer.getLogPath());
+            } catch (IOException e) {
+                PilotUtil.dryRunLog("Failed to compact append log " + writer.getLogPath() + ": " + e);
+            } finally {
+                writer.compactionFinished();
+            }
+        });
+    }
+
+    /**
+     * Compact the log of absOriginal now, under its stripe write lock.
+     * @return bytes saved, or -1 if the log was missing or left as it is
+     */
+    public static long compact(Path absOriginal, Path shadowPath, Path logPath) throws IOException {
+        Lock lock = ShadowLockManager.writeLock(shadowPath);
+        lock.lock();
+        try {
+            // log在排队期间可能已经被重建删除
+            if (!Files.exists(logPath)) {
+                return -1;
+            }
+            long start = System.nanoTime();
+            AppendLog.Writer writer = AppendLog.openWriter(logPath);
+            try {
+                long saved = writer.compact(baseSize(absOriginal));
+                if (saved >= 0) {
+                    compactions.increment();
+                    bytesSaved.add(saved);
+                    PilotUtil.dryRunLog("Compacted append log " + logPath + ", saved " + saved + " bytes in "
+                            + (System.nanoTime() - start) / 1_000_000 + " ms");
+                }
+                return saved;
+            } finally {
+                writer.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long baseSize(Path absOriginal) throws IOException {
+        try {
+            return Files.size(absOriginal);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    public static long compactionCount() {
+        return compactions.sum();
+    }
+
+    public static long bytesSaved() {
+        return bytesSaved.sum();
+    }
+}
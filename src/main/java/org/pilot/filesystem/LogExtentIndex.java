@@ -0,0 +1,144 @@
+package org.pilot.filesystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Interval index of an append log: which byte ranges of the file are currently defined by
+ * which logged write. Extents never overlap; a later write trims or splits the extents it
+ * covers. Bytes outside every extent come from the original file, or are zero past its end
+ * or past the shortest truncation.
+ *
+ * Not thread safe, callers hold the file's stripe lock.
+ */
+public class LogExtentIndex {
+
+    public static final class Extent {
+        public final long start;
+        public final long length;
+        // payload在append log中的位置
+        public final long logPosition;
+
+        Extent(long start, long length, long logPosition) {
+            this.start = start;
+            this.length = length;
+            this.logPosition = logPosition;
+        }
+
+        public long end() {
+            return start + length;
+        }
+
+        public String toString() {
+            return "Extent{" + start + "+" + length + " @" + logPosition + "}";
+        }
+    }
+
+    private final TreeMap<Long, Extent> extents = new TreeMap<>();
+    private long size;
+    // 原始文件中仍然可见的长度，被截断过之后不再恢复
+    private long baseLimit;
+
+    public LogExtentIndex(long baseSize) {
+        this.size = baseSize;
+        this.baseLimit = baseSize;
+    }
+
+    /**
+     * Logical size of the file after all indexed operations
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Bytes of the original file still visible; past it, bytes outside extents read as zero
+     */
+    public long baseLimit() {
+        return baseLimit;
+    }
+
+    public boolean isEmpty() {
+        return extents.isEmpty();
+    }
+
+    public int extentCount() {
+        return extents.size();
+    }
+
+    public void apply(byte op, long offset, int length, long logPosition) {
+        if (op == FileOperation.TRUNCATE) {
+            truncate(offset);
+        } else {
+            write(offset, length, logPosition);
+        }
+    }
+
+    public void write(long offset, long length, long logPosition) {
+        if (length <= 0) {
+            return;
+        }
+        long end = offset + length;
+
+        // 左边跨过offset的extent：保留前半段，必要时保留后半段
+        Map.Entry<Long, Extent> lower = extents.lowerEntry(offset);
+        if (lower != null && lower.getValue().end() > offset) {
+            Extent e = lower.getValue();
+            extents.put(e.start, new Extent(e.start, offset - e.start, e.logPosition));
+            if (e.end() > end) {
+                extents.put(end, new Extent(end, e.end() - end, e.logPosition + (end - e.start)));
+            }
+        }
+
+        // 起点落在[offset, end)里的extent：整段被覆盖，或只保留超出end的部分
+        Extent tail = null;
+        Iterator<Extent> covered = extents.subMap(offset, true, end, false).values().iterator();
+        while (covered.hasNext()) {
+            Extent e = covered.next();
+            if (e.end() > end) {
+                tail = new Extent(end, e.end() - end, e.logPosition + (end - e.start));
+            }
+            covered.remove();
+        }
+        if (tail != null) {
+            extents.put(tail.start, tail);
+        }
+
+        extents.put(offset, new Extent(offset, length, logPosition));
+        size = Math.max(size, end);
+    }
+
+    public void truncate(long newSize) {
+        if (newSize >= size) {
+            return;
+        }
+        extents.tailMap(newSize, true).clear();
+        Map.Entry<Long, Extent> lower = extents.lowerEntry(newSize);
+        if (lower != null && lower.getValue().end() > newSize) {
+            Extent e = lower.getValue();
+            extents.put(e.start, new Extent(e.start, newSize - e.start, e.logPosition));
+        }
+        size = newSize;
+        baseLimit = Math.min(baseLimit, newSize);
+    }
+
+    /**
+     * Extents intersecting [from, to), in file order
+     */
+    public List<Extent> overlapping(long from, long to) {
+        if (from >= to || extents.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Extent> result = new ArrayList<>();
+        Map.Entry<Long, Extent> lower = extents.lowerEntry(from);
+        if (lower != null && lower.getValue().end() > from) {
+            result.add(lower.getValue());
+        }
+        result.addAll(extents.subMap(from, true, to, false).values());
+        return result;
+    }
+}
@@ -0,0 +1,881 @@
+package org.pilot.filesystem;
+
+import org.pilot.PilotUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Shadow file whose content lives in off-heap memory instead of the shadow tree, used by the
+ * lazy overlay for files the pilot creates or rewrites, and for small original files on their
+ * first write. Short pilots then never write shadow data to disk.
+ *
+ * Content is kept in direct buffers of {@link #chunkSize} bytes, allocated on first write and
+ * counted against {@link #memoryBudget}, which all pilots share. A write that would go over
+ * the budget spills its file to the regular shadow path; the file then continues as an
+ * ordinary modified shadow file, its open channels included.
+ *
+ * Code that uses shadow paths directly gets a spilled copy (see
+ * {@link ShadowFileSystem#materializeFile}). Directory listings include in-memory files
+ * through {@link #namesUnder}; a materialized shadow tree holds an empty placeholder for
+ * each of them (see {@link #placeholdersUnder}).
+ */
+public class MemoryFile {
+    public static boolean enabled = true;
+    public static long memoryBudget = 256L << 20;
+    // 第一次写原始文件时，不超过这个大小的整个复制进内存，更大的用BlockOverlay
+    public static long copyMaxBytes = 1L << 20;
+    public static int chunkSize = 64 * 1024;
+
+    // 以shadow路径为key，和BlockOverlay一样不同pilot互不影响
+    private static final ConcurrentHashMap<Path, MemoryFile> FILES = new ConcurrentHashMap<>();
+    private static final AtomicLong USED = new AtomicLong();
+    private static final LongAdder SPILLS = new LongAdder();
+
+    private Path location;
+    private Path shadowPath;
+    private final ShadowIndex index;
+    private final int fileChunkSize;
+    // null的chunk全是0
+    private ByteBuffer[] chunks = new ByteBuffer[4];
+    private long size;
+    private long reserved;
+    private long lastModified = System.currentTimeMillis();
+
+    private boolean spilled;
+    private FileChannel disk;
+    // 被删除或者所属的namespace已经拆掉，不再登记在FILES里
+    private boolean detached;
+    private int refCount;
+    // 本进程内持有的锁，和FileChannel一样按区间检查重叠
+    private final List<MemoryLock> locks = new ArrayList<>();
+
+    private MemoryFile(Path location) {
+        this.location = location;
+        this.shadowPath = ShadowFileSystem.getShadowFSPath(location);
+        this.index = ShadowFileSystem.index();
+        this.fileChunkSize = chunkSize;
+    }
+
+    public static boolean exists(Path absOriginal) {
+        return FILES.containsKey(ShadowFileSystem.getShadowFSPath(absOriginal));
+    }
+
+    /**
+     * Make absOriginal an empty in-memory file, replacing any earlier one. Callers hold the
+     * file's stripe or the structure lock and mark the index.
+     * @return false if the memory backend is disabled
+     */
+    public static boolean create(Path absOriginal) {
+        if (!enabled) {
+            return false;
+        }
+        delete(absOriginal);
+        MemoryFile file = new MemoryFile(absOriginal);
+        FILES.put(file.shadowPath, file);
+        return true;
+    }
+
+    /**
+     * Make absOriginal an in-memory copy of base, if base is at most {@link #copyMaxBytes}
+     * and fits in the budget.
+     * @return false if the file was left as it is
+     */
+    public static boolean copyOf(Path base, Path absOriginal) throws IOException {
+        if (!enabled) {
+            return false;
+        }
+        long baseSize = Files.size(base);
+        if (baseSize > copyMaxBytes) {
+            return false;
+        }
+        MemoryFile file = new MemoryFile(absOriginal);
+        if (!file.reserve(file.chunkIndex(baseSize + file.fileChunkSize - 1))) {
+            return false;
+        }
+        try (FileChannel in = FileChannel.open(base, StandardOpenOption.READ)) {
+            file.fill(in, baseSize);
+        } catch (IOException e) {
+            file.free();
+            throw e;
+        }
+        delete(absOriginal);
+        FILES.put(file.shadowPath, file);
+        return true;
+    }
+
+    /**
+     * Open a channel on the in-memory file of absOriginal
+     */
+    public static FileChannel newChannel(Path absOriginal, OpenOption... options) throws IOException {
+        MemoryFile file = FILES.get(ShadowFileSystem.getShadowFSPath(absOriginal));
+        if (file == null) {
+            throw new NoSuchFileException(absOriginal.toString());
+        }
+        synchronized (file) {
+            file.refCount++;
+        }
+        try {
+            Channel channel = new Channel(file, options);
+            if (channel.writable && ShadowFiles.hasOption(options, StandardOpenOption.TRUNCATE_EXISTING)) {
+                file.truncate(0);
+            }
+            return channel;
+        } catch (RuntimeException | IOException e) {
+            file.release();
+            throw e;
+        }
+    }
+
+    public static long size(Path absOriginal) throws IOException {
+        MemoryFile file = FILES.get(ShadowFileSystem.getShadowFSPath(absOriginal));
+        if (file == null) {
+            throw new NoSuchFileException(absOriginal.toString());
+        }
+        synchronized (file) {
+            long size = file.size();
+            if (!file.spilled) {
+                file.index.cacheSize(absOriginal, size);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Write the in-memory file of absOriginal to its shadow path, for code that uses the
+     * shadow file directly.
+     */
+    public static void spill(Path absOriginal) throws IOException {
+        Path shadowPath = ShadowFileSystem.getShadowFSPath(absOriginal);
+        if (!FILES.containsKey(shadowPath)) {
+            return;
+        }
+        Lock lock = ShadowLockManager.writeLock(shadowPath);
+        lock.lock();
+        try {
+            MemoryFile file = FILES.get(shadowPath);
+            if (file != null) {
+                synchronized (file) {
+                    file.spillToDisk();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop the in-memory file of absOriginal; channels still open on it keep working.
+     */
+    public static void delete(Path absOriginal) {
+        MemoryFile file = FILES.remove(ShadowFileSystem.getShadowFSPath(absOriginal));
+        if (file != null) {
+            file.detach();
+        }
+    }
+
+    public static void deleteSubtree(Path absDir) {
+        detachAll(ShadowFileSystem.getShadowFSPath(absDir));
+    }
+
+    /**
+     * Forget the in-memory files under a shadow root, used after it was torn down
+     */
+    static void forgetUnder(Path shadowRoot) {
+        detachAll(shadowRoot);
+    }
+
+    private static void detachAll(Path shadowDir) {
+        for (Map.Entry<Path, MemoryFile> entry : FILES.entrySet()) {
+            if (entry.getKey().startsWith(shadowDir) && FILES.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().detach();
+            }
+        }
+    }
+
+    /**
+     * Follow a move of an in-memory file from one original path to another
+     */
+    public static void moved(Path absSource, Path absTarget) {
+        delete(absTarget);
+        MemoryFile file = FILES.remove(ShadowFileSystem.getShadowFSPath(absSource));
+        if (file != null) {
+            synchronized (file) {
+                file.location = absTarget;
+                file.shadowPath = ShadowFileSystem.getShadowFSPath(absTarget);
+            }
+            FILES.put(file.shadowPath, file);
+        }
+    }
+
+    public static void movedSubtree(Path absSourceDir, Path absTargetDir) {
+        Path shadowSourceDir = ShadowFileSystem.getShadowFSPath(absSourceDir);
+        List<Path> moved = new ArrayList<>();
+        for (Path shadow : FILES.keySet()) {
+            if (shadow.startsWith(shadowSourceDir)) {
+                moved.add(absSourceDir.resolve(shadowSourceDir.relativize(shadow).toString()));
+            }
+        }
+        for (Path source : moved) {
+            moved(source, absTargetDir.resolve(absSourceDir.relativize(source).toString()));
+        }
+    }
+
+    /**
+     * Create an empty shadow file for each in-memory file under absDir (only its direct
+     * entries unless recursive), so listing the shadow directory shows them.
+     */
+    public static void placeholdersUnder(Path absDir, boolean recursive) throws IOException {
+        if (FILES.isEmpty()) {
+            return;
+        }
+        Path shadowDir = ShadowFileSystem.getShadowFSPath(absDir);
+        for (Path shadow : FILES.keySet()) {
+            if (recursive ? !shadow.startsWith(shadowDir) || shadow.equals(shadowDir) : !shadowDir.equals(shadow.getParent())) {
+                continue;
+            }
+            if (!Files.exists(shadow)) {
+                Files.createDirectories(shadow.getParent());
+                try {
+                    Files.createFile(shadow);
+                } catch (FileAlreadyExistsException e) {
+                    // 换出的线程先写了
+                }
+            }
+        }
+    }
+
+    /**
+     * Names of the in-memory files directly under absDir
+     */
+    public static List<String> namesUnder(Path absDir) {
+        List<String> names = new ArrayList<>();
+        if (FILES.isEmpty()) {
+            return names;
+        }
+        Path shadowDir = ShadowFileSystem.getShadowFSPath(absDir);
+        for (Path shadow : FILES.keySet()) {
+            if (shadowDir.equals(shadow.getParent())) {
+                names.add(shadow.getFileName().toString());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Last modification time of the in-memory file of absOriginal, or -1 if there is none
+     */
+    public static long lastModified(Path absOriginal) {
+        MemoryFile file = FILES.get(ShadowFileSystem.getShadowFSPath(absOriginal));
+        if (file == null) {
+            return -1;
+        }
+        synchronized (file) {
+            return file.lastModified;
+        }
+    }
+
+    public static long usedBytes() {
+        return USED.get();
+    }
+
+    public static int fileCount() {
+        return FILES.size();
+    }
+
+    public static long spillCount() {
+        return SPILLS.sum();
+    }
+
+    private int chunkIndex(long position) {
+        return (int) (position / fileChunkSize);
+    }
+
+    private boolean reserve(int chunkCount) {
+        long bytes = (long) chunkCount * fileChunkSize;
+        while (true) {
+            long used = USED.get();
+            if (used + bytes > memoryBudget) {
+                return false;
+            }
+            if (USED.compareAndSet(used, used + bytes)) {
+                reserved += bytes;
+                return true;
+            }
+        }
+    }
+
+    private ByteBuffer chunk(int i) {
+        if (i >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(i + 1, chunks.length * 2));
+        }
+        ByteBuffer chunk = chunks[i];
+        if (chunk == null) {
+            chunk = ByteBuffer.allocateDirect(fileChunkSize);
+            chunks[i] = chunk;
+        }
+        return chunk;
+    }
+
+    private void fill(FileChannel in, long length) throws IOException {
+        long position = 0;
+        while (position < length) {
+            ByteBuffer chunk = chunk(chunkIndex(position)).duplicate();
+            chunk.limit((int) Math.min(fileChunkSize, length - position));
+            while (chunk.hasRemaining()) {
+                if (in.read(chunk, position + chunk.position()) < 0) {
+                    throw new IOException("Unexpected end of " + location);
+                }
+            }
+            position += chunk.limit();
+        }
+        size = length;
+    }
+
+    public synchronized long size() throws IOException {
+        return spilled ? disk().size() : size;
+    }
+
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        if (spilled) {
+            return disk().read(dst, position);
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (position >= size) {
+            return -1;
+        }
+        int n = (int) Math.min(dst.remaining(), size - position);
+        long end = position + n;
+        long cursor = position;
+        while (cursor < end) {
+            int i = chunkIndex(cursor);
+            int offset = (int) (cursor - (long) i * fileChunkSize);
+            int length = (int) Math.min(end - cursor, fileChunkSize - offset);
+            ByteBuffer chunk = i < chunks.length ? chunks[i] : null;
+            if (chunk == null) {
+                for (int k = 0; k < length; k++) {
+                    dst.put((byte) 0);
+                }
+            } else {
+                ByteBuffer src = chunk.duplicate();
+                src.limit(offset + length).position(offset);
+                dst.put(src);
+            }
+            cursor += length;
+        }
+        return n;
+    }
+
+    public synchronized int write(ByteBuffer src, long position) throws IOException {
+        int n = src.remaining();
+        if (n == 0) {
+            return 0;
+        }
+        if (!spilled && !reserveFor(position, position + n)) {
+            if (detached) {
+                // 已经删除的文件没有地方可以换出，只能超出预算
+                PilotUtil.dryRunLog("Deleted in-memory file " + location + " over the memory budget");
+            } else {
+                spillToDisk();
+            }
+        }
+        if (spilled) {
+            FileChannel out = disk();
+            long pos = position;
+            while (src.hasRemaining()) {
+                pos += out.write(src, pos);
+            }
+            ShadowFileSystem.contentChanged(location);
+            return n;
+        }
+        long end = position + n;
+        long cursor = position;
+        while (cursor < end) {
+            int i = chunkIndex(cursor);
+            int offset = (int) (cursor - (long) i * fileChunkSize);
+            int length = (int) Math.min(end - cursor, fileChunkSize - offset);
+            ByteBuffer chunk = chunk(i).duplicate();
+            chunk.position(offset);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + length);
+            chunk.put(part);
+            src.position(src.position() + length);
+            cursor += length;
+        }
+        if (end > size) {
+            size = end;
+            index.updateSize(location, size);
+        }
+        lastModified = System.currentTimeMillis();
+        ShadowFileSystem.contentChanged(location);
+        return n;
+    }
+
+    // 为[from, to)中还没分配的chunk预留预算，detached的文件超出预算也照样分配
+    private boolean reserveFor(long from, long to) {
+        int missing = 0;
+        for (int i = chunkIndex(from), last = chunkIndex(to - 1); i <= last; i++) {
+            if (i >= chunks.length || chunks[i] == null) {
+                missing++;
+            }
+        }
+        if (missing == 0 || reserve(missing)) {
+            return true;
+        }
+        if (detached) {
+            USED.addAndGet((long) missing * fileChunkSize);
+            reserved += (long) missing * fileChunkSize;
+        }
+        return false;
+    }
+
+    public synchronized void truncate(long newSize) throws IOException {
+        if (spilled) {
+            FileChannel out = disk();
+            if (out.size() > newSize) {
+                out.truncate(newSize);
+            }
+            ShadowFileSystem.contentChanged(location);
+            return;
+        }
+        if (newSize >= size) {
+            return;
+        }
+        int keep = chunkIndex(newSize + fileChunkSize - 1);
+        long freed = 0;
+        for (int i = keep; i < chunks.length; i++) {
+            if (chunks[i] != null) {
+                chunks[i] = null;
+                freed += fileChunkSize;
+            }
+        }
+        // 截断点之后清零，以后再变长时读出来是0
+        int tail = (int) (newSize % fileChunkSize);
+        if (tail != 0 && keep - 1 < chunks.length && chunks[keep - 1] != null) {
+            ByteBuffer chunk = chunks[keep - 1].duplicate();
+            chunk.position(tail);
+            while (chunk.hasRemaining()) {
+                chunk.put((byte) 0);
+            }
+        }
+        reserved -= freed;
+        USED.addAndGet(-freed);
+        size = newSize;
+        lastModified = System.currentTimeMillis();
+        index.updateSize(location, size);
+        ShadowFileSystem.contentChanged(location);
+    }
+
+    public synchronized void force() throws IOException {
+        if (spilled && disk != null) {
+            disk.force(false);
+        }
+    }
+
+    // 把内容写到shadow路径，之后所有读写都走磁盘文件；调用方持有this的锁
+    private void spillToDisk() throws IOException {
+        if (spilled) {
+            return;
+        }
+        Path parent = shadowPath.getParent();
+        if (parent != null && !Files.exists(parent)) {
+            Files.createDirectories(parent);
+        }
+        FileChannel out = FileChannel.open(shadowPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i * fileChunkSize;
+                if (chunks[i] == null || start >= size) {
+                    continue;
+                }
+                ByteBuffer chunk = chunks[i].duplicate();
+                chunk.limit((int) Math.min(fileChunkSize, size - start)).position(0);
+                long pos = start;
+                while (chunk.hasRemaining()) {
+                    pos += out.write(chunk, pos);
+                }
+            }
+            if (out.size() < size) {
+                out.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+        spilled = true;
+        disk = out;
+        long bytes = reserved;
+        free();
+        if (!detached) {
+            FILES.remove(shadowPath, this);
+            index.markModified(location);
+        }
+        if (refCount == 0) {
+            closeDisk();
+        }
+        SPILLS.increment();
+        PilotUtil.dryRunLog("Spilled in-memory file " + location + " (" + size + " bytes, " + bytes
+                + " reserved) to " + shadowPath);
+    }
+
+    private FileChannel disk() throws IOException {
+        if (disk == null) {
+            disk = FileChannel.open(shadowPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return disk;
+    }
+
+    private void closeDisk() throws IOException {
+        if (disk != null) {
+            disk.close();
+            disk = null;
+        }
+    }
+
+    private void free() {
+        chunks = new ByteBuffer[0];
+        USED.addAndGet(-reserved);
+        reserved = 0;
+    }
+
+    private synchronized void detach() {
+        detached = true;
+        if (refCount == 0 && !spilled) {
+            free();
+        }
+    }
+
+    /**
+     * Drop one reference taken by a channel
+     */
+    private synchronized void release() throws IOException {
+        if (--refCount > 0) {
+            return;
+        }
+        if (spilled) {
+            closeDisk();
+        } else if (detached) {
+            free();
+        }
+    }
+
+    private MemoryLock lock(Channel channel, long position, long size, boolean shared) {
+        synchronized (locks) {
+            for (MemoryLock held : locks) {
+                if (held.overlaps(position, size)) {
+                    throw new OverlappingFileLockException();
+                }
+            }
+            MemoryLock lock = new MemoryLock(this, channel, position, size, shared);
+            locks.add(lock);
+            return lock;
+        }
+    }
+
+    private void unlock(MemoryLock lock) {
+        synchronized (locks) {
+            locks.remove(lock);
+        }
+    }
+
+    // channel关闭时它拿到的锁全部失效
+    private void unlockAll(Channel channel) {
+        synchronized (locks) {
+            locks.removeIf(lock -> {
+                if (lock.channel() != channel) {
+                    return false;
+                }
+                lock.valid = false;
+                return true;
+            });
+        }
+    }
+
+    /**
+     * FileChannel over a shared in-memory file, with its own position. Mapping spills the
+     * file to disk. Locks are only held within this process: as with FileChannel, a lock
+     * overlapping one already held on the same file throws OverlappingFileLockException
+     * from both lock and tryLock, so neither ever waits.
+     */
+    static class Channel extends FileChannel {
+        private final MemoryFile file;
+        private final boolean readable;
+        private final boolean writable;
+        private final boolean append;
+        private long position;
+
+        Channel(MemoryFile file, OpenOption... options) {
+            this.file = file;
+            this.append = ShadowFiles.hasOption(options, StandardOpenOption.APPEND);
+            this.writable = append || ShadowFiles.hasOption(options, StandardOpenOption.WRITE);
+            this.readable = !writable || ShadowFiles.hasOption(options, StandardOpenOption.READ);
+        }
+
+        private void ensureOpen() throws IOException {
+            if (!isOpen()) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        private void ensureReadable() throws IOException {
+            ensureOpen();
+            if (!readable) {
+                throw new NonReadableChannelException();
+            }
+        }
+
+        private void ensureWritable() throws IOException {
+            ensureOpen();
+            if (!writable) {
+                throw new NonWritableChannelException();
+            }
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            ensureReadable();
+            int n = file.read(dst, position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            ensureReadable();
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                if (!dsts[i].hasRemaining()) {
+                    continue;
+                }
+                int n = file.read(dsts[i], position);
+                if (n < 0) {
+                    return total == 0 ? -1 : total;
+                }
+                position += n;
+                total += n;
+                if (dsts[i].hasRemaining()) {
+                    break;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer src) throws IOException {
+            ensureWritable();
+            if (append) {
+                position = file.size();
+            }
+            int n = file.write(src, position);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            ensureWritable();
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += write(srcs[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public synchronized long position() throws IOException {
+            ensureOpen();
+            return position;
+        }
+
+        @Override
+        public synchronized FileChannel position(long newPosition) throws IOException {
+            ensureOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("Negative position");
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            return file.size();
+        }
+
+        @Override
+        public synchronized FileChannel truncate(long size) throws IOException {
+            if (size < 0) {
+                throw new IllegalArgumentException("Negative size");
+            }
+            ensureWritable();
+            file.truncate(size);
+            if (position > size) {
+                position = size;
+            }
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            ensureOpen();
+            file.force();
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            ensureReadable();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, file.fileChunkSize));
+            long done = 0;
+            while (done < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - done));
+                int n = file.read(buffer, position + done);
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                int written = target.write(buffer);
+                done += written;
+                if (written < n) {
+                    break;
+                }
+            }
+            return done;
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            ensureWritable();
+            if (position > file.size()) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, file.fileChunkSize));
+            long done = 0;
+            while (done < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - done));
+                int n = src.read(buffer);
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                done += file.write(buffer, position + done);
+            }
+            return done;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (position < 0) {
+                throw new IllegalArgumentException("Negative position");
+            }
+            ensureReadable();
+            return file.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            if (position < 0) {
+                throw new IllegalArgumentException("Negative position");
+            }
+            ensureWritable();
+            return file.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            ensureOpen();
+            synchronized (file) {
+                if (file.detached && !file.spilled) {
+                    throw new IOException("Cannot map deleted in-memory file " + file.location);
+                }
+                // 映射需要真实的文件
+                file.spillToDisk();
+                return file.disk().map(mode, position, size);
+            }
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            if (position < 0 || size < 0 || position + size < 0) {
+                throw new IllegalArgumentException("Negative position or size");
+            }
+            ensureOpen();
+            if (shared && !readable) {
+                throw new NonReadableChannelException();
+            }
+            if (!shared && !writable) {
+                throw new NonWritableChannelException();
+            }
+            return file.lock(this, position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            // 没有别的进程能持有这些锁，冲突只可能来自本进程，lock本身就不会阻塞
+            return lock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            file.unlockAll(this);
+            file.release();
+        }
+    }
+
+    // 内存中的文件只有本进程能看到，锁不需要落到操作系统
+    private static class MemoryLock extends FileLock {
+        private final MemoryFile file;
+        private volatile boolean valid = true;
+
+        MemoryLock(MemoryFile file, FileChannel channel, long position, long size, boolean shared) {
+            super(channel, position, size, shared);
+            this.file = file;
+        }
+
+        @Override
+        public boolean isValid() {
+            return valid && channel().isOpen();
+        }
+
+        @Override
+        public void release() throws IOException {
+            if (!channel().isOpen()) {
+                throw new ClosedChannelException();
+            }
+            if (valid) {
+                valid = false;
+                file.unlock(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.pilot.filesystem;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the original / shadow / append-log path translations of one
+ * {@link ShadowNamespace}. A hit is a single ConcurrentHashMap lookup on the caller's own
+ * Path or String, so it allocates nothing.
+ *
+ * Translating original to shadow also caches the shadow to original direction. Each map is
+ * cleared when it reaches {@link #maxEntries}, and all of them when the shadow roots change.
+ */
+public class PathTranslationCache {
+    public static int maxEntries = 1 << 16;
+
+    private final ConcurrentHashMap<Path, Path> shadowOf = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Path, Path> originalOf = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Path, Path> appendLogOf = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> shadowOfString = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> originalOfString = new ConcurrentHashMap<>();
+
+    private final ShadowNamespace namespace;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // 缓存内容对应的根目录，根目录被改过（测试里常见）就整体失效
+    private volatile Path cachedShadowBaseDir;
+    private volatile Path cachedAppendLogDir;
+
+    public PathTranslationCache(ShadowNamespace namespace) {
+        this.namespace = namespace;
+    }
+
+    public Path shadowPath(Path original) {
+        return get(shadowOf, original);
+    }
+
+    public Path originalPath(Path shadow) {
+        return get(originalOf, shadow);
+    }
+
+    public Path appendLogPath(Path original) {
+        return get(appendLogOf, original);
+    }
+
+    public String shadowPathString(String original) {
+        return get(shadowOfString, original);
+    }
+
+    public String originalPathString(String shadow) {
+        return get(originalOfString, shadow);
+    }
+
+    public void putShadowPath(Path original, Path shadow) {
+        put(shadowOf, original, shadow);
+        if (original.isAbsolute() && !original.equals(shadow)) {
+            put(originalOf, shadow, original);
+        }
+    }
+
+    public void putOriginalPath(Path shadow, Path original) {
+        put(originalOf, shadow, original);
+    }
+
+    public void putAppendLogPath(Path original, Path appendLog) {
+        put(appendLogOf, original, appendLog);
+    }
+
+    public void putShadowPathString(String original, String shadow) {
+        put(shadowOfString, original, shadow);
+        if (!original.equals(shadow)) {
+            put(originalOfString, shadow, original);
+        }
+    }
+
+    public void putOriginalPathString(String shadow, String original) {
+        put(originalOfString, shadow, original);
+    }
+
+    private <K, V> V get(ConcurrentHashMap<K, V> map, K key) {
+        if (cachedShadowBaseDir != namespace.shadowRoot()
+                || cachedAppendLogDir != namespace.appendLogRoot()) {
+            rootsChanged();
+            misses.increment();
+            return null;
+        }
+        V value = map.get(key);
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    private <K, V> void put(ConcurrentHashMap<K, V> map, K key, V value) {
+        if (map.size() >= maxEntries) {
+            map.clear();
+        }
+        map.put(key, value);
+    }
+
+    private synchronized void rootsChanged() {
+        if (cachedShadowBaseDir == namespace.shadowRoot()
+                && cachedAppendLogDir == namespace.appendLogRoot()) {
+            return;
+        }
+        clear();
+        cachedShadowBaseDir = namespace.shadowRoot();
+        cachedAppendLogDir = namespace.appendLogRoot();
+    }
+
+    public void clear() {
+        shadowOf.clear();
+        originalOf.clear();
+        appendLogOf.clear();
+        shadowOfString.clear();
+        originalOfString.clear();
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public double hitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public int size() {
+        return shadowOf.size() + originalOf.size() + appendLogOf.size()
+                + shadowOfString.size() + originalOfString.size();
+    }
+
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "PathTranslationCache{hits=" + hitCount() + ", misses=" + missCount()
+                + ", hitRate=" + String.format("%.3f", hitRate()) + ", size=" + size() + "}";
+    }
+}
@@ -0,0 +1,82 @@
+package org.pilot.filesystem;
+
+import org.pilot.PilotUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Clones with {@code cp --reflink=always} (FICLONE on btrfs, XFS, ...). A cp without the option
+ * or a filesystem without reflink support turns the strategy off, so it pays for one probe
+ * only; any other failure just falls back for that file.
+ */
+public class ReflinkCloneStrategy implements CloneStrategy {
+    // cp的输出里出现这些说明这里永远做不了reflink
+    private static final String[] UNSUPPORTED = {
+            "Operation not supported", "unrecognized option", "illegal option", "invalid option"
+    };
+    private static final int MAX_OUTPUT = 4096;
+
+    private volatile boolean supported = true;
+
+    @Override
+    public boolean cloneFile(Path source, Path target) throws IOException {
+        if (!supported) {
+            return false;
+        }
+        Process process;
+        try {
+            process = new ProcessBuilder("cp", "--reflink=always",
+                    source.toString(), target.toString())
+                    .redirectErrorStream(true)
+                    .start();
+        } catch (IOException e) {
+            // 没有cp或者fork失败（比如内存紧张），这次退回overlay
+            PilotUtil.dryRunLog("Reflink clone of " + source + " could not start cp: " + e);
+            return false;
+        }
+        String output;
+        try (InputStream out = process.getInputStream()) {
+            ByteArrayOutputStream kept = new ByteArrayOutputStream();
+            byte[] buffer = new byte[512];
+            int n;
+            while ((n = out.read(buffer)) >= 0) {
+                kept.write(buffer, 0, Math.min(n, Math.max(0, MAX_OUTPUT - kept.size())));
+            }
+            if (process.waitFor() == 0) {
+                return true;
+            }
+            output = new String(kept.toByteArray(), StandardCharsets.UTF_8);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroy();
+            Files.deleteIfExists(target);
+            return false;
+        }
+        Files.deleteIfExists(target);
+        if (isUnsupported(output)) {
+            supported = false;
+            PilotUtil.dryRunLog("Reflink clone not supported for " + source + ", falling back to block overlay");
+        } else {
+            PilotUtil.dryRunLog("Reflink clone of " + source + " failed, falling back for this file: " + output.trim());
+        }
+        return false;
+    }
+
+    static boolean isUnsupported(String output) {
+        for (String marker : UNSUPPORTED) {
+            if (output.contains(marker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isSupported() {
+        return supported;
+    }
+}
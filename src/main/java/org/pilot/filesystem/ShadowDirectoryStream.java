@@ -0,0 +1,179 @@
+package org.pilot.filesystem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The pilot's view of one directory, with entries as original paths. In lazy mode it is the
+ * union of the original directory, the shadow directory and the in-memory files in it, minus
+ * tombstoned entries, so nothing has to be materialized to list it. In eager mode the shadow
+ * directory is the complete view and is only translated back.
+ *
+ * Entries the index does not know yet are taken as they are: anything listed in the original
+ * or the shadow directory exists unless the index holds a tombstone for it, so listing costs
+ * no stat per entry.
+ */
+public class ShadowDirectoryStream implements DirectoryStream<Path> {
+    private final Path dir;
+    private final ShadowIndex index;
+    private final Filter<? super Path> filter;
+    private final List<DirectoryStream<Path>> sources = new ArrayList<>();
+    private final List<String> memoryNames;
+    private boolean iterated;
+    private boolean closed;
+
+    /**
+     * @param dir absolute original path of the directory
+     */
+    ShadowDirectoryStream(Path dir, boolean lazy, Filter<? super Path> filter) throws IOException {
+        this.dir = dir;
+        this.index = lazy ? ShadowFileSystem.index() : null;
+        this.filter = filter;
+        Path shadowDir = ShadowFileSystem.getShadowFSPath(dir);
+        if (!lazy) {
+            sources.add(Files.newDirectoryStream(shadowDir));
+            memoryNames = new ArrayList<>();
+            return;
+        }
+
+        byte flags = index.lookup(dir);
+        if (!ShadowIndex.exists(flags)) {
+            throw new NoSuchFileException(dir.toString());
+        }
+        if (!ShadowIndex.isDirectory(flags)) {
+            throw new NotDirectoryException(dir.toString());
+        }
+        try {
+            // 目录被删过又重建时，原始目录里的条目都已经有墓碑
+            if (Files.isDirectory(dir)) {
+                sources.add(Files.newDirectoryStream(dir));
+            }
+            if (Files.isDirectory(shadowDir)) {
+                sources.add(Files.newDirectoryStream(shadowDir));
+            }
+        } catch (IOException e) {
+            closeSources();
+            throw e;
+        }
+        memoryNames = MemoryFile.namesUnder(dir);
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        if (closed) {
+            throw new IllegalStateException("Directory stream is closed");
+        }
+        if (iterated) {
+            throw new IllegalStateException("Iterator already obtained");
+        }
+        iterated = true;
+        return new MergingIterator();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        closeSources();
+    }
+
+    private void closeSources() throws IOException {
+        IOException failure = null;
+        for (DirectoryStream<Path> source : sources) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private boolean visible(Path entry) {
+        if (index == null) {
+            return true;
+        }
+        // 只看索引里已有的状态，不为每个条目stat一次
+        Byte flags = index.peek(entry);
+        return flags == null || ShadowIndex.exists(flags);
+    }
+
+    private boolean accept(Path entry) {
+        try {
+            return filter == null || filter.accept(entry);
+        } catch (IOException e) {
+            throw new DirectoryIteratorException(e);
+        }
+    }
+
+    private class MergingIterator implements Iterator<Path> {
+        // 原始目录和shadow目录里都有的条目只返回一次
+        private final Set<String> seen = new HashSet<>();
+        private int source;
+        private Iterator<Path> current;
+        private final Iterator<String> memory = memoryNames.iterator();
+        private Path next;
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !closed) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Path next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Path result = next;
+            next = null;
+            return result;
+        }
+
+        private Path advance() {
+            while (true) {
+                String name = nextName();
+                if (name == null) {
+                    return null;
+                }
+                if (!seen.add(name)) {
+                    continue;
+                }
+                Path entry = dir.resolve(name);
+                if (visible(entry) && accept(entry)) {
+                    return entry;
+                }
+            }
+        }
+
+        private String nextName() {
+            while (true) {
+                if (current == null) {
+                    if (source < sources.size()) {
+                        current = sources.get(source++).iterator();
+                    } else {
+                        return memory.hasNext() ? memory.next() : null;
+                    }
+                }
+                if (current.hasNext()) {
+                    return current.next().getFileName().toString();
+                }
+                current = null;
+            }
+        }
+    }
+}
@@ -9,7 +9,6 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import static org.pilot.PilotUtil.debug;
-import static org.pilot.filesystem.ShadowFileSystem.shadowBaseDir;
 
 public class ShadowFile {
     private String fileName;
@@ -17,57 +16,59 @@ public class ShadowFile {
     private long fileSize;
     private long lastModifiedTime;
 
+    // 只做路径转换，初始化由 ShadowFileSystem 自己加结构锁
     public static File initFile(File parent, String child) {
-        GlobalLockManager.lock();
-        try {
-            if (debug || !PilotUtil.isDryRun()) {
-                return new File(parent, child);
-            }
+        if (debug || !PilotUtil.isDryRun()) {
+            return new File(parent, child);
+        }
 
-            try {
-                ShadowFileSystem.initializeFromOriginal();
-                Path originalFilePath = Paths.get(parent.getAbsolutePath(), child);
+        try {
+            ShadowFileSystem.initializeFromOriginal();
+            Path originalFilePath = Paths.get(parent.getAbsolutePath(), child);
 
-                PilotUtil.dryRunLog("Original file path: " + originalFilePath.toString());
+            PilotUtil.dryRunLog("Original file path: " + originalFilePath.toString());
 
-                Path shadowFilePath = ShadowFileSystem.resolveShadowFSPath(originalFilePath);
+            Path shadowFilePath = ShadowFileSystem.resolveShadowFSPath(originalFilePath);
+            materializeHandedOut(originalFilePath);
 
-                PilotUtil.dryRunLog("Shadow file path: " + shadowFilePath.toString());
-                return shadowFilePath.toFile();
-            } catch (IOException e) {
-                PilotUtil.dryRunLog("Error1 initializing ShadowFileSystem: " + e.getMessage() + e);
-            }
-            return null;
-        } finally {
-            GlobalLockManager.unlock();
+            PilotUtil.dryRunLog("Shadow file path: " + shadowFilePath.toString());
+            return shadowFilePath.toFile();
+        } catch (IOException e) {
+            PilotUtil.dryRunLog("Error1 initializing ShadowFileSystem: " + e.getMessage() + e);
         }
+        return null;
     }
 
     public static File initFile(String pathname) {
-        GlobalLockManager.lock();
+        if (debug || !PilotUtil.isDryRun()) {
+            return new File(pathname);
+        }
+
         try {
-            if (debug || !PilotUtil.isDryRun()) {
-                return new File(pathname);
-            }
+            String shadowFilePath = ShadowFileSystem.getShadowFSPathString(pathname);
 
-            try {
-                String shadowFilePath = ShadowFileSystem.getShadowFSPathString(pathname);
+            File shadowFile = new File(shadowFilePath);
+            if (!shadowFile.exists() && !Files.exists(ShadowFileSystem.shadowRoot())) {
+                PilotUtil.dryRunLog("Shadow file does not exist, initializing ShadowFileSystem.");
+                ShadowFileSystem.initializeFromOriginal();
+            }
+            materializeHandedOut(Paths.get(ShadowFileSystem.getOriginalFSPathString(pathname)).toAbsolutePath());
 
-                File shadowFile = new File(shadowFilePath);
-                if (!shadowFile.exists() && !Files.exists(shadowBaseDir)) {
-                    PilotUtil.dryRunLog("Shadow file does not exist, initializing ShadowFileSystem.");
-                    ShadowFileSystem.initializeFromOriginal();
-                }
+            PilotUtil.dryRunLog("Shadow file path: " + shadowFilePath);
+            return shadowFile;
+        } catch (IOException e) {
+            PilotUtil.dryRunLog("Error2 initializing ShadowFileSystem: " + e.getMessage() + e);
+        }
+        return null;
+    }
 
-                PilotUtil.dryRunLog("Shadow file path: " + shadowFilePath);
-                return shadowFile;
-            } catch (IOException e) {
-                PilotUtil.dryRunLog("Error2 initializing ShadowFileSystem: " + e.getMessage() + e);
-            }
-            return null;
-        } finally {
-            GlobalLockManager.unlock();
+    // 返回给调用方的 File 会绕过 ShadowFiles 直接读写，先物化，再让索引下次重新 stat
+    private static void materializeHandedOut(Path absOriginal) throws IOException {
+        if (!ShadowFileSystem.lazyMaterialization) {
+            return;
         }
+        ShadowFileSystem.materializeFile(absOriginal);
+        ShadowFileSystem.index().forget(absOriginal);
     }
 
     public ShadowFile(File parent, String child) {
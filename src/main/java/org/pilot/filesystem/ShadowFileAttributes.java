@@ -0,0 +1,129 @@
+package org.pilot.filesystem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Attributes of a path in the pilot's view, resolved on first use: the type comes from the
+ * index, the size from the shadow layer (see {@link ShadowFiles#size}), and times from the
+ * file that holds the content, i.e. the shadow file once the pilot changed it, else the
+ * original.
+ */
+class ShadowFileAttributes implements BasicFileAttributes {
+    private final Path absOriginal;
+    private final byte flags;
+    private BasicFileAttributes backing;
+    private boolean backingRead;
+    private long size = -1;
+
+    ShadowFileAttributes(Path absOriginal, byte flags) {
+        this.absOriginal = absOriginal;
+        this.flags = flags;
+    }
+
+    /**
+     * Attributes of absOriginal, or NoSuchFileException if it does not exist in the pilot's view
+     */
+    static ShadowFileAttributes of(Path absOriginal) throws IOException {
+        byte flags = ShadowFileSystem.index().lookup(absOriginal);
+        if (!ShadowIndex.exists(flags)) {
+            throw new NoSuchFileException(absOriginal.toString());
+        }
+        return new ShadowFileAttributes(absOriginal, flags);
+    }
+
+    // 内存中的文件没有可以stat的文件
+    private BasicFileAttributes backing() {
+        if (!backingRead) {
+            backingRead = true;
+            if (!ShadowIndex.isMemory(flags)) {
+                Path path = ShadowIndex.isModified(flags) || !Files.exists(absOriginal, LinkOption.NOFOLLOW_LINKS)
+                        ? ShadowFileSystem.getShadowFSPath(absOriginal) : absOriginal;
+                try {
+                    backing = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    backing = null;
+                }
+            }
+        }
+        return backing;
+    }
+
+    private FileTime memoryTime() {
+        long millis = MemoryFile.lastModified(absOriginal);
+        return FileTime.fromMillis(millis < 0 ? 0 : millis);
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        BasicFileAttributes attrs = backing();
+        return attrs != null ? attrs.lastModifiedTime() : memoryTime();
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        BasicFileAttributes attrs = backing();
+        return attrs != null ? attrs.lastAccessTime() : memoryTime();
+    }
+
+    @Override
+    public FileTime creationTime() {
+        BasicFileAttributes attrs = backing();
+        return attrs != null ? attrs.creationTime() : memoryTime();
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        if (ShadowIndex.isDirectory(flags)) {
+            return false;
+        }
+        BasicFileAttributes attrs = backing();
+        return attrs == null || attrs.isRegularFile();
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return ShadowIndex.isDirectory(flags);
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        BasicFileAttributes attrs = backing();
+        return !ShadowIndex.isDirectory(flags) && attrs != null && attrs.isSymbolicLink();
+    }
+
+    @Override
+    public boolean isOther() {
+        BasicFileAttributes attrs = backing();
+        return !ShadowIndex.isDirectory(flags) && attrs != null && attrs.isOther();
+    }
+
+    @Override
+    public long size() {
+        if (size < 0) {
+            if (!ShadowIndex.isDirectory(flags)) {
+                try {
+                    // 包括append log、overlay和内存中的内容
+                    size = ShadowFiles.size(absOriginal);
+                } catch (IOException e) {
+                    size = -1;
+                }
+            }
+            if (size < 0) {
+                BasicFileAttributes attrs = backing();
+                size = attrs != null ? attrs.size() : 0;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Object fileKey() {
+        return null;
+    }
+}
@@ -2,24 +2,47 @@ package org.pilot.filesystem;
 
 import org.pilot.PilotUtil;
 
-import java.io.*;
+import java.io.EOFException;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.*;
 import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.pilot.PilotUtil.debug;
 
 public class ShadowFileChannel extends FileChannel {
-    private FileChannel delegate;
+    private volatile FileChannel delegate;
     private final Path originalPath;
     private final Path shadowPath;
     private final Path appendLogPath;
     private final OpenOption[] options;
-    private long currentPosition = 0;
-    private boolean isRebuilt = false;
+    private volatile long currentPosition = 0;
+    private volatile boolean isRebuilt = false;
+    private boolean modified = false;
+    // 写操作记到append log，而不是直接写shadow文件；重建后变为false
+    private boolean logging;
+    private final boolean appendMode;
+    private final ReentrantReadWriteLock fileLock;
+    private AppendLog.Writer logWriter;
+    private int logGeneration;
+    // 读穿透时使用的原始文件，按需打开；读者只持有共享锁，所以打开要自己同步
+    private volatile FileChannel original;
+    private final Object originalLock = new Object();
+    private long originalSize = -1;
+    private final Object positionLock = new Object();
+    private ByteBuffer transferBuffer;
+
+    // 所属pilot的索引，写入可能发生在没有Baggage的线程上
+    private final ShadowIndex shadowIndex;
+
+    private static final int TRANSFER_CHUNK = 64 * 1024;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(8192).asReadOnlyBuffer();
 
     public ShadowFileChannel(Path originalPath, Path shadowPath, Path appendLogPath,
                              FileChannel delegate, OpenOption[] options) {
@@ -28,26 +51,27 @@ public class ShadowFileChannel extends FileChannel {
         this.appendLogPath = appendLogPath;
         this.delegate = delegate;
         this.options = options;
-
+        this.fileLock = ShadowLockManager.lockFor(shadowPath);
+        this.shadowIndex = ShadowFileSystem.index();
+        this.logging = Files.exists(appendLogPath);
+        this.appendMode = Arrays.asList(options).contains(StandardOpenOption.APPEND);
+        if (logging) {
+            logWriter = AppendLog.openWriter(appendLogPath);
+            logGeneration = logWriter.generation();
+        }
     }
 
     public boolean needsRebuild(){
-        int size = 0;
-        try{
-            size = (int) Files.size(appendLogPath);
-        }catch(IOException e) {
-            size = 0;
-        }
-        return Files.exists(appendLogPath) &&
-                (size > 0);
+        return AppendLog.hasRecords(appendLogPath);
     }
 
+    // 只有真正需要一个实际文件的操作（map、transferTo、lock等）才重建
     private void ensureRebuilt() throws IOException {
         if(isRebuilt) {
             return;
         }
 
-        if (needsRebuild()) {
+        if (logging) {
             rebuildFromLog();
             isRebuilt = true;
         }else{
@@ -58,152 +82,387 @@ public class ShadowFileChannel extends FileChannel {
         }
     }
 
+    // 读操作持有共享锁；log被别人重建掉，或需要重建时，先升级为写锁处理，再降级为读锁
+    private Lock lockForRead() throws IOException {
+        fileLock.readLock().lock();
+        if (!isOpen()) {
+            fileLock.readLock().unlock();
+            throw new ClosedChannelException();
+        }
+        if (logging ? logWriter.generation() == logGeneration : (isRebuilt || delegate != null)) {
+            return fileLock.readLock();
+        }
+        fileLock.readLock().unlock();
+
+        fileLock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (logging) {
+                syncWithLog();
+            } else {
+                ensureRebuilt();
+            }
+            fileLock.readLock().lock();
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+        return fileLock.readLock();
+    }
+
+    // 需要实际文件的读操作：写锁下重建，再降级为读锁
+    private Lock lockMaterialized() throws IOException {
+        fileLock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (logging) {
+                syncWithLog();
+            }
+            ensureRebuilt();
+            fileLock.readLock().lock();
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+        return fileLock.readLock();
+    }
+
+    // 关闭后logWriter和delegate都不能再用
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    // 别的handle已经把log重建进shadow文件并删掉了log，改为直接使用shadow文件
+    private void syncWithLog() throws IOException {
+        if (!logging || logWriter.generation() == logGeneration) {
+            return;
+        }
+        closeLogWriter();
+        closeOriginal();
+        logging = false;
+        isRebuilt = true;
+        delegate = FileChannel.open(shadowPath, reopenOptions());
+        delegate.position(currentPosition);
+    }
+
+    // 重新打开shadow文件时不能再截断或要求新建
+    private OpenOption[] reopenOptions() {
+        List<OpenOption> reopen = new ArrayList<>();
+        for (OpenOption option : options) {
+            if (option != StandardOpenOption.TRUNCATE_EXISTING && option != StandardOpenOption.CREATE_NEW) {
+                reopen.add(option);
+            }
+        }
+        return reopen.toArray(new OpenOption[0]);
+    }
+
+    private LogExtentIndex extents() throws IOException {
+        return logWriter.extentIndex(originalSize());
+    }
+
+    private long originalSize() throws IOException {
+        if (originalSize < 0) {
+            try {
+                originalSize = Files.size(originalPath);
+            } catch (NoSuchFileException e) {
+                originalSize = 0;
+            }
+        }
+        return originalSize;
+    }
+
+    /**
+     * Positional read of the pilot's view of the file: original bytes with the logged
+     * extents laid over them, without rebuilding the shadow file.
+     */
+    private int readLogged(ByteBuffer dst, long position) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        LogExtentIndex index = extents();
+        long size = index.size();
+        if (position >= size) {
+            return -1;
+        }
+        int n = (int) Math.min(dst.remaining(), size - position);
+        long end = position + n;
+
+        long cursor = position;
+        for (LogExtentIndex.Extent extent : index.overlapping(position, end)) {
+            long from = Math.max(extent.start, position);
+            long to = Math.min(extent.end(), end);
+            readOriginal(dst, cursor, (int) (from - cursor), index.baseLimit());
+            logWriter.read(dst, extent.logPosition + (from - extent.start), (int) (to - from));
+            cursor = to;
+        }
+        readOriginal(dst, cursor, (int) (end - cursor), index.baseLimit());
+        return n;
+    }
+
+    // 从原始文件读length个字节，超过baseLimit的部分补0
+    private void readOriginal(ByteBuffer dst, long position, int length, long baseLimit) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        int fromOriginal = (int) Math.max(0, Math.min(length, baseLimit - position));
+        if (fromOriginal > 0) {
+            FileChannel in = original();
+            int limit = dst.limit();
+            dst.limit(dst.position() + fromOriginal);
+            try {
+                long pos = position;
+                while (dst.hasRemaining()) {
+                    int read = in.read(dst, pos);
+                    if (read < 0) {
+                        throw new EOFException("Original file " + originalPath + " shrank below " + pos);
+                    }
+                    pos += read;
+                }
+            } finally {
+                dst.limit(limit);
+            }
+        }
+        for (int i = fromOriginal; i < length; i++) {
+            dst.put((byte) 0);
+        }
+    }
+
+    private FileChannel original() throws IOException {
+        FileChannel in = original;
+        if (in == null) {
+            synchronized (originalLock) {
+                in = original;
+                if (in == null) {
+                    in = FileChannel.open(originalPath, StandardOpenOption.READ);
+                    original = in;
+                }
+            }
+        }
+        return in;
+    }
+
+    /**
+     * transferTo of the pilot's view: original ranges and logged extents are each sent to
+     * target with FileChannel.transferTo, so no byte passes through the heap.
+     */
+    private long transferLogged(long position, long count, WritableByteChannel target) throws IOException {
+        LogExtentIndex index = extents();
+        long size = index.size();
+        if (position >= size || count <= 0) {
+            return 0;
+        }
+        long end = position + Math.min(count, size - position);
+
+        long cursor = position;
+        for (LogExtentIndex.Extent extent : index.overlapping(position, end)) {
+            long from = Math.max(extent.start, position);
+            long to = Math.min(extent.end(), end);
+            if (cursor < from) {
+                cursor += transferOriginal(cursor, from - cursor, target, index.baseLimit());
+                if (cursor < from) {
+                    return cursor - position;
+                }
+            }
+            cursor += logWriter.transferTo(extent.logPosition + (from - extent.start), to - from, target);
+            if (cursor < to) {
+                return cursor - position;
+            }
+        }
+        if (cursor < end) {
+            cursor += transferOriginal(cursor, end - cursor, target, index.baseLimit());
+        }
+        return cursor - position;
+    }
+
+    private long transferOriginal(long position, long length, WritableByteChannel target, long baseLimit) throws IOException {
+        long fromOriginal = Math.max(0, Math.min(length, baseLimit - position));
+        long done = 0;
+        while (done < fromOriginal) {
+            long n = original().transferTo(position + done, fromOriginal - done, target);
+            if (n <= 0) {
+                return done;
+            }
+            done += n;
+        }
+        // 超过baseLimit的部分是0
+        while (done < length) {
+            ByteBuffer zeros = ZEROS.duplicate();
+            zeros.limit((int) Math.min(zeros.capacity(), length - done));
+            int n = target.write(zeros);
+            if (n <= 0) {
+                return done;
+            }
+            done += n;
+        }
+        return done;
+    }
+
+    // 调用方持有写锁，没有读者在用original
+    private void closeOriginal() throws IOException {
+        FileChannel in = original;
+        if (in != null) {
+            original = null;
+            in.close();
+        }
+    }
+
     private void rebuildFromLog() throws IOException {
         // 重建文件
         Files.deleteIfExists(shadowPath);
         Files.createFile(shadowPath);
 
-        try (SeekableByteChannel rebuiltChannel = Files.newByteChannel(shadowPath,
+        try (FileChannel rebuiltChannel = FileChannel.open(shadowPath,
                 StandardOpenOption.READ, StandardOpenOption.WRITE)) {
 
-            // 1. 复制原始文件内容（如果存在）
+            // 1. 复制原始文件内容（如果存在），在内核里完成，不经过heap buffer
             if (Files.exists(originalPath)) {
-                try (SeekableByteChannel origChannel = Files.newByteChannel(
-                        originalPath, StandardOpenOption.READ)) {
-                    ByteBuffer buffer = ByteBuffer.allocate(8192);
-                    while (origChannel.read(buffer) > 0) {
-                        buffer.flip();
-                        rebuiltChannel.write(buffer);
-                        buffer.clear();
-                    }
+                try (FileChannel origChannel = FileChannel.open(originalPath, StandardOpenOption.READ)) {
+                    AppendLog.copy(origChannel, rebuiltChannel);
                 }
             }
 
             // 2. 应用所有写操作
-            List<FileOperation> operations = readOperationsFromLog(appendLogPath);
-            for (FileOperation operation : operations) {
-                ByteBuffer buffer = ByteBuffer.wrap(operation.getData());
-                rebuiltChannel.position(operation.getOffset());
-                rebuiltChannel.write(buffer);
-            }
-
-            currentPosition = rebuiltChannel.position();
+            closeLogWriter();
+            AppendLog.replay(appendLogPath, rebuiltChannel);
         }
 
         // 重新打开delegate
         if (delegate != null) {
             delegate.close();
         }
-        delegate = FileChannel.open(shadowPath, options);
+        closeOriginal();
+        delegate = FileChannel.open(shadowPath, reopenOptions());
         delegate.position(currentPosition);
 
-        // 删除append log
-        Files.deleteIfExists(appendLogPath);
+        // 删除append log，之后的写直接进shadow文件，大小不再被跟踪
+        AppendLog.deleteIfExists(appendLogPath);
+        shadowIndex.invalidateSize(originalPath);
+        logging = false;
     }
 
-    private List<FileOperation> readOperationsFromLog(Path logPath) throws IOException {
-        List<FileOperation> operations = new ArrayList<>();
-
-        if (!Files.exists(logPath) || Files.size(logPath) == 0) {
-            return operations;
-        }
-
-        try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(logPath))) {
-            while (true) {
-                try {
-                    FileOperation operation = (FileOperation) in.readObject();
-                    operations.add(operation);
-                } catch (EOFException e) {
-                    break;
-                }
+    // 写入append log；区间索引由writer在追加时一并更新
+    private void recordOperation(byte op, long offset, ByteBuffer data) throws IOException {
+        if (!modified) {
+            if (ShadowFileSystem.lazyMaterialization) {
+                shadowIndex.markLogged(originalPath);
             }
-        } catch (ClassNotFoundException e) {
-            throw new IOException("Failed to deserialize FileOperation", e);
+            modified = true;
         }
-
-        return operations;
-    }
-
-    private void recordOperation(FileOperation operation) throws IOException {
-        if (!Files.exists(appendLogPath.getParent())) {
-            Files.createDirectories(appendLogPath.getParent());
+        int length = data.remaining();
+        logWriter.append(op, offset, data);
+        if (op == FileOperation.TRUNCATE) {
+            shadowIndex.shrinkSize(originalPath, offset);
+        } else {
+            shadowIndex.growSize(originalPath, offset + length);
         }
+        LogCompactor.maybeSchedule(logWriter, originalPath, shadowPath);
+    }
 
-        if (Files.exists(appendLogPath) && Files.size(appendLogPath) > 0) {
-            // 追加到现有日志
-            try (AppendingObjectOutputStream out = new AppendingObjectOutputStream(
-                    new FileOutputStream(appendLogPath.toFile(), true))) {
-                out.writeObject(operation);
-            }
-        } else {
-            // 创建新日志
-            try (ObjectOutputStream out = new ObjectOutputStream(
-                    Files.newOutputStream(appendLogPath))) {
-                out.writeObject(operation);
-            }
+    private void closeLogWriter() throws IOException {
+        if (logWriter != null) {
+            logWriter.close();
+            logWriter = null;
         }
     }
 
     @Override
     public int read(ByteBuffer dst) throws IOException {
-        GlobalLockManager.lock();
+        Lock lock = lockForRead();
         try {
-            ensureRebuilt();
+            if (logging) {
+                synchronized (positionLock) {
+                    int n = readLogged(dst, currentPosition);
+                    if (n > 0) {
+                        currentPosition += n;
+                    }
+                    return n;
+                }
+            }
             return delegate.read(dst);
         } finally {
-            GlobalLockManager.unlock();
+            lock.unlock();
         }
     }
 
     @Override
     public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
-        GlobalLockManager.lock();
+        Lock lock = lockForRead();
         try {
-            ensureRebuilt();
+            if (logging) {
+                synchronized (positionLock) {
+                    long total = 0;
+                    for (int i = offset; i < offset + length; i++) {
+                        if (!dsts[i].hasRemaining()) {
+                            continue;
+                        }
+                        int n = readLogged(dsts[i], currentPosition);
+                        if (n < 0) {
+                            return total == 0 ? -1 : total;
+                        }
+                        currentPosition += n;
+                        total += n;
+                        if (dsts[i].hasRemaining()) {
+                            break;
+                        }
+                    }
+                    return total;
+                }
+            }
             return delegate.read(dsts, offset, length);
         } finally {
-            GlobalLockManager.unlock();
+            lock.unlock();
         }
     }
 
     @Override
     public int read(ByteBuffer dst, long position) throws IOException {
-        GlobalLockManager.lock();
+        Lock lock = lockForRead();
         try {
-            ensureRebuilt();
+            if (logging) {
+                return readLogged(dst, position);
+            }
             return delegate.read(dst, position);
         } finally {
-            GlobalLockManager.unlock();
+            lock.unlock();
         }
     }
 
     @Override
     public int write(ByteBuffer src) throws IOException {
-        GlobalLockManager.lock();
+        fileLock.writeLock().lock();
         try {
+            ensureOpen();
+            syncWithLog();
             // 如果有append log或原始文件存在，写入append log
-            if (Files.exists(appendLogPath)) {
-                byte[] data = new byte[src.remaining()];
-                src.get(data);
-
-                FileOperation operation = new FileOperation(currentPosition, data, "WRITE");
-                recordOperation(operation);
-                currentPosition += data.length;
-                return data.length;
+            if (logging) {
+                if (appendMode) {
+                    currentPosition = extents().size();
+                }
+                int length = src.remaining();
+                recordOperation(FileOperation.WRITE, currentPosition, src);
+                currentPosition += length;
+                return length;
             } else {
                 // 新文件，直接写入shadow
                 return delegate.write(src);
             }
         } finally {
-            GlobalLockManager.unlock();
+            // 写完之后再换代，读到旧内容的读者就不会把它缓存为最新
+            ShadowFileSystem.contentChanged(originalPath);
+            fileLock.writeLock().unlock();
         }
     }
 
     @Override
     public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
-        GlobalLockManager.lock();
+        fileLock.writeLock().lock();
         try {
-            if (Files.exists(appendLogPath)) {
+            ensureOpen();
+            syncWithLog();
+            if (logging) {
+                if (appendMode) {
+                    currentPosition = extents().size();
+                }
                 long totalLength = 0;
                 for (int i = offset; i < offset + length; i++) {
                     totalLength += srcs[i].remaining();
@@ -218,191 +477,329 @@ public class ShadowFileChannel extends FileChannel {
                     pos += len;
                 }
 
-                FileOperation operation = new FileOperation(currentPosition, combinedData, "WRITE");
-                recordOperation(operation);
+                recordOperation(FileOperation.WRITE, currentPosition, ByteBuffer.wrap(combinedData));
                 currentPosition += totalLength;
                 return totalLength;
             } else {
                 return delegate.write(srcs, offset, length);
             }
         } finally {
-            GlobalLockManager.unlock();
+            ShadowFileSystem.contentChanged(originalPath);
+            fileLock.writeLock().unlock();
         }
     }
 
     @Override
     public int write(ByteBuffer src, long position) throws IOException {
-        GlobalLockManager.lock();
+        fileLock.writeLock().lock();
         try {
-            if (Files.exists(appendLogPath)) {
-                byte[] data = new byte[src.remaining()];
-                src.get(data);
-
-                FileOperation operation = new FileOperation(position, data, "WRITE");
-                recordOperation(operation);
-                return data.length;
+            ensureOpen();
+            syncWithLog();
+            if (logging) {
+                int length = src.remaining();
+                recordOperation(FileOperation.WRITE, position, src);
+                return length;
             } else {
                 return delegate.write(src, position);
             }
         } finally {
-            GlobalLockManager.unlock();
+            ShadowFileSystem.contentChanged(originalPath);
+            fileLock.writeLock().unlock();
         }
     }
 
     @Override
     public long position() throws IOException {
-        GlobalLockManager.lock();
+        Lock lock = lockForRead();
         try {
-
-            ensureRebuilt();
+            if (logging) {
+                return currentPosition;
+            }
             return delegate.position();
         } finally {
-            GlobalLockManager.unlock();
+            lock.unlock();
         }
     }
 
     @Override
     public FileChannel position(long newPosition) throws IOException {
-        GlobalLockManager.lock();
+        fileLock.writeLock().lock();
         try {
+            ensureOpen();
+            syncWithLog();
             currentPosition = newPosition;
-            ensureRebuilt();
-            delegate.position(newPosition);
+            if (!logging) {
+                ensureRebuilt();
+                delegate.position(newPosition);
+            }
             return this;
         } finally {
-            GlobalLockManager.unlock();
+            fileLock.writeLock().unlock();
         }
     }
 
     @Override
     public long size() throws IOException {
-        GlobalLockManager.lock();
+        Lock lock = lockForRead();
         try {
-            if(delegate!=null){
-                return delegate.size();
+            if (logging) {
+                return extents().size();
             }
-            ensureRebuilt();
             return delegate.size();
         } finally {
-            GlobalLockManager.unlock();
+            lock.unlock();
         }
     }
 
     @Override
     public FileChannel truncate(long size) throws IOException {
-        GlobalLockManager.lock();
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+        fileLock.writeLock().lock();
         try {
-            if(delegate!=null){
-                return delegate.truncate(size);
+            ensureOpen();
+            syncWithLog();
+            if (logging) {
+                // 截断也记到log里
+                if (size < extents().size()) {
+                    recordOperation(FileOperation.TRUNCATE, size, ByteBuffer.allocate(0));
+                }
+                if (currentPosition > size) {
+                    currentPosition = size;
+                }
+                return this;
             }
-            rebuildFromLog();
-            isRebuilt = true;
+            ensureRebuilt();
             delegate.truncate(size);
             return this;
         } finally {
-            GlobalLockManager.unlock();
+            ShadowFileSystem.contentChanged(originalPath);
+            fileLock.writeLock().unlock();
         }
     }
 
     @Override
     public void force(boolean metaData) throws IOException {
-        GlobalLockManager.lock();
+        fileLock.writeLock().lock();
         try {
+            ensureOpen();
             if(delegate!=null){
                 delegate.force(metaData);
                 return;
             }
 
-            rebuildFromLog();
-            isRebuilt = true;
-            delegate.force(metaData);
-
-            // 如果需要重建，不执行force操作
+            // 还没重建过，只需要把append log落盘
+            if (logWriter != null) {
+                logWriter.force();
+            }
         } finally {
-            GlobalLockManager.unlock();
+            fileLock.writeLock().unlock();
         }
     }
 
+    // 对方也是ShadowFileChannel时它会拿自己的stripe锁，不能在持有本文件的锁时调用它
+    private static boolean takesStripeLock(Channel other) {
+        return other instanceof ShadowFileChannel;
+    }
+
     @Override
     public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
-        GlobalLockManager.lock();
+        if (takesStripeLock(target)) {
+            ensureOpen();
+            // 分块读出来再写，写target时不持有本文件的锁
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, TRANSFER_CHUNK));
+            long done = 0;
+            while (done < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - done));
+                int n = read(buffer, position + done);
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                int written = target.write(buffer);
+                done += written;
+                if (written < n) {
+                    break;
+                }
+            }
+            return done;
+        }
+        Lock lock = lockForRead();
         try {
-            ensureRebuilt();
+            if (logging) {
+                return transferLogged(position, count, target);
+            }
             return delegate.transferTo(position, count, target);
         } finally {
-            GlobalLockManager.unlock();
+            lock.unlock();
         }
     }
 
     @Override
     public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
-        GlobalLockManager.lock();
+        if (takesStripeLock(src)) {
+            ensureOpen();
+            // 先在不持锁时从src读出一块，再按位置写进来
+            if (position > size()) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, TRANSFER_CHUNK));
+            long done = 0;
+            while (done < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - done));
+                int n = src.read(buffer);
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    done += write(buffer, position + done);
+                }
+            }
+            return done;
+        }
+        fileLock.writeLock().lock();
         try {
+            ensureOpen();
+            syncWithLog();
+            if (logging) {
+                // 直接追加到append log，不重建
+                if (position > extents().size()) {
+                    return 0;
+                }
+                if (transferBuffer == null) {
+                    transferBuffer = ByteBuffer.allocateDirect(TRANSFER_CHUNK);
+                }
+                long done = 0;
+                while (done < count) {
+                    transferBuffer.clear();
+                    transferBuffer.limit((int) Math.min(TRANSFER_CHUNK, count - done));
+                    int n = src.read(transferBuffer);
+                    if (n <= 0) {
+                        break;
+                    }
+                    transferBuffer.flip();
+                    recordOperation(FileOperation.WRITE, position + done, transferBuffer);
+                    done += n;
+                }
+                return done;
+            }
             ensureRebuilt();
             return delegate.transferFrom(src, position, count);
         } finally {
-            GlobalLockManager.unlock();
+            ShadowFileSystem.contentChanged(originalPath);
+            fileLock.writeLock().unlock();
         }
     }
 
     @Override
     public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
-        GlobalLockManager.lock();
+        if (mode == MapMode.READ_ONLY) {
+            // 没被写过的区间直接映射原始文件（之后对这段的写不会反映到这个mapping里）
+            Lock lock = lockForRead();
+            try {
+                if (logging) {
+                    LogExtentIndex index = extents();
+                    if (position + size <= index.baseLimit()
+                            && index.overlapping(position, position + size).isEmpty()) {
+                        return original().map(mode, position, size);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        Lock lock = lockMaterialized();
         try {
-            ensureRebuilt();
             return delegate.map(mode, position, size);
         } finally {
-            GlobalLockManager.unlock();
+            lock.unlock();
         }
     }
 
     @Override
     public FileLock lock(long position, long size, boolean shared) throws IOException {
-        GlobalLockManager.lock();
+        fileLock.writeLock().lock();
         try {
+            ensureOpen();
+            syncWithLog();
             ensureRebuilt();
             return delegate.lock(position, size, shared);
         } finally {
-            GlobalLockManager.unlock();
+            fileLock.writeLock().unlock();
         }
     }
 
     @Override
     public FileLock tryLock(long position, long size, boolean shared) throws IOException {
-        GlobalLockManager.lock();
+        fileLock.writeLock().lock();
         try {
+            ensureOpen();
+            syncWithLog();
             ensureRebuilt();
             return delegate.tryLock(position, size, shared);
         } finally {
-            GlobalLockManager.unlock();
+            fileLock.writeLock().unlock();
         }
     }
 
     @Override
     protected void implCloseChannel() throws IOException {
-        GlobalLockManager.lock();
+        fileLock.writeLock().lock();
         try {
+            closeLogWriter();
+            closeOriginal();
+            logging = false;
             if (delegate != null) {
                 delegate.close();
             }
         } finally {
-            GlobalLockManager.unlock();
+            fileLock.writeLock().unlock();
         }
     }
 
     public static FileChannel open(Path originalPath, OpenOption... options) throws IOException {
-        GlobalLockManager.lock();
-        try {
-            if (debug || !PilotUtil.isDryRun()) {
-                return FileChannel.open(originalPath, options);
-            }
+        if (debug || !PilotUtil.isDryRun()) {
+            return FileChannel.open(originalPath, options);
+        }
 
-            originalPath = ShadowFileSystem.getOriginalFSPath(originalPath);
+        originalPath = ShadowFileSystem.getOriginalFSPath(originalPath);
 
-            ShadowFileSystem.initializeFromOriginal();
-            Path absOriginal = originalPath.toAbsolutePath();
-            Path shadowPath = ShadowFileSystem.resolveShadowFSPath(absOriginal);
-            Path appendLogPath = ShadowFileSystem.resolveShadowFSAppendLogFilePath(absOriginal);
+        ShadowFileSystem.initializeFromOriginal();
+        Path absOriginal = originalPath.toAbsolutePath();
+        Path shadowPath = ShadowFileSystem.resolveShadowFSPath(absOriginal);
+        Path appendLogPath = ShadowFileSystem.resolveShadowFSAppendLogFilePath(absOriginal);
+
+        byte flags = ShadowIndex.ABSENT;
+        if (ShadowFileSystem.lazyMaterialization) {
+            // 原始文件第一次被打开时才创建空的shadow文件和append log
+            flags = ShadowFileSystem.index().lookup(absOriginal);
+            if (ShadowIndex.isMemory(flags)) {
+                if (ShadowFiles.hasOption(options, StandardOpenOption.CREATE_NEW)) {
+                    throw new FileAlreadyExistsException(originalPath.toString());
+                }
+                return MemoryFile.newChannel(absOriginal, options);
+            }
+            // overlay文件由overlay自己的channel提供，不在打开时展平
+            if (ShadowIndex.exists(flags) && !ShadowIndex.isDirectory(flags) && !ShadowIndex.isOverlay(flags)) {
+                ShadowFileSystem.materializeFile(absOriginal);
+            }
+        }
+
+        Lock lock = ShadowLockManager.writeLock(shadowPath);
+        lock.lock();
+        try {
+            // 在锁里再看一次：展平也持有这把锁，看到的是overlay就一定还是overlay
+            if (ShadowFileSystem.lazyMaterialization
+                    && ShadowIndex.isOverlay(ShadowFileSystem.index().lookup(absOriginal))) {
+                if (ShadowFiles.hasOption(options, StandardOpenOption.CREATE_NEW)) {
+                    throw new FileAlreadyExistsException(originalPath.toString());
+                }
+                return BlockOverlay.newChannel(absOriginal, options);
+            }
 
             // 确保父目录存在
             Path parent = shadowPath.getParent();
@@ -410,6 +807,16 @@ public class ShadowFileChannel extends FileChannel {
                 Files.createDirectories(parent);
             }
 
+            if (ShadowFileSystem.lazyMaterialization && !ShadowIndex.exists(flags)
+                    && (ShadowFiles.hasOption(options, StandardOpenOption.CREATE)
+                    || ShadowFiles.hasOption(options, StandardOpenOption.CREATE_NEW))
+                    && MemoryFile.create(absOriginal)) {
+                // 新文件放在内存里
+                AppendLog.deleteIfExists(appendLogPath);
+                ShadowFileSystem.index().markMemory(absOriginal);
+                return MemoryFile.newChannel(absOriginal, options);
+            }
+
             // 如果有append log，需要重建
             if (Files.exists(appendLogPath)) {
                 ShadowFileChannel channel = new ShadowFileChannel(
@@ -429,21 +836,18 @@ public class ShadowFileChannel extends FileChannel {
 //            if (!Files.exists(shadowPath)) {
 //                Files.createFile(shadowPath);
 //            }
-            return FileChannel.open(shadowPath, options);
+            FileChannel channel = FileChannel.open(shadowPath, options);
+            if (ShadowFiles.hasOption(options, StandardOpenOption.WRITE)
+                    || ShadowFiles.hasOption(options, StandardOpenOption.APPEND)) {
+                // 之后的写直接进shadow文件，只能在打开时换代
+                ShadowFileSystem.contentChanged(absOriginal);
+            }
+            if (ShadowFileSystem.lazyMaterialization && !ShadowIndex.exists(flags)) {
+                ShadowFileSystem.index().markModified(absOriginal);
+            }
+            return channel;
         } finally {
-            GlobalLockManager.unlock();
-        }
-    }
-
-    // 辅助类
-    private static class AppendingObjectOutputStream extends ObjectOutputStream {
-        public AppendingObjectOutputStream(OutputStream out) throws IOException {
-            super(out);
-        }
-
-        @Override
-        protected void writeStreamHeader() throws IOException {
-            // 不写header
+            lock.unlock();
         }
     }
 }
\ No newline at end of file
@@ -7,37 +7,61 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import static org.pilot.PilotUtil.debug;
 
 public class ShadowFileOutputStream {
 
     public static FileOutputStream initShadowFileOutputStream(String filePath) throws IOException {
-        GlobalLockManager.lock();
-        try {
-            if (debug || !PilotUtil.isDryRun()) {
-                return new FileOutputStream(filePath);
-            }
+        if (debug || !PilotUtil.isDryRun()) {
+            return new FileOutputStream(filePath);
+        }
 
-            String shadowFilePath = ShadowFileSystem.getShadowFSPathString(filePath);
-            return new FileOutputStream(shadowFilePath);
+        String shadowFilePath = ShadowFileSystem.getShadowFSPathString(filePath);
+        Path shadowPath = Paths.get(shadowFilePath);
+        Path absOriginal = ShadowFileSystem.getOriginalFSPath(shadowPath);
+        if (ShadowFileSystem.lazyMaterialization) {
+            ShadowFileSystem.materializeFile(absOriginal);
+        }
+        // 打开输出流会创建或截断文件，属于目录结构变更
+        ShadowLockManager.lockForStructureChange(shadowPath);
+        try {
+            FileOutputStream out = new FileOutputStream(shadowFilePath);
+            markModified(absOriginal);
+            return out;
         } finally {
-            GlobalLockManager.unlock();
+            ShadowLockManager.unlockForStructureChange(shadowPath);
         }
     }
 
     public static BufferedWriter initShadowBufferedWriter(Path path, Charset cs,
                                                           OpenOption... options) throws IOException {
-        GlobalLockManager.lock();
-        try {
-            if (debug || !PilotUtil.isDryRun()) {
-                return Files.newBufferedWriter(path, cs, options);
-            }
+        if (debug || !PilotUtil.isDryRun()) {
+            return Files.newBufferedWriter(path, cs, options);
+        }
 
-            Path shadowFilePath = ShadowFileSystem.resolveShadowFSPath(path);
-            return Files.newBufferedWriter(shadowFilePath, cs, options);
+        Path shadowFilePath = ShadowFileSystem.resolveShadowFSPath(path);
+        Path absOriginal = ShadowFileSystem.getOriginalFSPath(shadowFilePath);
+        if (ShadowFileSystem.lazyMaterialization) {
+            ShadowFileSystem.materializeFile(absOriginal);
+        }
+        ShadowLockManager.lockForStructureChange(shadowFilePath);
+        try {
+            BufferedWriter writer = Files.newBufferedWriter(shadowFilePath, cs, options);
+            markModified(absOriginal);
+            return writer;
         } finally {
-            GlobalLockManager.unlock();
+            ShadowLockManager.unlockForStructureChange(shadowFilePath);
+        }
+    }
+
+    // 直接写shadow文件，不经过append log
+    private static void markModified(Path absOriginal) throws IOException {
+        if (!ShadowFileSystem.lazyMaterialization) {
+            return;
         }
+        ShadowFileSystem.index().markModified(absOriginal);
+        AppendLog.deleteIfExists(ShadowFileSystem.resolveShadowFSAppendLogFilePath(absOriginal));
     }
 }
\ No newline at end of file
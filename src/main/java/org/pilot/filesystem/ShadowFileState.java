@@ -1,6 +1,6 @@
 package org.pilot.filesystem;
 
-import java.io.*;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -11,6 +11,7 @@ public class ShadowFileState {
     private Path appendLogPath;
     public Path reconstructedPath;
     public boolean existBeforePilot=true;
+    private AppendLog.Writer logWriter;
 
     public ShadowFileState(Path originalPath, Path shadowRoot) {
         this.originalPath = originalPath;
@@ -30,33 +31,16 @@ public class ShadowFileState {
 
     // 记录新的写操作到append log文件
     public void recordOperation(FileOperation operation) throws IOException {
-        if(!Files.exists(appendLogPath)){
-            Files.createFile(appendLogPath);
-        }
-        System.out.println("Write operation to append log: " + operation.toString());
-
-        boolean hasHeader = Files.size(appendLogPath) > 0;
-        if (hasHeader) {
-            try (AppendingObjectOutputStream out = new AppendingObjectOutputStream(
-                    new FileOutputStream(appendLogPath.toFile(), true))) {
-                out.writeObject(operation);
-            }
-        } else {
-            // 新文件或空文件，需要写入header
-            try (ObjectOutputStream out = new ObjectOutputStream(
-                    Files.newOutputStream(appendLogPath.toFile().toPath()))) {
-                out.writeObject(operation);
-            }
+        if (logWriter == null) {
+            logWriter = AppendLog.openWriter(appendLogPath);
         }
+        logWriter.append(operation);
     }
 
-    public class AppendingObjectOutputStream extends ObjectOutputStream {
-        public AppendingObjectOutputStream(OutputStream out) throws IOException {
-            super(out);
-        }
-
-        @Override
-        protected void writeStreamHeader() throws IOException {
+    public void closeLog() throws IOException {
+        if (logWriter != null) {
+            logWriter.close();
+            logWriter = null;
         }
     }
 
@@ -67,20 +51,13 @@ public class ShadowFileState {
             return operations;
         }
 
-        try (ObjectInputStream in = new ObjectInputStream(
-                new FileInputStream(appendLogPath.toFile()))) {
-            while (true) {
-                try {
-                    FileOperation operation = (FileOperation) in.readObject();
-                    operations.add(operation);
-                } catch (EOFException e) {
-                    break;
-                }
+        try (AppendLog.Reader reader = new AppendLog.Reader(appendLogPath)) {
+            while (reader.next()) {
+                operations.add(reader.operation());
             }
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             // 记录日志或适当处理异常
         }
-        System.out.println("Read operations from append log: " + operations.size());
         return operations;
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,6 @@
 package org.pilot.filesystem;
 
+import cache.PilotCache;
 import org.pilot.PilotUtil;
 
 import java.io.IOException;
@@ -7,6 +8,7 @@ import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
@@ -14,11 +16,7 @@ import java.util.stream.Collectors;
 import static org.pilot.PilotUtil.debug;
 
 public class ShadowFileSystem {
-    // Keep as ConcurrentHashMap for internal thread-safety, but all access is still protected by global lock
-    public static final Map<Path, ShadowFileState> fileEntries = new ConcurrentHashMap<>();
-    public static final Set<Path> deletedFiles = new HashSet<>();
-
-    // shadow 文件存放的根目录，本示例中设为当前目录下的 "shadow" 文件夹
+    // shadow 文件存放的根目录，本示例中设为当前目录下的 "shadow" 文件夹；pilot n 使用 "<根目录>-n"
     public static Path shadowBaseDir = Paths.get("/opt/ShadowDirectory");
 
     public static Path shadowAppendLogDir = Paths.get("/opt/ShadowAppendLog");
@@ -33,7 +31,24 @@ public class ShadowFileSystem {
 //    public static Path shadowAppendLogDir = Paths.get("/Users/lizhenyu/Desktop/Evaluation/cassandra-correct-version/ShadowAppendLog");
 //    public static Path originalRoot = Paths.get("/Users/lizhenyu/Desktop/Evaluation/cassandra-correct-version/TempDir");
 
-    private static volatile boolean initialized = false;
+    // true: 只在路径第一次被访问时创建shadow文件/目录；false: 启动时遍历originalRoot建完整镜像
+    public static boolean lazyMaterialization = true;
+
+    // true: 每个pilot id（Baggage中的PILOT_ID_KEY）使用自己的shadow根目录和状态
+    public static boolean perPilotNamespaces = true;
+
+    private static final ShadowNamespace DEFAULT_NAMESPACE = new ShadowNamespace(ShadowNamespace.DEFAULT_ID);
+
+    private static final ConcurrentHashMap<Integer, ShadowNamespace> namespaces = new ConcurrentHashMap<>();
+
+    // 后台线程（建树、删树）没有Baggage，显式绑定所属的namespace
+    private static final ThreadLocal<ShadowNamespace> boundNamespace = new ThreadLocal<>();
+
+    static {
+        // shadow根目录（含各pilot的"-n"兄弟目录）下的改动都会走contentChanged，PilotCache不用监视
+        PilotCache.managedPaths = path -> path.startsWith(shadowBaseDir.toString())
+                || path.startsWith(shadowAppendLogDir.toString());
+    }
 
     public ShadowFileSystem(Path shadowBaseDir) throws IOException {
         assert shadowBaseDir != null;
@@ -42,178 +57,398 @@ public class ShadowFileSystem {
         }
     }
 
+    /**
+     * Namespace of the calling thread: the one bound by {@link #bind}, else the one of the
+     * pilot id in the current Baggage, else the default namespace.
+     */
+    public static ShadowNamespace current() {
+        ShadowNamespace bound = boundNamespace.get();
+        if (bound != null) {
+            return bound;
+        }
+        if (!perPilotNamespaces) {
+            return DEFAULT_NAMESPACE;
+        }
+        return namespace(PilotUtil.getPilotID());
+    }
+
+    public static ShadowNamespace namespace(int pilotId) {
+        if (pilotId == ShadowNamespace.DEFAULT_ID) {
+            return DEFAULT_NAMESPACE;
+        }
+        return namespaces.computeIfAbsent(pilotId, ShadowNamespace::new);
+    }
+
+    /**
+     * Make namespace the current one of this thread until the returned previous binding is
+     * restored with {@link #unbind}; used by background workers that carry no Baggage.
+     */
+    static ShadowNamespace bind(ShadowNamespace namespace) {
+        ShadowNamespace previous = boundNamespace.get();
+        boundNamespace.set(namespace);
+        return previous;
+    }
+
+    static void unbind(ShadowNamespace previous) {
+        if (previous == null) {
+            boundNamespace.remove();
+        } else {
+            boundNamespace.set(previous);
+        }
+    }
+
+    public static Map<Path, ShadowFileState> fileEntries() {
+        return current().fileEntries;
+    }
+
+    public static ShadowIndex index() {
+        return current().index;
+    }
+
+    public static PathTranslationCache pathCache() {
+        return current().pathCache;
+    }
+
+    public static Path shadowRoot() {
+        return current().shadowRoot();
+    }
+
+    public static Path appendLogRoot() {
+        return current().appendLogRoot();
+    }
+
+    /**
+     * Tear down the shadow trees and state of one pilot in the background, see
+     * {@link ShadowTree#teardownAsync}. With per-pilot namespaces off, the shared default
+     * namespace is torn down instead.
+     */
+    public static CompletableFuture<ShadowTree.Progress> teardown(int pilotId) {
+        ShadowNamespace namespace = perPilotNamespaces ? namespaces.remove(pilotId) : DEFAULT_NAMESPACE;
+        if (namespace == null && perPilotNamespaces && pilotId != ShadowNamespace.DEFAULT_ID) {
+            // 这个pilot从没用过shadow文件系统，但之前的进程可能留下了目录
+            namespace = new ShadowNamespace(pilotId);
+        }
+        return ShadowTree.teardownAsync(namespace == null ? DEFAULT_NAMESPACE : namespace);
+    }
+
     public static void initializeFromOriginal() throws IOException {
         if (debug) {
             return;
         }
 
-        // This method is called within lock context from other classes
-        // If called directly, it should acquire the lock
-        boolean needsLock = !GlobalLockManager.isHeldByCurrentThread();
+        ShadowNamespace ns = current();
+        if (ns.initialized) {
+            return;
+        }
+        ShadowTree.awaitTeardown(ns);
+
+        // Tree setup is a directory structure change; callers inside a structure change already hold the lock
+        boolean needsLock = !ShadowLockManager.isStructureLockHeldByCurrentThread();
         if (needsLock) {
-            GlobalLockManager.lock();
+            ShadowLockManager.lockForStructureChange();
         }
         try {
-            if (initialized) {
+            if (ns.initialized) {
                 return;
             }
 
-            if (Files.exists(shadowBaseDir)) {
-                initialized = true;
+            if (Files.exists(ns.shadowRoot())) {
+                ns.initialized = true;
                 return;
             }
 
-            Files.createDirectories(shadowBaseDir);
-            Files.createDirectories(shadowAppendLogDir);
-
-            Files.walkFileTree(originalRoot, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                    Path absDir = dir.toAbsolutePath();
-                    Path shadowDir = resolveShadowFSPath(absDir);
-                    if (!Files.exists(shadowDir)) {
-                        Files.createDirectories(shadowDir);
-                    }
-                    Path shadowLogDir = resolveShadowFSAppendLogDirPath(absDir);
-                    if (!Files.exists(shadowLogDir)) {
-                        Files.createDirectories(shadowLogDir);
-                    }
-                    return FileVisitResult.CONTINUE;
-                }
+            Files.createDirectories(ns.shadowRoot());
+            Files.createDirectories(ns.appendLogRoot());
+
+            if (lazyMaterialization) {
+                ns.initialized = true;
+                return;
+            }
+
+            ShadowTree.build(ns, originalRoot);
+
+            ns.initialized = true;
+        } finally {
+            if (needsLock) {
+                ShadowLockManager.unlockForStructureChange();
+            }
+        }
+    }
+
+    /**
+     * Forget all in-memory state of a namespace after its shadow roots were torn down, so the
+     * next access initializes from scratch. Callers hold the structure lock.
+     */
+    static void reset(ShadowNamespace namespace) {
+        namespace.clear();
+        AppendLog.discardUnder(namespace.appendLogRoot());
+        BlockOverlay.forgetUnder(namespace.shadowRoot());
+        MemoryFile.forgetUnder(namespace.shadowRoot());
+        PilotCache.invalidateUnder(namespace.shadowRoot().toString());
+    }
+
+    /**
+     * Invalidate what PilotCache holds for absOriginal, under its original and its shadow
+     * path, after the pilot changed its content
+     */
+    static void contentChanged(Path absOriginal) {
+        PilotCache.invalidate(absOriginal.toString());
+        PilotCache.invalidate(getShadowFSPath(absOriginal).toString());
+    }
+
+    /**
+     * {@link #contentChanged} for every file at or under absOriginal
+     */
+    static void subtreeChanged(Path absOriginal) {
+        PilotCache.invalidateUnder(absOriginal.toString());
+        PilotCache.invalidateUnder(getShadowFSPath(absOriginal).toString());
+    }
+
+    /**
+     * Create the shadow mirror of one path the way the eager walk would have: shadow parent
+     * directories, and for an original file an empty shadow file plus an empty append log.
+     * No-op in eager mode, for tombstoned paths and for paths that are already materialized.
+     */
+    public static void materialize(Path absOriginal) throws IOException {
+        initializeFromOriginal();
+        if (debug || !lazyMaterialization) {
+            return;
+        }
+
+        ShadowNamespace ns = current();
+        ShadowIndex index = ns.index;
+        byte flags = index.lookup(absOriginal);
+        if (ShadowIndex.isMaterialized(flags)) {
+            return;
+        }
+
+        boolean needsLock = !ShadowLockManager.isStructureLockHeldByCurrentThread();
+        if (needsLock) {
+            ShadowLockManager.lockForStructureChange();
+        }
+        try {
+            flags = index.lookup(absOriginal);
+            if (ShadowIndex.isMaterialized(flags)) {
+                return;
+            }
 
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    Path absFile = file.toAbsolutePath();
-                    Path shadowFile = resolveShadowFSPath(absFile);
-                    Path shadowLogFile = resolveShadowFSAppendLogFilePath(absFile);
-                    if (!Files.exists(shadowFile)) {
-                        Files.createFile(shadowFile);
-                    }
-                    if (!Files.exists(shadowLogFile)) {
-                        Files.createFile(shadowLogFile);
-                    }
-                    fileEntries.put(absFile, new ShadowFileState(absFile, shadowBaseDir));
-                    return FileVisitResult.CONTINUE;
+            Path shadowPath = resolveShadowFSPath(absOriginal);
+            if (!ShadowIndex.exists(flags)) {
+                // 不存在（或已被删除）的路径只需要父目录，方便后续创建
+                Path parent = shadowPath.getParent();
+                if (parent != null) {
+                    Files.createDirectories(parent);
                 }
-            });
+                return;
+            }
+
+            if (ShadowIndex.isDirectory(flags)) {
+                Files.createDirectories(shadowPath);
+                Files.createDirectories(resolveShadowFSAppendLogDirPath(absOriginal));
+                index.markMaterialized(absOriginal, true);
+                return;
+            }
 
-            initialized = true;
+            Path shadowLogFile = resolveShadowFSAppendLogFilePath(absOriginal);
+            Files.createDirectories(shadowPath.getParent());
+            Files.createDirectories(shadowLogFile.getParent());
+            if (!Files.exists(shadowPath)) {
+                Files.createFile(shadowPath);
+            }
+            if (!Files.exists(shadowLogFile)) {
+                Files.createFile(shadowLogFile);
+            }
+            ns.fileEntries.put(absOriginal, new ShadowFileState(absOriginal, ns.shadowRoot()));
+            index.markMaterialized(absOriginal, false);
         } finally {
             if (needsLock) {
-                GlobalLockManager.unlock();
+                ShadowLockManager.unlockForStructureChange();
             }
         }
     }
 
-    public static Path resolveShadowFSPath(Path absOriginal) throws IOException {
-        // This method is called within lock context, no additional locking needed
-        if (absOriginal.toAbsolutePath().startsWith(shadowBaseDir.toAbsolutePath())) {
-            PilotUtil.dryRunLog("File is already under the shadow base directory. No need to resolve." + absOriginal);
-            return absOriginal;
+    /**
+     * Materialize a directory and its direct entries, so the shadow directory can be listed
+     */
+    public static void materializeChildren(Path absDir) throws IOException {
+        materialize(absDir);
+        if (debug || !lazyMaterialization) {
+            return;
+        }
+        MemoryFile.placeholdersUnder(absDir, false);
+        if (!Files.isDirectory(absDir)) {
+            return;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(absDir)) {
+            for (Path entry : entries) {
+                materialize(entry.toAbsolutePath());
+            }
         }
-        PilotUtil.dryRunLog("absOriginal: " + absOriginal);
-        Path relativePath = absOriginal.subpath(0, absOriginal.getNameCount());
-        PilotUtil.dryRunLog("relativePath: " + relativePath);
-        Path shadowPath = shadowBaseDir.resolve(relativePath);
-        PilotUtil.dryRunLog("shadowPath: " + shadowPath);
-        return shadowPath;
     }
 
-    public static String getShadowFSPathString(String absOriginalStr) throws IOException {
-        // This method is called within lock context, no additional locking needed
-        Path absOriginal = Paths.get(absOriginalStr);
+    /**
+     * Materialize a file whose shadow copy is handed to code that uses it directly; a block
+     * overlay is flattened into a full copy and an in-memory file is spilled first.
+     */
+    public static void materializeFile(Path absOriginal) throws IOException {
+        materialize(absOriginal);
+        if (!debug && lazyMaterialization) {
+            BlockOverlay.flattenIfOverlay(absOriginal);
+            MemoryFile.spill(absOriginal);
+        }
+    }
 
-        if (absOriginal.toAbsolutePath().startsWith(shadowBaseDir.toAbsolutePath())) {
-            PilotUtil.dryRunLog("File is already under the shadow base directory. No need to resolve." + absOriginalStr);
-            return absOriginalStr;
+    /**
+     * Materialize a whole subtree, used by walkFileTree
+     */
+    public static void materializeTree(Path absStart) throws IOException {
+        materialize(absStart);
+        if (debug || !lazyMaterialization) {
+            return;
         }
+        MemoryFile.placeholdersUnder(absStart, true);
+        if (!Files.exists(absStart)) {
+            return;
+        }
+        Files.walkFileTree(absStart, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path absDir = dir.toAbsolutePath();
+                if (!index().exists(absDir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                materialize(absDir);
+                return FileVisitResult.CONTINUE;
+            }
 
-        PilotUtil.dryRunLog("absOriginal: " + absOriginalStr);
-        Path relativePath = absOriginal.subpath(0, absOriginal.getNameCount());
-        PilotUtil.dryRunLog("relativePath: " + relativePath);
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                materialize(file.toAbsolutePath());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    public static Path resolveShadowFSPath(Path absOriginal) throws IOException {
+        return getShadowFSPath(absOriginal);
+    }
 
-        Path shadowPath = shadowBaseDir.resolve(relativePath);
-        PilotUtil.dryRunLog("shadowPath: " + shadowPath);
+    public static String getShadowFSPathString(String absOriginalStr) throws IOException {
+        ShadowNamespace ns = current();
+        PathTranslationCache pathCache = ns.pathCache;
+        String cached = pathCache.shadowPathString(absOriginalStr);
+        if (cached != null) {
+            return cached;
+        }
+        Path absOriginal = Paths.get(absOriginalStr);
 
-        return shadowPath.toString();
+        String shadowPath;
+        if (absOriginal.toAbsolutePath().startsWith(ns.shadowRoot().toAbsolutePath())) {
+            shadowPath = absOriginalStr;
+        } else {
+            shadowPath = ns.shadowRoot().resolve(absOriginal.subpath(0, absOriginal.getNameCount())).toString();
+            PilotUtil.dryRunLog("shadowPath of " + absOriginalStr + ": " + shadowPath);
+        }
+        pathCache.putShadowPathString(absOriginalStr, shadowPath);
+        return shadowPath;
     }
 
     public static Path getShadowFSPath(Path absOriginal) {
-        // This method is called within lock context, no additional locking needed
-        if (absOriginal.toAbsolutePath().startsWith(shadowBaseDir.toAbsolutePath())) {
-            System.out.println("File is already under the shadow base directory. No need to resolve." + absOriginal);
-            return absOriginal;
+        ShadowNamespace ns = current();
+        PathTranslationCache pathCache = ns.pathCache;
+        // 热路径：命中缓存时只有一次map查找
+        Path cached = pathCache.shadowPath(absOriginal);
+        if (cached != null) {
+            return cached;
         }
-        PilotUtil.dryRunLog("absOriginal: " + absOriginal);
-        Path relativePath = absOriginal.subpath(0, absOriginal.getNameCount());
-        PilotUtil.dryRunLog("relativePath: " + relativePath);
-        Path shadowPath = shadowBaseDir.resolve(relativePath);
-        PilotUtil.dryRunLog("shadowPath: " + shadowPath);
+
+        Path shadowPath;
+        if (absOriginal.toAbsolutePath().startsWith(ns.shadowRoot().toAbsolutePath())) {
+            // 已经是shadow路径
+            shadowPath = absOriginal;
+        } else {
+            Path relativePath = absOriginal.subpath(0, absOriginal.getNameCount());
+            shadowPath = ns.shadowRoot().resolve(relativePath);
+            PilotUtil.dryRunLog("shadowPath of " + absOriginal + ": " + shadowPath);
+        }
+        pathCache.putShadowPath(absOriginal, shadowPath);
         return shadowPath;
     }
 
     public static Path getOriginalFSPath(Path shadowPath) {
-        // This method is called within lock context, no additional locking needed
+        ShadowNamespace ns = current();
+        PathTranslationCache pathCache = ns.pathCache;
+        Path cached = pathCache.originalPath(shadowPath);
+        if (cached != null) {
+            return cached;
+        }
+
         Path absShadowPath = shadowPath.toAbsolutePath();
-        Path absShadowBaseDir = shadowBaseDir.toAbsolutePath();
+        Path absShadowBaseDir = ns.shadowRoot().toAbsolutePath();
 
-        // 检查路径是否在 shadow 目录下
+        Path originalPath;
         if (!absShadowPath.startsWith(absShadowBaseDir)) {
-            PilotUtil.dryRunLog("Path is not under shadow base directory, assuming it's already original: " + shadowPath);
             // 如果不在 shadow 目录下，可能已经是原始路径
-            return shadowPath;
+            originalPath = shadowPath;
+        } else {
+            // 重建原始路径：使用根路径 "/" 加上相对于 shadowBaseDir 的路径
+            Path relativePath = absShadowBaseDir.relativize(absShadowPath);
+            originalPath = Paths.get("/").resolve(relativePath);
+            PilotUtil.dryRunLog("originalPath of " + shadowPath + ": " + originalPath);
         }
-
-        // 获取相对于 shadowBaseDir 的路径
-        Path relativePath = absShadowBaseDir.relativize(absShadowPath);
-        PilotUtil.dryRunLog("relativePath from shadow: " + relativePath);
-
-        // 重建原始路径：使用根路径 "/" 加上相对路径
-        Path originalPath = Paths.get("/").resolve(relativePath);
-        PilotUtil.dryRunLog("originalPath: " + originalPath);
-
+        pathCache.putOriginalPath(shadowPath, originalPath);
         return originalPath;
     }
 
     public static String getOriginalFSPathString(String shadowPathStr) {
-        Path shadowPath = Paths.get(shadowPathStr);
-        Path absShadowPath = shadowPath.toAbsolutePath();
-        Path absShadowBaseDir = shadowBaseDir.toAbsolutePath();
+        ShadowNamespace ns = current();
+        PathTranslationCache pathCache = ns.pathCache;
+        String cached = pathCache.originalPathString(shadowPathStr);
+        if (cached != null) {
+            return cached;
+        }
+        Path absShadowPath = Paths.get(shadowPathStr).toAbsolutePath();
+        Path absShadowBaseDir = ns.shadowRoot().toAbsolutePath();
 
-        // 检查路径是否在 shadow 目录下
+        String originalPath;
         if (!absShadowPath.startsWith(absShadowBaseDir)) {
-            PilotUtil.dryRunLog("Path is not under shadow base directory, assuming it's already original: " + shadowPathStr);
-            return shadowPathStr;
+            originalPath = shadowPathStr;
+        } else {
+            // 重建原始路径
+            originalPath = Paths.get("/").resolve(absShadowBaseDir.relativize(absShadowPath)).toString();
+            PilotUtil.dryRunLog("originalPath of " + shadowPathStr + ": " + originalPath);
         }
-
-        // 获取相对于 shadowBaseDir 的路径
-        Path relativePath = absShadowBaseDir.relativize(absShadowPath);
-        PilotUtil.dryRunLog("relativePath from shadow: " + relativePath);
-
-        // 重建原始路径
-        Path originalPath = Paths.get("/").resolve(relativePath);
-        PilotUtil.dryRunLog("originalPath: " + originalPath);
-
-        return originalPath.toString();
+        pathCache.putOriginalPathString(shadowPathStr, originalPath);
+        return originalPath;
     }
 
     public static Path resolveShadowFSAppendLogFilePath(Path absOriginal) {
-        // This method is called within lock context, no additional locking needed
-        if (absOriginal.toAbsolutePath().startsWith(shadowBaseDir.toAbsolutePath())) {
+        ShadowNamespace ns = current();
+        PathTranslationCache pathCache = ns.pathCache;
+        Path cached = pathCache.appendLogPath(absOriginal);
+        if (cached != null) {
+            return cached;
+        }
+
+        Path shadowAppendLogPath;
+        if (absOriginal.toAbsolutePath().startsWith(ns.shadowRoot().toAbsolutePath())) {
             PilotUtil.dryRunLog("File is already under the shadow base directory. No need to resolve." + absOriginal);
-            return absOriginal;
+            shadowAppendLogPath = absOriginal;
+        } else {
+            Path relativePath = absOriginal.subpath(0, absOriginal.getNameCount());
+            shadowAppendLogPath = ns.appendLogRoot().resolve(relativePath).resolveSibling(
+                    absOriginal.getFileName().toString() + ".log"
+            );
         }
-        Path relativePath = absOriginal.subpath(0, absOriginal.getNameCount());
-        Path shadowAppendLogPath = shadowAppendLogDir.resolve(relativePath).resolveSibling(
-                absOriginal.getFileName().toString() + ".log"
-        );
+        pathCache.putAppendLogPath(absOriginal, shadowAppendLogPath);
         return shadowAppendLogPath;
     }
 
     public static Path resolveShadowFSAppendLogDirPath(Path absOriginal) throws IOException {
+        ShadowNamespace ns = current();
         // This method is called within lock context, no additional locking needed
         Path relativePath = absOriginal.subpath(0, absOriginal.getNameCount());
-        Path shadowPath = shadowAppendLogDir.resolve(relativePath);
+        Path shadowPath = ns.appendLogRoot().resolve(relativePath);
         if (!Files.exists(shadowPath.getParent())) {
             Files.createDirectories(shadowPath.getParent());
         }
@@ -221,16 +456,17 @@ public class ShadowFileSystem {
     }
 
     public List<Path> listDirectory(Path directory) throws IOException {
-        GlobalLockManager.lock();
+        Path absDirectory = directory.toAbsolutePath();
+        materializeChildren(absDirectory);
+        ShadowLockManager.lockStructureRead();
         try {
-            Path absDirectory = directory.toAbsolutePath();
             Path shadowDir = resolveShadowFSPath(absDirectory);
             List<Path> res = Files.list(shadowDir)
                     .map(Path::toAbsolutePath)
                     .collect(Collectors.toList());
             return res;
         } finally {
-            GlobalLockManager.unlock();
+            ShadowLockManager.unlockStructureRead();
         }
     }
 }
\ No newline at end of file
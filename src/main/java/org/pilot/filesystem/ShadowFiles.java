@@ -5,13 +5,17 @@ import org.pilot.State;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 import static org.pilot.PilotUtil.debug;
 
@@ -19,6 +23,48 @@ public class ShadowFiles {
 
     public static final org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(ShadowFiles.class);
 
+    private static boolean isLazy() {
+        return ShadowFileSystem.lazyMaterialization && !debug;
+    }
+
+    // lazy模式下的删除：没有物化过的原始文件只记墓碑；目录按合并视图检查是否为空
+    private static boolean deleteLazily(Path absPath, boolean failIfMissing) throws IOException {
+        byte flags = ShadowFileSystem.index().lookup(absPath);
+        if (!ShadowIndex.exists(flags)) {
+            if (failIfMissing) {
+                throw new NoSuchFileException(absPath.toString());
+            }
+            return false;
+        }
+        if (ShadowIndex.isDirectory(flags)) {
+            // 合并视图里还有条目就不能删，不需要物化子项
+            try (DirectoryStream<Path> entries = new ShadowDirectoryStream(absPath, true, null)) {
+                if (entries.iterator().hasNext()) {
+                    throw new DirectoryNotEmptyException(absPath.toString());
+                }
+            }
+        }
+
+        Path shadowPath = ShadowFileSystem.getShadowFSPath(absPath);
+        Path shadowAppendLogPath = ShadowFileSystem.resolveShadowFSAppendLogFilePath(absPath);
+        ShadowLockManager.lockForStructureChange(shadowPath);
+        try {
+            AppendLog.deleteIfExists(shadowAppendLogPath);
+            if (ShadowIndex.isDirectory(flags)) {
+                BlockOverlay.deleteSubtree(absPath);
+            } else {
+                BlockOverlay.delete(absPath);
+                MemoryFile.delete(absPath);
+            }
+            Files.deleteIfExists(shadowPath);
+            ShadowFileSystem.index().markDeleted(absPath);
+            return true;
+        } finally {
+            ShadowFileSystem.contentChanged(absPath);
+            ShadowLockManager.unlockForStructureChange(shadowPath);
+        }
+    }
+
 
     public static boolean deleteIfExists(Path path) throws IOException {
         if (!PilotUtil.isDryRun()) {
@@ -27,11 +73,21 @@ public class ShadowFiles {
 
         path = ShadowFileSystem.getOriginalFSPath(path.toAbsolutePath());
 
-            Path shadowPath = ShadowFileSystem.getShadowFSPath(path.toAbsolutePath());
-            Path shadowAppendLogPath = ShadowFileSystem.resolveShadowFSAppendLogFilePath(path.toAbsolutePath());
+        if (isLazy()) {
+            return deleteLazily(path.toAbsolutePath(), false);
+        }
+
+        Path shadowPath = ShadowFileSystem.getShadowFSPath(path.toAbsolutePath());
+        Path shadowAppendLogPath = ShadowFileSystem.resolveShadowFSAppendLogFilePath(path.toAbsolutePath());
 
-            Files.deleteIfExists(shadowAppendLogPath);
+        ShadowLockManager.lockForStructureChange(shadowPath);
+        try {
+            AppendLog.deleteIfExists(shadowAppendLogPath);
             return Files.deleteIfExists(shadowPath);
+        } finally {
+            ShadowFileSystem.contentChanged(path.toAbsolutePath());
+            ShadowLockManager.unlockForStructureChange(shadowPath);
+        }
     }
 
 
@@ -44,6 +100,9 @@ public class ShadowFiles {
 
         try {
             ShadowFileSystem.initializeFromOriginal();
+            if (isLazy()) {
+                return ShadowFileSystem.index().exists(path.toAbsolutePath());
+            }
             Path shadowPath = ShadowFileSystem.getShadowFSPath(path.toAbsolutePath());
             return Files.exists(shadowPath, options);
         } catch (IOException e) {
@@ -59,33 +118,38 @@ public class ShadowFiles {
         start = ShadowFileSystem.getOriginalFSPath(start.toAbsolutePath());
 
         ShadowFileSystem.initializeFromOriginal();
+        if (isLazy()) {
+            // 合并原始目录和shadow目录，不需要先物化整棵树
+            new ShadowTreeWalker(visitor).walk(start.toAbsolutePath());
+            return start;
+        }
         Path shadowStart = ShadowFileSystem.getShadowFSPath(start.toAbsolutePath());
 
-        // 需要包装visitor，将shadow路径转换回原始路径
+        // 急切模式下shadow是完整的镜像，只需要把shadow路径转换回原始路径
         FileVisitor<Path> wrappedVisitor = new FileVisitor<Path>() {
             @Override
             public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                // 可能需要将shadow路径转换回原始路径
-                return visitor.preVisitDirectory(dir, attrs);
+                return visitor.preVisitDirectory(ShadowFileSystem.getOriginalFSPath(dir), attrs);
             }
 
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                return visitor.visitFile(file, attrs);
+                return visitor.visitFile(ShadowFileSystem.getOriginalFSPath(file), attrs);
             }
 
             @Override
             public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-                return visitor.visitFileFailed(file, exc);
+                return visitor.visitFileFailed(ShadowFileSystem.getOriginalFSPath(file), exc);
             }
 
             @Override
             public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                return visitor.postVisitDirectory(dir, exc);
+                return visitor.postVisitDirectory(ShadowFileSystem.getOriginalFSPath(dir), exc);
             }
         };
 
-        return Files.walkFileTree(shadowStart, wrappedVisitor);
+        Files.walkFileTree(shadowStart, wrappedVisitor);
+        return start;
     }
 
     // Files.newInputStream
@@ -101,17 +165,40 @@ public class ShadowFiles {
         Path shadowPath = ShadowFileSystem.getShadowFSPath(absPath);
         Path shadowAppendLogPath = ShadowFileSystem.resolveShadowFSAppendLogFilePath(absPath);
 
-        // 如果有append log，先重建
-        if (Files.exists(shadowAppendLogPath) && Files.size(shadowAppendLogPath) > 0) {
-            rebuildFileFromLog(absPath, shadowAppendLogPath, shadowPath);
-            Files.deleteIfExists(shadowAppendLogPath);
-        } else if (!Files.exists(shadowPath) && Files.exists(absPath)) {
-
-            // 没有shadow文件但有原始文件，直接读原始文件
-            return Files.newInputStream(absPath, options);
+        if (isLazy()) {
+            byte flags = ShadowFileSystem.index().lookup(absPath);
+            if (!ShadowIndex.exists(flags)) {
+                throw new NoSuchFileException(path.toString());
+            }
+            if (!ShadowIndex.isModified(flags) && !ShadowIndex.isDirectory(flags)) {
+                // 没有被pilot改过，直接读原始文件
+                return Files.newInputStream(absPath, options);
+            }
+            if (ShadowIndex.isOverlay(flags)) {
+                return Channels.newInputStream(BlockOverlay.newChannel(absPath, StandardOpenOption.READ));
+            }
+            if (ShadowIndex.isMemory(flags)) {
+                return Channels.newInputStream(MemoryFile.newChannel(absPath, StandardOpenOption.READ));
+            }
         }
 
-        return Files.newInputStream(shadowPath, options);
+        Lock lock = ShadowLockManager.writeLock(shadowPath);
+        lock.lock();
+        try {
+            // 如果有append log，先重建
+            if (AppendLog.hasRecords(shadowAppendLogPath)) {
+                rebuildFileFromLog(absPath, shadowAppendLogPath, shadowPath);
+                AppendLog.deleteIfExists(shadowAppendLogPath);
+            } else if (!Files.exists(shadowPath) && Files.exists(absPath)) {
+
+                // 没有shadow文件但有原始文件，直接读原始文件
+                return Files.newInputStream(absPath, options);
+            }
+
+            return Files.newInputStream(shadowPath, options);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public static void delete(Path path) throws IOException {
@@ -121,11 +208,20 @@ public class ShadowFiles {
         }
 
         path = ShadowFileSystem.getOriginalFSPath(path.toAbsolutePath());
+        if (isLazy()) {
+            deleteLazily(path, true);
+            return;
+        }
         Path shadowPath = ShadowFileSystem.getShadowFSPath(path);
         Path shadowAppendLogPath = ShadowFileSystem.resolveShadowFSAppendLogFilePath(path);
-        Files.deleteIfExists(shadowAppendLogPath);
-        Files.delete(shadowPath);
-        return;
+        ShadowLockManager.lockForStructureChange(shadowPath);
+        try {
+            AppendLog.deleteIfExists(shadowAppendLogPath);
+            Files.delete(shadowPath);
+        } finally {
+            ShadowFileSystem.contentChanged(path);
+            ShadowLockManager.unlockForStructureChange(shadowPath);
+        }
     }
 
     //Used in FSDirecotry Solr Files.isDirectory
@@ -142,6 +238,10 @@ public class ShadowFiles {
             LOG.warn("isDirectory ShadowFileSystem init fails");
         }
 
+        if (isLazy()) {
+            return ShadowFileSystem.index().isDirectory(path);
+        }
+
         Path shadowPath = ShadowFileSystem.getShadowFSPath(path);
         return Files.isDirectory(shadowPath, options);
     }
@@ -159,7 +259,19 @@ public class ShadowFiles {
             LOG.warn("createDirectories ShadowFileSystem init fails");
         }
         Path shadowPath = ShadowFileSystem.getShadowFSPath(dir);
-        return Files.createDirectories(shadowPath, attrs);
+        ShadowLockManager.lockForStructureChange(shadowPath);
+        try {
+            Path result = Files.createDirectories(shadowPath, attrs);
+            if (isLazy()) {
+                // 新建的各级父目录也要记进索引
+                for (Path p = dir; p != null && !ShadowFileSystem.index().isDirectory(p); p = p.getParent()) {
+                    ShadowFileSystem.index().markMaterialized(p, true);
+                }
+            }
+            return result;
+        } finally {
+            ShadowLockManager.unlockForStructureChange(shadowPath);
+        }
     }
 
     // 获取文件大小 (FSDirectory.fileLength使用)
@@ -175,17 +287,66 @@ public class ShadowFiles {
         Path shadowPath = ShadowFileSystem.getShadowFSPath(absPath);
         Path shadowAppendLogPath = ShadowFileSystem.resolveShadowFSAppendLogFilePath(absPath);
 
-        if (Files.exists(shadowAppendLogPath) && Files.size(shadowAppendLogPath) > 0) {
-            rebuildFileFromLog(absPath, shadowAppendLogPath, shadowPath);
-            Files.deleteIfExists(shadowAppendLogPath);
-            return Files.size(shadowPath);
+        if (isLazy()) {
+            byte flags = ShadowFileSystem.index().lookup(absPath);
+            if (!ShadowIndex.exists(flags)) {
+                throw new NoSuchFileException(path.toString());
+            }
+            if (!ShadowIndex.isDirectory(flags)) {
+                Long cached = ShadowFileSystem.index().cachedSize(absPath);
+                if (cached != null) {
+                    return cached;
+                }
+                if (ShadowIndex.isOverlay(flags)) {
+                    return BlockOverlay.size(absPath);
+                }
+                if (ShadowIndex.isMemory(flags)) {
+                    return MemoryFile.size(absPath);
+                }
+            }
         }
 
-        if (Files.exists(absPath) && (Files.exists(shadowAppendLogPath) && Files.size(shadowAppendLogPath)==0)) {
-            return Files.size(absPath);
-        }
+        Lock lock = ShadowLockManager.writeLock(shadowPath);
+        lock.lock();
+        try {
+            if (isLazy()) {
+                byte flags = ShadowFileSystem.index().lookup(absPath);
+                if (!ShadowIndex.isDirectory(flags)) {
+                    // 持有文件锁计算并缓存，和写路径的原地更新互斥
+                    Long cached = ShadowFileSystem.index().cachedSize(absPath);
+                    if (cached != null) {
+                        return cached;
+                    }
+                    if (!ShadowIndex.isModified(flags)) {
+                        long size = Files.size(absPath);
+                        ShadowFileSystem.index().cacheSize(absPath, size);
+                        return size;
+                    }
+                    if (AppendLog.hasRecords(shadowAppendLogPath)) {
+                        // 不重建文件，只从append log算出逻辑大小
+                        long baseSize = Files.exists(absPath) ? Files.size(absPath) : 0;
+                        long size = AppendLog.logicalSize(shadowAppendLogPath, baseSize);
+                        ShadowFileSystem.index().cacheSize(absPath, size);
+                        return size;
+                    }
+                }
+            }
+
 
-        return Files.size(shadowPath);
+            if (AppendLog.hasRecords(shadowAppendLogPath)) {
+                rebuildFileFromLog(absPath, shadowAppendLogPath, shadowPath);
+                AppendLog.deleteIfExists(shadowAppendLogPath);
+                return Files.size(shadowPath);
+            }
+
+            if (Files.exists(absPath) && AppendLog.isEmpty(shadowAppendLogPath)) {
+                return Files.size(absPath);
+            }
+
+            return Files.size(shadowPath);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public static Path createFile(Path path, FileAttribute<?>... attrs) throws IOException {
@@ -198,18 +359,38 @@ public class ShadowFiles {
         Path absPath = path.toAbsolutePath();
         Path shadowPath = ShadowFileSystem.getShadowFSPath(absPath);
 
-        Path parent = shadowPath.getParent();
-        if (parent != null && !Files.exists(parent)) {
-            Files.createDirectories(parent);
+        if (isLazy() && ShadowFileSystem.index().exists(absPath)) {
+            throw new FileAlreadyExistsException(path.toString());
         }
 
-        Path result = Files.createFile(shadowPath, attrs);
+        ShadowLockManager.lockForStructureChange(shadowPath);
+        try {
+            Path shadowAppendLogPath = ShadowFileSystem.resolveShadowFSAppendLogFilePath(absPath);
+            if (isLazy() && MemoryFile.create(absPath)) {
+                // 新文件放在内存里，不碰shadow目录
+                AppendLog.deleteIfExists(shadowAppendLogPath);
+                ShadowFileSystem.index().markMemory(absPath);
+                return shadowPath;
+            }
+
+            Path parent = shadowPath.getParent();
+            if (parent != null && !Files.exists(parent)) {
+                Files.createDirectories(parent);
+            }
 
-        Path shadowAppendLogPath = ShadowFileSystem.resolveShadowFSAppendLogFilePath(absPath);
-        Files.deleteIfExists(shadowAppendLogPath);
+            Path result = Files.createFile(shadowPath, attrs);
 
-        return result;
+            AppendLog.deleteIfExists(shadowAppendLogPath);
 
+            if (isLazy()) {
+                ShadowFileSystem.index().markModified(absPath);
+            }
+            return result;
+        } finally {
+            // 同名文件删除后重建，缓存里可能还有旧文件的块
+            ShadowFileSystem.contentChanged(absPath);
+            ShadowLockManager.unlockForStructureChange(shadowPath);
+        }
     }
 
 
@@ -220,12 +401,41 @@ public class ShadowFiles {
 
         source = ShadowFileSystem.getOriginalFSPath(source.toAbsolutePath());
         target = ShadowFileSystem.getOriginalFSPath(target.toAbsolutePath());
-            ShadowFileSystem.initializeFromOriginal();
-            Path absSource = source.toAbsolutePath();
-            Path absTarget = target.toAbsolutePath();
+        ShadowFileSystem.initializeFromOriginal();
+        Path absSource = source.toAbsolutePath();
+        Path absTarget = target.toAbsolutePath();
 
-            Path shadowSource = ShadowFileSystem.getShadowFSPath(absSource);
-            Path shadowTarget = ShadowFileSystem.getShadowFSPath(absTarget);
+        Path shadowSource = ShadowFileSystem.getShadowFSPath(absSource);
+        Path shadowTarget = ShadowFileSystem.getShadowFSPath(absTarget);
+
+        byte sourceFlags = ShadowIndex.ABSENT;
+        if (isLazy()) {
+            sourceFlags = ShadowFileSystem.index().lookup(absSource);
+            if (!ShadowIndex.exists(sourceFlags)) {
+                throw new NoSuchFileException(source.toString());
+            }
+            if (ShadowFileSystem.index().exists(absTarget) && !hasOption(options, StandardCopyOption.REPLACE_EXISTING)) {
+                throw new FileAlreadyExistsException(target.toString());
+            }
+            if (ShadowIndex.isDirectory(sourceFlags)) {
+                ShadowFileSystem.materializeTree(absSource);
+            }
+        }
+        boolean directory = isLazy() ? ShadowIndex.isDirectory(sourceFlags) : Files.isDirectory(shadowSource);
+
+        ShadowLockManager.lockForStructureChange(shadowSource, shadowTarget);
+        try {
+            if (isLazy() && ShadowIndex.isMemory(sourceFlags)) {
+                // 内存中的文件只需要换key，磁盘上最多有一个空的占位文件
+                AppendLog.deleteIfExists(ShadowFileSystem.resolveShadowFSAppendLogFilePath(absTarget));
+                BlockOverlay.delete(absTarget);
+                Files.deleteIfExists(shadowTarget);
+                Files.deleteIfExists(shadowSource);
+                MemoryFile.moved(absSource, absTarget);
+                ShadowFileSystem.index().markMemory(absTarget);
+                ShadowFileSystem.index().markDeleted(absSource);
+                return shadowTarget;
+            }
 
             // 确保目标父目录存在
             Path targetParent = shadowTarget.getParent();
@@ -236,26 +446,67 @@ public class ShadowFiles {
             Path sourceLog = ShadowFileSystem.resolveShadowFSAppendLogFilePath(absSource);
             Path targetLog = ShadowFileSystem.resolveShadowFSAppendLogFilePath(absTarget);
 
-            // 检查源文件的append log
-            if (Files.exists(sourceLog) && Files.size(sourceLog) > 0) {
+            boolean overlay = isLazy() && ShadowIndex.isOverlay(sourceFlags);
+            if (isLazy() && !ShadowIndex.isModified(sourceFlags) && !ShadowIndex.isDirectory(sourceFlags)) {
+                // 没改过的原始文件，shadow里最多是空的占位文件；clone或建一个空的block overlay，不复制原始文件
+                AppendLog.deleteIfExists(sourceLog);
+                overlay = BlockOverlay.copyOnWrite(absSource, absSource);
+            } else if (AppendLog.hasRecords(sourceLog)) {
+                // 检查源文件的append log
                 // 有append log，需要先重建文件
                 rebuildFileFromLog(absSource, sourceLog, shadowSource);
-                Files.deleteIfExists(sourceLog);
+                AppendLog.deleteIfExists(sourceLog);
             } else if (!Files.exists(shadowSource) && Files.exists(absSource)) {
                 // 没有append log，shadow文件也不存在，但原始文件存在，需要复制
                 Files.copy(absSource, shadowSource);
             }
 
             // 删除目标的append log（如果存在）
-            if (Files.exists(targetLog)) {
-                Files.delete(targetLog);
+            AppendLog.deleteIfExists(targetLog);
+            if (isLazy()) {
+                MemoryFile.delete(absTarget);
             }
 
             // 移动shadow文件
             Path result = Files.move(shadowSource, shadowTarget, options);
 
+            if (isLazy()) {
+                if (ShadowIndex.isDirectory(sourceFlags)) {
+                    BlockOverlay.movedSubtree(absSource, absTarget);
+                    MemoryFile.movedSubtree(absSource, absTarget);
+                    ShadowFileSystem.index().markSubtreeDeleted(absSource);
+                    ShadowFileSystem.index().forgetSubtree(absTarget);
+                    ShadowFileSystem.index().markMaterialized(absTarget, true);
+                } else if (overlay) {
+                    BlockOverlay.moved(absSource, absTarget);
+                    ShadowFileSystem.index().markOverlay(absTarget);
+                } else {
+                    BlockOverlay.delete(absTarget);
+                    ShadowFileSystem.index().markModified(absTarget);
+                }
+                ShadowFileSystem.index().markDeleted(absSource);
+            }
 
             return result;
+        } finally {
+            if (directory) {
+                ShadowFileSystem.subtreeChanged(absSource);
+                ShadowFileSystem.subtreeChanged(absTarget);
+            } else {
+                ShadowFileSystem.contentChanged(absSource);
+                ShadowFileSystem.contentChanged(absTarget);
+            }
+            ShadowLockManager.unlockForStructureChange(shadowSource, shadowTarget);
+        }
+    }
+
+    static boolean hasOption(Object[] options, Object option) {
+        for (Object o : options) {
+            if (o == option) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public static SeekableByteChannel newByteChannel(Path path, OpenOption... options) throws IOException {
@@ -292,43 +543,103 @@ public class ShadowFiles {
             }
         }
 
-        // 如果append log存在且非空，需要重建
-        if (Files.exists(shadowAppendLogPath) && Files.size(shadowAppendLogPath) > 0) {
-            rebuildFileFromLog(absPath, shadowAppendLogPath, shadowPath);
-            Files.deleteIfExists(shadowAppendLogPath);
-            return Files.newByteChannel(shadowPath, options);
-        }
+        Lock lock = ShadowLockManager.writeLock(shadowPath);
+        lock.lock();
+        try {
+            if (isLazy()) {
+                byte flags = ShadowFileSystem.index().lookup(absPath);
+                if (!ShadowIndex.exists(flags)) {
+                    if (!hasCreate) {
+                        throw new NoSuchFileException(path.toString());
+                    }
+                    // 新文件（或被删除后重建），只存在于shadow，能放进内存就不写磁盘
+                    AppendLog.deleteIfExists(shadowAppendLogPath);
+                    if (MemoryFile.create(absPath)) {
+                        ShadowFileSystem.index().markMemory(absPath);
+                        return MemoryFile.newChannel(absPath, options);
+                    }
+                    SeekableByteChannel channel = Files.newByteChannel(shadowPath, options);
+                    ShadowFileSystem.index().markModified(absPath);
+                    return channel;
+                }
+                if (ShadowIndex.isOverlay(flags)) {
+                    if (hasOption(options, StandardOpenOption.CREATE_NEW)) {
+                        throw new FileAlreadyExistsException(path.toString());
+                    }
+                    return BlockOverlay.newChannel(absPath, options);
+                }
+                if (ShadowIndex.isMemory(flags)) {
+                    if (hasOption(options, StandardOpenOption.CREATE_NEW)) {
+                        throw new FileAlreadyExistsException(path.toString());
+                    }
+                    return MemoryFile.newChannel(absPath, options);
+                }
+                if (!ShadowIndex.isModified(flags)) {
+                    if (hasOption(options, StandardOpenOption.CREATE_NEW)) {
+                        throw new FileAlreadyExistsException(path.toString());
+                    }
+                    if (isReadOnly) {
+                        return Files.newByteChannel(absPath, StandardOpenOption.READ);
+                    }
+                    // 第一次写：小文件复制进内存；否则clone原始文件，或者建一个block overlay，只复制写到的block
+                    AppendLog.deleteIfExists(shadowAppendLogPath);
+                    if (MemoryFile.copyOf(absPath, absPath)) {
+                        ShadowFileSystem.index().markMemory(absPath);
+                        return MemoryFile.newChannel(absPath, options);
+                    }
+                    if (BlockOverlay.copyOnWrite(absPath, absPath)) {
+                        ShadowFileSystem.index().markOverlay(absPath);
+                        return BlockOverlay.newChannel(absPath, options);
+                    }
+                    ShadowFileSystem.index().markModified(absPath);
+                    return Files.newByteChannel(shadowPath, options);
+                }
+            }
 
-        if (Files.exists(shadowAppendLogPath) && Files.size(shadowAppendLogPath) == 0) {
-            return Files.newByteChannel(absPath, options);
-        }
+            // 如果append log存在且非空，需要重建
+            if (AppendLog.hasRecords(shadowAppendLogPath)) {
+                rebuildFileFromLog(absPath, shadowAppendLogPath, shadowPath);
+                AppendLog.deleteIfExists(shadowAppendLogPath);
+                return Files.newByteChannel(shadowPath, options);
+            }
 
+            if (AppendLog.isEmpty(shadowAppendLogPath)) {
+                return Files.newByteChannel(absPath, options);
+            }
 
-        // 如果shadow文件不存在
-        if (!Files.exists(shadowPath)) {
-            if (Files.exists(absPath)) {
-                if (isReadOnly) {
-                    // 只读操作，直接返回原始文件的channel
-                    return Files.newByteChannel(absPath, StandardOpenOption.READ);
-                } else {
-                    // 需要写操作，复制原始文件到shadow
-                    Files.copy(absPath, shadowPath);
-                    Files.deleteIfExists(shadowAppendLogPath);
 
+            // 如果shadow文件不存在
+            if (!Files.exists(shadowPath)) {
+                if (Files.exists(absPath)) {
+                    if (isReadOnly) {
+                        // 只读操作，直接返回原始文件的channel
+                        return Files.newByteChannel(absPath, StandardOpenOption.READ);
+                    } else {
+                        // 需要写操作，复制原始文件到shadow
+                        Files.copy(absPath, shadowPath);
+                        AppendLog.deleteIfExists(shadowAppendLogPath);
+
+                        return Files.newByteChannel(shadowPath, options);
+                    }
+                } else if (hasCreate) {
+                    // 原始文件不存在但有CREATE选项
+                    Files.createFile(shadowPath);
                     return Files.newByteChannel(shadowPath, options);
+                } else {
+                    // 文件不存在且没有CREATE选项，让原生方法抛出异常
+                    return Files.newByteChannel(absPath, options);
                 }
-            } else if (hasCreate) {
-                // 原始文件不存在但有CREATE选项
-                Files.createFile(shadowPath);
-                return Files.newByteChannel(shadowPath, options);
-            } else {
-                // 文件不存在且没有CREATE选项，让原生方法抛出异常
-                return Files.newByteChannel(absPath, options);
             }
-        }
 
-        // shadow文件存在，直接使用
-        return Files.newByteChannel(shadowPath, options);
+            // shadow文件存在，直接使用
+            return Files.newByteChannel(shadowPath, options);
+        } finally {
+            if (!isReadOnly) {
+                // 直接写shadow文件的channel不经过这里，只能在打开时换代
+                ShadowFileSystem.contentChanged(absPath);
+            }
+            lock.unlock();
+        }
     }
 
     public static DirectoryStream<Path> newDirectoryStream(Path dir) throws IOException {
@@ -337,9 +648,19 @@ public class ShadowFiles {
         }
 
         dir = ShadowFileSystem.getOriginalFSPath(dir.toAbsolutePath());
-            ShadowFileSystem.initializeFromOriginal();
-            Path shadowDir = ShadowFileSystem.getShadowFSPath(dir.toAbsolutePath());
-            return Files.newDirectoryStream(shadowDir);
+        ShadowFileSystem.initializeFromOriginal();
+        return new ShadowDirectoryStream(dir.toAbsolutePath(), isLazy(), null);
+    }
+
+    public static DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter)
+            throws IOException {
+        if (!PilotUtil.isDryRun()) {
+            return Files.newDirectoryStream(dir, filter);
+        }
+
+        dir = ShadowFileSystem.getOriginalFSPath(dir.toAbsolutePath());
+        ShadowFileSystem.initializeFromOriginal();
+        return new ShadowDirectoryStream(dir.toAbsolutePath(), isLazy(), filter);
     }
 
 
@@ -352,66 +673,30 @@ public class ShadowFiles {
     }
 
     private static void rebuildFileFromLog(Path originalPath, Path appendLogPath, Path shadowPath) throws IOException {
+        // 调用方随后会删除append log，shadow文件变为直接读写，不再跟踪大小
+        ShadowFileSystem.index().invalidateSize(originalPath);
+
         // 删除并重新创建shadow文件
         Files.deleteIfExists(shadowPath);
         Files.createFile(shadowPath);
 
-        try (SeekableByteChannel rebuiltChannel = Files.newByteChannel(shadowPath,
+        try (FileChannel rebuiltChannel = FileChannel.open(shadowPath,
                 StandardOpenOption.READ, StandardOpenOption.WRITE)) {
 
             // 1. 复制原始文件内容（如果存在）
             if (Files.exists(originalPath)) {
-                try (SeekableByteChannel origChannel = Files.newByteChannel(
-                        originalPath, StandardOpenOption.READ)) {
-                    ByteBuffer buffer = ByteBuffer.allocate(8192);
-                    while (origChannel.read(buffer) > 0) {
-                        buffer.flip();
-                        rebuiltChannel.write(buffer);
-                        buffer.clear();
-                    }
+                try (FileChannel origChannel = FileChannel.open(originalPath, StandardOpenOption.READ)) {
+                    AppendLog.copy(origChannel, rebuiltChannel);
                 }
             }
 
             // 2. 从append log读取并应用所有写操作
-            if (Files.exists(appendLogPath) && Files.size(appendLogPath) > 0) {
-                List<FileOperation> operations = readOperationsFromLog(appendLogPath);
-
-                for (FileOperation operation : operations) {
-                    ByteBuffer buffer = ByteBuffer.wrap(operation.getData());
-                    rebuiltChannel.position(operation.getOffset());
-                    rebuiltChannel.write(buffer);
-                }
+            if (AppendLog.hasRecords(appendLogPath)) {
+                AppendLog.replay(appendLogPath, rebuiltChannel);
             }
         }
     }
 
-    // 辅助方法：从日志文件读取操作
-    private static List<FileOperation> readOperationsFromLog(Path appendLogPath) throws IOException {
-        List<FileOperation> operations = new ArrayList<>();
-
-
-        if (!Files.exists(appendLogPath) || Files.size(appendLogPath) == 0) {
-            return operations;
-        }
-
-        try (ObjectInputStream in = new ObjectInputStream(
-                Files.newInputStream(appendLogPath))) {
-            while (true) {
-                try {
-                    FileOperation operation = (FileOperation) in.readObject();
-                    operations.add(operation);
-                } catch (EOFException e) {
-                    break; // 正常结束
-                }
-            }
-        } catch (ClassNotFoundException e) {
-            throw new IOException("Failed to deserialize FileOperation", e);
-        }
-
-        PilotUtil.dryRunLog("Read " + operations.size() + " operations from append log");
-        return operations;
-    }
-
 //    public static OutputStream newOutputStream(Path path, OpenOption... options) throws IOException {
 //        if (!PilotUtil.isDryRun()) {
 //            return Files.newOutputStream(path, options);
@@ -487,6 +772,8 @@ public class ShadowFiles {
         Path absPath = path.toAbsolutePath();
         Path shadowPath = ShadowFileSystem.getShadowFSPath(absPath);
         Path shadowAppendLogPath = ShadowFileSystem.resolveShadowFSAppendLogFilePath(absPath);
+        // 默认选项会截断文件
+        ShadowFileSystem.contentChanged(absPath);
 
         // 确保父目录存在
         Path parent = shadowPath.getParent();
@@ -494,6 +781,24 @@ public class ShadowFiles {
             Files.createDirectories(parent);
         }
 
+        if (isLazy()) {
+            OpenOption[] writeOptions = outputOptions(options);
+            OutputStream memory = newMemoryOutputStream(absPath, shadowPath, shadowAppendLogPath, writeOptions);
+            if (memory != null) {
+                return memory;
+            }
+            byte flags = ShadowFileSystem.index().lookup(absPath);
+            if (ShadowIndex.exists(flags) && !ShadowIndex.isDirectory(flags)
+                    && (hasOption(writeOptions, StandardOpenOption.APPEND)
+                    || !hasOption(writeOptions, StandardOpenOption.TRUNCATE_EXISTING))) {
+                // 保留旧内容的写：和newByteChannel一样先让文件有完整内容（内存副本、overlay或clone）再写
+                return Channels.newOutputStream(newByteChannel(absPath, writeOptions));
+            }
+            // 截断的写不需要旧内容，打开输出流即视为修改
+            BlockOverlay.flattenIfOverlay(absPath);
+            ShadowFileSystem.index().markModified(absPath);
+        }
+
         writeLog("Shadow directory exists: " + Files.exists(Paths.get("/opt/ShadowDirectory")));
         writeLog("Shadow append log directory exists: " + Files.exists(Paths.get("/opt/ShadowAppendLog")));
         writeLog("Attempting to create file at: " + shadowPath.toString());
@@ -587,6 +892,61 @@ public class ShadowFiles {
         return Files.newOutputStream(shadowPath, options);
     }
 
+    // 和Files.newOutputStream一样：没有选项就是CREATE、TRUNCATE_EXISTING、WRITE，否则补上WRITE
+    private static OpenOption[] outputOptions(OpenOption... options) {
+        if (options.length == 0) {
+            return new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE};
+        }
+        if (hasOption(options, StandardOpenOption.WRITE)) {
+            return options;
+        }
+        OpenOption[] withWrite = Arrays.copyOf(options, options.length + 1);
+        withWrite[options.length] = StandardOpenOption.WRITE;
+        return withWrite;
+    }
+
+    // lazy模式下新建、截断重写或者已经在内存中的文件，输出流直接写内存；其他情况返回null
+    private static OutputStream newMemoryOutputStream(Path absPath, Path shadowPath, Path shadowAppendLogPath,
+                                                      OpenOption... options) throws IOException {
+        boolean append = hasOption(options, StandardOpenOption.APPEND);
+        boolean createNew = hasOption(options, StandardOpenOption.CREATE_NEW);
+
+        Lock lock = ShadowLockManager.writeLock(shadowPath);
+        lock.lock();
+        try {
+            byte flags = ShadowFileSystem.index().lookup(absPath);
+            if (ShadowIndex.isMemory(flags)) {
+                if (createNew) {
+                    throw new FileAlreadyExistsException(absPath.toString());
+                }
+                return Channels.newOutputStream(MemoryFile.newChannel(absPath, options));
+            }
+            if (ShadowIndex.exists(flags)) {
+                // 保留旧内容的写（追加、不截断）还是走原来的路径
+                if (ShadowIndex.isDirectory(flags) || append
+                        || !hasOption(options, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    return null;
+                }
+                if (createNew) {
+                    throw new FileAlreadyExistsException(absPath.toString());
+                }
+            } else if (!createNew && !hasOption(options, StandardOpenOption.CREATE)) {
+                return null;
+            }
+            if (!MemoryFile.create(absPath)) {
+                return null;
+            }
+            AppendLog.deleteIfExists(shadowAppendLogPath);
+            BlockOverlay.delete(absPath);
+            Files.deleteIfExists(shadowPath);
+            ShadowFileSystem.index().markMemory(absPath);
+            return Channels.newOutputStream(MemoryFile.newChannel(absPath, options));
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // 添加这个辅助方法来写入日志
     private static void writeLog(String message) {
 //        try (FileWriter fw = new FileWriter("/opt/log.txt", true);
@@ -603,13 +963,16 @@ public class ShadowFiles {
     private static class ShadowOutputStream extends OutputStream {
         private final Path originalPath;
         private final Path appendLogPath;
+        private final Path shadowPath;
         private long position = 0;
-        private ObjectOutputStream logStream;
+        private AppendLog.Writer logWriter;
         private boolean firstWrite = true;
+        private final ShadowIndex index = ShadowFileSystem.index();
 
         public ShadowOutputStream(Path originalPath, Path appendLogPath, Path shadowPath) throws IOException {
             this.originalPath = originalPath;
             this.appendLogPath = appendLogPath;
+            this.shadowPath = shadowPath;
 
             // 初始位置总是0，因为我们要追加写入
             this.position = 0;
@@ -624,55 +987,32 @@ public class ShadowFiles {
         public void write(byte[] b, int off, int len) throws IOException {
             if (len == 0) return;
 
-            GlobalLockManager.lock();
+            Lock lock = ShadowLockManager.writeLock(shadowPath);
+            lock.lock();
             try {
-                byte[] data = new byte[len];
-                System.arraycopy(b, off, data, 0, len);
-                FileOperation operation = new FileOperation(position, data, "WRITE");
-
                 if (firstWrite) {
-                    if (!Files.exists(appendLogPath.getParent())) {
-                        Files.createDirectories(appendLogPath.getParent());
-                    }
-
-                    // 检查是否已有日志文件
-                    if (Files.exists(appendLogPath) && Files.size(appendLogPath) > 0) {
-                        // 追加模式
-                        logStream = new AppendingObjectOutputStream(
-                                new FileOutputStream(appendLogPath.toFile(), true));
-                    } else {
-                        // 新文件
-                        Files.createFile(appendLogPath);
-                        logStream = new ObjectOutputStream(
-                                Files.newOutputStream(appendLogPath));
+                    if (isLazy()) {
+                        index.markLogged(originalPath);
                     }
+                    logWriter = AppendLog.openWriter(appendLogPath);
                     firstWrite = false;
                 }
 
-                logStream.writeObject(operation);
-                logStream.flush();
+                // 直接写入调用方的数组，不再复制
+                logWriter.append(FileOperation.WRITE, position, ByteBuffer.wrap(b, off, len));
                 position += len;
+                index.growSize(originalPath, position);
+                LogCompactor.maybeSchedule(logWriter, originalPath, shadowPath);
             } finally {
-                GlobalLockManager.unlock();
+                ShadowFileSystem.contentChanged(originalPath);
+                lock.unlock();
             }
         }
 
         @Override
         public void close() throws IOException {
-            if (logStream != null) {
-                logStream.close();
-            }
-        }
-
-        // 用于追加到已存在的ObjectOutputStream文件
-        private static class AppendingObjectOutputStream extends ObjectOutputStream {
-            public AppendingObjectOutputStream(OutputStream out) throws IOException {
-                super(out);
-            }
-
-            @Override
-            protected void writeStreamHeader() throws IOException {
-                // 不写header，因为文件已经有了
+            if (logWriter != null) {
+                logWriter.close();
             }
         }
     }
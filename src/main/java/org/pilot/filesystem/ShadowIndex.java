@@ -0,0 +1,275 @@
+package org.pilot.filesystem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory index of the pilot's view of the original namespace, used by the lazy overlay.
+ * Each known path maps to a byte of flags, so exists / isDirectory / size can be answered
+ * without pre-creating a shadow mirror of the whole tree.
+ *
+ * A path missing from the index is unknown and is resolved by one stat of the shadow, then
+ * of the original. Tombstones ({@link #DELETED}) record deletes the original tree cannot show
+ * and are never evicted.
+ *
+ * It also caches the logical size of files whose content changes are all seen by the shadow
+ * layer (unmodified, logged to an append log, a block overlay or in memory). Those write paths update
+ * the cached size in place; handing out a plain writable shadow file drops it.
+ *
+ * Clean entries, the plain ABSENT / EXISTS / directory results of a lookup of a path the pilot
+ * never touched, are bounded by {@link #maxCleanEntries} per index. Beyond that the oldest
+ * clean entry and its cached size are dropped and re-stat'ed on the next lookup. All other
+ * entries stay until the pilot's namespace is cleared: tombstones and MODIFIED / OVERLAY /
+ * MEMORY flags exist nowhere else, and a directory move relies on finding every
+ * MATERIALIZED entry under it. They grow only with what the pilot materializes, writes and
+ * deletes.
+ */
+public class ShadowIndex {
+    public static int maxCleanEntries = 1 << 18;
+
+    public static final byte ABSENT = 0;
+    public static final byte EXISTS = 1;
+    public static final byte DIRECTORY = 1 << 1;
+    // 内容与原始文件不同（新建、写过、被move过来）
+    public static final byte MODIFIED = 1 << 2;
+    // shadow目录下已经创建了对应的文件/目录和append log
+    public static final byte MATERIALIZED = 1 << 3;
+    // pilot删除了原始文件
+    public static final byte DELETED = 1 << 4;
+    // shadow文件是一个BlockOverlay，只保存写过的block
+    public static final byte OVERLAY = 1 << 5;
+    // 内容在内存中（MemoryFile），shadow目录下最多有一个空的占位文件
+    public static final byte MEMORY = 1 << 6;
+
+    private final ConcurrentHashMap<Path, Byte> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Path, Long> sizes = new ConcurrentHashMap<>();
+
+    // 干净条目按加入的先后排队，里面可能有已经变成别的状态或重复的path，出队时再判断
+    private final ConcurrentLinkedQueue<Path> cleanOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger cleanQueued = new AtomicInteger();
+
+    public byte lookup(Path absOriginal) {
+        Byte flags = entries.get(absOriginal);
+        if (flags != null) {
+            return flags;
+        }
+        byte resolved = resolve(absOriginal);
+        Byte prev = entries.putIfAbsent(absOriginal, resolved);
+        if (prev != null) {
+            return prev;
+        }
+        if (isClean(resolved)) {
+            addClean(absOriginal);
+        }
+        return resolved;
+    }
+
+    // 可以丢掉、下次lookup重新stat得到同样结果的条目
+    private static boolean isClean(byte flags) {
+        return (flags & ~(EXISTS | DIRECTORY)) == 0;
+    }
+
+    private void addClean(Path absOriginal) {
+        cleanOrder.add(absOriginal);
+        if (cleanQueued.incrementAndGet() > maxCleanEntries) {
+            evictClean();
+        }
+    }
+
+    private void evictClean() {
+        while (cleanQueued.get() > maxCleanEntries) {
+            Path oldest = cleanOrder.poll();
+            if (oldest == null) {
+                return;
+            }
+            cleanQueued.decrementAndGet();
+            // 这期间被写过、删除过的条目不能丢
+            entries.computeIfPresent(oldest, (path, flags) -> isClean(flags) ? null : flags);
+            if (!entries.containsKey(oldest)) {
+                // 大小缓存只是省一次stat，丢掉后按需重新计算
+                sizes.remove(oldest);
+            }
+        }
+    }
+
+    /**
+     * Flags of a path the index already knows, without resolving it; null if unknown
+     */
+    public Byte peek(Path absOriginal) {
+        return entries.get(absOriginal);
+    }
+
+    // 先看shadow（pilot自己创建的文件），再看原始文件
+    private byte resolve(Path absOriginal) {
+        try {
+            if (MemoryFile.exists(absOriginal)) {
+                return EXISTS | MODIFIED | MATERIALIZED | MEMORY;
+            }
+            Path shadowPath = ShadowFileSystem.resolveShadowFSPath(absOriginal);
+            BasicFileAttributes shadowAttrs = readAttributes(shadowPath);
+            if (shadowAttrs != null) {
+                if (shadowAttrs.isDirectory()) {
+                    return EXISTS | DIRECTORY | MATERIALIZED;
+                }
+                Path logPath = ShadowFileSystem.resolveShadowFSAppendLogFilePath(absOriginal);
+                if (AppendLog.isEmpty(logPath)) {
+                    return EXISTS | MATERIALIZED;
+                }
+                if (BlockOverlay.exists(absOriginal)) {
+                    return EXISTS | MODIFIED | MATERIALIZED | OVERLAY;
+                }
+                return EXISTS | MODIFIED | MATERIALIZED;
+            }
+            BasicFileAttributes originalAttrs = readAttributes(absOriginal);
+            if (originalAttrs == null) {
+                return ABSENT;
+            }
+            return originalAttrs.isDirectory() ? (byte) (EXISTS | DIRECTORY) : EXISTS;
+        } catch (IOException e) {
+            return ABSENT;
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    public boolean exists(Path absOriginal) {
+        return exists(lookup(absOriginal));
+    }
+
+    public boolean isDirectory(Path absOriginal) {
+        return isDirectory(lookup(absOriginal));
+    }
+
+    public static boolean exists(byte flags) {
+        return (flags & EXISTS) != 0;
+    }
+
+    public static boolean isDirectory(byte flags) {
+        return (flags & DIRECTORY) != 0;
+    }
+
+    public static boolean isModified(byte flags) {
+        return (flags & MODIFIED) != 0;
+    }
+
+    public static boolean isMaterialized(byte flags) {
+        return (flags & MATERIALIZED) != 0;
+    }
+
+    public static boolean isOverlay(byte flags) {
+        return (flags & OVERLAY) != 0;
+    }
+
+    public static boolean isMemory(byte flags) {
+        return (flags & MEMORY) != 0;
+    }
+
+    public void markMaterialized(Path absOriginal, boolean directory) {
+        entries.put(absOriginal, directory ? (byte) (EXISTS | DIRECTORY | MATERIALIZED) : (byte) (EXISTS | MATERIALIZED));
+    }
+
+    /**
+     * The shadow file was handed out for direct writes, its size is no longer tracked
+     */
+    public void markModified(Path absOriginal) {
+        entries.put(absOriginal, (byte) (EXISTS | MODIFIED | MATERIALIZED));
+        sizes.remove(absOriginal);
+    }
+
+    /**
+     * Modified through the append log; the cached size is kept and updated by the log writers
+     */
+    public void markLogged(Path absOriginal) {
+        entries.put(absOriginal, (byte) (EXISTS | MODIFIED | MATERIALIZED));
+    }
+
+    public void markOverlay(Path absOriginal) {
+        entries.put(absOriginal, (byte) (EXISTS | MODIFIED | MATERIALIZED | OVERLAY));
+        sizes.remove(absOriginal);
+    }
+
+    public void markMemory(Path absOriginal) {
+        entries.put(absOriginal, (byte) (EXISTS | MODIFIED | MATERIALIZED | MEMORY));
+        sizes.remove(absOriginal);
+    }
+
+    public void markDeleted(Path absOriginal) {
+        entries.put(absOriginal, DELETED);
+        sizes.remove(absOriginal);
+    }
+
+    public Long cachedSize(Path absOriginal) {
+        return sizes.get(absOriginal);
+    }
+
+    public void cacheSize(Path absOriginal, long size) {
+        sizes.put(absOriginal, size);
+    }
+
+    public void invalidateSize(Path absOriginal) {
+        sizes.remove(absOriginal);
+    }
+
+    // 以下只更新已经缓存的大小，没缓存的下次查询时再算
+
+    public void growSize(Path absOriginal, long end) {
+        sizes.computeIfPresent(absOriginal, (path, size) -> Math.max(size, end));
+    }
+
+    public void shrinkSize(Path absOriginal, long newSize) {
+        sizes.computeIfPresent(absOriginal, (path, size) -> Math.min(size, newSize));
+    }
+
+    public void updateSize(Path absOriginal, long size) {
+        sizes.computeIfPresent(absOriginal, (path, old) -> size);
+    }
+
+    /**
+     * Drop a path so the next lookup re-stats it, used when a shadow path was handed out
+     * to code that may change it behind the index. Tombstones are kept.
+     */
+    public void forget(Path absOriginal) {
+        sizes.remove(absOriginal);
+        entries.computeIfPresent(absOriginal, (path, flags) -> flags == DELETED ? flags : null);
+    }
+
+    /**
+     * Tombstone every indexed path under a moved-away directory
+     */
+    public void markSubtreeDeleted(Path absRoot) {
+        entries.replaceAll((path, flags) -> path.startsWith(absRoot) ? DELETED : flags);
+        sizes.keySet().removeIf(path -> path.startsWith(absRoot));
+    }
+
+    /**
+     * Forget every indexed path under a directory, so entries are re-resolved from the shadow
+     */
+    public void forgetSubtree(Path absRoot) {
+        entries.keySet().removeIf(path -> path.startsWith(absRoot));
+        sizes.keySet().removeIf(path -> path.startsWith(absRoot));
+    }
+
+    public void clear() {
+        entries.clear();
+        sizes.clear();
+        cleanOrder.clear();
+        cleanQueued.set(0);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
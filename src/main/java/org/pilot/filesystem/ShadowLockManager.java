@@ -0,0 +1,147 @@
+package org.pilot.filesystem;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Per-path lock manager for Shadow FileSystem operations.
+ * File content operations take a striped read/write lock keyed by the shadow path, so
+ * unrelated files proceed in parallel and reads of the same file do not block each other.
+ * Directory structure changes (create, move, delete, tree setup) take the structure lock of
+ * the namespace they work in, so pilots building or tearing down their own trees do not stall
+ * each other.
+ *
+ * Lock order: structure lock first, then file stripes in ascending stripe index. Only
+ * {@link #lockForStructureChange(Path...)} holds more than one stripe; a thread holding a file's
+ * stripe must not call into another shadow channel, so transfers between two shadow channels copy
+ * through a buffer and take one stripe at a time.
+ */
+public class ShadowLockManager {
+    private static final int STRIPES = 1024; // must be a power of two
+
+    private static final ReentrantReadWriteLock[] FILE_LOCKS = new ReentrantReadWriteLock[STRIPES];
+
+    // pilot id -> 该namespace的结构锁；按id而不是namespace对象记，teardown换掉namespace后还是同一把锁
+    private static final ConcurrentHashMap<Integer, ReentrantReadWriteLock> STRUCTURE_LOCKS = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            FILE_LOCKS[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private static ReentrantReadWriteLock structureLock(int pilotId) {
+        ReentrantReadWriteLock lock = STRUCTURE_LOCKS.get(pilotId);
+        return lock != null ? lock : STRUCTURE_LOCKS.computeIfAbsent(pilotId, id -> new ReentrantReadWriteLock());
+    }
+
+    private static ReentrantReadWriteLock structureLock() {
+        return structureLock(ShadowFileSystem.current().pilotId());
+    }
+
+    private static int stripe(Path path) {
+        int h = path.toAbsolutePath().hashCode();
+        h ^= (h >>> 16);
+        return h & (STRIPES - 1);
+    }
+
+    /**
+     * Get the read/write lock guarding the content of a shadow file
+     */
+    public static ReentrantReadWriteLock lockFor(Path shadowPath) {
+        return FILE_LOCKS[stripe(shadowPath)];
+    }
+
+    /**
+     * Shared lock for reading a shadow file
+     */
+    public static Lock readLock(Path shadowPath) {
+        return lockFor(shadowPath).readLock();
+    }
+
+    /**
+     * Exclusive lock for writing or rebuilding a shadow file
+     */
+    public static Lock writeLock(Path shadowPath) {
+        return lockFor(shadowPath).writeLock();
+    }
+
+    /**
+     * Shared structure lock of the current namespace, for listing directories
+     */
+    public static void lockStructureRead() {
+        structureLock().readLock().lock();
+    }
+
+    public static void unlockStructureRead() {
+        structureLock().readLock().unlock();
+    }
+
+    /**
+     * Check if current thread holds the exclusive structure lock of the current namespace
+     */
+    public static boolean isStructureLockHeldByCurrentThread() {
+        return structureLock().isWriteLockedByCurrentThread();
+    }
+
+    /**
+     * Acquire the exclusive structure lock of the current namespace and the write locks of the
+     * given shadow paths. Used for create, move and delete.
+     */
+    public static void lockForStructureChange(Path... shadowPaths) {
+        lock(structureLock(), shadowPaths);
+    }
+
+    /**
+     * Release the locks taken by {@link #lockForStructureChange(Path...)}
+     */
+    public static void unlockForStructureChange(Path... shadowPaths) {
+        unlock(structureLock(), shadowPaths);
+    }
+
+    /**
+     * {@link #lockForStructureChange(Path...)} for a namespace that is not the current one of
+     * this thread, e.g. on the teardown thread
+     */
+    static void lockForStructureChange(ShadowNamespace namespace, Path... shadowPaths) {
+        lock(structureLock(namespace.pilotId()), shadowPaths);
+    }
+
+    static void unlockForStructureChange(ShadowNamespace namespace, Path... shadowPaths) {
+        unlock(structureLock(namespace.pilotId()), shadowPaths);
+    }
+
+    private static void lock(ReentrantReadWriteLock structureLock, Path... shadowPaths) {
+        structureLock.writeLock().lock();
+        for (int stripe : stripes(shadowPaths)) {
+            FILE_LOCKS[stripe].writeLock().lock();
+        }
+    }
+
+    private static void unlock(ReentrantReadWriteLock structureLock, Path... shadowPaths) {
+        int[] stripes = stripes(shadowPaths);
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            FILE_LOCKS[stripes[i]].writeLock().unlock();
+        }
+        structureLock.writeLock().unlock();
+    }
+
+    // 去重并排序，保证多个文件加锁顺序一致，避免死锁
+    private static int[] stripes(Path... shadowPaths) {
+        int[] stripes = new int[shadowPaths.length];
+        for (int i = 0; i < shadowPaths.length; i++) {
+            stripes[i] = stripe(shadowPaths[i]);
+        }
+        Arrays.sort(stripes);
+        int n = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            if (n == 0 || stripes[n - 1] != stripes[i]) {
+                stripes[n++] = stripes[i];
+            }
+        }
+        return Arrays.copyOf(stripes, n);
+    }
+}
@@ -0,0 +1,104 @@
+package org.pilot.filesystem;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shadow state of one pilot: its shadow and append log roots, file entries, index and path
+ * cache. Pilot n works under siblings of {@link ShadowFileSystem#shadowBaseDir} and
+ * {@link ShadowFileSystem#shadowAppendLogDir} suffixed with "-n", so concurrent dry runs
+ * never see or delete each other's files. The default namespace (no pilot id) uses the two
+ * roots themselves.
+ */
+public class ShadowNamespace {
+    public static final int DEFAULT_ID = 0;
+
+    private final int pilotId;
+
+    final Map<Path, ShadowFileState> fileEntries = new ConcurrentHashMap<>();
+    final Set<Path> deletedFiles = Collections.synchronizedSet(new HashSet<>());
+    final ShadowIndex index = new ShadowIndex();
+    final PathTranslationCache pathCache = new PathTranslationCache(this);
+
+    volatile boolean initialized;
+
+    // 派生出的根目录，静态配置被改过之后重新派生
+    private volatile Path configuredBase;
+    private volatile Path configuredLog;
+    private volatile Path shadowRoot;
+    private volatile Path appendLogRoot;
+
+    ShadowNamespace(int pilotId) {
+        this.pilotId = pilotId;
+    }
+
+    public int pilotId() {
+        return pilotId;
+    }
+
+    public boolean isDefault() {
+        return pilotId == DEFAULT_ID;
+    }
+
+    public Path shadowRoot() {
+        Path base = ShadowFileSystem.shadowBaseDir;
+        if (isDefault()) {
+            return base;
+        }
+        if (base != configuredBase) {
+            shadowRoot = pilotRoot(base);
+            configuredBase = base;
+        }
+        return shadowRoot;
+    }
+
+    public Path appendLogRoot() {
+        Path base = ShadowFileSystem.shadowAppendLogDir;
+        if (isDefault()) {
+            return base;
+        }
+        if (base != configuredLog) {
+            appendLogRoot = pilotRoot(base);
+            configuredLog = base;
+        }
+        return appendLogRoot;
+    }
+
+    private Path pilotRoot(Path base) {
+        Path name = base.getFileName();
+        return name == null ? base.resolve("pilot-" + pilotId) : base.resolveSibling(name + "-" + pilotId);
+    }
+
+    public Map<Path, ShadowFileState> fileEntries() {
+        return fileEntries;
+    }
+
+    public ShadowIndex index() {
+        return index;
+    }
+
+    public PathTranslationCache pathCache() {
+        return pathCache;
+    }
+
+    /**
+     * Forget all in-memory state, the on-disk roots are handled by the caller
+     */
+    void clear() {
+        initialized = false;
+        fileEntries.clear();
+        deletedFiles.clear();
+        index.clear();
+        pathCache.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "ShadowNamespace{pilot=" + pilotId + ", shadowRoot=" + shadowRoot()
+                + ", appendLogRoot=" + appendLogRoot() + "}";
+    }
+}
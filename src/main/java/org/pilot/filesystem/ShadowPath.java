@@ -18,7 +18,7 @@ public class ShadowPath {
             return delegetePath.toRealPath(options);
         }
 
-        ShadowFileSystem.initializeFromOriginal();
+        ShadowFileSystem.materializeFile(ShadowFileSystem.getOriginalFSPath(delegetePath.toAbsolutePath()));
         Path shadowPath = ShadowFileSystem.getShadowFSPath(delegetePath);
         return shadowPath.toRealPath(options);
     }
@@ -0,0 +1,429 @@
+package org.pilot.filesystem;
+
+import org.pilot.PilotUtil;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parallel setup and teardown of the shadow trees. Both walks fork one task per directory
+ * on a bounded ForkJoinPool, so big data directories are neither built nor deleted by a
+ * single thread, and teardown runs on a background thread instead of the caller's (e.g. the
+ * ZooKeeper event thread).
+ *
+ * With {@link #trashOnTeardown} the roots are first renamed to a sibling trash directory,
+ * which is one rename per root, so the next pilot can recreate them right away while the
+ * trash is deleted on the pool.
+ */
+public class ShadowTree {
+    // 建树/删树的最大并行度
+    public static int parallelism = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    // true: teardown先把根目录rename成trash目录再后台删除
+    public static boolean trashOnTeardown = true;
+
+    // 每处理多少个条目打印一次进度，<= 0 表示只打印总结
+    public static long progressInterval = 100_000;
+
+    static final String TRASH_INFIX = ".trash-";
+
+    private static volatile ForkJoinPool pool;
+
+    // pilot id -> 根目录还没腾出来的teardown；namespace对象在teardown时已经被换掉，所以按id记
+    private static final ConcurrentHashMap<Integer, CompletableFuture<Void>> pendingTeardowns = new ConcurrentHashMap<>();
+
+    // 正在被删除的trash目录，后面的teardown不要再去删一遍
+    private static final Set<Path> deletingTrash = ConcurrentHashMap.newKeySet();
+
+    // 只做rename和reset，删除交给pool()，下一个pilot的rename不会排在上一个的删除后面
+    private static final ExecutorService teardownExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "pilot-shadow-teardown");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Entry counts and timing of one tree walk
+     */
+    public static final class Progress {
+        private final String operation;
+        private final Path root;
+        private final long startNanos = System.nanoTime();
+        private final LongAdder directories = new LongAdder();
+        private final LongAdder files = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder sinceReport = new LongAdder();
+        private volatile long elapsedNanos = -1;
+
+        Progress(String operation, Path root) {
+            this.operation = operation;
+            this.root = root;
+        }
+
+        public long directories() {
+            return directories.sum();
+        }
+
+        public long files() {
+            return files.sum();
+        }
+
+        public long failures() {
+            return failures.sum();
+        }
+
+        public long elapsedMillis() {
+            long nanos = elapsedNanos >= 0 ? elapsedNanos : System.nanoTime() - startNanos;
+            return nanos / 1_000_000;
+        }
+
+        void directory() {
+            directories.increment();
+            tick();
+        }
+
+        void file() {
+            files.increment();
+            tick();
+        }
+
+        void failure(Path path, IOException e) {
+            failures.increment();
+            PilotUtil.dryRunLog(operation + " failed for " + path + ": " + e);
+        }
+
+        private void tick() {
+            if (progressInterval <= 0) {
+                return;
+            }
+            sinceReport.increment();
+            if (sinceReport.sum() >= progressInterval) {
+                sinceReport.reset();
+                PilotUtil.dryRunLog(operation + " " + root + " in progress: " + this);
+            }
+        }
+
+        Progress finish() {
+            elapsedNanos = System.nanoTime() - startNanos;
+            PilotUtil.dryRunLog(operation + " " + root + " done: " + this);
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return directories() + " dirs, " + files() + " files, " + failures() + " failures, "
+                    + elapsedMillis() + " ms";
+        }
+    }
+
+    static ForkJoinPool pool() {
+        ForkJoinPool p = pool;
+        if (p == null) {
+            synchronized (ShadowTree.class) {
+                p = pool;
+                if (p == null) {
+                    p = new ForkJoinPool(parallelism, fjp -> {
+                        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(fjp);
+                        t.setName("pilot-shadow-tree-" + t.getPoolIndex());
+                        t.setDaemon(true);
+                        return t;
+                    }, null, false);
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Mirror originalRoot into namespace the way the eager walk does: every directory gets a
+     * shadow directory and an append log directory, every file an empty shadow file, an empty
+     * append log and a fileEntries entry. Existing entries are kept.
+     */
+    public static Progress build(ShadowNamespace namespace, Path originalRoot) throws IOException {
+        Path root = originalRoot.toAbsolutePath();
+        Progress progress = new Progress("Shadow tree build", root);
+        if (!Files.isDirectory(root)) {
+            return progress.finish();
+        }
+        List<IOException> errors = new ArrayList<>();
+        pool().invoke(new BuildTask(namespace, root, progress, errors));
+        progress.finish();
+        if (!errors.isEmpty()) {
+            IOException e = errors.get(0);
+            for (int i = 1; i < errors.size(); i++) {
+                e.addSuppressed(errors.get(i));
+            }
+            throw e;
+        }
+        return progress;
+    }
+
+    /**
+     * Delete a directory tree in parallel on the calling thread. Symbolic links are removed,
+     * never followed. Entries that cannot be deleted are counted and logged, not thrown.
+     */
+    public static Progress delete(Path root) {
+        Progress progress = new Progress("Shadow tree delete", root);
+        deleteInto(root, progress);
+        return progress.finish();
+    }
+
+    private static void deleteInto(Path root, Progress progress) {
+        if (Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+            DeleteTask task = new DeleteTask(root, progress);
+            // 已经在pool()的线程上时直接执行，不再提交一次
+            if (ForkJoinTask.getPool() == pool()) {
+                task.invoke();
+            } else {
+                pool().invoke(task);
+            }
+        }
+    }
+
+    /**
+     * Rename root to a fresh sibling trash directory on the same filesystem.
+     *
+     * @return the trash directory, or null if root does not exist or cannot be renamed
+     */
+    public static Path moveToTrash(Path root) {
+        Path parent = root.toAbsolutePath().getParent();
+        if (parent == null || !Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+            return null;
+        }
+        Path trash = parent.resolve(root.getFileName() + TRASH_INFIX + System.nanoTime());
+        try {
+            Files.move(root, trash, StandardCopyOption.ATOMIC_MOVE);
+            return trash;
+        } catch (IOException | UnsupportedOperationException e) {
+            PilotUtil.dryRunLog("Cannot move " + root + " to trash, deleting in place: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Tear down the shadow roots of namespace without blocking the caller. Renaming the roots to
+     * trash and resetting the in-memory state run on the teardown thread; the deletion is a
+     * separate task on the tree pool, so a later teardown's rename never waits behind it. The
+     * next initialization of the same pilot waits until the roots are free, which with
+     * {@link #trashOnTeardown} is right after the rename, otherwise after the deletion. Trash
+     * left behind by earlier teardowns of the same roots is deleted as well.
+     */
+    public static CompletableFuture<Progress> teardownAsync(ShadowNamespace namespace) {
+        int pilotId = namespace.pilotId();
+        CompletableFuture<Void> released = new CompletableFuture<>();
+        // 在返回之前登记并让namespace回到未初始化，同一个pilot的下一次访问会先等rename
+        pendingTeardowns.put(pilotId, released);
+        namespace.initialized = false;
+
+        CompletableFuture<Progress> future = CompletableFuture.supplyAsync(() -> {
+            List<Path> targets = new ArrayList<>();
+            boolean inPlace = false;
+            ShadowLockManager.lockForStructureChange(namespace);
+            try {
+                for (Path root : new Path[]{namespace.shadowRoot(), namespace.appendLogRoot()}) {
+                    targets.addAll(leftoverTrash(root));
+                    Path trash = trashOnTeardown ? moveToTrash(root) : null;
+                    if (trash != null) {
+                        deletingTrash.add(trash);
+                    } else if (Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+                        inPlace = true;
+                    }
+                    targets.add(trash != null ? trash : root);
+                }
+                ShadowFileSystem.reset(namespace);
+            } finally {
+                ShadowLockManager.unlockForStructureChange(namespace);
+            }
+            if (!inPlace) {
+                released.complete(null);
+            }
+            return targets;
+        }, teardownExecutor).thenApplyAsync(targets -> {
+            Progress progress = new Progress("Shadow tree teardown", namespace.shadowRoot());
+            try {
+                for (Path target : targets) {
+                    deleteInto(target, progress);
+                }
+            } finally {
+                deletingTrash.removeAll(targets);
+            }
+            return progress.finish();
+        }, pool());
+        future.whenComplete((progress, e) -> {
+            released.complete(null);
+            pendingTeardowns.remove(pilotId, released);
+        });
+        return future;
+    }
+
+    /**
+     * Wait for a teardown of the pilot of namespace that has not freed its roots yet
+     */
+    static void awaitTeardown(ShadowNamespace namespace) {
+        CompletableFuture<?> pending = pendingTeardowns.get(namespace.pilotId());
+        if (pending == null || pending.isDone()) {
+            return;
+        }
+        PilotUtil.dryRunLog("Waiting for shadow tree teardown of " + namespace + " to finish");
+        try {
+            pending.join();
+        } catch (RuntimeException e) {
+            PilotUtil.dryRunLog("Shadow tree teardown failed: " + e);
+        }
+    }
+
+    private static List<Path> leftoverTrash(Path root) {
+        List<Path> result = new ArrayList<>();
+        Path parent = root.toAbsolutePath().getParent();
+        if (parent == null || root.getFileName() == null) {
+            return result;
+        }
+        String prefix = root.getFileName() + TRASH_INFIX;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(parent, prefix + "*")) {
+            for (Path p : stream) {
+                // 已经有删除任务在处理的跳过；登记成功的归这次teardown删
+                if (deletingTrash.add(p)) {
+                    result.add(p);
+                }
+            }
+        } catch (IOException e) {
+            // 父目录不可读时忽略，trash以后再清理
+        }
+        return result;
+    }
+
+    private static final class BuildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ShadowNamespace namespace;
+        private final Path dir;
+        private final Progress progress;
+        private final List<IOException> errors;
+
+        BuildTask(ShadowNamespace namespace, Path dir, Progress progress, List<IOException> errors) {
+            this.namespace = namespace;
+            this.dir = dir;
+            this.progress = progress;
+            this.errors = errors;
+        }
+
+        @Override
+        protected void compute() {
+            List<BuildTask> subtasks = new ArrayList<>();
+            // 工作线程没有Baggage，路径解析要用所属的namespace
+            ShadowNamespace previous = ShadowFileSystem.bind(namespace);
+            try {
+                Files.createDirectories(ShadowFileSystem.resolveShadowFSPath(dir));
+                Files.createDirectories(ShadowFileSystem.resolveShadowFSAppendLogDirPath(dir));
+                progress.directory();
+
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path child : stream) {
+                        Path absChild = child.toAbsolutePath();
+                        if (Files.isDirectory(absChild, LinkOption.NOFOLLOW_LINKS)) {
+                            BuildTask task = new BuildTask(namespace, absChild, progress, errors);
+                            task.fork();
+                            subtasks.add(task);
+                        } else {
+                            buildFile(absChild);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                progress.failure(dir, e);
+                synchronized (errors) {
+                    errors.add(e);
+                }
+            } finally {
+                ShadowFileSystem.unbind(previous);
+            }
+            ForkJoinTask.invokeAll(subtasks);
+        }
+
+        private void buildFile(Path absFile) throws IOException {
+            Path shadowFile = ShadowFileSystem.resolveShadowFSPath(absFile);
+            Path shadowLogFile = ShadowFileSystem.resolveShadowFSAppendLogFilePath(absFile);
+            if (!Files.exists(shadowFile)) {
+                Files.createFile(shadowFile);
+            }
+            if (!Files.exists(shadowLogFile)) {
+                Files.createFile(shadowLogFile);
+            }
+            namespace.fileEntries.put(absFile, new ShadowFileState(absFile, namespace.shadowRoot()));
+            progress.file();
+        }
+    }
+
+    private static final class DeleteTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final Progress progress;
+
+        DeleteTask(Path dir, Progress progress) {
+            this.dir = dir;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            List<DeleteTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (NoSuchFileException e) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        DeleteTask task = new DeleteTask(child, progress);
+                        task.fork();
+                        subtasks.add(task);
+                    } else {
+                        deleteEntry(child);
+                        progress.file();
+                    }
+                }
+            } catch (IOException e) {
+                // 不是目录（root本身是文件或链接）时直接删掉
+                if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+                    deleteEntry(dir);
+                    progress.file();
+                    return;
+                }
+                progress.failure(dir, e);
+            }
+            ForkJoinTask.invokeAll(subtasks);
+            deleteEntry(dir);
+            progress.directory();
+        }
+
+        private void deleteEntry(Path path) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                progress.failure(path, e);
+            }
+        }
+    }
+}
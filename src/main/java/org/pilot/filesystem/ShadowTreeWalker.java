@@ -0,0 +1,77 @@
+package org.pilot.filesystem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Path;
+
+/**
+ * Depth-first walk of the pilot's view of a tree, with the semantics of
+ * {@link java.nio.file.Files#walkFileTree(Path, FileVisitor)} (links not followed). Directories
+ * are listed with {@link ShadowDirectoryStream}, so the visitor gets original paths and lazy
+ * attributes, and no part of the tree is materialized.
+ */
+class ShadowTreeWalker {
+    private final FileVisitor<? super Path> visitor;
+
+    ShadowTreeWalker(FileVisitor<? super Path> visitor) {
+        this.visitor = visitor;
+    }
+
+    /**
+     * @param start absolute original path
+     */
+    void walk(Path start) throws IOException {
+        visit(start);
+    }
+
+    private FileVisitResult visit(Path path) throws IOException {
+        ShadowFileAttributes attrs;
+        try {
+            attrs = ShadowFileAttributes.of(path);
+        } catch (IOException e) {
+            return visitor.visitFileFailed(path, e);
+        }
+        if (!attrs.isDirectory()) {
+            return visitor.visitFile(path, attrs);
+        }
+
+        ShadowDirectoryStream stream;
+        try {
+            stream = new ShadowDirectoryStream(path, true, null);
+        } catch (IOException e) {
+            return visitor.visitFileFailed(path, e);
+        }
+        IOException failure = null;
+        try {
+            FileVisitResult result = visitor.preVisitDirectory(path, attrs);
+            if (result != FileVisitResult.CONTINUE) {
+                // SKIP_SUBTREE对上一层来说就是CONTINUE
+                return result == FileVisitResult.SKIP_SUBTREE ? FileVisitResult.CONTINUE : result;
+            }
+            try {
+                for (Path entry : stream) {
+                    result = visit(entry);
+                    if (result == FileVisitResult.TERMINATE) {
+                        return result;
+                    }
+                    if (result == FileVisitResult.SKIP_SIBLINGS) {
+                        break;
+                    }
+                }
+            } catch (DirectoryIteratorException e) {
+                failure = e.getCause();
+            }
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        return visitor.postVisitDirectory(path, failure);
+    }
+}
@@ -0,0 +1,421 @@
+package org.pilot.persistent;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable hash array mapped trie. put and remove copy the path from the root to the changed
+ * slot (at most seven 32-way levels) and share everything else with the map they started from.
+ */
+public final class HashTrieMap<K, V> implements Iterable<Map.Entry<K, V>> {
+    // null键在树里用这个代替，null在槽位里表示子节点
+    private static final Object NULL_KEY = new Object();
+
+    private static final HashTrieMap<?, ?> EMPTY = new HashTrieMap<>(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private HashTrieMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> HashTrieMap<K, V> empty() {
+        return (HashTrieMap<K, V>) EMPTY;
+    }
+
+    /**
+     * Builds the trie in place, so a large map costs one pass instead of a path copy per entry.
+     */
+    public static <K, V> HashTrieMap<K, V> of(Map<? extends K, ? extends V> map) {
+        Builder builder = new Builder();
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            builder.put(entry.getKey(), entry.getValue());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Same as {@link #of(Map)} for a set, every key mapped to TRUE.
+     */
+    public static <K> HashTrieMap<K, Boolean> ofKeys(Collection<? extends K> keys) {
+        Builder builder = new Builder();
+        for (K key : keys) {
+            builder.put(key, Boolean.TRUE);
+        }
+        return builder.build();
+    }
+
+    private static final class Builder {
+        // 只有带这个edit的节点可以原地改，build之后再没人拿得到它
+        private final Object edit = new Object();
+        private final boolean[] added = new boolean[1];
+        private Node root = BitmapNode.EMPTY;
+        private int size;
+
+        void put(Object key, Object value) {
+            Object masked = mask(key);
+            added[0] = false;
+            root = root.put(edit, 0, hash(masked), masked, value, added);
+            if (added[0]) {
+                size++;
+            }
+        }
+
+        <K, V> HashTrieMap<K, V> build() {
+            return size == 0 ? empty() : new HashTrieMap<>(root, size);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(Object key) {
+        Object masked = mask(key);
+        return root != null && root.find(0, hash(masked), masked, NULL_KEY) != NULL_KEY;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (root == null) {
+            return null;
+        }
+        Object masked = mask(key);
+        Object value = root.find(0, hash(masked), masked, NULL_KEY);
+        return value == NULL_KEY ? null : (V) value;
+    }
+
+    public HashTrieMap<K, V> put(K key, V value) {
+        Object masked = mask(key);
+        boolean[] added = new boolean[1];
+        Node newRoot = (root == null ? BitmapNode.EMPTY : root).put(null, 0, hash(masked), masked, value, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new HashTrieMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    public HashTrieMap<K, V> remove(Object key) {
+        if (root == null) {
+            return this;
+        }
+        Object masked = mask(key);
+        Node newRoot = root.remove(0, hash(masked), masked);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? empty() : new HashTrieMap<>(newRoot, size - 1);
+    }
+
+    /**
+     * Entries in trie order; they do not write through.
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new EntryIterator<>(root);
+    }
+
+    private static Object mask(Object key) {
+        return key == null ? NULL_KEY : key;
+    }
+
+    private static Object unmask(Object key) {
+        return key == NULL_KEY ? null : key;
+    }
+
+    private static int hash(Object key) {
+        // 和HashMap一样把高位混进来
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    private static Object[] removePair(Object[] array, int pairs, int index) {
+        Object[] copy = new Object[2 * (pairs - 1)];
+        System.arraycopy(array, 0, copy, 0, 2 * index);
+        System.arraycopy(array, 2 * (index + 1), copy, 2 * index, copy.length - 2 * index);
+        return copy;
+    }
+
+    /**
+     * Nodes whose edit matches the caller's edit token belong to a map still being built and are
+     * changed in place; every other node is copied.
+     */
+    private abstract static class Node {
+        final Object edit;
+
+        Node(Object edit) {
+            this.edit = edit;
+        }
+
+        abstract Object find(int shift, int hash, Object key, Object notFound);
+
+        abstract Node put(Object edit, int shift, int hash, Object key, Object value, boolean[] added);
+
+        /**
+         * @return this when the key is absent, null when the node became empty
+         */
+        abstract Node remove(int shift, int hash, Object key);
+
+        abstract Object[] array();
+
+        boolean owned(Object edit) {
+            return edit != null && this.edit == edit;
+        }
+    }
+
+    // 每个槽位两格：键和值，或者null和子节点
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        int bitmap;
+        Object[] array;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            super(edit);
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key, Object notFound) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return notFound;
+            }
+            int idx = index(bit);
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null) {
+                return ((Node) v).find(shift + 5, hash, key, notFound);
+            }
+            return key.equals(k) ? v : notFound;
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = bit(hash, shift);
+            int idx = index(bit);
+            if ((bitmap & bit) != 0) {
+                Object k = array[2 * idx];
+                Object v = array[2 * idx + 1];
+                if (k == null) {
+                    Node child = ((Node) v).put(edit, shift + 5, hash, key, value, added);
+                    return child == v ? this : set(edit, 2 * idx + 1, child);
+                }
+                if (key.equals(k)) {
+                    return v == value ? this : set(edit, 2 * idx + 1, value);
+                }
+                added[0] = true;
+                Node child = pair(edit, shift + 5, k, v, hash, key, value);
+                BitmapNode node = (BitmapNode) set(edit, 2 * idx, null);
+                node.array[2 * idx + 1] = child;
+                return node;
+            }
+
+            added[0] = true;
+            int pairs = Integer.bitCount(bitmap);
+            if (owned(edit) && 2 * pairs < array.length) {
+                System.arraycopy(array, 2 * idx, array, 2 * (idx + 1), 2 * (pairs - idx));
+                array[2 * idx] = key;
+                array[2 * idx + 1] = value;
+                bitmap |= bit;
+                return this;
+            }
+            // 构建时多留点空位，少复制几次
+            Object[] grown = new Object[2 * (edit != null ? Math.min(32, pairs + 4) : pairs + 1)];
+            System.arraycopy(array, 0, grown, 0, 2 * idx);
+            grown[2 * idx] = key;
+            grown[2 * idx + 1] = value;
+            System.arraycopy(array, 2 * idx, grown, 2 * (idx + 1), 2 * (pairs - idx));
+            return new BitmapNode(edit, bitmap | bit, grown);
+        }
+
+        private Node set(Object edit, int i, Object value) {
+            if (owned(edit)) {
+                array[i] = value;
+                return this;
+            }
+            Object[] copy = array.clone();
+            copy[i] = value;
+            return new BitmapNode(edit, bitmap, copy);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int idx = index(bit);
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(shift + 5, hash, key);
+                if (child == v) {
+                    return this;
+                }
+                if (child != null) {
+                    return set(null, 2 * idx + 1, child);
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            return new BitmapNode(null, bitmap ^ bit, removePair(array, Integer.bitCount(bitmap), idx));
+        }
+
+        @Override
+        Object[] array() {
+            return array;
+        }
+    }
+
+    // hash完全相同的键
+    private static final class CollisionNode extends Node {
+        final int hash;
+        final Object[] array;
+
+        CollisionNode(Object edit, int hash, Object[] array) {
+            super(edit);
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key, Object notFound) {
+            int i = indexOf(key);
+            return i < 0 ? notFound : array[i + 1];
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                // 挂到一个新的位图节点下面再插入
+                return new BitmapNode(edit, bit(this.hash, shift), new Object[]{null, this})
+                        .put(edit, shift, hash, key, value, added);
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) {
+                    return this;
+                }
+                Object[] copy = array.clone();
+                copy[i + 1] = value;
+                return new CollisionNode(edit, hash, copy);
+            }
+            added[0] = true;
+            Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            grown[array.length] = key;
+            grown[array.length + 1] = value;
+            return new CollisionNode(edit, hash, grown);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            int i = indexOf(key);
+            if (i < 0) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            return new CollisionNode(null, hash, removePair(array, array.length / 2, i / 2));
+        }
+
+        @Override
+        Object[] array() {
+            return array;
+        }
+    }
+
+    private static Node pair(Object edit, int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+        int h1 = hash(k1);
+        if (h1 == h2) {
+            return new CollisionNode(edit, h1, new Object[]{k1, v1, k2, v2});
+        }
+        boolean[] ignored = new boolean[1];
+        return BitmapNode.EMPTY.put(edit, shift, h1, k1, v1, ignored).put(edit, shift, h2, k2, v2, ignored);
+    }
+
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        // 每层记住数组和下一个要看的位置
+        private final ArrayDeque<Object[]> arrays = new ArrayDeque<>();
+        private final ArrayDeque<int[]> positions = new ArrayDeque<>();
+        private Map.Entry<K, V> next;
+
+        EntryIterator(Node root) {
+            if (root != null) {
+                arrays.push(root.array());
+                positions.push(new int[1]);
+            }
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (!arrays.isEmpty()) {
+                Object[] array = arrays.peek();
+                int[] pos = positions.peek();
+                if (pos[0] >= array.length) {
+                    arrays.pop();
+                    positions.pop();
+                    continue;
+                }
+                Object k = array[pos[0]];
+                Object v = array[pos[0] + 1];
+                pos[0] += 2;
+                if (k != null) {
+                    next = new AbstractMap.SimpleImmutableEntry<>((K) unmask(k), (V) v);
+                    return;
+                }
+                if (v != null) {
+                    arrays.push(((Node) v).array());
+                    positions.push(new int[1]);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> entry = next;
+            advance();
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.pilot.persistent;
+
+import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Mutable {@link List} over a {@link TrieVector}. set, add at the end and removing the last
+ * element path-copy the vector; inserting or removing anywhere else rebuilds it once.
+ */
+public class SharedList<E> extends AbstractList<E> implements RandomAccess {
+    private TrieVector<E> vector;
+
+    public SharedList(TrieVector<E> vector) {
+        this.vector = vector;
+    }
+
+    public TrieVector<E> vector() {
+        return vector;
+    }
+
+    @Override
+    public E get(int index) {
+        return vector.get(index);
+    }
+
+    @Override
+    public int size() {
+        return vector.size();
+    }
+
+    @Override
+    public E set(int index, E element) {
+        E previous = vector.get(index);
+        vector = vector.set(index, element);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        if (index < 0 || index > vector.size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + vector.size());
+        }
+        modCount++;
+        if (index == vector.size()) {
+            vector = vector.add(element);
+            return;
+        }
+        List<E> elements = elements();
+        elements.add(index, element);
+        vector = TrieVector.of(elements);
+    }
+
+    @Override
+    public E remove(int index) {
+        E previous = vector.get(index);
+        modCount++;
+        if (index == vector.size() - 1) {
+            vector = vector.removeLast();
+            return previous;
+        }
+        List<E> elements = elements();
+        elements.remove(index);
+        vector = TrieVector.of(elements);
+        return previous;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        modCount++;
+        List<E> elements = elements();
+        elements.subList(fromIndex, toIndex).clear();
+        vector = TrieVector.of(elements);
+    }
+
+    @Override
+    public void clear() {
+        modCount++;
+        vector = TrieVector.empty();
+    }
+
+    private List<E> elements() {
+        List<E> elements = new ArrayList<>(vector.size() + 1);
+        for (E e : vector) {
+            elements.add(e);
+        }
+        return elements;
+    }
+}
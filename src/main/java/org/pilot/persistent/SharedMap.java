@@ -0,0 +1,108 @@
+package org.pilot.persistent;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mutable {@link Map} over a {@link HashTrieMap}. Writes replace the trie with a path-copied
+ * one, so the trie it started from can be shared with other maps. Iterators walk the trie as it
+ * was when they were created and never throw ConcurrentModificationException.
+ */
+public class SharedMap<K, V> extends AbstractMap<K, V> {
+    private HashTrieMap<K, V> trie;
+
+    public SharedMap(HashTrieMap<K, V> trie) {
+        this.trie = trie;
+    }
+
+    public HashTrieMap<K, V> trie() {
+        return trie;
+    }
+
+    @Override
+    public int size() {
+        return trie.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return trie.containsKey(key);
+    }
+
+    @Override
+    public V get(Object key) {
+        return trie.get(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        V previous = trie.get(key);
+        trie = trie.put(key, value);
+        return previous;
+    }
+
+    @Override
+    public V remove(Object key) {
+        V previous = trie.get(key);
+        trie = trie.remove(key);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        trie = HashTrieMap.empty();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                Iterator<Map.Entry<K, V>> entries = trie.iterator();
+                return new Iterator<Map.Entry<K, V>>() {
+                    private Map.Entry<K, V> last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<K, V> next() {
+                        Map.Entry<K, V> entry = entries.next();
+                        last = entry;
+                        return new SimpleEntry<K, V>(entry) {
+                            @Override
+                            public V setValue(V value) {
+                                super.setValue(value);
+                                return put(getKey(), value);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last == null) {
+                            throw new IllegalStateException();
+                        }
+                        SharedMap.this.remove(last.getKey());
+                        last = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return trie.size();
+            }
+
+            @Override
+            public void clear() {
+                SharedMap.this.clear();
+            }
+        };
+    }
+}
@@ -0,0 +1,81 @@
+package org.pilot.persistent;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mutable {@link Set} over the keys of a {@link HashTrieMap}, with the same sharing and
+ * iteration behaviour as {@link SharedMap}.
+ */
+public class SharedSet<E> extends AbstractSet<E> {
+    private HashTrieMap<E, Boolean> trie;
+
+    public SharedSet(HashTrieMap<E, Boolean> trie) {
+        this.trie = trie;
+    }
+
+    public HashTrieMap<E, Boolean> trie() {
+        return trie;
+    }
+
+    @Override
+    public int size() {
+        return trie.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return trie.containsKey(o);
+    }
+
+    @Override
+    public boolean add(E e) {
+        HashTrieMap<E, Boolean> updated = trie.put(e, Boolean.TRUE);
+        boolean added = updated.size() != trie.size();
+        trie = updated;
+        return added;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        HashTrieMap<E, Boolean> updated = trie.remove(o);
+        boolean removed = updated != trie;
+        trie = updated;
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        trie = HashTrieMap.empty();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        Iterator<Map.Entry<E, Boolean>> entries = trie.iterator();
+        return new Iterator<E>() {
+            private Map.Entry<E, Boolean> last;
+
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public E next() {
+                last = entries.next();
+                return last.getKey();
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                SharedSet.this.remove(last.getKey());
+                last = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,229 @@
+package org.pilot.persistent;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable vector kept as a 32-way trie plus a tail of up to 32 elements. set copies one path
+ * of the trie, add and removeLast usually copy only the tail.
+ */
+public final class TrieVector<E> implements Iterable<E> {
+    private static final Object[] EMPTY_NODE = new Object[32];
+    private static final TrieVector<?> EMPTY = new TrieVector<>(0, 5, EMPTY_NODE, new Object[0]);
+
+    private final int size;
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+
+    private TrieVector(int size, int shift, Object[] root, Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E> TrieVector<E> empty() {
+        return (TrieVector<E>) EMPTY;
+    }
+
+    /**
+     * Builds the trie bottom up from full 32-element leaves; the rest goes to the tail.
+     */
+    public static <E> TrieVector<E> of(Collection<? extends E> elements) {
+        Object[] all = elements.toArray();
+        int size = all.length;
+        if (size == 0) {
+            return empty();
+        }
+        int tailOffset = tailOffset(size);
+        Object[] tail = new Object[size - tailOffset];
+        System.arraycopy(all, tailOffset, tail, 0, tail.length);
+
+        Object[][] level = new Object[tailOffset >>> 5][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = new Object[32];
+            System.arraycopy(all, i << 5, level[i], 0, 32);
+        }
+        int shift = 5;
+        // 每32个节点收成一个父节点，直到根能装下
+        while (level.length > 32) {
+            Object[][] parents = new Object[(level.length + 31) >>> 5][];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = new Object[32];
+                System.arraycopy(level, i << 5, parents[i], 0, Math.min(32, level.length - (i << 5)));
+            }
+            level = parents;
+            shift += 5;
+        }
+        Object[] root = new Object[32];
+        System.arraycopy(level, 0, root, 0, level.length);
+        return new TrieVector<>(size, shift, root, tail);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int tailOffset(int size) {
+        return size < 32 ? 0 : ((size - 1) >>> 5) << 5;
+    }
+
+    private Object[] leafFor(int index) {
+        if (index >= tailOffset(size)) {
+            return tail;
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= 5) {
+            node = (Object[]) node[(index >>> level) & 31];
+        }
+        return node;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        checkIndex(index);
+        return (E) leafFor(index)[index & 31];
+    }
+
+    public TrieVector<E> set(int index, E element) {
+        checkIndex(index);
+        if (index >= tailOffset(size)) {
+            Object[] newTail = tail.clone();
+            newTail[index & 31] = element;
+            return new TrieVector<>(size, shift, root, newTail);
+        }
+        return new TrieVector<>(size, shift, set(shift, root, index, element), tail);
+    }
+
+    private static Object[] set(int level, Object[] node, int index, Object element) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[index & 31] = element;
+        } else {
+            int child = (index >>> level) & 31;
+            copy[child] = set(level - 5, (Object[]) node[child], index, element);
+        }
+        return copy;
+    }
+
+    public TrieVector<E> add(E element) {
+        if (size - tailOffset(size) < 32) {
+            Object[] newTail = new Object[tail.length + 1];
+            System.arraycopy(tail, 0, newTail, 0, tail.length);
+            newTail[tail.length] = element;
+            return new TrieVector<>(size + 1, shift, root, newTail);
+        }
+        // tail满了，挂进树里
+        Object[] newRoot;
+        int newShift = shift;
+        if ((size >>> 5) > (1 << shift)) {
+            newRoot = new Object[32];
+            newRoot[0] = root;
+            newRoot[1] = path(shift, tail);
+            newShift += 5;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new TrieVector<>(size + 1, newShift, newRoot, new Object[]{element});
+    }
+
+    private Object[] pushTail(int level, Object[] parent, Object[] leaf) {
+        int child = ((size - 1) >>> level) & 31;
+        Object[] copy = parent.clone();
+        if (level == 5) {
+            copy[child] = leaf;
+        } else {
+            Object[] existing = (Object[]) parent[child];
+            copy[child] = existing != null ? pushTail(level - 5, existing, leaf) : path(level - 5, leaf);
+        }
+        return copy;
+    }
+
+    private static Object[] path(int level, Object[] leaf) {
+        if (level == 0) {
+            return leaf;
+        }
+        Object[] node = new Object[32];
+        node[0] = path(level - 5, leaf);
+        return node;
+    }
+
+    public TrieVector<E> removeLast() {
+        if (size == 0) {
+            throw new IllegalStateException("empty vector");
+        }
+        if (size == 1) {
+            return empty();
+        }
+        if (size - tailOffset(size) > 1) {
+            Object[] newTail = new Object[tail.length - 1];
+            System.arraycopy(tail, 0, newTail, 0, newTail.length);
+            return new TrieVector<>(size - 1, shift, root, newTail);
+        }
+        // tail只剩一个，树里最后一片叶子变成新的tail
+        Object[] newTail = leafFor(size - 2);
+        Object[] newRoot = popTail(shift, root);
+        int newShift = shift;
+        if (newRoot == null) {
+            newRoot = EMPTY_NODE;
+        }
+        if (shift > 5 && newRoot[1] == null) {
+            newRoot = (Object[]) newRoot[0];
+            newShift -= 5;
+        }
+        return new TrieVector<>(size - 1, newShift, newRoot, newTail);
+    }
+
+    private Object[] popTail(int level, Object[] node) {
+        int child = ((size - 2) >>> level) & 31;
+        if (level > 5) {
+            Object[] newChild = popTail(level - 5, (Object[]) node[child]);
+            if (newChild == null && child == 0) {
+                return null;
+            }
+            Object[] copy = node.clone();
+            copy[child] = newChild;
+            return copy;
+        } else if (child == 0) {
+            return null;
+        }
+        Object[] copy = node.clone();
+        copy[child] = null;
+        return copy;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private int index;
+            private Object[] leaf;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                // 一片叶子只找一次
+                if ((index & 31) == 0 || leaf == null) {
+                    leaf = leafFor(index);
+                }
+                return (E) leaf[index++ & 31];
+            }
+        };
+    }
+}
@@ -0,0 +1,228 @@
+package cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PilotCacheTest {
+    private static final String DIR = "/pilot-cache-test";
+    private static final String FILE = DIR + "/a";
+
+    private long maxBytes;
+    private int shardCount;
+    private int maxFiles;
+    private int readAheadBlocks;
+    private boolean watchExternalChanges;
+    private Predicate<String> managedPaths;
+
+    @Before
+    public void setUp() {
+        maxBytes = PilotCache.maxBytes;
+        shardCount = PilotCache.shardCount;
+        maxFiles = PilotCache.maxFiles;
+        readAheadBlocks = PilotCache.readAheadBlocks;
+        watchExternalChanges = PilotCache.watchExternalChanges;
+        managedPaths = PilotCache.managedPaths;
+        // 这些文件不存在，不能让预读去读它们；也没有外部修改要发现
+        PilotCache.readAheadBlocks = 0;
+        PilotCache.managedPaths = path -> path.startsWith(DIR);
+        PilotCache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        PilotCache.maxBytes = maxBytes;
+        PilotCache.shardCount = shardCount;
+        PilotCache.maxFiles = maxFiles;
+        PilotCache.readAheadBlocks = readAheadBlocks;
+        PilotCache.watchExternalChanges = watchExternalChanges;
+        PilotCache.managedPaths = managedPaths;
+        PilotCache.clear();
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    @Test
+    public void readsAnyRangeInsideCachedBlocks() {
+        int block = PilotCache.blockSize;
+        byte[] data = data(3 * block, 1);
+        PilotCache.put(FILE, 0, data);
+
+        assertArrayEquals(Arrays.copyOfRange(data, 10, 20), PilotCache.get(FILE, 10, 10));
+        assertArrayEquals(Arrays.copyOfRange(data, block - 5, 2 * block + 5), PilotCache.get(FILE, block - 5, block + 10));
+        assertNull(PilotCache.get(FILE, 3 * block - 1, 2));
+        assertNull(PilotCache.get(DIR + "/other", 0, 10));
+    }
+
+    @Test
+    public void invalidateMakesCachedBlocksMisses() {
+        PilotCache.put(FILE, 0, data(100, 2));
+        assertNotNull(PilotCache.get(FILE, 0, 100));
+
+        PilotCache.invalidate(FILE);
+        assertNull(PilotCache.get(FILE, 0, 100));
+
+        byte[] fresh = data(100, 3);
+        PilotCache.put(FILE, 0, fresh);
+        assertArrayEquals(fresh, PilotCache.get(FILE, 0, 100));
+    }
+
+    @Test
+    public void putIfCurrentDropsDataReadBeforeInvalidate() {
+        long generation = PilotCache.generation(FILE);
+        PilotCache.invalidate(FILE);
+
+        assertFalse(PilotCache.putIfCurrent(FILE, 0, data(10, 4), generation));
+        assertNull(PilotCache.get(FILE, 0, 10));
+        assertTrue(PilotCache.putIfCurrent(FILE, 0, data(10, 4), PilotCache.generation(FILE)));
+        assertNotNull(PilotCache.get(FILE, 0, 10));
+    }
+
+    @Test
+    public void changedTimestampStartsNewGeneration() {
+        long next = PilotCache.blockSize;
+        PilotCache.put(FILE, 0, data(10, 5), 1000L);
+        PilotCache.put(FILE, next, data(10, 5), 2000L);
+
+        assertNull(PilotCache.get(FILE, 0, 10));
+        assertNotNull(PilotCache.get(FILE, next, 10));
+    }
+
+    @Test
+    public void invalidateUnderMatchesWholePathComponents() {
+        String sibling = DIR + "-sibling/a";
+        PilotCache.put(FILE, 0, data(10, 6));
+        PilotCache.put(sibling, 0, data(10, 6));
+
+        PilotCache.invalidateUnder(DIR);
+        assertNull(PilotCache.get(FILE, 0, 10));
+        assertNotNull(PilotCache.get(sibling, 0, 10));
+    }
+
+    @Test
+    public void evictionKeepsCacheUnderBudget() {
+        int block = PilotCache.blockSize;
+        PilotCache.maxBytes = 8L * block;
+        PilotCache.shardCount = 1;
+        PilotCache.clear();
+
+        byte[] data = data(block, 7);
+        for (int i = 0; i < 64; i++) {
+            PilotCache.put(FILE, (long) i * block, data);
+        }
+        assertTrue(PilotCache.bytes() <= PilotCache.maxBytes);
+        assertTrue(PilotCache.size() <= 8);
+        PilotCache.Stats stats = PilotCache.stats();
+        assertTrue(stats.evictions + stats.rejections > 0);
+    }
+
+    @Test
+    public void frequentlyReadBlocksSurviveScan() {
+        int block = PilotCache.blockSize;
+        PilotCache.maxBytes = 16L * block;
+        PilotCache.shardCount = 1;
+        PilotCache.clear();
+
+        byte[] data = data(block, 8);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 8; i++) {
+                if (PilotCache.get(FILE, (long) i * block, 10) == null) {
+                    PilotCache.put(FILE, (long) i * block, data);
+                }
+            }
+        }
+        for (int i = 100; i < 400; i++) {
+            if (PilotCache.get(FILE, (long) i * block, 10) == null) {
+                PilotCache.put(FILE, (long) i * block, data);
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            assertNotNull("block " + i, PilotCache.get(FILE, (long) i * block, 10));
+        }
+    }
+
+    @Test
+    public void droppedFileStateDoesNotResurrectBlocks() {
+        PilotCache.maxFiles = 8;
+        PilotCache.put(FILE, 0, data(10, 9));
+        PilotCache.invalidate(FILE);
+        for (int i = 0; i < 64; i++) {
+            PilotCache.generation(DIR + "/filler" + i);
+        }
+        // FILE的状态可能已经被丢掉重建，旧块的generation也不能再对上
+        assertNull(PilotCache.get(FILE, 0, 10));
+        PilotCache.generation(FILE);
+        assertNull(PilotCache.get(FILE, 0, 10));
+    }
+
+    @Test
+    public void distinctFilesDoNotAlias() {
+        PilotCache.put(FILE, 0, data(10, 10));
+        PilotCache.put(DIR + "/b", 0, data(10, 11));
+
+        assertArrayEquals(data(10, 10), PilotCache.get(FILE, 0, 10));
+        assertArrayEquals(data(10, 11), PilotCache.get(DIR + "/b", 0, 10));
+    }
+
+    @Test
+    public void watcherInvalidatesExternalWrite() throws Exception {
+        Path file = Files.createTempFile("pilotcache", ".bin");
+        try {
+            String path = file.toString();
+            Files.write(file, data(100, 12));
+            PilotCache.put(path, 0, data(100, 12));
+            assertNotNull(PilotCache.get(path, 0, 100));
+
+            // 应用自己用普通的NIO改了原文件，没有经过影子文件系统
+            Files.write(file, data(100, 13));
+            boolean stale = true;
+            for (int i = 0; i < 200 && stale; i++) {
+                Thread.sleep(50);
+                stale = PilotCache.get(path, 0, 100) != null;
+            }
+            assertFalse(stale);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void unwatchedFileIsRevalidatedByModificationTime() throws Exception {
+        PilotCache.watchExternalChanges = false;
+        Path file = Files.createTempFile("pilotcache", ".bin");
+        try {
+            String path = file.toString();
+            Files.write(file, data(100, 14));
+            PilotCache.put(path, 0, data(100, 14));
+            assertNotNull(PilotCache.get(path, 0, 100));
+
+            Files.write(file, data(100, 15));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 5000));
+            assertNull(PilotCache.get(path, 0, 100));
+
+            Files.delete(file);
+            PilotCache.put(path, 0, data(100, 15));
+            assertNull(PilotCache.get(path, 0, 100));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.pilot;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class CollectionSnapshotsTest {
+
+    private int copies;
+
+    @Before
+    public void setUp() {
+        // 较新的JDK没有open java.util时读不到modCount，State会照旧立即复制
+        assumeTrue(CollectionSnapshots.supports(HashSet.class));
+        copies = 0;
+    }
+
+    private Set<String> snapshot(Set<String> original) {
+        return CollectionSnapshots.set(original, set -> {
+            copies++;
+            return new HashSet<>(set);
+        });
+    }
+
+    @Test
+    public void readsGoToOriginalUntilWrite() {
+        Set<String> original = new HashSet<>(Arrays.asList("a", "b"));
+        Set<String> snapshot = snapshot(original);
+
+        assertEquals(2, snapshot.size());
+        assertTrue(snapshot.contains("a"));
+        assertEquals(0, copies);
+
+        assertTrue(snapshot.add("c"));
+        assertEquals(1, copies);
+        assertTrue(snapshot.contains("c"));
+        assertFalse(original.contains("c"));
+
+        snapshot.remove("a");
+        assertEquals(1, copies);
+        assertTrue(original.contains("a"));
+    }
+
+    @Test
+    public void originalChangeDetachesSnapshot() {
+        Set<String> original = new HashSet<>(Arrays.asList("a"));
+        Set<String> snapshot = snapshot(original);
+
+        original.add("b");
+        // 复制发生在detach的时候，原集合已经做过的修改会带进来
+        assertTrue(snapshot.contains("b"));
+        assertEquals(1, copies);
+
+        original.add("c");
+        assertFalse(snapshot.contains("c"));
+        assertEquals(2, snapshot.size());
+    }
+
+    @Test
+    public void iteratorRemoveGoesToCopy() {
+        Set<String> original = new HashSet<>(Arrays.asList("a", "b", "c"));
+        Set<String> snapshot = snapshot(original);
+
+        Iterator<String> it = snapshot.iterator();
+        String first = it.next();
+        it.remove();
+
+        assertEquals(3, original.size());
+        assertEquals(2, snapshot.size());
+        assertFalse(snapshot.contains(first));
+    }
+
+    @Test
+    public void queueSnapshot() {
+        assumeTrue(CollectionSnapshots.supports(PriorityQueue.class));
+        PriorityQueue<Integer> original = new PriorityQueue<>(Arrays.asList(3, 1, 2));
+        Queue<Integer> snapshot = CollectionSnapshots.queue((Queue<Integer>) original, PriorityQueue::new);
+
+        assertEquals(Integer.valueOf(1), snapshot.peek());
+        assertEquals(Integer.valueOf(1), snapshot.poll());
+        assertEquals(3, original.size());
+
+        List<Integer> drained = new ArrayList<>();
+        while (!snapshot.isEmpty()) {
+            drained.add(snapshot.poll());
+        }
+        assertEquals(Arrays.asList(2, 3), drained);
+        assertEquals(Integer.valueOf(1), original.peek());
+    }
+
+    @Test
+    public void onlyExactClassesAreSupported() {
+        assertFalse(CollectionSnapshots.supports(ArrayList.class));
+        assertFalse(CollectionSnapshots.supports(new HashSet<String>() {
+        }.getClass()));
+    }
+}
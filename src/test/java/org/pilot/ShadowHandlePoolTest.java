@@ -0,0 +1,106 @@
+package org.pilot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ShadowHandlePoolTest {
+
+    private static final class Handle implements Closeable {
+        boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private int savedMax;
+    private ShadowHandlePool pool;
+    private final AtomicInteger opened = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        savedMax = ShadowHandlePool.maxOpenHandles;
+        ShadowHandlePool.maxOpenHandles = 2;
+        pool = new ShadowHandlePool();
+    }
+
+    @After
+    public void tearDown() {
+        pool.closeAll();
+        ShadowHandlePool.maxOpenHandles = savedMax;
+    }
+
+    private Handle acquire(String key) throws IOException {
+        return pool.acquire(key, () -> {
+            opened.incrementAndGet();
+            return new Handle();
+        });
+    }
+
+    @Test
+    public void idleHandleIsReused() throws IOException {
+        Handle first = acquire("a");
+        pool.release("a", first);
+        assertSame(first, acquire("a"));
+        assertEquals(1, opened.get());
+        assertFalse(first.closed);
+    }
+
+    @Test
+    public void leastRecentlyUsedIdleHandleIsEvicted() throws IOException {
+        Handle a = acquire("a");
+        Handle b = acquire("b");
+        pool.release("a", a);
+        pool.release("b", b);
+        // 再用一次a，b就成了最久未用的
+        pool.release("a", acquire("a"));
+
+        Handle c = acquire("c");
+        assertTrue(b.closed);
+        assertFalse(a.closed);
+        assertNull(pool.peek("b"));
+        assertEquals(2, pool.openCount());
+        pool.release("c", c);
+    }
+
+    @Test
+    public void handlesInUseAreNeverEvicted() throws IOException {
+        Handle a = acquire("a");
+        Handle b = acquire("b");
+        Handle c = acquire("c");
+        assertEquals(3, pool.openCount());
+        assertFalse(a.closed || b.closed || c.closed);
+
+        // 一旦空闲下来就回到上限以内
+        pool.release("a", a);
+        assertTrue(a.closed);
+        assertEquals(2, pool.openCount());
+        assertEquals(0, pool.idleCount());
+        pool.release("b", b);
+        pool.release("c", c);
+    }
+
+    @Test
+    public void staleReleaseIsIgnored() throws IOException {
+        Handle a = acquire("a");
+        pool.close("a");
+        assertTrue(a.closed);
+        Handle again = acquire("a");
+        pool.release("a", a);
+        assertEquals(0, pool.idleCount());
+        pool.release("a", again);
+        assertEquals(1, pool.idleCount());
+    }
+}
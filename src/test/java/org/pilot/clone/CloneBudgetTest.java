@@ -0,0 +1,94 @@
+package org.pilot.clone;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class CloneBudgetTest {
+
+    static final class Node {
+        long value;
+        byte[] payload;
+        Node next;
+    }
+
+    private static Node chain(int length, int payload) {
+        Node head = null;
+        for (int i = 0; i < length; i++) {
+            Node node = new Node();
+            node.value = i;
+            node.payload = new byte[payload];
+            node.next = head;
+            head = node;
+        }
+        return head;
+    }
+
+    @Test
+    public void unlimitedBudgetCopiesAndCounts() {
+        Node original = chain(100, 0);
+        CloneBudget budget = new CloneBudget(0, 0);
+        Node copy = new GeneratedCloner().deepClone(original, budget);
+
+        assertNotSame(original, copy);
+        assertEquals(99, copy.value);
+        assertFalse(budget.exceeded());
+        // 每个节点加上它的数组，最后一个next是null不算
+        assertEquals(200, budget.objects());
+    }
+
+    @Test
+    public void objectLimitAbortsCopy() {
+        CloneBudget budget = new CloneBudget(50, 0);
+        try {
+            new GeneratedCloner().deepClone(chain(10000, 0), budget);
+            fail("copy should have been aborted");
+        } catch (CloneBudget.ExceededException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("50"));
+        }
+        assertTrue(budget.exceeded());
+        // 超出的那一个对象上就停下，不会把整条链走完
+        assertEquals(51, budget.objects());
+    }
+
+    @Test
+    public void byteLimitAbortsCopy() {
+        assumeTrue(CloneStats.allocatedBytes() >= 0);
+        CloneBudget budget = new CloneBudget(0, 1 << 20);
+        try {
+            new GeneratedCloner().deepClone(chain(2000, 4096), budget);
+            fail("copy should have been aborted");
+        } catch (CloneBudget.ExceededException e) {
+            assertTrue(budget.exceeded());
+        }
+        // 每BYTES_CHECK_INTERVAL个对象才查一次，超出后很快就停
+        assertTrue("visited " + budget.objects(), budget.objects() < 4000);
+    }
+
+    @Test
+    public void nestedBudgetDoesNotLeakIntoOuterCopy() {
+        GeneratedCloner cloner = new GeneratedCloner();
+        CloneBudget outer = new CloneBudget(0, 0);
+        cloner.registerFastCloner(Holder.class, (o, deepCloner, clones) -> {
+            // 拷贝中途用另一个预算做一次独立的deepClone
+            CloneBudget inner = new CloneBudget(0, 0);
+            cloner.deepClone(chain(10, 0), inner);
+            assertEquals(20, inner.objects());
+            return new Holder();
+        });
+        Node head = chain(3, 0);
+        Object[] roots = {head, new Holder()};
+        cloner.deepClone(roots, outer);
+
+        // 数组、3个节点和它们的数组、Holder
+        assertEquals(8, outer.objects());
+    }
+
+    static final class Holder {
+    }
+}
@@ -0,0 +1,127 @@
+package org.pilot.clone;
+
+import com.rits.cloning.ICloningStrategy;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class GeneratedClonerTest {
+
+    enum Color { RED }
+
+    static class Base {
+        int id;
+        String name;
+    }
+
+    static class Item extends Base {
+        long count;
+        boolean flag;
+        double ratio;
+        char letter;
+        Color color;
+        int[] numbers;
+        Item[] children;
+        Item parent;
+        List<Item> list;
+        Object ignored;
+        transient Object skipped;
+    }
+
+    static final class Shared {
+    }
+
+    private static Item item(int id) {
+        Item item = new Item();
+        item.id = id;
+        item.name = "item" + id;
+        item.count = 1L << 40;
+        item.flag = true;
+        item.ratio = 0.5;
+        item.letter = 'x';
+        item.color = Color.RED;
+        item.numbers = new int[]{1, 2, 3};
+        return item;
+    }
+
+    @Test
+    public void copiesFieldsOfTheWholeHierarchy() {
+        Item original = item(7);
+        Item copy = new GeneratedCloner().deepClone(original);
+
+        assertNotSame(original, copy);
+        assertEquals(7, copy.id);
+        assertEquals("item7", copy.name);
+        assertEquals(1L << 40, copy.count);
+        assertTrue(copy.flag);
+        assertEquals(0.5, copy.ratio, 0);
+        assertEquals('x', copy.letter);
+        assertSame(Color.RED, copy.color);
+        assertNotSame(original.numbers, copy.numbers);
+        assertArrayEquals(original.numbers, copy.numbers);
+    }
+
+    @Test
+    public void cyclesAndSharedReferencesSurvive() {
+        Item parent = item(1);
+        Item child = item(2);
+        child.parent = parent;
+        parent.children = new Item[]{child, child};
+        // JDK集合走反射路径，和生成的路径共用clones表
+        parent.list = new ArrayList<>();
+        parent.list.add(child);
+        parent.list.add(parent);
+
+        Item copy = new GeneratedCloner().deepClone(parent);
+        Item childCopy = copy.children[0];
+        assertNotSame(child, childCopy);
+        assertSame(childCopy, copy.children[1]);
+        assertSame(copy, childCopy.parent);
+        assertNotSame(parent.list, copy.list);
+        assertSame(childCopy, copy.list.get(0));
+        assertSame(copy, copy.list.get(1));
+    }
+
+    @Test
+    public void settingsApplyToGeneratedCopies() {
+        GeneratedCloner cloner = new GeneratedCloner();
+        cloner.dontClone(Shared.class);
+        cloner.registerCloningStrategy((o, field) -> field.getName().equals("ignored")
+                ? ICloningStrategy.Strategy.NULL_INSTEAD_OF_CLONE
+                : field.getName().equals("skipped") ? ICloningStrategy.Strategy.SAME_INSTANCE_INSTEAD_OF_CLONE
+                : ICloningStrategy.Strategy.IGNORE);
+
+        Item original = item(3);
+        original.ignored = new Object();
+        Shared shared = new Shared();
+        original.skipped = shared;
+        Item copy = cloner.deepClone(original);
+        assertNull(copy.ignored);
+        assertSame(shared, copy.skipped);
+
+        Item[] array = {original};
+        Object[] holder = {shared, array};
+        Object[] copied = cloner.deepClone(holder);
+        assertSame(shared, copied[0]);
+        assertNotSame(array, copied[1]);
+    }
+
+    @Test
+    public void dontCloneInstanceOfIsHonouredAfterPlansWereBuilt() {
+        GeneratedCloner cloner = new GeneratedCloner();
+        Item original = item(4);
+        assertNotSame(original, cloner.deepClone(original));
+
+        // 配置变了以后已经算好的plan要作废
+        cloner.dontCloneInstanceOf(Base.class);
+        assertSame(original, cloner.deepClone(original));
+    }
+}
@@ -0,0 +1,168 @@
+package org.pilot.filesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AppendLogTest {
+    private Path dir;
+    private Path log;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("appendlog");
+        log = dir.resolve("file.log");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        AppendLog.deleteIfExists(log);
+        Files.deleteIfExists(dir);
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void write(FileOperation... operations) throws IOException {
+        try (AppendLog.Writer writer = AppendLog.openWriter(log)) {
+            for (FileOperation operation : operations) {
+                writer.append(operation);
+            }
+        }
+    }
+
+    @Test
+    public void recordLayout() throws IOException {
+        write(FileOperation.write(5, "abc".getBytes(StandardCharsets.UTF_8)));
+
+        byte[] raw = Files.readAllBytes(log);
+        assertEquals(AppendLog.recordSize(3), raw.length);
+        ByteBuffer record = ByteBuffer.wrap(raw);
+        assertEquals(FileOperation.WRITE, record.get());
+        assertEquals(5L, record.getLong());
+        assertEquals(3, record.getInt());
+        byte[] payload = new byte[3];
+        record.get(payload);
+        assertArrayEquals("abc".getBytes(StandardCharsets.UTF_8), payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, AppendLog.HEADER_SIZE + 3);
+        assertEquals((int) crc.getValue(), record.getInt());
+    }
+
+    @Test
+    public void readerReturnsRecordsInOrder() throws IOException {
+        write(FileOperation.write(0, "hello".getBytes(StandardCharsets.UTF_8)), FileOperation.truncate(3));
+
+        try (AppendLog.Reader reader = new AppendLog.Reader(log)) {
+            assertTrue(reader.next());
+            assertEquals(FileOperation.WRITE, reader.op());
+            assertEquals(0L, reader.offset());
+            assertEquals(bytes("hello"), reader.payload());
+            assertEquals(0L, reader.recordPosition());
+
+            assertTrue(reader.next());
+            assertEquals(FileOperation.TRUNCATE, reader.op());
+            assertEquals(3L, reader.offset());
+            assertEquals(0, reader.length());
+            assertEquals(AppendLog.recordSize(5), reader.recordPosition());
+
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void corruptChecksumEndsTheLog() throws IOException {
+        write(FileOperation.write(0, "one".getBytes(StandardCharsets.UTF_8)),
+                FileOperation.write(3, "two".getBytes(StandardCharsets.UTF_8)));
+
+        // 改第二条记录的payload，校验和对不上
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.write(bytes("X"), AppendLog.recordSize(3) + AppendLog.HEADER_SIZE);
+        }
+        try (AppendLog.Reader reader = new AppendLog.Reader(log)) {
+            assertTrue(reader.next());
+            assertEquals(bytes("one"), reader.payload());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void tornTailEndsTheLog() throws IOException {
+        write(FileOperation.write(0, "one".getBytes(StandardCharsets.UTF_8)),
+                FileOperation.write(3, "two".getBytes(StandardCharsets.UTF_8)));
+
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        try (AppendLog.Reader reader = new AppendLog.Reader(log)) {
+            assertTrue(reader.next());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void logicalSizeAndReplay() throws IOException {
+        write(FileOperation.write(2, "abcdef".getBytes(StandardCharsets.UTF_8)), FileOperation.truncate(5));
+
+        assertEquals(5L, AppendLog.logicalSize(log, 4));
+        assertEquals(5L, AppendLog.logicalSize(log, 20));
+        assertEquals(9L, AppendLog.logicalSize(dir.resolve("missing.log"), 9));
+
+        Path target = dir.resolve("target");
+        Files.write(target, "0123".getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            assertEquals(2, AppendLog.replay(log, channel));
+        }
+        assertArrayEquals("01abc".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(target));
+        Files.delete(target);
+    }
+
+    @Test
+    public void readsBufferedRecordsBeforeFlush() throws IOException {
+        try (AppendLog.Writer writer = AppendLog.openWriter(log)) {
+            long position = writer.append(FileOperation.WRITE, 0, bytes("buffered"));
+            assertEquals(AppendLog.HEADER_SIZE, position);
+
+            ByteBuffer dst = ByteBuffer.allocate(8);
+            writer.read(dst, position, 8);
+            dst.flip();
+            assertEquals(bytes("buffered"), dst);
+        }
+    }
+
+    @Test
+    public void openWriterAnswersWithoutFlushing() throws IOException {
+        assertFalse(AppendLog.isEmpty(log));
+        assertFalse(AppendLog.hasRecords(log));
+        try (AppendLog.Writer writer = AppendLog.openWriter(log)) {
+            writer.append(FileOperation.WRITE, 0, bytes("buffered"));
+
+            assertTrue(AppendLog.hasRecords(log));
+            assertFalse(AppendLog.isEmpty(log));
+            // 记录还在writer的缓冲区里
+            assertFalse(Files.exists(log) && Files.size(log) > 0);
+        }
+        assertTrue(AppendLog.hasRecords(log));
+
+        AppendLog.deleteIfExists(log);
+        Files.createFile(log);
+        assertTrue(AppendLog.isEmpty(log));
+        assertFalse(AppendLog.hasRecords(log));
+    }
+}
@@ -0,0 +1,146 @@
+package org.pilot.filesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockOverlayTest {
+    private static final int BLOCK = 4096;
+
+    private Path root;
+    private Path original;
+    private byte[] content;
+    private Path savedBase;
+    private Path savedLog;
+    private int savedBlockSize;
+    private CloneStrategy savedStrategy;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("blockoverlay");
+        savedBase = ShadowFileSystem.shadowBaseDir;
+        savedLog = ShadowFileSystem.shadowAppendLogDir;
+        savedBlockSize = BlockOverlay.blockSize;
+        savedStrategy = BlockOverlay.cloneStrategy;
+        ShadowFileSystem.shadowBaseDir = root.resolve("shadow");
+        ShadowFileSystem.shadowAppendLogDir = root.resolve("log");
+        BlockOverlay.blockSize = BLOCK;
+        // 测试的是overlay本身，不让reflink把文件整个clone走
+        BlockOverlay.cloneStrategy = CloneStrategy.NONE;
+
+        original = root.resolve("orig").resolve("data");
+        Files.createDirectories(original.getParent());
+        content = new byte[3 * BLOCK + 100];
+        new Random(11).nextBytes(content);
+        Files.write(original, content);
+        assertTrue(BlockOverlay.copyOnWrite(original, original));
+        ShadowFileSystem.index().markOverlay(original);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        BlockOverlay.delete(original);
+        ShadowFileSystem.index().forget(original);
+        BlockOverlay.blockSize = savedBlockSize;
+        BlockOverlay.cloneStrategy = savedStrategy;
+        ShadowFileSystem.shadowBaseDir = savedBase;
+        ShadowFileSystem.shadowAppendLogDir = savedLog;
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        return BlockOverlay.newChannel(original, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static byte[] readAll(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+        }
+        return buffer.array();
+    }
+
+    private Path shadow() throws IOException {
+        return ShadowFileSystem.resolveShadowFSPath(original);
+    }
+
+    @Test
+    public void writesOnlyCopyTheirBlocks() throws IOException {
+        byte[] expected = content.clone();
+        try (FileChannel channel = open()) {
+            assertArrayEquals(content, readAll(channel));
+            channel.write(ByteBuffer.wrap("patched".getBytes()), BLOCK + 5);
+            System.arraycopy("patched".getBytes(), 0, expected, BLOCK + 5, 7);
+            assertArrayEquals(expected, readAll(channel));
+        }
+        assertArrayEquals(content, Files.readAllBytes(original));
+        // 只写了第二个block，稀疏的shadow文件到它为止
+        assertEquals(2 * BLOCK, Files.size(shadow()));
+
+        // 关掉后从.blocks文件重新加载
+        try (FileChannel channel = open()) {
+            assertArrayEquals(expected, readAll(channel));
+        }
+    }
+
+    @Test
+    public void truncatedTailReadsAsZero() throws IOException {
+        try (FileChannel channel = open()) {
+            channel.truncate(100);
+            channel.write(ByteBuffer.wrap(new byte[]{1}), 2 * BLOCK);
+            byte[] read = readAll(channel);
+            assertEquals(2 * BLOCK + 1, read.length);
+            assertArrayEquals(Arrays.copyOf(content, 100), Arrays.copyOf(read, 100));
+            assertArrayEquals(new byte[2 * BLOCK - 100], Arrays.copyOfRange(read, 100, 2 * BLOCK));
+        }
+        assertEquals(2 * BLOCK + 1, BlockOverlay.size(original));
+    }
+
+    @Test
+    public void flattenWritesTheFullCopy() throws IOException {
+        byte[] expected = content.clone();
+        try (FileChannel channel = open()) {
+            channel.write(ByteBuffer.wrap(new byte[]{9, 9}), 0);
+        }
+        expected[0] = 9;
+        expected[1] = 9;
+
+        BlockOverlay.flattenIfOverlay(original);
+        assertFalse(BlockOverlay.exists(original));
+        byte flags = ShadowFileSystem.index().lookup(original);
+        assertTrue(ShadowIndex.isModified(flags));
+        assertFalse(ShadowIndex.isOverlay(flags));
+        assertArrayEquals(expected, Files.readAllBytes(shadow()));
+    }
+
+    @Test
+    public void readOnlyMapOfCleanBlocksKeepsTheOverlay() throws IOException {
+        try (FileChannel channel = open()) {
+            channel.write(ByteBuffer.wrap(new byte[]{9}), 0);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 2 * BLOCK, 50);
+            byte[] read = new byte[50];
+            mapped.get(read);
+            assertArrayEquals(Arrays.copyOfRange(content, 2 * BLOCK, 2 * BLOCK + 50), read);
+        }
+        assertTrue(BlockOverlay.exists(original));
+        assertTrue(ShadowIndex.isOverlay(ShadowFileSystem.index().lookup(original)));
+    }
+}
@@ -0,0 +1,88 @@
+package org.pilot.filesystem;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogExtentIndexTest {
+
+    private static void assertExtent(LogExtentIndex.Extent extent, long start, long length, long logPosition) {
+        assertEquals(start, extent.start);
+        assertEquals(length, extent.length);
+        assertEquals(logPosition, extent.logPosition);
+    }
+
+    @Test
+    public void laterWriteSplitsEarlierExtent() {
+        LogExtentIndex index = new LogExtentIndex(0);
+        index.write(0, 100, 1000);
+        index.write(40, 20, 2000);
+
+        List<LogExtentIndex.Extent> extents = index.overlapping(0, 100);
+        assertEquals(3, extents.size());
+        assertExtent(extents.get(0), 0, 40, 1000);
+        assertExtent(extents.get(1), 40, 20, 2000);
+        assertExtent(extents.get(2), 60, 40, 1060);
+        assertEquals(100, index.size());
+    }
+
+    @Test
+    public void writeCoversAndTrimsSeveralExtents() {
+        LogExtentIndex index = new LogExtentIndex(0);
+        index.write(0, 10, 100);
+        index.write(10, 10, 200);
+        index.write(20, 10, 300);
+        index.write(5, 20, 400);
+
+        List<LogExtentIndex.Extent> extents = index.overlapping(0, 30);
+        assertEquals(3, extents.size());
+        assertExtent(extents.get(0), 0, 5, 100);
+        assertExtent(extents.get(1), 5, 20, 400);
+        assertExtent(extents.get(2), 25, 5, 305);
+    }
+
+    @Test
+    public void overlappingIncludesExtentStartingBeforeRange() {
+        LogExtentIndex index = new LogExtentIndex(0);
+        index.write(0, 50, 0);
+        index.write(60, 10, 50);
+
+        List<LogExtentIndex.Extent> extents = index.overlapping(20, 61);
+        assertEquals(2, extents.size());
+        assertExtent(extents.get(0), 0, 50, 0);
+        assertExtent(extents.get(1), 60, 10, 50);
+        assertTrue(index.overlapping(50, 60).isEmpty());
+        assertTrue(index.overlapping(10, 10).isEmpty());
+    }
+
+    @Test
+    public void truncateCutsExtentsAndBase() {
+        LogExtentIndex index = new LogExtentIndex(100);
+        index.write(80, 40, 0);
+        assertEquals(120, index.size());
+
+        index.apply(FileOperation.TRUNCATE, 90, 0, 0);
+        assertEquals(90, index.size());
+        assertEquals(90, index.baseLimit());
+        List<LogExtentIndex.Extent> extents = index.overlapping(0, 200);
+        assertEquals(1, extents.size());
+        assertExtent(extents.get(0), 80, 10, 0);
+
+        // 截断后再写长，原文件的内容不会回来
+        index.write(150, 10, 40);
+        assertEquals(160, index.size());
+        assertEquals(90, index.baseLimit());
+    }
+
+    @Test
+    public void truncateBeyondSizeIsIgnored() {
+        LogExtentIndex index = new LogExtentIndex(10);
+        index.truncate(20);
+        assertEquals(10, index.size());
+        assertEquals(10, index.baseLimit());
+        assertTrue(index.isEmpty());
+    }
+}
@@ -0,0 +1,138 @@
+package org.pilot.filesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MemoryFileTest {
+    private Path root;
+    private Path file;
+    private Path savedBase;
+    private long savedBudget;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("memoryfile");
+        savedBase = ShadowFileSystem.shadowBaseDir;
+        savedBudget = MemoryFile.memoryBudget;
+        ShadowFileSystem.shadowBaseDir = root.resolve("shadow");
+        file = root.resolve("orig").resolve("data");
+        assertTrue(MemoryFile.create(file));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        MemoryFile.delete(file);
+        MemoryFile.memoryBudget = savedBudget;
+        ShadowFileSystem.shadowBaseDir = savedBase;
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return MemoryFile.newChannel(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+        }
+        return buffer.array();
+    }
+
+    @Test
+    public void contentStaysInMemory() throws IOException {
+        long used = MemoryFile.usedBytes();
+        try (FileChannel channel = open(file)) {
+            // 跨过chunk边界，中间没写过的部分读出来是0
+            long position = MemoryFile.chunkSize - 2;
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}), position);
+            assertEquals(position + 4, channel.size());
+            assertArrayEquals(new byte[]{0, 0, 1, 2, 3, 4}, read(channel, position - 2, 6));
+        }
+        assertEquals(used + 2L * MemoryFile.chunkSize, MemoryFile.usedBytes());
+        assertFalse(Files.exists(ShadowFileSystem.getShadowFSPath(file)));
+    }
+
+    @Test
+    public void spillsWhenOverBudget() throws IOException {
+        MemoryFile.memoryBudget = MemoryFile.usedBytes() + 2L * MemoryFile.chunkSize;
+        long spills = MemoryFile.spillCount();
+        byte[] expected = new byte[4 * MemoryFile.chunkSize];
+        new Random(7).nextBytes(expected);
+        try (FileChannel channel = open(file)) {
+            for (int i = 0; i < expected.length; i += 1000) {
+                channel.write(ByteBuffer.wrap(expected, i, Math.min(1000, expected.length - i)), i);
+            }
+            // 换出之后同一个channel继续可用
+            assertArrayEquals(expected, read(channel, 0, expected.length));
+        }
+        assertEquals(spills + 1, MemoryFile.spillCount());
+        assertFalse(MemoryFile.exists(file));
+        assertArrayEquals(expected, Files.readAllBytes(ShadowFileSystem.getShadowFSPath(file)));
+    }
+
+    @Test
+    public void overlappingLocksThrow() throws IOException {
+        try (FileChannel first = open(file); FileChannel second = open(file)) {
+            FileLock held = first.lock(0, 10, false);
+            try {
+                second.lock(5, 10, false);
+                fail("overlapping lock");
+            } catch (OverlappingFileLockException expected) {
+            }
+            try {
+                second.tryLock(0, 1, true);
+                fail("overlapping tryLock");
+            } catch (OverlappingFileLockException expected) {
+            }
+            FileLock next = second.tryLock(10, 10, false);
+            assertNotNull(next);
+            assertTrue(next.isValid());
+
+            held.release();
+            assertFalse(held.isValid());
+            assertNotNull(second.lock(0, 5, true));
+        }
+    }
+
+    @Test
+    public void closingChannelReleasesItsLocks() throws IOException {
+        FileLock lock;
+        try (FileChannel channel = open(file)) {
+            lock = channel.lock();
+        }
+        assertFalse(lock.isValid());
+        try (FileChannel channel = open(file)) {
+            assertNotNull(channel.tryLock());
+        }
+    }
+
+    @Test(expected = NonReadableChannelException.class)
+    public void sharedLockNeedsReadableChannel() throws IOException {
+        try (FileChannel channel = MemoryFile.newChannel(file, StandardOpenOption.WRITE)) {
+            channel.lock(0, 1, true);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.pilot.filesystem;
+
+import io.opentelemetry.api.baggage.Baggage;
+import io.opentelemetry.context.Scope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pilot.PilotUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ShadowDirectoryStreamTest {
+    private Path root;
+    private Path dir;
+    private Scope pilot;
+    private Path savedOriginal;
+    private Path savedBase;
+    private Path savedLog;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("shadowlisting");
+        savedOriginal = ShadowFileSystem.originalRoot;
+        savedBase = ShadowFileSystem.shadowBaseDir;
+        savedLog = ShadowFileSystem.shadowAppendLogDir;
+        Path original = Files.createDirectories(root.resolve("orig"));
+        ShadowFileSystem.originalRoot = original;
+        ShadowFileSystem.shadowBaseDir = root.resolve("shadow");
+        ShadowFileSystem.shadowAppendLogDir = root.resolve("log");
+
+        dir = Files.createDirectories(original.resolve("dir"));
+        for (String name : Arrays.asList("a", "b", "c")) {
+            Files.write(dir.resolve(name), name.getBytes());
+        }
+        pilot = Baggage.current().toBuilder().put(PilotUtil.PILOT_ID_KEY, "44").build().makeCurrent();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            ShadowTree.teardownAsync(ShadowFileSystem.current()).get(30, TimeUnit.SECONDS);
+        } finally {
+            pilot.close();
+            ShadowFileSystem.originalRoot = savedOriginal;
+            ShadowFileSystem.shadowBaseDir = savedBase;
+            ShadowFileSystem.shadowAppendLogDir = savedLog;
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static List<String> names(DirectoryStream<Path> stream) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> entries = stream) {
+            for (Path entry : entries) {
+                names.add(entry.getFileName().toString());
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Test
+    public void listingMergesOriginalShadowAndMemory() throws IOException {
+        ShadowFiles.delete(dir.resolve("a"));
+        try (OutputStream out = ShadowFiles.newOutputStream(dir.resolve("b"))) {
+            out.write("rewritten".getBytes());
+        }
+        try (OutputStream out = ShadowFiles.newOutputStream(dir.resolve("new"))) {
+            out.write("new".getBytes());
+        }
+        ShadowFiles.createDirectories(dir.resolve("sub"));
+
+        // 删掉的不出现，改写过的只出现一次，条目都是原始路径
+        assertEquals(Arrays.asList("b", "c", "new", "sub"), names(ShadowFiles.newDirectoryStream(dir)));
+        try (DirectoryStream<Path> stream = ShadowFiles.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                assertEquals(dir, entry.getParent());
+            }
+        }
+        assertEquals(Arrays.asList("a", "b", "c"), names(Files.newDirectoryStream(dir)));
+    }
+
+    @Test
+    public void filterAppliesToTheMergedView() throws IOException {
+        try (OutputStream out = ShadowFiles.newOutputStream(dir.resolve("bb"))) {
+            out.write(1);
+        }
+        assertEquals(Arrays.asList("b", "bb"),
+                names(ShadowFiles.newDirectoryStream(dir, path -> path.getFileName().toString().startsWith("b"))));
+    }
+
+    @Test
+    public void listingDoesNotMaterialize() throws IOException {
+        assertEquals(Arrays.asList("a", "b", "c"), names(ShadowFiles.newDirectoryStream(dir)));
+        assertFalse(Files.exists(ShadowFileSystem.resolveShadowFSPath(dir.resolve("a"))));
+    }
+}
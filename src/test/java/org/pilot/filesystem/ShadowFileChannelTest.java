@@ -0,0 +1,159 @@
+package org.pilot.filesystem;
+
+import io.opentelemetry.api.baggage.Baggage;
+import io.opentelemetry.context.Scope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pilot.PilotUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShadowFileChannelTest {
+    private static final int SIZE = 100000;
+
+    private Path root;
+    private Path a;
+    private Path b;
+    private byte[] content;
+    private Scope pilot;
+    private Path savedOriginal;
+    private Path savedBase;
+    private Path savedLog;
+    private long savedCopyMax;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("shadowchannel");
+        savedOriginal = ShadowFileSystem.originalRoot;
+        savedBase = ShadowFileSystem.shadowBaseDir;
+        savedLog = ShadowFileSystem.shadowAppendLogDir;
+        savedCopyMax = MemoryFile.copyMaxBytes;
+        Path original = Files.createDirectories(root.resolve("orig"));
+        ShadowFileSystem.originalRoot = original;
+        ShadowFileSystem.shadowBaseDir = root.resolve("shadow");
+        ShadowFileSystem.shadowAppendLogDir = root.resolve("log");
+        // 原始文件第一次写时不复制进内存，走append log
+        MemoryFile.copyMaxBytes = 0;
+
+        content = new byte[SIZE];
+        new Random(3).nextBytes(content);
+        a = Files.write(original.resolve("a"), content);
+        b = Files.write(original.resolve("b"), content);
+        pilot = Baggage.current().toBuilder().put(PilotUtil.PILOT_ID_KEY, "43").build().makeCurrent();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            ShadowTree.teardownAsync(ShadowFileSystem.current()).get(30, TimeUnit.SECONDS);
+        } finally {
+            pilot.close();
+            MemoryFile.copyMaxBytes = savedCopyMax;
+            ShadowFileSystem.originalRoot = savedOriginal;
+            ShadowFileSystem.shadowBaseDir = savedBase;
+            ShadowFileSystem.shadowAppendLogDir = savedLog;
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return ShadowFileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+        }
+        return buffer.array();
+    }
+
+    @Test
+    public void transferToPlainChannelReadsThroughTheLog() throws IOException {
+        Path out = root.resolve("out");
+        try (FileChannel channel = open(a);
+             FileChannel target = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            assertTrue(channel instanceof ShadowFileChannel);
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}), 1000);
+            long done = 0;
+            while (done < SIZE) {
+                done += channel.transferTo(done, SIZE - done, target);
+            }
+        }
+        byte[] expected = content.clone();
+        expected[1000] = 1;
+        expected[1001] = 2;
+        expected[1002] = 3;
+        assertArrayEquals(expected, Files.readAllBytes(out));
+        assertArrayEquals(content, Files.readAllBytes(a));
+    }
+
+    @Test
+    public void crossChannelTransfersDoNotDeadlock() throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        try (FileChannel ca = open(a); FileChannel cb = open(b)) {
+            ca.write(ByteBuffer.wrap("A".getBytes()), 0);
+            cb.write(ByteBuffer.wrap("B".getBytes()), 0);
+            // 两个方向同时传，各自的stripe锁不能交叉持有
+            Future<?> ab = workers.submit(() -> {
+                for (int i = 0; i < 100; i++) {
+                    ca.transferTo(0, 70000, cb);
+                }
+                return null;
+            });
+            Future<?> ba = workers.submit(() -> {
+                for (int i = 0; i < 100; i++) {
+                    cb.transferTo(0, 70000, ca);
+                }
+                return null;
+            });
+            ab.get(30, TimeUnit.SECONDS);
+            ba.get(30, TimeUnit.SECONDS);
+
+            byte[] head = "xyz".getBytes();
+            ca.write(ByteBuffer.wrap(head), 0);
+            ca.position(0);
+            assertEquals(10, cb.transferFrom(ca, 5, 10));
+            assertArrayEquals(head, read(cb, 5, 3));
+            assertArrayEquals(read(ca, 0, 10), read(cb, 5, 10));
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void readOnlyMapOfUnwrittenRangeSeesTheOriginal() throws IOException {
+        try (FileChannel channel = open(a)) {
+            channel.write(ByteBuffer.wrap(new byte[]{7, 7}), 0);
+            MappedByteBuffer clean = channel.map(FileChannel.MapMode.READ_ONLY, 50000, 100);
+            byte[] read = new byte[100];
+            clean.get(read);
+            assertArrayEquals(Arrays.copyOfRange(content, 50000, 50100), read);
+
+            MappedByteBuffer written = channel.map(FileChannel.MapMode.READ_ONLY, 0, 4);
+            read = new byte[4];
+            written.get(read);
+            assertArrayEquals(new byte[]{7, 7, content[2], content[3]}, read);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.pilot.filesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShadowIndexTest {
+    private Path root;
+    private Path savedBase;
+    private int savedMax;
+    private ShadowIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("shadowindex");
+        savedBase = ShadowFileSystem.shadowBaseDir;
+        savedMax = ShadowIndex.maxCleanEntries;
+        ShadowFileSystem.shadowBaseDir = root.resolve("shadow");
+        ShadowIndex.maxCleanEntries = 4;
+        index = new ShadowIndex();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ShadowIndex.maxCleanEntries = savedMax;
+        ShadowFileSystem.shadowBaseDir = savedBase;
+        Files.deleteIfExists(root.resolve("file"));
+        Files.deleteIfExists(root);
+    }
+
+    private Path path(int i) {
+        return root.resolve("orig").resolve("f" + i);
+    }
+
+    @Test
+    public void cleanEntriesAreBounded() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            assertEquals(ShadowIndex.ABSENT, index.lookup(path(i)));
+        }
+        assertEquals(4, index.size());
+        // 最早的先被丢掉，再查一次照样能解析出来
+        assertNull(index.peek(path(0)));
+        assertNotNull(index.peek(path(19)));
+        assertEquals(ShadowIndex.ABSENT, index.lookup(path(0)));
+
+        Path file = Files.createFile(root.resolve("file"));
+        assertEquals(ShadowIndex.EXISTS, index.lookup(file));
+        index.cacheSize(file, 0);
+        for (int i = 20; i < 30; i++) {
+            index.lookup(path(i));
+        }
+        assertNull(index.peek(file));
+        assertNull(index.cachedSize(file));
+    }
+
+    @Test
+    public void stateOnlyTheIndexKnowsIsNeverEvicted() {
+        index.markDeleted(path(0));
+        index.lookup(path(1));
+        index.markModified(path(1));
+        index.markOverlay(path(2));
+        index.markMemory(path(3));
+        index.markMaterialized(path(4), false);
+        for (int i = 10; i < 30; i++) {
+            index.lookup(path(i));
+        }
+        assertEquals(ShadowIndex.DELETED, (byte) index.peek(path(0)));
+        assertTrue(ShadowIndex.isModified(index.peek(path(1))));
+        assertTrue(ShadowIndex.isOverlay(index.peek(path(2))));
+        assertTrue(ShadowIndex.isMemory(index.peek(path(3))));
+        assertTrue(ShadowIndex.isMaterialized(index.peek(path(4))));
+        assertEquals(5 + 4, index.size());
+    }
+}
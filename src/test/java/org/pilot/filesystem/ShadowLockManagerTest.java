@@ -0,0 +1,122 @@
+package org.pilot.filesystem;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShadowLockManagerTest {
+    private static final Path A = Paths.get("/shadow/a");
+
+    // 和A不在同一个stripe的路径
+    private static Path otherStripe() {
+        for (int i = 0; ; i++) {
+            Path path = Paths.get("/shadow/b" + i);
+            if (ShadowLockManager.lockFor(path) != ShadowLockManager.lockFor(A)) {
+                return path;
+            }
+        }
+    }
+
+    @Test
+    public void unrelatedFilesDoNotBlockEachOther() throws Exception {
+        Path b = otherStripe();
+        assertSame(ShadowLockManager.lockFor(A), ShadowLockManager.lockFor(Paths.get("/shadow/a")));
+        assertNotSame(ShadowLockManager.lockFor(A), ShadowLockManager.lockFor(b));
+
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        ShadowLockManager.writeLock(A).lock();
+        try {
+            assertTrue(other.submit(() -> {
+                boolean locked = ShadowLockManager.writeLock(b).tryLock();
+                if (locked) {
+                    ShadowLockManager.writeLock(b).unlock();
+                }
+                return locked;
+            }).get());
+            assertFalse(other.submit(() -> ShadowLockManager.readLock(A).tryLock()).get());
+        } finally {
+            ShadowLockManager.writeLock(A).unlock();
+            other.shutdown();
+        }
+    }
+
+    @Test
+    public void structureChangeLocksEachStripeOnce() {
+        Path b = otherStripe();
+        ShadowLockManager.lockForStructureChange(A, b, A);
+        try {
+            assertTrue(ShadowLockManager.isStructureLockHeldByCurrentThread());
+            ReentrantReadWriteLock lock = ShadowLockManager.lockFor(A);
+            assertEquals(1, lock.getWriteHoldCount());
+            assertEquals(1, ShadowLockManager.lockFor(b).getWriteHoldCount());
+        } finally {
+            ShadowLockManager.unlockForStructureChange(A, b, A);
+        }
+        assertFalse(ShadowLockManager.isStructureLockHeldByCurrentThread());
+        assertFalse(ShadowLockManager.lockFor(A).isWriteLocked());
+    }
+
+    @Test
+    public void structureLockIsPerNamespace() throws Exception {
+        ShadowNamespace pilot = ShadowFileSystem.namespace(41);
+        ExecutorService holder = Executors.newSingleThreadExecutor();
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            holder.submit(() -> {
+                ShadowLockManager.lockForStructureChange(pilot, A);
+                locked.countDown();
+                try {
+                    release.await();
+                } finally {
+                    ShadowLockManager.unlockForStructureChange(pilot, A);
+                }
+                return null;
+            });
+            assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+            // 别的namespace照常列目录
+            reader.submit(() -> {
+                ShadowLockManager.lockStructureRead();
+                ShadowLockManager.unlockStructureRead();
+            }).get(5, TimeUnit.SECONDS);
+
+            Future<?> sameNamespace = reader.submit(() -> {
+                ShadowNamespace previous = ShadowFileSystem.bind(pilot);
+                try {
+                    ShadowLockManager.lockStructureRead();
+                    ShadowLockManager.unlockStructureRead();
+                } finally {
+                    ShadowFileSystem.unbind(previous);
+                }
+            });
+            try {
+                sameNamespace.get(200, TimeUnit.MILLISECONDS);
+                fail("structure read should wait for the pilot's structure change");
+            } catch (TimeoutException expected) {
+            }
+            release.countDown();
+            sameNamespace.get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            holder.shutdown();
+            reader.shutdown();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.pilot.filesystem;
+
+import io.opentelemetry.api.baggage.Baggage;
+import io.opentelemetry.context.Scope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pilot.PilotUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShadowTreeWalkerTest {
+    private Path root;
+    private Path dir;
+    private Scope pilot;
+    private Path savedOriginal;
+    private Path savedBase;
+    private Path savedLog;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("shadowwalk");
+        savedOriginal = ShadowFileSystem.originalRoot;
+        savedBase = ShadowFileSystem.shadowBaseDir;
+        savedLog = ShadowFileSystem.shadowAppendLogDir;
+        Path original = Files.createDirectories(root.resolve("orig"));
+        ShadowFileSystem.originalRoot = original;
+        ShadowFileSystem.shadowBaseDir = root.resolve("shadow");
+        ShadowFileSystem.shadowAppendLogDir = root.resolve("log");
+
+        dir = Files.createDirectories(original.resolve("dir"));
+        Files.createDirectories(dir.resolve("sub/deep"));
+        Files.createDirectories(dir.resolve("skip"));
+        for (String name : Arrays.asList("a", "sub/b", "sub/deep/c", "skip/d")) {
+            Files.write(dir.resolve(name), name.getBytes());
+        }
+        pilot = Baggage.current().toBuilder().put(PilotUtil.PILOT_ID_KEY, "45").build().makeCurrent();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            ShadowTree.teardownAsync(ShadowFileSystem.current()).get(30, TimeUnit.SECONDS);
+        } finally {
+            pilot.close();
+            ShadowFileSystem.originalRoot = savedOriginal;
+            ShadowFileSystem.shadowBaseDir = savedBase;
+            ShadowFileSystem.shadowAppendLogDir = savedLog;
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    // 记录访问顺序，"+"是preVisit，"-"是postVisit
+    private final class Recorder extends SimpleFileVisitor<Path> {
+        final List<String> events = new ArrayList<>();
+
+        String name(Path path) {
+            return dir.relativize(path).toString().replace('\\', '/');
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+            events.add("+" + name(path));
+            return name(path).equals("skip") ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+            assertTrue(attrs.isRegularFile());
+            events.add(name(path));
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path path, IOException e) {
+            events.add("-" + name(path));
+            return FileVisitResult.CONTINUE;
+        }
+    }
+
+    private static void assertBefore(List<String> events, String first, String second) {
+        assertTrue(events + ": " + first + " before " + second,
+                events.indexOf(first) >= 0 && events.indexOf(first) < events.indexOf(second));
+    }
+
+    @Test
+    public void directoriesAreVisitedAroundTheirChildren() throws IOException {
+        ShadowFiles.delete(dir.resolve("a"));
+        try (OutputStream out = ShadowFiles.newOutputStream(dir.resolve("sub/new"))) {
+            out.write(1);
+        }
+        Recorder recorder = new Recorder();
+        ShadowFiles.walkFileTree(dir, recorder);
+        List<String> events = recorder.events;
+
+        assertEquals("+", events.get(0));
+        assertEquals("-", events.get(events.size() - 1));
+        assertFalse(events.contains("a"));
+        // skip目录的preVisit返回SKIP_SUBTREE，不进去也没有postVisit
+        assertTrue(events.contains("+skip"));
+        assertFalse(events.contains("skip/d") || events.contains("-skip"));
+        for (String child : Arrays.asList("sub/b", "sub/new", "+sub/deep", "-sub/deep")) {
+            assertBefore(events, "+sub", child);
+            assertBefore(events, child, "-sub");
+        }
+        assertBefore(events, "+sub/deep", "sub/deep/c");
+        assertBefore(events, "sub/deep/c", "-sub/deep");
+        assertEquals(10, events.size());
+        // 走一遍不会物化任何东西
+        assertFalse(Files.exists(ShadowFileSystem.resolveShadowFSPath(dir.resolve("sub/b"))));
+    }
+
+    @Test
+    public void terminateStopsTheWalk() throws IOException {
+        List<String> files = new ArrayList<>();
+        ShadowFiles.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                files.add(path.toString());
+                return FileVisitResult.TERMINATE;
+            }
+        });
+        assertEquals(1, files.size());
+    }
+}
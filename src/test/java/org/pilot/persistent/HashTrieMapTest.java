@@ -0,0 +1,139 @@
+package org.pilot.persistent;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HashTrieMapTest {
+
+    // hashCode全部相同，逼出CollisionNode
+    private static final class Colliding {
+        final int id;
+
+        Colliding(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Colliding && ((Colliding) o).id == id;
+        }
+    }
+
+    private static <K, V> Map<K, V> toMap(HashTrieMap<K, V> trie) {
+        Map<K, V> map = new HashMap<>();
+        for (Map.Entry<K, V> entry : trie) {
+            assertFalse("duplicate " + entry.getKey(), map.containsKey(entry.getKey()));
+            map.put(entry.getKey(), entry.getValue());
+        }
+        return map;
+    }
+
+    @Test
+    public void putLeavesOriginalUnchanged() {
+        HashTrieMap<String, Integer> empty = HashTrieMap.empty();
+        HashTrieMap<String, Integer> one = empty.put("a", 1);
+        HashTrieMap<String, Integer> two = one.put("a", 2);
+
+        assertEquals(0, empty.size());
+        assertNull(empty.get("a"));
+        assertEquals(Integer.valueOf(1), one.get("a"));
+        assertEquals(Integer.valueOf(2), two.get("a"));
+        assertEquals(1, two.size());
+        assertSame(two, two.put("a", two.get("a")));
+    }
+
+    @Test
+    public void nullKeyAndValue() {
+        HashTrieMap<String, String> map = HashTrieMap.<String, String>empty().put(null, "n").put("v", null);
+
+        assertEquals(2, map.size());
+        assertEquals("n", map.get(null));
+        assertTrue(map.containsKey("v"));
+        assertNull(map.get("v"));
+        assertFalse(map.containsKey("missing"));
+        assertEquals(1, map.remove(null).size());
+        assertFalse(map.remove(null).containsKey(null));
+    }
+
+    @Test
+    public void collisionsPutGetRemove() {
+        HashTrieMap<Colliding, Integer> map = HashTrieMap.empty();
+        for (int i = 0; i < 5; i++) {
+            map = map.put(new Colliding(i), i);
+        }
+        // null键的hash不同，碰撞节点要挂到位图节点下面
+        map = map.put(null, -1);
+
+        assertEquals(6, map.size());
+        assertEquals(Integer.valueOf(-1), map.get(null));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Integer.valueOf(i), map.get(new Colliding(i)));
+        }
+        HashTrieMap<Colliding, Integer> removed = map.remove(new Colliding(2));
+        assertEquals(5, removed.size());
+        assertFalse(removed.containsKey(new Colliding(2)));
+        assertTrue(map.containsKey(new Colliding(2)));
+        assertSame(removed, removed.remove(new Colliding(2)));
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        Random random = new Random(7);
+        Map<Integer, Integer> expected = new HashMap<>();
+        HashTrieMap<Integer, Integer> trie = HashTrieMap.empty();
+        for (int i = 0; i < 20000; i++) {
+            Integer key = random.nextInt(3000) * 0x10001;
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                trie = trie.remove(key);
+            } else {
+                expected.put(key, i);
+                trie = trie.put(key, i);
+            }
+        }
+        assertEquals(expected.size(), trie.size());
+        assertEquals(expected, toMap(trie));
+    }
+
+    @Test
+    public void bulkBuildMatchesSource() {
+        Map<Integer, String> source = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            source.put(i * 37, "v" + i);
+        }
+        source.put(null, "null");
+        HashTrieMap<Integer, String> trie = HashTrieMap.of(source);
+
+        assertEquals(source.size(), trie.size());
+        assertEquals(source, toMap(trie));
+
+        // 构建完之后节点不能再被原地改
+        HashTrieMap<Integer, String> changed = trie.put(37, "changed").remove(74);
+        assertEquals("v1", trie.get(37));
+        assertEquals("v2", trie.get(74));
+        assertEquals("changed", changed.get(37));
+        assertFalse(changed.containsKey(74));
+    }
+
+    @Test
+    public void ofKeysMapsToTrue() {
+        HashTrieMap<String, Boolean> set = HashTrieMap.ofKeys(Arrays.asList("a", "b", "a"));
+        assertEquals(2, set.size());
+        assertEquals(Boolean.TRUE, set.get("b"));
+    }
+}
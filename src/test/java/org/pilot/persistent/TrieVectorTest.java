@@ -0,0 +1,97 @@
+package org.pilot.persistent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TrieVectorTest {
+
+    private static <E> List<E> toList(TrieVector<E> vector) {
+        List<E> list = new ArrayList<>();
+        for (E e : vector) {
+            list.add(e);
+        }
+        return list;
+    }
+
+    private static List<Integer> range(int n) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    @Test
+    public void addGrowsThroughSeveralLevels() {
+        TrieVector<Integer> vector = TrieVector.empty();
+        // 32 * 32 + 32之后根要长一层
+        int n = 40000;
+        for (int i = 0; i < n; i++) {
+            vector = vector.add(i);
+        }
+        assertEquals(n, vector.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(Integer.valueOf(i), vector.get(i));
+        }
+        assertEquals(range(n), toList(vector));
+    }
+
+    @Test
+    public void ofMatchesRepeatedAdd() {
+        for (int n : new int[]{0, 1, 31, 32, 33, 64, 1056, 1057, 33000}) {
+            TrieVector<Integer> built = TrieVector.of(range(n));
+            assertEquals(n, built.size());
+            assertEquals(range(n), toList(built));
+            assertEquals(range(n + 1), toList(built.add(n)));
+        }
+    }
+
+    @Test
+    public void setLeavesOriginalUnchanged() {
+        TrieVector<Integer> vector = TrieVector.of(range(2000));
+        TrieVector<Integer> changed = vector.set(5, -5).set(1999, -1999);
+
+        assertEquals(Integer.valueOf(5), vector.get(5));
+        assertEquals(Integer.valueOf(1999), vector.get(1999));
+        assertEquals(Integer.valueOf(-5), changed.get(5));
+        assertEquals(Integer.valueOf(-1999), changed.get(1999));
+        assertEquals(Integer.valueOf(6), changed.get(6));
+    }
+
+    @Test
+    public void removeLastShrinksBackToEmpty() {
+        int n = 1100;
+        TrieVector<Integer> vector = TrieVector.of(range(n));
+        for (int size = n; size > 0; size--) {
+            assertEquals(size, vector.size());
+            assertEquals(Integer.valueOf(size - 1), vector.get(size - 1));
+            vector = vector.removeLast();
+        }
+        assertSame(TrieVector.empty(), vector);
+    }
+
+    @Test
+    public void removeLastThenAddAcrossLeafBoundary() {
+        TrieVector<Integer> vector = TrieVector.of(range(33));
+        vector = vector.removeLast().removeLast().add(-1).add(-2);
+        List<Integer> expected = range(31);
+        Collections.addAll(expected, -1, -2);
+        assertEquals(expected, toList(vector));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getOutOfRange() {
+        TrieVector.of(range(3)).get(3);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void removeLastOfEmpty() {
+        TrieVector.empty().removeLast();
+    }
+}